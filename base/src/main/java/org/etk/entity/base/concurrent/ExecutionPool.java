@@ -136,6 +136,9 @@ public final class ExecutionPool {
         }
     }
 
+    // declared before the workers are started, they take from it right away
+    private static final DelayQueue<Pulse> delayQueue = new DelayQueue<Pulse>();
+
     static {
         ExecutionPoolPulseWorker worker = new ExecutionPoolPulseWorker();
         int processorCount = ManagementFactory.getOperatingSystemMXBean().getAvailableProcessors();
@@ -147,8 +150,6 @@ public final class ExecutionPool {
         }
     }
 
-    private static final DelayQueue<Pulse> delayQueue = new DelayQueue<Pulse>();
-
     public static class ExecutionPoolPulseWorker implements Runnable {
         public void run() {
             try {
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.benchmarks;
+
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.core.DelegatorFactory;
+
+/**
+ * Hands the in-memory delegator of {@link BenchmarkSupport} to
+ * DelegatorFactory, whatever the name: the condition code asks for the
+ * default delegator to check the types of its values.
+ */
+public class BenchmarkDelegatorFactory extends DelegatorFactory {
+
+  public Delegator getInstance(String delegatorName) {
+    return BenchmarkSupport.getDelegator();
+  }
+}
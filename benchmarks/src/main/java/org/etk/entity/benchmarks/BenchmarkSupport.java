@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javolution.util.FastList;
+
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.jdbc.JdbcValueHandler;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+import org.etk.entity.engine.plugins.model.xml.Field;
+import org.etk.entity.engine.plugins.model.xml.FieldType;
+import org.etk.entity.engine.plugins.model.xml.PKField;
+
+/**
+ * Shared setup of the benchmarks, all in memory: the BenchItem entity, a
+ * delegator that only knows its field types, reproducible BenchItem values
+ * and ResultSets over rows of them. No configuration or database is read, so
+ * the numbers are those of the engine code alone.
+ */
+public final class BenchmarkSupport {
+
+  public static final String DELEGATOR_NAME = "benchmark";
+
+  public static final String ITEM_ENTITY    = "BenchItem";
+
+  /** Same seed on every run so every run sees the same data */
+  public static final long   SEED           = 20111017L;
+
+  private static final Entity itemEntity = makeItemEntity();
+
+  private static final Delegator delegator = (Delegator) Proxy.newProxyInstance(Delegator.class.getClassLoader(),
+      new Class<?>[] { Delegator.class }, new InMemoryDelegator());
+
+  private BenchmarkSupport() {}
+
+  /** The delegator of the benchmarks, it resolves the field types of BenchItem */
+  public static Delegator getDelegator() {
+    return delegator;
+  }
+
+  public static Entity getItemEntity() {
+    return itemEntity;
+  }
+
+  /** Makes count BenchItem values in memory */
+  public static List<GenericValue> makeItems(int count) {
+    Random random = new Random(SEED);
+    List<GenericValue> values = FastList.newInstance();
+    for (int i = 0; i < count; i++) {
+      Map<String, Object> fields = new HashMap<String, Object>();
+      fields.put("itemId", itemId(i));
+      fields.put("name", "Item " + i);
+      fields.put("category", category(random));
+      fields.put("quantity", Long.valueOf(random.nextInt(1000)));
+      fields.put("amount", BigDecimal.valueOf(random.nextInt(100000), 2));
+      fields.put("createdDate", new Timestamp(1300000000000L + random.nextInt(1000000000)));
+      values.add(GenericValue.create(delegator, itemEntity, fields));
+    }
+    return values;
+  }
+
+  /** The BenchItem rows as a SELECT of all the fields in model order returns them */
+  public static Object[][] makeRows(int count) {
+    List<GenericValue> values = makeItems(count);
+    Object[][] rows = new Object[count][];
+    for (int i = 0; i < count; i++) {
+      GenericValue value = values.get(i);
+      rows[i] = new Object[itemEntity.getFieldsSize()];
+      for (int j = 0; j < rows[i].length; j++) {
+        rows[i][j] = value.get(itemEntity.getField(j).getName());
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * A forward-only ResultSet over the rows, answering the getters the
+   * JdbcValueHandlers call. It is a dynamic proxy, so every cell read pays a
+   * reflective call: compare runs with each other rather than with a driver.
+   */
+  public static ResultSet openResultSet(Object[][] rows) {
+    return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+        new RowsResultSet(rows));
+  }
+
+  public static FieldType getFieldType(String type) {
+    return ItemFieldType.TYPES.get(type);
+  }
+
+  public static String itemId(int i) {
+    return "ITEM" + i;
+  }
+
+  private static String category(Random random) {
+    return "CAT" + random.nextInt(20);
+  }
+
+  private static Entity makeItemEntity() {
+    Entity entity = new Entity();
+    entity.setPackageName("org.etk.entity.benchmarks");
+    entity.setEntityName(ITEM_ENTITY);
+    entity.setTableName("BENCH_ITEM");
+    addField(entity, "itemId", "ITEM_ID", "id-ne");
+    addField(entity, "name", "NAME", "name");
+    addField(entity, "category", "CATEGORY", "id");
+    addField(entity, "quantity", "QUANTITY", "numeric");
+    addField(entity, "amount", "AMOUNT", "currency-amount");
+    addField(entity, "createdDate", "CREATED_DATE", "date-time");
+    PKField pk = new PKField();
+    pk.setFieldName("itemId");
+    entity.addPKField(pk);
+    return entity;
+  }
+
+  private static void addField(Entity entity, String name, String colName, String type) {
+    Field field = new Field();
+    field.setName(name);
+    field.setColName(colName);
+    field.setType(type);
+    entity.addField(field);
+  }
+
+  /** The field types of the BenchItem fields, as the HSQL field type file defines them */
+  private static final class ItemFieldType extends FieldType {
+
+    private static final Map<String, FieldType> TYPES = new HashMap<String, FieldType>();
+
+    static {
+      TYPES.put("id-ne", new ItemFieldType("id-ne", "String", "VARCHAR"));
+      TYPES.put("id", new ItemFieldType("id", "String", "VARCHAR(20)"));
+      TYPES.put("name", new ItemFieldType("name", "String", "VARCHAR"));
+      TYPES.put("numeric", new ItemFieldType("numeric", "Long", "BIGINT"));
+      TYPES.put("currency-amount", new ItemFieldType("currency-amount", "java.math.BigDecimal", "DOUBLE"));
+      TYPES.put("date-time", new ItemFieldType("date-time", "java.sql.Timestamp", "TIMESTAMP"));
+    }
+
+    private ItemFieldType(String type, String javaType, String sqlType) {
+      this.type = type;
+      this.javaType = javaType;
+      this.sqlType = sqlType;
+      this.jdbcValueHandler = JdbcValueHandler.getInstance(javaType, sqlType);
+    }
+  }
+
+  /** Answers the model and field type lookups of BenchItem, nothing else */
+  private static final class InMemoryDelegator implements InvocationHandler {
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if ("equals".equals(name)) {
+        return Boolean.valueOf(proxy == args[0]);
+      } else if ("hashCode".equals(name)) {
+        return Integer.valueOf(System.identityHashCode(proxy));
+      } else if ("toString".equals(name)) {
+        return "BenchmarkDelegator";
+      } else if ("getDelegatorName".equals(name) || "getDelegatorBaseName".equals(name)
+          || "getEntityHelperName".equals(name) || "getEntityGroupName".equals(name)) {
+        return DELEGATOR_NAME;
+      } else if ("getEntityFieldType".equals(name)) {
+        return ItemFieldType.TYPES.get(args[1]);
+      } else if ("getModelEntity".equals(name)) {
+        return ITEM_ENTITY.equals(args[0]) ? itemEntity : null;
+      }
+
+      Class<?> returnType = method.getReturnType();
+      if (returnType == Integer.TYPE) {
+        return Integer.valueOf(0);
+      } else if (returnType == Long.TYPE) {
+        return Long.valueOf(0);
+      } else if (returnType == Boolean.TYPE) {
+        return Boolean.FALSE;
+      }
+      return null;
+    }
+  }
+
+  private static final class RowsResultSet implements InvocationHandler {
+
+    private final Object[][] rows;
+
+    private int              row     = -1;
+
+    private boolean          wasNull = false;
+
+    private RowsResultSet(Object[][] rows) {
+      this.rows = rows;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if ("next".equals(name)) {
+        return Boolean.valueOf(++row < rows.length);
+      } else if ("wasNull".equals(name)) {
+        return Boolean.valueOf(wasNull);
+      } else if ("close".equals(name)) {
+        row = rows.length;
+        return null;
+      } else if (name.startsWith("get") && args != null && args.length == 1 && args[0] instanceof Integer) {
+        Object value = rows[row][((Integer) args[0]).intValue() - 1];
+        wasNull = value == null;
+        if ("getLong".equals(name)) {
+          return Long.valueOf(wasNull ? 0 : ((Number) value).longValue());
+        } else if ("getInt".equals(name)) {
+          return Integer.valueOf(wasNull ? 0 : ((Number) value).intValue());
+        } else if ("getDouble".equals(name)) {
+          return Double.valueOf(wasNull ? 0 : ((Number) value).doubleValue());
+        }
+        return value;
+      }
+      throw new UnsupportedOperationException("ResultSet." + name + " is not supported by the benchmark rows");
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javolution.util.FastList;
+
+import org.etk.entity.base.utils.UtilMisc;
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.plugins.condition.CompiledCondition;
+import org.etk.entity.engine.plugins.condition.EntityCondition;
+import org.etk.entity.engine.plugins.condition.EntityConditionParam;
+import org.etk.entity.engine.plugins.condition.EntityOperator;
+import org.etk.entity.engine.plugins.config.DatasourceInfo;
+import org.etk.entity.engine.plugins.jdbc.SqlJdbcUtil;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * WHERE clause generation, uncached through EntityCondition.makeWhereString
+ * and through the shape cache of SqlJdbcUtil, and in-memory matching,
+ * interpreted with mapMatches and compiled, for a typical condition: two
+ * comparisons and an IN list. The datasource has the default settings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EntityConditionBenchmark {
+
+  private Delegator delegator;
+
+  private Entity modelEntity;
+
+  private DatasourceInfo datasourceInfo;
+
+  private EntityCondition condition;
+
+  private CompiledCondition compiled;
+
+  private Map<String, Object> matchingMap;
+
+  @Setup
+  public void setUp() throws Exception {
+    delegator = BenchmarkSupport.getDelegator();
+    modelEntity = BenchmarkSupport.getItemEntity();
+    datasourceInfo = new DatasourceInfo(null);
+    condition = EntityCondition.makeCondition(EntityOperator.AND,
+        EntityCondition.makeCondition("quantity", EntityOperator.GREATER_THAN, Long.valueOf(10)),
+        EntityCondition.makeCondition("amount", EntityOperator.LESS_THAN_EQUAL_TO, new BigDecimal("500.00")),
+        EntityCondition.makeCondition("category", EntityOperator.IN, UtilMisc.toList("CAT1", "CAT2", "CAT3", "CAT5")));
+    compiled = condition.compile(modelEntity);
+    matchingMap = UtilMisc.<String, Object>toMap("quantity", Long.valueOf(50), "amount", new BigDecimal("100.00"), "category", "CAT3");
+  }
+
+  @Benchmark
+  public String makeWhereString() {
+    List<EntityConditionParam> params = FastList.newInstance();
+    return condition.makeWhereString(modelEntity, params, datasourceInfo);
+  }
+
+  @Benchmark
+  public String makeWhereStringCached() {
+    List<EntityConditionParam> params = FastList.newInstance();
+    return SqlJdbcUtil.makeWhereString(condition, modelEntity, params, datasourceInfo);
+  }
+
+  @Benchmark
+  public boolean mapMatches() {
+    return condition.mapMatches(delegator, matchingMap);
+  }
+
+  @Benchmark
+  public boolean compiledMatches() {
+    return compiled.matches(delegator, matchingMap);
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.etk.entity.base.utils.UtilMisc;
+import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.condition.EntityCondition;
+import org.etk.entity.engine.plugins.condition.EntityOperator;
+import org.etk.entity.engine.plugins.util.EntityUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * In-memory filtering and sorting of value lists with EntityUtil.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EntityUtilBenchmark {
+
+  @Param({ "100", "10000" })
+  public int size;
+
+  private List<GenericValue> values;
+
+  private EntityCondition condition;
+
+  private List<String> orderBy;
+
+  @Setup
+  public void setUp() throws Exception {
+    values = BenchmarkSupport.makeItems(size);
+    condition = EntityCondition.makeCondition(EntityOperator.AND,
+        EntityCondition.makeCondition("category", EntityOperator.IN, UtilMisc.toList("CAT1", "CAT2", "CAT3")),
+        EntityCondition.makeCondition("amount", EntityOperator.GREATER_THAN, new BigDecimal("250.00")));
+    orderBy = UtilMisc.toList("category", "amount DESC", "itemId");
+  }
+
+  @Benchmark
+  public List<GenericValue> filterByCondition() {
+    return EntityUtil.filterByCondition(values, condition);
+  }
+
+  @Benchmark
+  public List<GenericValue> orderBy() {
+    return EntityUtil.orderBy(values, orderBy);
+  }
+}
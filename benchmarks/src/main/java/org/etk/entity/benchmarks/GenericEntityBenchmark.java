@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.etk.entity.engine.core.GenericValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Field access of GenericEntity: set with its type check, get, and hashCode
+ * right after a set, when the cached hash code has to be computed again.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GenericEntityBenchmark {
+
+  private GenericValue value;
+
+  private BigDecimal[] amounts;
+
+  private int index;
+
+  @Setup
+  public void setUp() throws Exception {
+    value = BenchmarkSupport.makeItems(1).get(0);
+    amounts = new BigDecimal[16];
+    for (int i = 0; i < amounts.length; i++) {
+      amounts[i] = BigDecimal.valueOf(i * 1000 + 99, 2);
+    }
+  }
+
+  private BigDecimal nextAmount() {
+    index = (index + 1) & (amounts.length - 1);
+    return amounts[index];
+  }
+
+  @Benchmark
+  public void set() {
+    value.set("amount", nextAmount());
+  }
+
+  @Benchmark
+  public Object get() {
+    return value.get("amount");
+  }
+
+  @Benchmark
+  public int setThenHashCode() {
+    value.set("amount", nextAmount());
+    return value.hashCode();
+  }
+
+  @Benchmark
+  public int hashCodeUnchanged() {
+    return value.hashCode();
+  }
+}
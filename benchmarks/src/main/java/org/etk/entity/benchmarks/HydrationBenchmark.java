@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.benchmarks;
+
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javolution.util.FastList;
+
+import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.jdbc.SqlJdbcUtil;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+import org.etk.entity.engine.plugins.model.xml.Field;
+import org.etk.entity.engine.plugins.model.xml.FieldType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning ResultSet rows into GenericValues with SqlJdbcUtil.getValue, the
+ * same per-field path the SQL selects take. The rows come from an in-memory
+ * ResultSet so the numbers are not mixed with a driver or the network.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HydrationBenchmark {
+
+  @Param({ "100", "10000" })
+  public int rows;
+
+  private Object[][] data;
+
+  private Entity modelEntity;
+
+  private Field[] fields;
+
+  private FieldType[] fieldTypes;
+
+  @Setup
+  public void setUp() throws Exception {
+    data = BenchmarkSupport.makeRows(rows);
+    modelEntity = BenchmarkSupport.getItemEntity();
+    fields = new Field[modelEntity.getFieldsSize()];
+    fieldTypes = new FieldType[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      fields[i] = modelEntity.getField(i);
+      fieldTypes[i] = BenchmarkSupport.getFieldType(fields[i].getType());
+    }
+  }
+
+  @Benchmark
+  public List<GenericValue> hydrate() throws Exception {
+    List<GenericValue> values = FastList.newInstance();
+    ResultSet rs = BenchmarkSupport.openResultSet(data);
+    try {
+      while (rs.next()) {
+        GenericValue value = GenericValue.create(modelEntity);
+        for (int i = 0; i < fields.length; i++) {
+          SqlJdbcUtil.getValue(rs, i + 1, fields[i], fieldTypes[i], value);
+        }
+        value.synchronizedWithDatasource();
+        values.add(value);
+      }
+    } finally {
+      rs.close();
+    }
+    return values;
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.benchmarks;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+import org.etk.entity.base.utils.ObjectType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The conversions ObjectType.simpleTypeConvert does most often in the engine:
+ * from the strings of request parameters and tokens, and back to String.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ObjectTypeBenchmark {
+
+  private String longText = "1234567890";
+
+  private String decimalText = "12345.67";
+
+  private String timestampText = "2011-10-17 12:34:56.789";
+
+  private Long longValue = Long.valueOf(1234567890L);
+
+  private BigDecimal decimalValue = new BigDecimal("12345.67");
+
+  private Timestamp timestampValue = Timestamp.valueOf("2011-10-17 12:34:56.789");
+
+  @Benchmark
+  public Object stringToLong() throws Exception {
+    return ObjectType.simpleTypeConvert(longText, "Long", null, null);
+  }
+
+  @Benchmark
+  public Object stringToBigDecimal() throws Exception {
+    return ObjectType.simpleTypeConvert(decimalText, "java.math.BigDecimal", null, null);
+  }
+
+  @Benchmark
+  public Object stringToTimestamp() throws Exception {
+    return ObjectType.simpleTypeConvert(timestampText, "java.sql.Timestamp", null, null);
+  }
+
+  @Benchmark
+  public Object longToString() throws Exception {
+    return ObjectType.simpleTypeConvert(longValue, "String", null, null);
+  }
+
+  @Benchmark
+  public Object bigDecimalToLong() throws Exception {
+    return ObjectType.simpleTypeConvert(decimalValue, "Long", null, null);
+  }
+
+  @Benchmark
+  public Object sameType() throws Exception {
+    return ObjectType.simpleTypeConvert(timestampValue, "java.sql.Timestamp", null, null);
+  }
+}
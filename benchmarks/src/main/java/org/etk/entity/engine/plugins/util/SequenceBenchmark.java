@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Contended sequence ids: eight threads taking ids from the same bank, the
+ * way SequenceUtil hands them out, with the database round trip of a refill
+ * replaced by the next range in memory. It shows the lock-free hand-out and
+ * the swap of exhausted blocks under the fill lock, sized by the adaptive
+ * bank size. It sits in the package of SequenceUtil to reach its blocks.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class SequenceBenchmark {
+
+  private final AtomicReference<SequenceUtil.Block> current = new AtomicReference<SequenceUtil.Block>();
+
+  private final Object fillLock = new Object();
+
+  private SequenceUtil.AdaptiveBankSize bankSizes;
+
+  private long maxSeqId;
+
+  @Setup
+  public void setUp() {
+    bankSizes = new SequenceUtil.AdaptiveBankSize(10, 5000);
+    maxSeqId = 10000;
+    current.set(new SequenceUtil.Block(maxSeqId, maxSeqId));
+  }
+
+  @Benchmark
+  public long nextSeqId() {
+    SequenceUtil.Block block = current.get();
+    while (true) {
+      long seqId = block.take(1);
+      if (seqId >= 0) {
+        return seqId;
+      }
+      block = nextBlock(block);
+    }
+  }
+
+  private SequenceUtil.Block nextBlock(SequenceUtil.Block exhausted) {
+    synchronized (fillLock) {
+      SequenceUtil.Block block = current.get();
+      if (block != exhausted) {
+        return block;
+      }
+      long startSeqId = maxSeqId;
+      maxSeqId += bankSizes.next(System.nanoTime());
+      block = new SequenceUtil.Block(startSeqId, maxSeqId);
+      current.set(block);
+      return block;
+    }
+  }
+}
@@ -21,15 +21,20 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import javax.transaction.Transaction;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.etk.entity.engine.core.EntityCryptoException;
-import org.etk.entity.engine.core.GenericDelagator;
+import org.etk.entity.engine.core.GenericDelegator;
 import org.etk.entity.engine.core.GenericEntity;
 import org.etk.entity.engine.core.GenericEntityException;
 import org.etk.entity.engine.core.GenericPK;
 import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.cache.Cache;
 import org.etk.entity.engine.plugins.condition.EntityCondition;
 import org.etk.entity.engine.plugins.datasource.GenericHelper;
 import org.etk.entity.engine.plugins.model.xml.Entity;
@@ -37,8 +42,12 @@ import org.etk.entity.engine.plugins.model.xml.FieldType;
 import org.etk.entity.engine.plugins.model.xml.ViewEntity;
 import org.etk.entity.engine.plugins.util.EntityCrypto;
 import org.etk.entity.engine.plugins.util.EntityFindOptions;
+import org.etk.entity.engine.plugins.util.EntityKeysetPage;
 import org.etk.entity.engine.plugins.util.EntityListIterator;
+import org.etk.entity.engine.plugins.util.EntityUnitOfWork;
 import org.etk.entity.engine.plugins.util.SequenceUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 
 /**
@@ -137,9 +146,9 @@ public interface Delegator {
 
   public void clearCacheLineFlexible(GenericEntity dummyPK, boolean distribute);
 
-  public GenericDelagator cloneDelegator();
+  public GenericDelegator cloneDelegator();
 
-  public GenericDelagator cloneDelegator(String delegatorName);
+  public GenericDelegator cloneDelegator(String delegatorName);
 
   /**
    * Creates a Entity in the form of a GenericValue and write it to the
@@ -226,6 +235,37 @@ public interface Delegator {
    */
   public GenericValue createOrStore(GenericValue value, boolean doCacheClear) throws GenericEntityException;
 
+  /**
+   * Creates the Entities from the List GenericValue instances in the
+   * persistent store. Consecutive values of the same entity are sent to the
+   * database in batches instead of one statement per value. <br/>These
+   * inserts all happen in one transaction, so they will either all succeed
+   * or all fail, if the data source supports transactions.
+   *
+   * @param values
+   *            List of GenericValue instances containing the entities to
+   *            create
+   * @return int representing number of rows effected by this operation
+   */
+  public int createAll(List<GenericValue> values) throws GenericEntityException;
+
+  /**
+   * Creates the Entities from the List GenericValue instances in the
+   * persistent store. Consecutive values of the same entity are sent to the
+   * database in batches instead of one statement per value. <br/>These
+   * inserts all happen in one transaction, so they will either all succeed
+   * or all fail, if the data source supports transactions.
+   *
+   * @param values
+   *            List of GenericValue instances containing the entities to
+   *            create
+   * @param doCacheClear
+   *            boolean that specifies whether or not to automatically clear
+   *            cache entries related to this operation
+   * @return int representing number of rows effected by this operation
+   */
+  public int createAll(List<GenericValue> values, boolean doCacheClear) throws GenericEntityException;
+
   /**
    * Sets the sequenced ID (for entity with one primary key field ONLY), and
    * then does a create in the database as normal. The reason to do it this
@@ -288,6 +328,98 @@ public interface Delegator {
    */
   public EntityListIterator find(String entityName, EntityCondition whereEntityCondition, EntityCondition havingEntityCondition, Set<String> fieldsToSelect, List<String> orderBy, EntityFindOptions findOptions) throws GenericEntityException;
 
+  /**
+   * Finds one page of Generic Entity records using keyset (seek) paging: the
+   * next page starts after the last row of the previous one, found with a
+   * condition on the order by fields, so deep pages are as fast as the first.
+   * See EntityKeysetPage for the restrictions on the order by list.
+   *
+   * @param entityName
+   *            The Name of the Entity as defined in the entity XML file
+   * @param whereEntityCondition
+   *            The EntityCondition object that specifies how to constrain
+   *            this query
+   * @param fieldsToSelect
+   *            The fields of the named entity to get from the database; if
+   *            empty or null all fields will be retreived. The order by and
+   *            primary key fields are always retrieved.
+   * @param orderBy
+   *            The fields of the named entity to order the query by;
+   *            optionally add a " ASC" for ascending or " DESC" for
+   *            descending. The primary key fields are added at the end.
+   * @param pageSize
+   *            The maximum number of rows of the page
+   * @param continuationToken
+   *            The token returned with the previous page, null for the first
+   *            page
+   * @return the page, with the token of the next page if there is one
+   */
+  public EntityKeysetPage findPage(String entityName, EntityCondition whereEntityCondition, Set<String> fieldsToSelect, List<String> orderBy, int pageSize, String continuationToken) throws GenericEntityException;
+
+  /**
+   * Runs the callable on the async executor of this delegator, see
+   * setAsyncExecutor. The work never joins the transaction of the calling
+   * thread on its own: with a null transaction each delegator call it makes
+   * runs in its own transaction, otherwise the given transaction is associated
+   * to the worker thread for the duration of the call. The calling thread must
+   * suspend that transaction (TransactionUtil.suspend) before submitting and
+   * resume it once the futures are done.
+   *
+   * @param callable
+   *            The work to run
+   * @param transaction
+   *            The transaction to run the work in, or null
+   * @return the Future of the result of the callable
+   */
+  public <T> Future<T> submitAsync(Callable<T> callable, Transaction transaction) throws GenericEntityException;
+
+  /** Asynchronous findOne, runs outside of the transaction of the calling thread, see submitAsync */
+  public Future<GenericValue> findOneAsync(String entityName, Map<String, ? extends Object> fields, boolean useCache) throws GenericEntityException;
+
+  /** Asynchronous findList, runs outside of the transaction of the calling thread, see submitAsync */
+  public Future<List<GenericValue>> findListAsync(String entityName, EntityCondition entityCondition, Set<String> fieldsToSelect, List<String> orderBy, EntityFindOptions findOptions, boolean useCache) throws GenericEntityException;
+
+  /** Asynchronous findCountByCondition, runs outside of the transaction of the calling thread, see submitAsync */
+  public Future<Long> findCountByConditionAsync(String entityName, EntityCondition whereEntityCondition, EntityCondition havingEntityCondition, EntityFindOptions findOptions) throws GenericEntityException;
+
+  /** Asynchronous create of a copy of the value, runs in its own transaction, see submitAsync; the Future returns the created copy */
+  public Future<GenericValue> createAsync(GenericValue value) throws GenericEntityException;
+
+  /** Asynchronous store of a copy of the value, runs in its own transaction, see submitAsync */
+  public Future<Integer> storeAsync(GenericValue value) throws GenericEntityException;
+
+  /** Asynchronous storeAll of copies of the values, they are stored in one transaction of their own, see submitAsync */
+  public Future<Integer> storeAllAsync(List<GenericValue> values) throws GenericEntityException;
+
+  /** Asynchronous removeValue, runs in its own transaction, see submitAsync */
+  public Future<Integer> removeValueAsync(GenericValue value) throws GenericEntityException;
+
+  /**
+   * Starts a write-behind unit of work for the transaction in place, or
+   * returns the one already started. Until the transaction completes, create,
+   * store, removeValue, removeByPrimaryKey and their createAll, storeAll and
+   * removeAll counterparts only record the write in the unit of work, findOne
+   * sees the recorded writes, and the other finds and the by-condition
+   * operations flush them first. What is left is flushed before the
+   * transaction commits.
+   *
+   * @return the unit of work of the transaction
+   * @throws GenericEntityException
+   *             if there is no transaction in place
+   */
+  public EntityUnitOfWork beginUnitOfWork() throws GenericEntityException;
+
+  /** Returns the unit of work of the transaction in place, or null if none was started */
+  public EntityUnitOfWork getUnitOfWork() throws GenericEntityException;
+
+  /**
+   * Writes the pending writes of the unit of work of the transaction in
+   * place, if there is one.
+   *
+   * @return the number of rows changed
+   */
+  public int flushUnitOfWork() throws GenericEntityException;
+
   /**
    * Finds Generic Entity records by all of the specified fields (ie: combined
    * using AND) NOTE 20080502: 264 references
@@ -786,7 +918,7 @@ public interface Delegator {
   /** Creates a Primary Key in the form of a GenericPK without persisting it */
   public GenericPK makePKSingle(String entityName, Object singlePkValue);
 
-  public GenericDelagator makeTestDelegator(String delegatorName);
+  public GenericDelegator makeTestDelegator(String delegatorName);
 
   /**
    * Creates a Entity in the form of a GenericValue without persisting it;
@@ -1052,6 +1184,12 @@ public interface Delegator {
 
   public void rollback();
 
+  /**
+   * Sets the executor the asynchronous methods run on; by default a pool
+   * shared by all delegators with two threads per processor.
+   */
+  public void setAsyncExecutor(ExecutorService asyncExecutor);
+
   public void setDistributedCacheClear(DistributedCacheClear distributedCacheClear);
 
   public void setEntityCrypto(EntityCrypto crypto);
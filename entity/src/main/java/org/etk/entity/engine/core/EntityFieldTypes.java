@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.core;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.etk.common.logging.Logger;
+import org.etk.entity.base.utils.ObjectType;
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.plugins.jdbc.SqlJdbcUtil;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+import org.etk.entity.engine.plugins.model.xml.Field;
+import org.etk.entity.engine.plugins.model.xml.FieldType;
+
+/**
+ * The Java types of the fields of an entity for one datasource helper,
+ * indexed by {@link Field#getIndex()}.
+ * <p>
+ * {@link GenericEntity#set(String, Object, boolean)} used to resolve the
+ * {@link FieldType} through the delegator and check the value against the
+ * Java type name on every call; the table does the lookups and the class
+ * loading once per entity and delegator. A delegator reads an entity with one
+ * helper, so the tables are kept per delegator name and entity name and a
+ * lookup needs neither the helper name nor a key object.
+ */
+final class EntityFieldTypes {
+
+  private static final Logger                                logger           = Logger.getLogger(EntityFieldTypes.class);
+
+  /** The JDBC handling code of SqlJdbcUtil.getType for java.lang.Boolean */
+  static final int                                          BOOLEAN_TYPE     = 10;
+
+  /** Marks a field whose Java type is not handled by SqlJdbcUtil.getType */
+  static final int                                          UNSUPPORTED_TYPE = -1;
+
+  /** delegator name -> entity name -> table */
+  private static final ConcurrentMap<String, ConcurrentMap<String, EntityFieldTypes>> fieldTypesCache = new ConcurrentHashMap<String, ConcurrentMap<String, EntityFieldTypes>>();
+
+  /** The model the table was built from, a reloaded model gets a new table */
+  private final WeakReference<Entity>                       entity;
+
+  private final String[]                                    javaTypeNames;
+
+  /** null when the class could not be loaded, the type name is then checked with ObjectType */
+  private final Class<?>[]                                  javaClasses;
+
+  private final int[]                                       jdbcTypes;
+
+  private EntityFieldTypes(Delegator delegator, Entity entity) {
+    int fieldsSize = entity.getFieldsSize();
+    this.entity = new WeakReference<Entity>(entity);
+    this.javaTypeNames = new String[fieldsSize];
+    this.javaClasses = new Class<?>[fieldsSize];
+    this.jdbcTypes = new int[fieldsSize];
+    for (int i = 0; i < fieldsSize; i++) {
+      Field field = entity.getField(i);
+      FieldType type = null;
+      try {
+        type = delegator.getEntityFieldType(entity, field.getType());
+      } catch (GenericEntityException e) {
+        logger.warn(e.getMessage(), e);
+      }
+      if (type == null) {
+        continue;
+      }
+      String javaTypeName = type.getJavaType();
+      javaTypeNames[i] = javaTypeName;
+      try {
+        javaClasses[i] = ObjectType.loadClass(javaTypeName);
+      } catch (ClassNotFoundException e) {
+        if (logger.isDebugEnabled()) logger.debug("Could not load Java type " + javaTypeName + " of field " + entity.getEntityName() + "." + field.getName());
+      }
+      try {
+        jdbcTypes[i] = SqlJdbcUtil.getType(javaTypeName);
+      } catch (GenericNotImplementedException e) {
+        jdbcTypes[i] = UNSUPPORTED_TYPE;
+      }
+    }
+  }
+
+  /** Gets the table of the entity for the helper the delegator uses for it, building it on first use */
+  static EntityFieldTypes getFieldTypes(Delegator delegator, Entity entity) {
+    String delegatorName = delegator.getDelegatorName();
+    ConcurrentMap<String, EntityFieldTypes> delegatorTables = fieldTypesCache.get(delegatorName);
+    if (delegatorTables == null) {
+      delegatorTables = new ConcurrentHashMap<String, EntityFieldTypes>();
+      ConcurrentMap<String, EntityFieldTypes> existing = fieldTypesCache.putIfAbsent(delegatorName, delegatorTables);
+      if (existing != null) {
+        delegatorTables = existing;
+      }
+    }
+    EntityFieldTypes fieldTypes = delegatorTables.get(entity.getEntityName());
+    if (fieldTypes == null || fieldTypes.entity.get() != entity || fieldTypes.javaTypeNames.length != entity.getFieldsSize()) {
+      fieldTypes = new EntityFieldTypes(delegator, entity);
+      delegatorTables.put(entity.getEntityName(), fieldTypes);
+    }
+    return fieldTypes;
+  }
+
+  /** The Java type name of the field, null if the field type is unknown to the helper */
+  String getJavaTypeName(Field field) {
+    return javaTypeNames[field.getIndex()];
+  }
+
+  int getJdbcType(Field field) {
+    return jdbcTypes[field.getIndex()];
+  }
+
+  boolean isInstance(Field field, Object value) {
+    Class<?> javaClass = javaClasses[field.getIndex()];
+    if (javaClass != null) {
+      return javaClass.isInstance(value);
+    }
+    return ObjectType.instanceOf(value, javaTypeNames[field.getIndex()]);
+  }
+}
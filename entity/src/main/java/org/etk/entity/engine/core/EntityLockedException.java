@@ -17,10 +17,22 @@
 package org.etk.entity.engine.core;
 
 /**
- * Author : ThanhVuCong
- *          thanhvucong.78@gmail.com
- * Aug 26, 2011  
+ * Thrown when an update of an entity with locking enabled finds that the row
+ * was changed by someone else since the value was read.
+ *
  */
-public class GenericDelagator {
+@SuppressWarnings("serial")
+public class EntityLockedException extends GenericEntityException {
+
+    public EntityLockedException() {
+        super();
+    }
+
+    public EntityLockedException(String str) {
+        super(str);
+    }
 
+    public EntityLockedException(String str, Throwable nested) {
+        super(str, nested);
+    }
 }
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.core;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.etk.entity.engine.plugins.model.xml.Entity;
+import org.etk.entity.engine.plugins.model.xml.Field;
+
+import javolution.util.FastMap;
+
+/**
+ * Compact field storage of a {@link GenericEntity}.
+ * <p>
+ * The values live in an array indexed by {@link Field#getIndex()} and a bit
+ * set tells which fields are present, so a field set to null is still a key of
+ * the map. Names that are not fields of the entity, which the entity engine
+ * never stores but a caller using the map view may, go to an overflow map.
+ * <p>
+ * The map is not thread safe, like the FastMap it replaces.
+ */
+@SuppressWarnings("serial")
+final class FieldValueMap extends AbstractMap<String, Object> implements Serializable {
+
+  private final transient Entity entity;
+
+  private final Object[]         values;
+
+  private final long[]           present;
+
+  private int                    size;
+
+  private Map<String, Object>    overflow;
+
+  private transient Set<Map.Entry<String, Object>> entrySet;
+
+  FieldValueMap(Entity entity) {
+    this.entity = entity;
+    int fieldsSize = entity.getFieldsSize();
+    this.values = new Object[fieldsSize];
+    this.present = new long[(fieldsSize + 63) >>> 6];
+  }
+
+  /** Copies the map, keeping the compact storage when the source uses it */
+  static Map<String, Object> copyOf(Map<String, Object> fields) {
+    if (fields instanceof FieldValueMap) {
+      FieldValueMap source = (FieldValueMap) fields;
+      FieldValueMap copy = new FieldValueMap(source.entity);
+      System.arraycopy(source.values, 0, copy.values, 0, source.values.length);
+      System.arraycopy(source.present, 0, copy.present, 0, source.present.length);
+      copy.size = source.size;
+      if (source.overflow != null) {
+        copy.overflow = FastMap.newInstance();
+        copy.overflow.putAll(source.overflow);
+      }
+      return copy;
+    }
+    Map<String, Object> copy = FastMap.newInstance();
+    copy.putAll(fields);
+    return copy;
+  }
+
+  Entity getEntity() {
+    return entity;
+  }
+
+  private int indexOf(Object key) {
+    if (!(key instanceof String)) return -1;
+    Field field = entity.getField((String) key);
+    return field == null ? -1 : field.getIndex();
+  }
+
+  private boolean isPresent(int index) {
+    return (present[index >>> 6] & (1L << index)) != 0;
+  }
+
+  /** Whether the field is the one of the entity at its index, a field of another entity is looked up by name */
+  private boolean isOwnField(Field field) {
+    int index = field.getIndex();
+    return index >= 0 && index < values.length && entity.getField(index) == field;
+  }
+
+  Object get(Field field) {
+    if (!isOwnField(field)) return get(field.getName());
+    int index = field.getIndex();
+    return isPresent(index) ? values[index] : null;
+  }
+
+  Object put(Field field, Object value) {
+    if (!isOwnField(field)) return put(field.getName(), value);
+    int index = field.getIndex();
+    Object old = null;
+    if (isPresent(index)) {
+      old = values[index];
+    } else {
+      present[index >>> 6] |= 1L << index;
+      size++;
+    }
+    values[index] = value;
+    return old;
+  }
+
+  private Object removeIndex(int index) {
+    if (!isPresent(index)) return null;
+    Object old = values[index];
+    present[index >>> 6] &= ~(1L << index);
+    values[index] = null;
+    size--;
+    return old;
+  }
+
+  @Override
+  public Object get(Object key) {
+    int index = indexOf(key);
+    if (index >= 0) {
+      return isPresent(index) ? values[index] : null;
+    }
+    return overflow == null ? null : overflow.get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    int index = indexOf(key);
+    if (index >= 0) {
+      return isPresent(index);
+    }
+    return overflow != null && overflow.containsKey(key);
+  }
+
+  @Override
+  public Object put(String key, Object value) {
+    Field field = entity.getField(key);
+    if (field != null) {
+      return put(field, value);
+    }
+    if (overflow == null) {
+      overflow = FastMap.newInstance();
+    }
+    return overflow.put(key, value);
+  }
+
+  @Override
+  public Object remove(Object key) {
+    int index = indexOf(key);
+    if (index >= 0) {
+      return removeIndex(index);
+    }
+    return overflow == null ? null : overflow.remove(key);
+  }
+
+  @Override
+  public void clear() {
+    for (int i = 0; i < values.length; i++) {
+      values[i] = null;
+    }
+    for (int i = 0; i < present.length; i++) {
+      present[i] = 0;
+    }
+    size = 0;
+    overflow = null;
+  }
+
+  @Override
+  public int size() {
+    return overflow == null ? size : size + overflow.size();
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    if (entrySet == null) {
+      entrySet = new AbstractSet<Map.Entry<String, Object>>() {
+        @Override
+        public Iterator<Map.Entry<String, Object>> iterator() {
+          return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+          return FieldValueMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+          FieldValueMap.this.clear();
+        }
+      };
+    }
+    return entrySet;
+  }
+
+  /** Keeps the serialized form a plain map, the model entity is not serializable */
+  private Object writeReplace() {
+    Map<String, Object> map = FastMap.newInstance();
+    map.putAll(this);
+    return map;
+  }
+
+  private final class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+    private int nextIndex = nextPresent(0);
+
+    private int lastIndex = -1;
+
+    private Iterator<Map.Entry<String, Object>> overflowIterator = null;
+
+    private int nextPresent(int from) {
+      for (int i = from; i < values.length; i++) {
+        if (isPresent(i)) return i;
+      }
+      return -1;
+    }
+
+    public boolean hasNext() {
+      if (nextIndex >= 0) return true;
+      if (overflow == null) return false;
+      if (overflowIterator == null) overflowIterator = overflow.entrySet().iterator();
+      return overflowIterator.hasNext();
+    }
+
+    public Map.Entry<String, Object> next() {
+      if (nextIndex >= 0) {
+        lastIndex = nextIndex;
+        nextIndex = nextPresent(nextIndex + 1);
+        return new FieldEntry(lastIndex);
+      }
+      if (!hasNext()) throw new NoSuchElementException();
+      lastIndex = -1;
+      return overflowIterator.next();
+    }
+
+    public void remove() {
+      if (lastIndex >= 0) {
+        removeIndex(lastIndex);
+        lastIndex = -1;
+      } else if (overflowIterator != null) {
+        overflowIterator.remove();
+      } else {
+        throw new IllegalStateException();
+      }
+    }
+  }
+
+  private final class FieldEntry implements Map.Entry<String, Object> {
+    private final int index;
+
+    private FieldEntry(int index) {
+      this.index = index;
+    }
+
+    public String getKey() {
+      return entity.getField(index).getName();
+    }
+
+    public Object getValue() {
+      return values[index];
+    }
+
+    public Object setValue(Object value) {
+      Object old = values[index];
+      values[index] = value;
+      return old;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Map.Entry<?, ?>)) return false;
+      Map.Entry<?, ?> that = (Map.Entry<?, ?>) obj;
+      Object value = getValue();
+      return getKey().equals(that.getKey()) && (value == null ? that.getValue() == null : value.equals(that.getValue()));
+    }
+
+    @Override
+    public int hashCode() {
+      Object value = getValue();
+      return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+    }
+
+    @Override
+    public String toString() {
+      return getKey() + "=" + getValue();
+    }
+  }
+}
@@ -0,0 +1,2172 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.core;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.etk.common.logging.Logger;
+import org.etk.entity.base.concurrent.ExecutionPool;
+import org.etk.entity.base.utils.UtilMisc;
+import org.etk.entity.base.utils.UtilValidate;
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.plugins.cache.Cache;
+import org.etk.entity.engine.plugins.condition.EntityCondition;
+import org.etk.entity.engine.plugins.condition.EntityOperator;
+import org.etk.entity.engine.plugins.condition.OrderByItem;
+import org.etk.entity.engine.plugins.config.EntityConfigUtil;
+import org.etk.entity.engine.plugins.datasource.GenericHelper;
+import org.etk.entity.engine.plugins.datasource.GenericHelperDAO;
+import org.etk.entity.engine.plugins.datasource.GenericHelperInfo;
+import org.etk.entity.engine.plugins.metrics.EntityMetrics;
+import org.etk.entity.engine.plugins.metrics.EntityMetricsFactory;
+import org.etk.entity.engine.plugins.model.configuration.ConfigurationUnmarshaller;
+import org.etk.entity.engine.plugins.model.metadata.EntityKeyMap;
+import org.etk.entity.engine.plugins.model.xml.Configuration;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+import org.etk.entity.engine.plugins.model.xml.Field;
+import org.etk.entity.engine.plugins.model.xml.FieldType;
+import org.etk.entity.engine.plugins.model.xml.FieldTypeReader;
+import org.etk.entity.engine.plugins.model.xml.Relation;
+import org.etk.entity.engine.plugins.model.xml.ViewEntity;
+import org.etk.entity.engine.plugins.transaction.GenericTransactionException;
+import org.etk.entity.engine.plugins.transaction.TransactionFactory;
+import org.etk.entity.engine.plugins.transaction.TransactionUtil;
+import org.etk.entity.engine.plugins.util.EntityCrypto;
+import org.etk.entity.engine.plugins.util.EntityFindOptions;
+import org.etk.entity.engine.plugins.util.EntityKeysetPage;
+import org.etk.entity.engine.plugins.util.EntityListIterator;
+import org.etk.entity.engine.plugins.util.EntityUnitOfWork;
+import org.etk.entity.engine.plugins.util.EntityUtil;
+import org.etk.entity.engine.plugins.util.SequenceUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+
+/**
+ * Generic Data Source Delegator Class
+ * <p>
+ * Resolves the model of the entities, routes each operation to the helper of
+ * the entity group and keeps the entity cache of the delegator up to date.
+ */
+public class GenericDelegator implements Delegator {
+
+  private static final Logger logger = Logger.getLogger(GenericDelegator.class);
+
+  public static final String module = GenericDelegator.class.getName();
+
+  /** The classpath resource the entity model is read from */
+  public static final String ENTITY_MODEL_XML = "entityconf/entitymodel.xml";
+
+  public static final String SEQUENCE_ENTITY_NAME = "SequenceValueItem";
+
+  private static final ThreadGroup ASYNC_THREAD_GROUP = new ThreadGroup("GenericDelegator");
+
+  /** Shared by all delegators that don't set their own, two threads per processor */
+  private static final ExecutorService defaultAsyncExecutor = ExecutionPool.getExecutor(ASYNC_THREAD_GROUP, "entity-delegator-async", -2, false);
+
+  protected String delegatorBaseName = null;
+
+  protected String delegatorFullName = null;
+
+  protected String delegatorTenantId = null;
+
+  protected String originalDelegatorName = null;
+
+  protected DelegatorInfo delegatorInfo = null;
+
+  /** The model entities of this delegator, keyed by entity name */
+  protected Map<String, Entity> modelEntities = null;
+
+  protected Cache cache = null;
+
+  protected final ConcurrentMap<String, GenericHelper> helpers = new ConcurrentHashMap<String, GenericHelper>();
+
+  protected volatile SequenceUtil sequencer = null;
+
+  protected EntityCrypto crypto = null;
+
+  protected EntityEcaHandler<?> entityEcaHandler = null;
+
+  protected DistributedCacheClear distributedCacheClear = null;
+
+  protected boolean jmsEnabled = false;
+
+  /** Set on the delegators made by makeTestDelegator, their writes are recorded so that rollback can undo them */
+  protected volatile boolean testMode = false;
+
+  /** The writes of a test delegator, oldest first */
+  protected final LinkedBlockingDeque<TestOperation> testOperations = new LinkedBlockingDeque<TestOperation>();
+
+  protected volatile ExecutorService asyncExecutor = defaultAsyncExecutor;
+
+  /** The write-behind units of work of the transactions that started one */
+  protected final ConcurrentMap<Transaction, EntityUnitOfWork> unitsOfWork = new ConcurrentHashMap<Transaction, EntityUnitOfWork>();
+
+  /**
+   * Creates the delegator, the entity model is read from
+   * {@link #ENTITY_MODEL_XML}.
+   * 
+   * @param delegatorFullName the name of the delegator, with an optional
+   *          "#tenantId" suffix
+   */
+  public GenericDelegator(String delegatorFullName) throws GenericEntityException {
+    this(delegatorFullName, loadConfiguration(ENTITY_MODEL_XML));
+  }
+
+  public GenericDelegator(String delegatorFullName, Configuration configuration) throws GenericEntityException {
+    setDelegatorNames(delegatorFullName);
+    this.originalDelegatorName = delegatorFullName;
+
+    this.delegatorInfo = EntityConfigUtil.getDelegatorInfo(this.delegatorBaseName);
+    if (this.delegatorInfo == null) {
+      throw new GenericEntityException("No configuration found for delegator [" + delegatorFullName + "]");
+    }
+
+    Map<String, Entity> entities = FastMap.newInstance();
+    Iterator<?> iter = configuration.getEntities().iterator();
+    while (iter.hasNext()) {
+      Entity entity = (Entity) iter.next();
+      entities.put(entity.getEntityName(), entity);
+    }
+    this.modelEntities = Collections.unmodifiableMap(entities);
+    this.cache = new Cache(this.delegatorFullName);
+    if (logger.isDebugEnabled()) logger.debug("Created delegator [" + delegatorFullName + "] with " + entities.size() + " entities");
+  }
+
+  /** Used by {@link #cloneDelegator(String)}, the model and plug-ins are shared but not the cache */
+  protected GenericDelegator(GenericDelegator source, String delegatorFullName) {
+    setDelegatorNames(delegatorFullName);
+    this.originalDelegatorName = source.originalDelegatorName;
+    this.delegatorInfo = source.delegatorInfo;
+    this.modelEntities = source.modelEntities;
+    this.crypto = source.crypto;
+    this.entityEcaHandler = source.entityEcaHandler;
+    this.distributedCacheClear = source.distributedCacheClear;
+    this.jmsEnabled = source.jmsEnabled;
+    this.asyncExecutor = source.asyncExecutor;
+    this.cache = new Cache(this.delegatorFullName);
+  }
+
+  private void setDelegatorNames(String delegatorFullName) {
+    this.delegatorFullName = delegatorFullName;
+    int hashSymbolIndex = delegatorFullName.indexOf('#');
+    if (hashSymbolIndex == -1) {
+      this.delegatorBaseName = delegatorFullName;
+    } else {
+      this.delegatorBaseName = delegatorFullName.substring(0, hashSymbolIndex);
+      this.delegatorTenantId = delegatorFullName.substring(hashSymbolIndex + 1);
+    }
+  }
+
+  private static Configuration loadConfiguration(String resource) throws GenericEntityException {
+    URL url = Thread.currentThread().getContextClassLoader().getResource(resource);
+    if (url == null) {
+      throw new GenericModelException("Could not find the entity model resource [" + resource + "]");
+    }
+    try {
+      return new ConfigurationUnmarshaller().unmarshall(url);
+    } catch (Exception e) {
+      throw new GenericModelException("Error reading the entity model from [" + url + "]", e);
+    }
+  }
+
+  public String getDelegatorName() {
+    return this.delegatorFullName;
+  }
+
+  public String getDelegatorBaseName() {
+    return this.delegatorBaseName;
+  }
+
+  public String getDelegatorTenantId() {
+    return this.delegatorTenantId;
+  }
+
+  public String getOriginalDelegatorName() {
+    return this.originalDelegatorName == null ? this.delegatorFullName : this.originalDelegatorName;
+  }
+
+  public GenericDelegator cloneDelegator(String delegatorName) {
+    return new GenericDelegator(this, delegatorName);
+  }
+
+  public GenericDelegator cloneDelegator() {
+    return cloneDelegator(this.delegatorFullName);
+  }
+
+  /**
+   * A clone of this delegator that records its creates, stores and removes so
+   * that {@link #rollback()} can undo them, for tests running against a shared
+   * database.
+   */
+  public GenericDelegator makeTestDelegator(String delegatorName) {
+    GenericDelegator testDelegator = cloneDelegator(delegatorName);
+    testDelegator.testMode = true;
+    return testDelegator;
+  }
+
+  /**
+   * Undoes the writes made through a delegator of makeTestDelegator, newest
+   * first: created rows are removed, stored rows get their previous fields back
+   * and removed rows are created again.
+   */
+  public void rollback() {
+    if (!testMode) {
+      logger.warn("Rollback requested on delegator [" + delegatorFullName + "], which is not a test delegator; only the writes of makeTestDelegator delegators can be rolled back");
+      return;
+    }
+    // the undo writes must not be recorded themselves
+    testMode = false;
+    try {
+      logger.info("Rolling back " + testOperations.size() + " entity operations of delegator [" + delegatorFullName + "]");
+      TestOperation operation;
+      while ((operation = testOperations.pollLast()) != null) {
+        try {
+          switch (operation.type) {
+          case INSERT:
+            removeValue(operation.value);
+            break;
+          case UPDATE:
+            store(operation.value);
+            break;
+          case DELETE:
+            create(operation.value);
+            break;
+          }
+        } catch (GenericEntityException e) {
+          logger.warn("Could not roll back the " + operation.type + " of [" + operation.value.getPrimaryKey() + "]", e);
+        }
+      }
+    } finally {
+      testMode = true;
+    }
+  }
+
+  /** Records a write of a test delegator; value is the row as rollback has to restore it */
+  private void storeForTestRollback(TestOperationType type, GenericValue value) {
+    if (value != null) {
+      testOperations.add(new TestOperation(type, GenericValue.create(value)));
+    }
+  }
+
+  /** Records the current rows of the entity matching the condition, before a store or remove changes them */
+  private void storeForTestRollback(TestOperationType type, String entityName, EntityCondition condition) throws GenericEntityException {
+    for (GenericValue value : findList(entityName, condition, null, null, null, false)) {
+      storeForTestRollback(type, value);
+    }
+  }
+
+  protected enum TestOperationType {
+    INSERT, UPDATE, DELETE
+  }
+
+  protected static final class TestOperation {
+    final TestOperationType type;
+
+    final GenericValue      value;
+
+    TestOperation(TestOperationType type, GenericValue value) {
+      this.type = type;
+      this.value = value;
+    }
+  }
+
+  // ======================================
+  // ======= Model and helper methods ========
+  // ======================================
+
+  public Entity getModelEntity(String entityName) {
+    return modelEntities.get(entityName);
+  }
+
+  protected Entity getModelEntityChecked(String entityName) throws GenericModelException {
+    Entity modelEntity = modelEntities.get(entityName);
+    if (modelEntity == null) {
+      throw new GenericModelException("Could not find definition for entity name " + entityName);
+    }
+    return modelEntity;
+  }
+
+  /** All the entities of this delegator belong to the default group of the delegator */
+  public String getEntityGroupName(String entityName) {
+    return delegatorInfo.defaultGroupName;
+  }
+
+  public Map<String, Entity> getModelEntityMapByGroup(String groupName) throws GenericEntityException {
+    if (groupName == null || !groupName.equals(delegatorInfo.defaultGroupName)) {
+      return Collections.emptyMap();
+    }
+    return modelEntities;
+  }
+
+  protected GenericHelperInfo getGroupHelperInfo(String entityGroupName) {
+    if (entityGroupName == null) return null;
+    String helperBaseName = delegatorInfo.groupMap.get(entityGroupName);
+    if (helperBaseName == null) return null;
+    GenericHelperInfo helperInfo = new GenericHelperInfo(entityGroupName, helperBaseName);
+    if (UtilValidate.isNotEmpty(this.delegatorTenantId)) {
+      helperInfo.setTenantId(this.delegatorTenantId);
+    }
+    return helperInfo;
+  }
+
+  public String getEntityHelperName(String entityName) {
+    GenericHelperInfo helperInfo = getGroupHelperInfo(getEntityGroupName(entityName));
+    return helperInfo == null ? null : helperInfo.getHelperFullName();
+  }
+
+  public String getEntityHelperName(Entity entity) {
+    if (entity == null) return null;
+    return getEntityHelperName(entity.getEntityName());
+  }
+
+  public GenericHelper getEntityHelper(String entityName) throws GenericEntityException {
+    GenericHelperInfo helperInfo = getGroupHelperInfo(getEntityGroupName(entityName));
+    if (helperInfo == null) {
+      throw new GenericEntityException("There is no datasource (Helper) configured for the entity-group [" + getEntityGroupName(entityName) + "]; was trying to find datasource (helper) for entity [" + entityName + "]");
+    }
+    GenericHelper helper = helpers.get(helperInfo.getHelperFullName());
+    if (helper == null) {
+      helper = new GenericHelperDAO(helperInfo);
+      GenericHelper existing = helpers.putIfAbsent(helperInfo.getHelperFullName(), helper);
+      if (existing != null) helper = existing;
+    }
+    return helper;
+  }
+
+  public GenericHelper getEntityHelper(Entity entity) throws GenericEntityException {
+    return getEntityHelper(entity.getEntityName());
+  }
+
+  public FieldType getEntityFieldType(Entity entity, String type) throws GenericEntityException {
+    FieldTypeReader fieldTypeReader = getFieldTypeReader(entity);
+    return fieldTypeReader == null ? null : fieldTypeReader.getModelFieldType(type);
+  }
+
+  public Collection<String> getEntityFieldTypeNames(Entity entity) throws GenericEntityException {
+    FieldTypeReader fieldTypeReader = getFieldTypeReader(entity);
+    return fieldTypeReader == null ? null : fieldTypeReader.getFieldTypeNames();
+  }
+
+  private FieldTypeReader getFieldTypeReader(Entity entity) throws GenericEntityException {
+    String helperName = getEntityHelperName(entity);
+    if (UtilValidate.isEmpty(helperName)) return null;
+    FieldTypeReader fieldTypeReader = FieldTypeReader.getModelFieldTypeReader(helperName);
+    if (fieldTypeReader == null) {
+      throw new GenericEntityException("ModelFieldTypeReader not found for entity " + entity.getEntityName() + " with helper name " + helperName);
+    }
+    return fieldTypeReader;
+  }
+
+  // ======================================
+  // ======= Value and primary key factories ========
+  // ======================================
+
+  public GenericValue makeValue(String entityName) {
+    GenericValue value = GenericValue.create(getModelEntityForMake("makeValue", entityName));
+    value.setDelegator(this);
+    return value;
+  }
+
+  public GenericValue makeValue(String entityName, Object... fields) {
+    return makeValue(entityName, UtilMisc.<String, Object> toMap(fields));
+  }
+
+  public GenericValue makeValue(String entityName, Map<String, ? extends Object> fields) {
+    return GenericValue.create(this, getModelEntityForMake("makeValue", entityName), fields);
+  }
+
+  public GenericValue makeValueSingle(String entityName, Object singlePkValue) {
+    return GenericValue.create(this, getModelEntityForMake("makeValueSingle", entityName), singlePkValue);
+  }
+
+  public GenericValue makeValidValue(String entityName, Object... fields) {
+    return makeValidValue(entityName, UtilMisc.<String, Object> toMap(fields));
+  }
+
+  public GenericValue makeValidValue(String entityName, Map<String, ? extends Object> fields) {
+    GenericValue value = makeValue(entityName);
+    value.setPKFields(fields, true);
+    value.setNonPKFields(fields, true);
+    return value;
+  }
+
+  public GenericPK makePK(String entityName) {
+    return makePK(entityName, (Map<String, Object>) null);
+  }
+
+  public GenericPK makePK(String entityName, Object... fields) {
+    return makePK(entityName, UtilMisc.<String, Object> toMap(fields));
+  }
+
+  public GenericPK makePK(String entityName, Map<String, ? extends Object> fields) {
+    return GenericPK.create(this, getModelEntityForMake("makePK", entityName), fields);
+  }
+
+  public GenericPK makePKSingle(String entityName, Object singlePkValue) {
+    return GenericPK.create(this, getModelEntityForMake("makePKSingle", entityName), singlePkValue);
+  }
+
+  private Entity getModelEntityForMake(String methodName, String entityName) {
+    Entity entity = getModelEntity(entityName);
+    if (entity == null) {
+      throw new IllegalArgumentException("[GenericDelegator." + methodName + "] could not find entity for entityName: " + entityName);
+    }
+    return entity;
+  }
+
+  public GenericPK makePK(Element element) {
+    GenericValue value = makeValue(element);
+    return value == null ? null : value.getPrimaryKey();
+  }
+
+  /**
+   * Makes a value from an element of an entity-engine-xml document: the tag
+   * name is the entity name, optionally after a prefix ending with a dash or a
+   * colon, and each field is read from the attribute of the same name or else
+   * from the text of the child element of that name.
+   */
+  public GenericValue makeValue(Element element) {
+    if (element == null) {
+      return null;
+    }
+    String entityName = element.getTagName();
+    if (entityName.indexOf('-') > 0) {
+      entityName = entityName.substring(entityName.indexOf('-') + 1);
+    }
+    if (entityName.indexOf(':') > 0) {
+      entityName = entityName.substring(entityName.indexOf(':') + 1);
+    }
+    GenericValue value = makeValue(entityName);
+    Iterator<Field> fields = value.getModelEntity().getFieldsIterator();
+    while (fields.hasNext()) {
+      String name = fields.next().getName();
+      String attr = element.getAttribute(name);
+      if (UtilValidate.isNotEmpty(attr)) {
+        value.setString(name, attr);
+      } else {
+        Element subElement = getChildElement(element, name);
+        if (subElement != null) {
+          value.setString(name, subElement.getTextContent());
+        }
+      }
+    }
+    return value;
+  }
+
+  private static Element getChildElement(Element element, String name) {
+    for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+      if (node.getNodeType() == Node.ELEMENT_NODE && name.equals(((Element) node).getTagName())) {
+        return (Element) node;
+      }
+    }
+    return null;
+  }
+
+  /** Makes the values of the child elements of the entity-engine-xml root element of the document */
+  public List<GenericValue> makeValues(Document document) {
+    if (document == null) {
+      return null;
+    }
+    Element docElement = document.getDocumentElement();
+    if (docElement == null) {
+      return null;
+    }
+    if (!"entity-engine-xml".equals(docElement.getTagName())) {
+      logger.error("Root node of the entity XML document is not entity-engine-xml but " + docElement.getTagName());
+      return null;
+    }
+    docElement.normalize();
+    List<GenericValue> values = FastList.newInstance();
+    for (Node node = docElement.getFirstChild(); node != null; node = node.getNextSibling()) {
+      if (node.getNodeType() == Node.ELEMENT_NODE) {
+        GenericValue value = makeValue((Element) node);
+        if (value != null) {
+          values.add(value);
+        }
+      }
+    }
+    return values;
+  }
+
+  public List<GenericValue> readXmlDocument(URL url) throws SAXException, ParserConfigurationException, java.io.IOException {
+    if (url == null) {
+      return null;
+    }
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(false);
+    InputStream is = url.openStream();
+    try {
+      return makeValues(factory.newDocumentBuilder().parse(is, url.toExternalForm()));
+    } finally {
+      is.close();
+    }
+  }
+
+  // ======================================
+  // ======= Create methods ========
+  // ======================================
+
+  public GenericValue create(String entityName, Object... fields) throws GenericEntityException {
+    return create(entityName, UtilMisc.<String, Object> toMap(fields));
+  }
+
+  public GenericValue create(String entityName, Map<String, ? extends Object> fields) throws GenericEntityException {
+    if (entityName == null || fields == null) {
+      return null;
+    }
+    return create(makeValue(entityName, fields));
+  }
+
+  public GenericValue createSingle(String entityName, Object singlePkValue) throws GenericEntityException {
+    if (entityName == null || singlePkValue == null) {
+      return null;
+    }
+    return create(makeValueSingle(entityName, singlePkValue));
+  }
+
+  public GenericValue create(GenericPK primaryKey) throws GenericEntityException {
+    return create(primaryKey, true);
+  }
+
+  public GenericValue create(GenericPK primaryKey, boolean doCacheClear) throws GenericEntityException {
+    if (primaryKey == null) {
+      throw new GenericEntityException("Cannot create from a null primaryKey");
+    }
+    return create(GenericValue.create(primaryKey), doCacheClear);
+  }
+
+  public GenericValue create(GenericValue value) throws GenericEntityException {
+    return create(value, true);
+  }
+
+  public GenericValue create(GenericValue value, boolean doCacheClear) throws GenericEntityException {
+    if (value == null) {
+      throw new GenericEntityException("Cannot create a null value");
+    }
+    EntityUnitOfWork unitOfWork = getWritingUnitOfWork();
+    if (unitOfWork != null) {
+      return unitOfWork.create(value);
+    }
+    String entityName = value.getEntityName();
+    long startNanos = System.nanoTime();
+    boolean beganTransaction = false;
+    try {
+      beganTransaction = TransactionUtil.begin();
+      value.setDelegator(this);
+      GenericHelper helper = getEntityHelper(entityName);
+      encryptFields(value);
+      try {
+        value = helper.create(value);
+      } finally {
+        decryptFields(value);
+      }
+      if (value != null) {
+        if (testMode) {
+          storeForTestRollback(TestOperationType.INSERT, value);
+        }
+        value.setDelegator(this);
+        if (doCacheClear) {
+          // a new row can only show up in the condition lines it matches
+          this.clearCacheLine(value);
+        }
+      }
+      TransactionUtil.commit(beganTransaction);
+      EntityMetricsFactory.getMetrics().recordOperation(entityName, EntityMetrics.CREATE, System.nanoTime() - startNanos, value == null ? 0 : 1);
+      return value;
+    } catch (GenericEntityException e) {
+      String errMsg = "Failure in create operation for entity [" + entityName + "]: " + e.toString() + ". Rolling back transaction.";
+      logger.error(errMsg, e);
+      TransactionUtil.rollback(beganTransaction, errMsg, e);
+      throw e;
+    }
+  }
+
+  public int createAll(List<GenericValue> values) throws GenericEntityException {
+    return createAll(values, true);
+  }
+
+  /**
+   * Values are written with one JDBC batch per run of consecutive values of the
+   * same entity. Like create, the values go to the unit of work of the
+   * transaction when there is one, and the time of each run is recorded.
+   */
+  public int createAll(List<GenericValue> values, boolean doCacheClear) throws GenericEntityException {
+    if (values == null) {
+      return 0;
+    }
+    EntityUnitOfWork unitOfWork = getWritingUnitOfWork();
+    if (unitOfWork != null) {
+      for (GenericValue value : values) {
+        unitOfWork.create(value);
+      }
+      return values.size();
+    }
+    int numberCreated = 0;
+    boolean beganTransaction = false;
+    try {
+      beganTransaction = TransactionUtil.begin();
+      for (List<GenericValue> run : groupByEntity(values)) {
+        long startNanos = System.nanoTime();
+        for (GenericValue value : run) {
+          value.setDelegator(this);
+        }
+        encryptFields(run);
+        int rows;
+        try {
+          rows = getEntityHelper(run.get(0).getEntityName()).createAll(run);
+        } finally {
+          decryptFields(run);
+        }
+        for (GenericValue value : run) {
+          if (testMode) {
+            storeForTestRollback(TestOperationType.INSERT, value);
+          }
+          if (doCacheClear) {
+            this.clearCacheLine(value);
+          }
+        }
+        EntityMetricsFactory.getMetrics().recordOperation(run.get(0).getEntityName(), EntityMetrics.CREATE, System.nanoTime() - startNanos, rows);
+        numberCreated += rows;
+      }
+      TransactionUtil.commit(beganTransaction);
+      return numberCreated;
+    } catch (GenericEntityException e) {
+      String errMsg = "Failure in createAll operation: " + e.toString() + ". Rolling back transaction.";
+      logger.error(errMsg, e);
+      TransactionUtil.rollback(beganTransaction, errMsg, e);
+      throw e;
+    }
+  }
+
+  public GenericValue createSetNextSeqId(GenericValue value) throws GenericEntityException {
+    if (value == null) {
+      throw new GenericEntityException("Cannot create a null value");
+    }
+    Entity modelEntity = value.getModelEntity();
+    String pkName = modelEntity.getOnlyPk().getName();
+    final int maxTries = 10;
+    for (int tries = 1;; tries++) {
+      value.set(pkName, getNextSeqId(value.getEntityName()));
+      try {
+        return create(value);
+      } catch (GenericEntityException e) {
+        if (tries >= maxTries || findOne(value.getEntityName(), value.getPrimaryKey(), false) == null) {
+          throw e;
+        }
+        // somebody else got this id, probably a stale bank on another server
+        logger.warn("Duplicate sequence id " + value.get(pkName) + " for entity " + value.getEntityName() + ", refreshing the sequence bank and trying again");
+        SequenceUtil sequencer = this.sequencer;
+        if (sequencer != null) {
+          sequencer.forceBankRefresh(value.getEntityName(), 1);
+        }
+      }
+    }
+  }
+
+  public GenericValue createOrStore(GenericValue value) throws GenericEntityException {
+    return createOrStore(value, true);
+  }
+
+  public GenericValue createOrStore(GenericValue value, boolean doCacheClear) throws GenericEntityException {
+    boolean beganTransaction = false;
+    try {
+      beganTransaction = TransactionUtil.begin();
+      GenericValue checkValue = findOne(value.getEntityName(), value.getPrimaryKey(), false);
+      if (checkValue != null) {
+        this.store(value, doCacheClear);
+      } else {
+        this.create(value, doCacheClear);
+      }
+      TransactionUtil.commit(beganTransaction);
+      return value;
+    } catch (GenericEntityException e) {
+      String errMsg = "Failure in createOrStore operation for entity [" + value.getEntityName() + "]: " + e.toString() + ". Rolling back transaction.";
+      logger.error(errMsg, e);
+      TransactionUtil.rollback(beganTransaction, errMsg, e);
+      throw e;
+    }
+  }
+
+  /**
+   * Splits the values into runs of consecutive values of the same entity, the
+   * unit written with one batch by the *All methods.
+   */
+  private static List<List<GenericValue>> groupByEntity(List<GenericValue> values) {
+    List<List<GenericValue>> runs = FastList.newInstance();
+    List<GenericValue> run = null;
+    for (GenericValue value : values) {
+      if (run == null || !value.getEntityName().equals(run.get(0).getEntityName())) {
+        run = FastList.newInstance();
+        runs.add(run);
+      }
+      run.add(value);
+    }
+    return runs;
+  }
+
+  // ======================================
+  // ======= Store methods ========
+  // ======================================
+
+  public int store(GenericValue value) throws GenericEntityException {
+    return store(value, true);
+  }
+
+  public int store(GenericValue value, boolean doCacheClear) throws GenericEntityException {
+    EntityUnitOfWork unitOfWork = getWritingUnitOfWork();
+    if (unitOfWork != null) {
+      return unitOfWork.store(value);
+    }
+    long startNanos = System.nanoTime();
+    boolean beganTransaction = false;
+    try {
+      beganTransaction = TransactionUtil.begin();
+      GenericHelper helper = getEntityHelper(value.getEntityName());
+      if (doCacheClear) {
+        // clear before writing, the original db values are replaced by the update
+        clearCacheLineForUpdate(value);
+      }
+      if (testMode) {
+        storeForTestRollback(TestOperationType.UPDATE, findOne(value.getEntityName(), value.getPrimaryKey(), false));
+      }
+      encryptFields(value);
+      int retVal;
+      try {
+        retVal = helper.store(value);
+      } finally {
+        decryptFields(value);
+      }
+      TransactionUtil.commit(beganTransaction);
+      EntityMetricsFactory.getMetrics().recordOperation(value.getEntityName(), EntityMetrics.STORE, System.nanoTime() - startNanos, retVal);
+      return retVal;
+    } catch (GenericEntityException e) {
+      String errMsg = "Failure in store operation for entity [" + value.getEntityName() + "]: " + e.toString() + ". Rolling back transaction.";
+      logger.error(errMsg, e);
+      TransactionUtil.rollback(beganTransaction, errMsg, e);
+      throw e;
+    }
+  }
+
+  public int storeAll(List<GenericValue> values) throws GenericEntityException {
+    return storeAll(values, true);
+  }
+
+  public int storeAll(List<GenericValue> values, boolean doCacheClear) throws GenericEntityException {
+    return storeAll(values, doCacheClear, false);
+  }
+
+  /**
+   * Values are written with one JDBC batch per run of consecutive values of the
+   * same entity; the order of the runs is kept so rows referenced by foreign
+   * keys are still written first. Rows the update does not find are inserted.
+   * Like store, the values go to the unit of work of the transaction when
+   * there is one, and the time of each run is recorded.
+   */
+  public int storeAll(List<GenericValue> values, boolean doCacheClear, boolean createDummyFks) throws GenericEntityException {
+    if (values == null) {
+      return 0;
+    }
+    EntityUnitOfWork unitOfWork = getWritingUnitOfWork();
+    if (unitOfWork != null) {
+      int numberChanged = 0;
+      for (GenericValue value : values) {
+        if (createDummyFks) {
+          value.checkFks(true);
+        }
+        numberChanged += unitOfWork.store(value);
+      }
+      return numberChanged;
+    }
+    int numberChanged = 0;
+    boolean beganTransaction = false;
+    try {
+      beganTransaction = TransactionUtil.begin();
+      for (List<GenericValue> run : groupByEntity(values)) {
+        long startNanos = System.nanoTime();
+        for (GenericValue value : run) {
+          value.setDelegator(this);
+          if (createDummyFks) {
+            value.checkFks(true);
+          }
+          if (doCacheClear) {
+            // clear before writing, the original db values are replaced by the update
+            clearCacheLineForUpdate(value);
+          }
+          if (testMode) {
+            storeForTestRollback(TestOperationType.UPDATE, findOne(value.getEntityName(), value.getPrimaryKey(), false));
+          }
+        }
+        encryptFields(run);
+        int rows;
+        try {
+          rows = getEntityHelper(run.get(0).getEntityName()).storeAll(run);
+        } finally {
+          decryptFields(run);
+        }
+        EntityMetricsFactory.getMetrics().recordOperation(run.get(0).getEntityName(), EntityMetrics.STORE, System.nanoTime() - startNanos, rows);
+        numberChanged += rows;
+      }
+      TransactionUtil.commit(beganTransaction);
+      return numberChanged;
+    } catch (GenericEntityException e) {
+      String errMsg = "Failure in storeAll operation: " + e.toString() + ". Rolling back transaction.";
+      logger.error(errMsg, e);
+      TransactionUtil.rollback(beganTransaction, errMsg, e);
+      throw e;
+    }
+  }
+
+  public int storeByCondition(String entityName, Map<String, ? extends Object> fieldsToSet, EntityCondition condition) throws GenericEntityException {
+    return storeByCondition(entityName, fieldsToSet, condition, true);
+  }
+
+  public int storeByCondition(String entityName, Map<String, ? extends Object> fieldsToSet, EntityCondition condition, boolean doCacheClear) throws GenericEntityException {
+    flushUnitOfWork();
+    boolean beganTransaction = false;
+    try {
+      beganTransaction = TransactionUtil.begin();
+      Entity modelEntity = getModelEntityChecked(entityName);
+      GenericHelper helper = getEntityHelper(entityName);
+      if (doCacheClear) {
+        this.clearCacheLineByCondition(entityName, condition);
+      }
+      if (testMode) {
+        storeForTestRollback(TestOperationType.UPDATE, entityName, condition);
+      }
+      int rowsChanged = helper.storeByCondition(modelEntity, fieldsToSet, condition);
+      TransactionUtil.commit(beganTransaction);
+      return rowsChanged;
+    } catch (GenericEntityException e) {
+      String errMsg = "Failure in storeByCondition operation for entity [" + entityName + "]: " + e.toString() + ". Rolling back transaction.";
+      logger.error(errMsg, e);
+      TransactionUtil.rollback(beganTransaction, errMsg, e);
+      throw e;
+    }
+  }
+
+  // ======================================
+  // ======= Remove methods ========
+  // ======================================
+
+  public int removeByPrimaryKey(GenericPK primaryKey) throws GenericEntityException {
+    return removeByPrimaryKey(primaryKey, true);
+  }
+
+  public int removeByPrimaryKey(GenericPK primaryKey, boolean doCacheClear) throws GenericEntityException {
+    EntityUnitOfWork unitOfWork = getWritingUnitOfWork();
+    if (unitOfWork != null) {
+      return unitOfWork.remove(primaryKey);
+    }
+    boolean beganTransaction = false;
+    try {
+      beganTransaction = TransactionUtil.begin();
+      GenericHelper helper = getEntityHelper(primaryKey.getEntityName());
+      if (doCacheClear) {
+        this.clearCacheLine(primaryKey);
+      }
+      if (testMode) {
+        storeForTestRollback(TestOperationType.DELETE, findOne(primaryKey.getEntityName(), primaryKey, false));
+      }
+      int num = helper.removeByPrimaryKey(primaryKey);
+      TransactionUtil.commit(beganTransaction);
+      return num;
+    } catch (GenericEntityException e) {
+      String errMsg = "Failure in removeByPrimaryKey operation for entity [" + primaryKey.getEntityName() + "]: " + e.toString() + ". Rolling back transaction.";
+      logger.error(errMsg, e);
+      TransactionUtil.rollback(beganTransaction, errMsg, e);
+      throw e;
+    }
+  }
+
+  public int removeValue(GenericValue value) throws GenericEntityException {
+    return removeValue(value, true);
+  }
+
+  public int removeValue(GenericValue value, boolean doCacheClear) throws GenericEntityException {
+    EntityUnitOfWork unitOfWork = getWritingUnitOfWork();
+    if (unitOfWork != null) {
+      int num = unitOfWork.remove(value);
+      value.removedFromDatasource();
+      return num;
+    }
+    boolean beganTransaction = false;
+    long startNanos = System.nanoTime();
+    try {
+      beganTransaction = TransactionUtil.begin();
+      GenericHelper helper = getEntityHelper(value.getEntityName());
+      if (doCacheClear) {
+        this.clearCacheLine(value);
+      }
+      if (testMode) {
+        storeForTestRollback(TestOperationType.DELETE, findOne(value.getEntityName(), value.getPrimaryKey(), false));
+      }
+      int num = helper.removeByPrimaryKey(value.getPrimaryKey());
+      value.removedFromDatasource();
+      TransactionUtil.commit(beganTransaction);
+      EntityMetricsFactory.getMetrics().recordOperation(value.getEntityName(), EntityMetrics.REMOVE, System.nanoTime() - startNanos, num);
+      return num;
+    } catch (GenericEntityException e) {
+      String errMsg = "Failure in removeValue operation for entity [" + value.getEntityName() + "]: " + e.toString() + ". Rolling back transaction.";
+      logger.error(errMsg, e);
+      TransactionUtil.rollback(beganTransaction, errMsg, e);
+      throw e;
+    }
+  }
+
+  public int removeAll(String entityName) throws GenericEntityException {
+    return removeByCondition(entityName, null, true);
+  }
+
+  public int removeAll(List<? extends GenericEntity> dummyPKs) throws GenericEntityException {
+    return removeAll(dummyPKs, true);
+  }
+
+  /**
+   * Values with a primary key are removed with one JDBC batch per run of
+   * consecutive values of the same entity, the others by their fields. Like
+   * removeValue, the values with a primary key go to the unit of work of the
+   * transaction when there is one.
+   */
+  public int removeAll(List<? extends GenericEntity> dummyPKs, boolean doCacheClear) throws GenericEntityException {
+    if (dummyPKs == null) {
+      return 0;
+    }
+    EntityUnitOfWork unitOfWork = getWritingUnitOfWork();
+    int numRemoved = 0;
+    boolean beganTransaction = false;
+    try {
+      beganTransaction = TransactionUtil.begin();
+      List<GenericEntity> run = FastList.newInstance();
+      for (GenericEntity value : dummyPKs) {
+        if (unitOfWork != null) {
+          if (value.containsPrimaryKey()) {
+            numRemoved += unitOfWork.remove(value);
+            value.removedFromDatasource();
+          } else {
+            numRemoved += this.removeByAnd(value.getEntityName(), value.getAllFields(), doCacheClear);
+          }
+          continue;
+        }
+        if (!run.isEmpty() && (!value.containsPrimaryKey() || !value.getEntityName().equals(run.get(0).getEntityName()))) {
+          numRemoved += removeRun(run, doCacheClear);
+          run.clear();
+        }
+        if (value.containsPrimaryKey()) {
+          run.add(value);
+        } else {
+          numRemoved += this.removeByAnd(value.getEntityName(), value.getAllFields(), doCacheClear);
+        }
+      }
+      if (!run.isEmpty()) {
+        numRemoved += removeRun(run, doCacheClear);
+      }
+      TransactionUtil.commit(beganTransaction);
+      return numRemoved;
+    } catch (GenericEntityException e) {
+      String errMsg = "Failure in removeAll operation: " + e.toString() + ". Rolling back transaction.";
+      logger.error(errMsg, e);
+      TransactionUtil.rollback(beganTransaction, errMsg, e);
+      throw e;
+    }
+  }
+
+  private int removeRun(List<GenericEntity> run, boolean doCacheClear) throws GenericEntityException {
+    long startNanos = System.nanoTime();
+    for (GenericEntity value : run) {
+      if (doCacheClear) {
+        this.clearCacheLine(value.getPrimaryKey());
+      }
+      if (testMode) {
+        storeForTestRollback(TestOperationType.DELETE, findOne(value.getEntityName(), value.getPrimaryKey(), false));
+      }
+    }
+    int rows = getEntityHelper(run.get(0).getEntityName()).removeAll(run);
+    EntityMetricsFactory.getMetrics().recordOperation(run.get(0).getEntityName(), EntityMetrics.REMOVE, System.nanoTime() - startNanos, rows);
+    return rows;
+  }
+
+  public int removeByAnd(String entityName, Object... fields) throws GenericEntityException {
+    return removeByAnd(entityName, UtilMisc.<String, Object> toMap(fields));
+  }
+
+  public int removeByAnd(String entityName, boolean doCacheClear, Object... fields) throws GenericEntityException {
+    return removeByAnd(entityName, UtilMisc.<String, Object> toMap(fields), doCacheClear);
+  }
+
+  public int removeByAnd(String entityName, Map<String, ? extends Object> fields) throws GenericEntityException {
+    return removeByAnd(entityName, fields, true);
+  }
+
+  public int removeByAnd(String entityName, Map<String, ? extends Object> fields, boolean doCacheClear) throws GenericEntityException {
+    EntityCondition ecl = EntityCondition.makeCondition(fields);
+    return removeByCondition(entityName, ecl, doCacheClear);
+  }
+
+  public int removeByCondition(String entityName, EntityCondition condition) throws GenericEntityException {
+    return removeByCondition(entityName, condition, true);
+  }
+
+  public int removeByCondition(String entityName, EntityCondition condition, boolean doCacheClear) throws GenericEntityException {
+    flushUnitOfWork();
+    boolean beganTransaction = false;
+    try {
+      beganTransaction = TransactionUtil.begin();
+      Entity modelEntity = getModelEntityChecked(entityName);
+      GenericHelper helper = getEntityHelper(entityName);
+      if (doCacheClear) {
+        this.clearCacheLineByCondition(entityName, condition);
+      }
+      if (testMode) {
+        storeForTestRollback(TestOperationType.DELETE, entityName, condition);
+      }
+      int rowsAffected = helper.removeByCondition(modelEntity, condition);
+      TransactionUtil.commit(beganTransaction);
+      return rowsAffected;
+    } catch (GenericEntityException e) {
+      String errMsg = "Failure in removeByCondition operation for entity [" + entityName + "]: " + e.toString() + ". Rolling back transaction.";
+      logger.error(errMsg, e);
+      TransactionUtil.rollback(beganTransaction, errMsg, e);
+      throw e;
+    }
+  }
+
+  // ======================================
+  // ======= Find methods ========
+  // ======================================
+
+  public GenericValue findOne(String entityName, boolean useCache, Object... fields) throws GenericEntityException {
+    return findOne(entityName, UtilMisc.<String, Object> toMap(fields), useCache);
+  }
+
+  public GenericValue findOne(String entityName, Map<String, ? extends Object> fields, boolean useCache) throws GenericEntityException {
+    GenericPK primaryKey = this.makePK(entityName, fields);
+    if (!primaryKey.isPrimaryKey()) {
+      throw new GenericModelException("[GenericDelegator.findOne] Passed primary key is not a valid primary key: " + primaryKey);
+    }
+    EntityUnitOfWork unitOfWork = getUnitOfWork();
+    if (unitOfWork != null && unitOfWork.contains(primaryKey)) {
+      return unitOfWork.get(primaryKey);
+    }
+    Entity modelEntity = primaryKey.getModelEntity();
+    useCache = useCache && !modelEntity.isNeverCache();
+    EntityMetrics metrics = EntityMetricsFactory.getMetrics();
+    if (useCache) {
+      GenericValue value = cache.get(primaryKey);
+      metrics.recordCacheAccess(entityName, value != null);
+      if (value == GenericValue.NULL_VALUE) return null;
+      if (value != null) return value;
+    }
+
+    long startNanos = System.nanoTime();
+    boolean beganTransaction = false;
+    try {
+      beganTransaction = TransactionUtil.begin();
+      GenericHelper helper = getEntityHelper(entityName);
+      GenericValue value = helper.findByPrimaryKey(primaryKey);
+      metrics.recordOperation(entityName, EntityMetrics.FIND, System.nanoTime() - startNanos, value == null ? 0 : 1);
+      if (value != null) {
+        value.setDelegator(this);
+        decryptFields(value);
+      }
+      if (useCache) {
+        // misses are cached too so that repeated lookups of a missing row stay off the database
+        cache.put(primaryKey, value);
+      }
+      TransactionUtil.commit(beganTransaction);
+      return value;
+    } catch (GenericEntityException e) {
+      String errMsg = "Failure in findOne operation for entity [" + entityName + "]: " + e.toString() + ". Rolling back transaction.";
+      logger.error(errMsg, e);
+      TransactionUtil.rollback(beganTransaction, errMsg, e);
+      throw e;
+    }
+  }
+
+  public GenericValue findByPrimaryKey(String entityName, Map<String, ? extends Object> fields) throws GenericEntityException {
+    return findOne(entityName, fields, false);
+  }
+
+  public GenericValue findByPrimaryKeyCache(String entityName, Object... fields) throws GenericEntityException {
+    return findOne(entityName, UtilMisc.<String, Object> toMap(fields), true);
+  }
+
+  public GenericValue findByPrimaryKeyCache(String entityName, Map<String, ? extends Object> fields) throws GenericEntityException {
+    return findOne(entityName, fields, true);
+  }
+
+  public GenericValue findByPrimaryKeyPartial(GenericPK primaryKey, Set<String> keys) throws GenericEntityException {
+    flushUnitOfWork();
+    boolean beganTransaction = false;
+    try {
+      beganTransaction = TransactionUtil.begin();
+      GenericHelper helper = getEntityHelper(primaryKey.getEntityName());
+      if (!primaryKey.isPrimaryKey()) {
+        throw new GenericModelException("[GenericDelegator.findByPrimaryKeyPartial] Passed primary key is not a valid primary key: " + primaryKey);
+      }
+      GenericValue value = helper.findByPrimaryKeyPartial(primaryKey, keys);
+      if (value != null) {
+        value.setDelegator(this);
+      }
+      TransactionUtil.commit(beganTransaction);
+      return value;
+    } catch (GenericEntityException e) {
+      String errMsg = "Failure in findByPrimaryKeyPartial operation for entity [" + primaryKey.getEntityName() + "]: " + e.toString() + ". Rolling back transaction.";
+      logger.error(errMsg, e);
+      TransactionUtil.rollback(beganTransaction, errMsg, e);
+      throw e;
+    }
+  }
+
+  public List<GenericValue> findByAnd(String entityName, Object... fields) throws GenericEntityException {
+    return findByAnd(entityName, UtilMisc.<String, Object> toMap(fields));
+  }
+
+  public List<GenericValue> findByAnd(String entityName, Map<String, ? extends Object> fields) throws GenericEntityException {
+    return findByAnd(entityName, fields, null);
+  }
+
+  public List<GenericValue> findByAnd(String entityName, Map<String, ? extends Object> fields, List<String> orderBy) throws GenericEntityException {
+    return findList(entityName, EntityCondition.makeCondition(fields), null, orderBy, null, false);
+  }
+
+  public List<GenericValue> findByAndCache(String entityName, Map<String, ? extends Object> fields) throws GenericEntityException {
+    return findByAndCache(entityName, fields, null);
+  }
+
+  public List<GenericValue> findByAndCache(String entityName, Map<String, ? extends Object> fields, List<String> orderBy) throws GenericEntityException {
+    return findList(entityName, EntityCondition.makeCondition(fields), null, orderBy, null, true);
+  }
+
+  public EntityListIterator find(String entityName, EntityCondition whereEntityCondition, EntityCondition havingEntityCondition, Set<String> fieldsToSelect, List<String> orderBy, EntityFindOptions findOptions) throws GenericEntityException {
+    flushUnitOfWork();
+    Entity modelEntity = getModelEntityChecked(entityName);
+    if (whereEntityCondition != null) {
+      whereEntityCondition.checkCondition(modelEntity);
+      whereEntityCondition.encryptConditionFields(modelEntity, this);
+    }
+    if (havingEntityCondition != null) {
+      havingEntityCondition.checkCondition(modelEntity);
+    }
+    GenericHelper helper = getEntityHelper(modelEntity);
+    EntityListIterator eli = helper.findListIteratorByCondition(modelEntity, whereEntityCondition, havingEntityCondition, fieldsToSelect, orderBy, findOptions);
+    eli.setDelegator(this);
+    return eli;
+  }
+
+  public EntityKeysetPage findPage(String entityName, EntityCondition whereEntityCondition, Set<String> fieldsToSelect, List<String> orderBy, int pageSize, String continuationToken) throws GenericEntityException {
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("The page size must be positive, not " + pageSize);
+    }
+    Entity modelEntity = getModelEntityChecked(entityName);
+    List<OrderByItem> keysetOrder = EntityKeysetPage.getKeysetOrder(modelEntity, orderBy);
+    EntityCondition condition = whereEntityCondition;
+    if (UtilValidate.isNotEmpty(continuationToken)) {
+      Object[] key = EntityKeysetPage.parseToken(this, modelEntity, keysetOrder, continuationToken);
+      EntityCondition seekCondition = EntityKeysetPage.makeSeekCondition(keysetOrder, key);
+      condition = condition == null ? seekCondition : EntityCondition.makeCondition(condition, EntityOperator.AND, seekCondition);
+    }
+    if (UtilValidate.isNotEmpty(fieldsToSelect)) {
+      Set<String> fields = new HashSet<String>(fieldsToSelect);
+      fields.addAll(EntityKeysetPage.getFieldNames(keysetOrder));
+      fieldsToSelect = fields;
+    }
+    // one more row tells whether there is a next page
+    EntityFindOptions findOptions = new EntityFindOptions();
+    findOptions.setMaxRows(pageSize + 1);
+    findOptions.setFetchSize(pageSize + 1);
+
+    boolean beganTransaction = false;
+    EntityListIterator eli = null;
+    List<GenericValue> values = FastList.newInstance();
+    try {
+      beganTransaction = TransactionUtil.begin();
+      eli = this.find(entityName, condition, null, fieldsToSelect, EntityKeysetPage.getOrderBy(keysetOrder), findOptions);
+      GenericValue value;
+      while (values.size() <= pageSize && (value = eli.next()) != null) {
+        values.add(value);
+      }
+      TransactionUtil.commit(beganTransaction);
+    } catch (GenericEntityException e) {
+      String errMsg = "Failure in findPage operation for entity [" + entityName + "]: " + e.toString() + ". Rolling back transaction.";
+      logger.error(errMsg, e);
+      TransactionUtil.rollback(beganTransaction, errMsg, e);
+      throw e;
+    } finally {
+      if (eli != null) {
+        try {
+          eli.close();
+        } catch (Exception e) {
+          logger.warn("Error closing the EntityListIterator of findPage for entity [" + entityName + "]", e);
+        }
+      }
+    }
+
+    String nextToken = null;
+    if (values.size() > pageSize) {
+      values.remove(pageSize);
+      nextToken = EntityKeysetPage.makeToken(keysetOrder, values.get(pageSize - 1));
+    }
+    return new EntityKeysetPage(values, nextToken);
+  }
+
+  public <T> Future<T> submitAsync(Callable<T> callable, Transaction transaction) throws GenericEntityException {
+    try {
+      return asyncExecutor.submit(TransactionUtil.withTransaction(transaction, callable));
+    } catch (RejectedExecutionException e) {
+      throw new GenericEntityException("The async executor of delegator [" + delegatorFullName + "] did not accept the work", e);
+    }
+  }
+
+  // the async methods hand copies of their arguments to the worker, the caller may reuse or change them once the method returns
+
+  public Future<GenericValue> findOneAsync(final String entityName, Map<String, ? extends Object> fields, final boolean useCache) throws GenericEntityException {
+    final Map<String, Object> asyncFields = fields == null ? null : new HashMap<String, Object>(fields);
+    return submitAsync(new Callable<GenericValue>() {
+      public GenericValue call() throws GenericEntityException {
+        return findOne(entityName, asyncFields, useCache);
+      }
+    }, null);
+  }
+
+  public Future<List<GenericValue>> findListAsync(final String entityName, EntityCondition entityCondition, Set<String> fieldsToSelect, List<String> orderBy, EntityFindOptions findOptions, final boolean useCache) throws GenericEntityException {
+    final EntityCondition asyncCondition = entityCondition == null ? null : entityCondition.freeze();
+    final Set<String> asyncFieldsToSelect = fieldsToSelect == null ? null : new HashSet<String>(fieldsToSelect);
+    final List<String> asyncOrderBy = orderBy == null ? null : new ArrayList<String>(orderBy);
+    final EntityFindOptions asyncFindOptions = findOptions == null ? null : new EntityFindOptions(findOptions);
+    return submitAsync(new Callable<List<GenericValue>>() {
+      public List<GenericValue> call() throws GenericEntityException {
+        return findList(entityName, asyncCondition, asyncFieldsToSelect, asyncOrderBy, asyncFindOptions, useCache);
+      }
+    }, null);
+  }
+
+  public Future<Long> findCountByConditionAsync(final String entityName, EntityCondition whereEntityCondition, EntityCondition havingEntityCondition, EntityFindOptions findOptions) throws GenericEntityException {
+    final EntityCondition asyncWhere = whereEntityCondition == null ? null : whereEntityCondition.freeze();
+    final EntityCondition asyncHaving = havingEntityCondition == null ? null : havingEntityCondition.freeze();
+    final EntityFindOptions asyncFindOptions = findOptions == null ? null : new EntityFindOptions(findOptions);
+    return submitAsync(new Callable<Long>() {
+      public Long call() throws GenericEntityException {
+        return findCountByCondition(entityName, asyncWhere, asyncHaving, asyncFindOptions);
+      }
+    }, null);
+  }
+
+  public Future<GenericValue> createAsync(GenericValue value) throws GenericEntityException {
+    final GenericValue asyncValue = value == null ? null : GenericValue.create(value);
+    return submitAsync(new Callable<GenericValue>() {
+      public GenericValue call() throws GenericEntityException {
+        return create(asyncValue);
+      }
+    }, null);
+  }
+
+  public Future<Integer> storeAsync(GenericValue value) throws GenericEntityException {
+    final GenericValue asyncValue = value == null ? null : GenericValue.create(value);
+    return submitAsync(new Callable<Integer>() {
+      public Integer call() throws GenericEntityException {
+        return store(asyncValue);
+      }
+    }, null);
+  }
+
+  public Future<Integer> storeAllAsync(List<GenericValue> values) throws GenericEntityException {
+    final List<GenericValue> asyncValues = values == null ? null : new ArrayList<GenericValue>(values.size());
+    if (values != null) {
+      for (GenericValue value : values) {
+        asyncValues.add(value == null ? null : GenericValue.create(value));
+      }
+    }
+    return submitAsync(new Callable<Integer>() {
+      public Integer call() throws GenericEntityException {
+        return storeAll(asyncValues);
+      }
+    }, null);
+  }
+
+  public Future<Integer> removeValueAsync(GenericValue value) throws GenericEntityException {
+    final GenericValue asyncValue = value == null ? null : GenericValue.create(value);
+    return submitAsync(new Callable<Integer>() {
+      public Integer call() throws GenericEntityException {
+        return removeValue(asyncValue);
+      }
+    }, null);
+  }
+
+  public EntityUnitOfWork beginUnitOfWork() throws GenericEntityException {
+    Transaction transaction = getCurrentTransaction();
+    if (transaction == null) {
+      throw new GenericTransactionException("A unit of work needs a transaction in place");
+    }
+    EntityUnitOfWork unitOfWork = unitsOfWork.get(transaction);
+    if (unitOfWork == null) {
+      unitOfWork = new EntityUnitOfWork(this);
+      TransactionUtil.registerSynchronization(new UnitOfWorkSync(transaction, unitOfWork));
+      unitsOfWork.put(transaction, unitOfWork);
+    }
+    return unitOfWork;
+  }
+
+  public EntityUnitOfWork getUnitOfWork() throws GenericEntityException {
+    if (unitsOfWork.isEmpty()) {
+      // no transaction lookup when no unit of work is in use
+      return null;
+    }
+    Transaction transaction = getCurrentTransaction();
+    return transaction == null ? null : unitsOfWork.get(transaction);
+  }
+
+  /**
+   * The unit of work the writes go to, null when there is none or while it is
+   * flushing: its flush writes through the *All methods.
+   */
+  private EntityUnitOfWork getWritingUnitOfWork() throws GenericEntityException {
+    EntityUnitOfWork unitOfWork = getUnitOfWork();
+    return unitOfWork == null || unitOfWork.isFlushing() ? null : unitOfWork;
+  }
+
+  public int flushUnitOfWork() throws GenericEntityException {
+    EntityUnitOfWork unitOfWork = getUnitOfWork();
+    return unitOfWork == null ? 0 : unitOfWork.flush();
+  }
+
+  private static Transaction getCurrentTransaction() throws GenericTransactionException {
+    TransactionManager tm = TransactionFactory.getTransactionManager();
+    if (tm == null) {
+      return null;
+    }
+    try {
+      return tm.getTransaction();
+    } catch (SystemException e) {
+      throw new GenericTransactionException("System error, could not get the transaction in place", e);
+    }
+  }
+
+  /** Flushes a unit of work before its transaction commits and forgets it once completed */
+  private class UnitOfWorkSync implements Synchronization {
+
+    private final Transaction transaction;
+
+    private final EntityUnitOfWork unitOfWork;
+
+    private UnitOfWorkSync(Transaction transaction, EntityUnitOfWork unitOfWork) {
+      this.transaction = transaction;
+      this.unitOfWork = unitOfWork;
+    }
+
+    public void beforeCompletion() {
+      try {
+        unitOfWork.flush();
+      } catch (GenericEntityException e) {
+        // failing here makes the transaction manager roll back
+        logger.error("Could not flush the unit of work before commit", e);
+        throw new IllegalStateException("Could not flush the unit of work before commit: " + e.getMessage(), e);
+      }
+    }
+
+    public void afterCompletion(int status) {
+      unitsOfWork.remove(transaction);
+    }
+  }
+
+  public List<GenericValue> findList(String entityName, EntityCondition entityCondition, Set<String> fieldsToSelect, List<String> orderBy, EntityFindOptions findOptions, boolean useCache) throws GenericEntityException {
+    // the pending writes must reach the database and clear their cache lines before any query
+    flushUnitOfWork();
+    Entity modelEntity = getModelEntityChecked(entityName);
+    // partial values must not be served to callers asking for the whole row, so only full rows are cached
+    useCache = useCache && !modelEntity.isNeverCache() && UtilValidate.isEmpty(fieldsToSelect);
+    EntityMetrics metrics = EntityMetricsFactory.getMetrics();
+    if (useCache) {
+      List<GenericValue> cacheList = cache.get(entityName, entityCondition, orderBy);
+      metrics.recordCacheAccess(entityName, cacheList != null);
+      if (cacheList != null) {
+        return cacheList;
+      }
+    }
+
+    long startNanos = System.nanoTime();
+    List<GenericValue> list = null;
+    // the chunks run on worker threads outside of any transaction, so a caller's transaction keeps the serial query
+    if (findOptions != null && findOptions.getParallelChunks() > 1 && !TransactionUtil.isTransactionInPlace()) {
+      list = findListParallel(modelEntity, entityCondition, fieldsToSelect, orderBy, findOptions);
+    }
+
+    if (list == null) {
+      boolean beganTransaction = false;
+      EntityListIterator eli = null;
+      try {
+        beganTransaction = TransactionUtil.begin();
+        eli = this.find(entityName, entityCondition, null, fieldsToSelect, orderBy, findOptions);
+        list = eli.getCompleteList();
+        TransactionUtil.commit(beganTransaction);
+      } catch (GenericEntityException e) {
+        String errMsg = "Failure in findList operation for entity [" + entityName + "]: " + e.toString() + ". Rolling back transaction.";
+        logger.error(errMsg, e);
+        TransactionUtil.rollback(beganTransaction, errMsg, e);
+        throw e;
+      } finally {
+        if (eli != null) {
+          try {
+            eli.close();
+          } catch (Exception e) {
+            logger.warn("Error closing the EntityListIterator of findList for entity [" + entityName + "]", e);
+          }
+        }
+      }
+    }
+
+    metrics.recordOperation(entityName, EntityMetrics.FIND_LIST, System.nanoTime() - startNanos, list.size());
+
+    if (useCache) {
+      list = Collections.unmodifiableList(list);
+      cache.put(entityName, entityCondition, orderBy, list, modelEntity);
+    }
+    return list;
+  }
+
+  /**
+   * Splits the query into findOptions.getParallelChunks() ranges of the first
+   * primary key field, runs them on the worker pool of the entity's datasource
+   * and merges the sorted chunks. Returns null when the entity can't be split
+   * this way (view entities and non-numeric keys) so the caller falls back to a
+   * single query.
+   */
+  protected List<GenericValue> findListParallel(Entity modelEntity, EntityCondition entityCondition, Set<String> fieldsToSelect, List<String> orderBy, EntityFindOptions findOptions) throws GenericEntityException {
+    if (modelEntity instanceof ViewEntity || modelEntity.getPkgs().isEmpty()) {
+      return null;
+    }
+    Field splitField = modelEntity.getPkgs().get(0);
+    String fieldName = splitField.getName();
+    FieldType splitType = getEntityFieldType(modelEntity, splitField.getType());
+    if (splitType == null) {
+      throw new GenericModelException("definition fieldType " + splitField.getType() + " not found, cannot split the query on field "
+          + modelEntity.getEntityName() + "." + fieldName + ".");
+    }
+    String javaType = splitType.getJavaType();
+    if (!javaType.endsWith("Long") && !javaType.endsWith("Integer") && !javaType.endsWith("BigDecimal") && !javaType.endsWith("Double")) {
+      return null;
+    }
+    if (findOptions.getDistinct() && UtilValidate.isNotEmpty(fieldsToSelect) && !fieldsToSelect.contains(fieldName)) {
+      // splitting on a field that isn't selected could return the same distinct row from several chunks
+      return null;
+    }
+
+    final String entityName = modelEntity.getEntityName();
+    Object min = findEdgeValue(entityName, entityCondition, fieldName, " ASC");
+    Object max = findEdgeValue(entityName, entityCondition, fieldName, " DESC");
+    if (!(min instanceof Number) || !(max instanceof Number)) {
+      return FastList.newInstance();
+    }
+
+    int chunks = findOptions.getParallelChunks();
+    Object[] bounds = new Object[chunks + 1];
+    BigDecimal lo = new BigDecimal(min.toString());
+    BigDecimal span = new BigDecimal(max.toString()).subtract(lo);
+    BigDecimal divisor = BigDecimal.valueOf(chunks);
+    for (int i = 1; i < chunks; i++) {
+      BigDecimal offset = span.multiply(BigDecimal.valueOf(i));
+      if (min instanceof Long || min instanceof Integer) {
+        offset = offset.divide(divisor, 0, RoundingMode.FLOOR);
+      } else {
+        offset = offset.divide(divisor, MathContext.DECIMAL64);
+      }
+      bounds[i] = toNumberType(lo.add(offset), min);
+    }
+
+    // each chunk is capped at maxRows too, the first maxRows of the merge can't need more from any one chunk
+    final EntityFindOptions chunkOptions = new EntityFindOptions(findOptions.getSpecifyTypeAndConcur(), findOptions.getResultSetType(),
+        findOptions.getResultSetConcurrency(), findOptions.getFetchSize(), findOptions.getMaxRows(), findOptions.getDistinct());
+    // the workers and the merge use snapshots, the caller may reuse its collections once this returns
+    final Set<String> chunkFieldsToSelect = fieldsToSelect == null ? null : new HashSet<String>(fieldsToSelect);
+    final List<String> chunkOrderBy = orderBy == null ? null : Collections.unmodifiableList(new ArrayList<String>(orderBy));
+    final EntityCondition baseCondition = entityCondition == null ? null : entityCondition.freeze();
+    GenericHelper helper = getEntityHelper(modelEntity);
+    List<Future<List<GenericValue>>> futures = FastList.newInstance();
+    for (int i = 0; i < chunks; i++) {
+      List<EntityCondition> conditions = FastList.newInstance();
+      if (baseCondition != null) {
+        conditions.add(baseCondition);
+      }
+      if (bounds[i] != null) {
+        conditions.add(EntityCondition.makeCondition(fieldName, EntityOperator.GREATER_THAN_EQUAL_TO, bounds[i]));
+      }
+      if (bounds[i + 1] != null) {
+        conditions.add(EntityCondition.makeCondition(fieldName, EntityOperator.LESS_THAN, bounds[i + 1]));
+      }
+      final EntityCondition chunkCondition = EntityCondition.makeCondition(conditions, EntityOperator.AND);
+      futures.add(helper.submitWork(new Callable<List<GenericValue>>() {
+        public List<GenericValue> call() throws GenericEntityException {
+          return findList(entityName, chunkCondition, chunkFieldsToSelect, chunkOrderBy, chunkOptions, false);
+        }
+      }));
+    }
+
+    List<List<GenericValue>> results = FastList.newInstance();
+    try {
+      for (Future<List<GenericValue>> future : futures) {
+        List<GenericValue> chunk = future.get();
+        if (chunk == null) {
+          chunk = Collections.emptyList();
+        }
+        results.add(chunk);
+      }
+    } catch (ExecutionException e) {
+      cancelAll(futures);
+      Throwable cause = e.getCause();
+      if (cause instanceof GenericEntityException) {
+        throw (GenericEntityException) cause;
+      }
+      throw new GenericEntityException("Error in parallel findList for entity [" + entityName + "]", cause);
+    } catch (InterruptedException e) {
+      cancelAll(futures);
+      Thread.currentThread().interrupt();
+      throw new GenericEntityException("Interrupted in parallel findList for entity [" + entityName + "]", e);
+    }
+
+    List<GenericValue> list = EntityUtil.mergeOrdered(results, chunkOrderBy);
+    int maxRows = findOptions.getMaxRows();
+    if (maxRows > 0 && list.size() > maxRows) {
+      List<GenericValue> truncated = FastList.newInstance();
+      truncated.addAll(list.subList(0, maxRows));
+      list = truncated;
+    }
+    return list;
+  }
+
+  private Object findEdgeValue(String entityName, EntityCondition entityCondition, String fieldName, String direction) throws GenericEntityException {
+    EntityFindOptions edgeOptions = new EntityFindOptions();
+    edgeOptions.setMaxRows(1);
+    List<GenericValue> edge = findList(entityName, entityCondition, UtilMisc.toSet(fieldName), UtilMisc.toList(fieldName + direction), edgeOptions, false);
+    return edge.isEmpty() ? null : edge.get(0).get(fieldName);
+  }
+
+  private static Object toNumberType(BigDecimal value, Object sample) {
+    if (sample instanceof Long) {
+      return Long.valueOf(value.longValue());
+    } else if (sample instanceof Integer) {
+      return Integer.valueOf(value.intValue());
+    } else if (sample instanceof Double) {
+      return Double.valueOf(value.doubleValue());
+    }
+    return value;
+  }
+
+  private static void cancelAll(List<? extends Future<?>> futures) {
+    for (Future<?> future : futures) {
+      future.cancel(true);
+    }
+  }
+
+  public EntityListIterator findListIteratorByCondition(ViewEntity dynamicViewEntity, EntityCondition whereEntityCondition, EntityCondition havingEntityCondition, Collection<String> fieldsToSelect, List<String> orderBy, EntityFindOptions findOptions) throws GenericEntityException {
+    flushUnitOfWork();
+    if (whereEntityCondition != null) {
+      whereEntityCondition.checkCondition(dynamicViewEntity);
+    }
+    if (havingEntityCondition != null) {
+      havingEntityCondition.checkCondition(dynamicViewEntity);
+    }
+    GenericHelper helper = getEntityHelper(dynamicViewEntity);
+    EntityListIterator eli = helper.findListIteratorByCondition(dynamicViewEntity, whereEntityCondition, havingEntityCondition, fieldsToSelect, orderBy, findOptions);
+    eli.setDelegator(this);
+    return eli;
+  }
+
+  public long findCountByCondition(String entityName, EntityCondition whereEntityCondition, EntityCondition havingEntityCondition, EntityFindOptions findOptions) throws GenericEntityException {
+    flushUnitOfWork();
+    boolean beganTransaction = false;
+    try {
+      beganTransaction = TransactionUtil.begin();
+      Entity modelEntity = getModelEntityChecked(entityName);
+      if (whereEntityCondition != null) {
+        whereEntityCondition.checkCondition(modelEntity);
+        whereEntityCondition.encryptConditionFields(modelEntity, this);
+      }
+      if (havingEntityCondition != null) {
+        havingEntityCondition.checkCondition(modelEntity);
+      }
+      GenericHelper helper = getEntityHelper(modelEntity);
+      long count = helper.findCountByCondition(modelEntity, whereEntityCondition, havingEntityCondition, findOptions);
+      TransactionUtil.commit(beganTransaction);
+      return count;
+    } catch (GenericEntityException e) {
+      String errMsg = "Failure in findCountByCondition operation for entity [" + entityName + "]: " + e.toString() + ". Rolling back transaction.";
+      logger.error(errMsg, e);
+      TransactionUtil.rollback(beganTransaction, errMsg, e);
+      throw e;
+    }
+  }
+
+  // ======================================
+  // ======= Relation methods ========
+  // ======================================
+
+  public List<GenericValue> getRelated(String relationName, Map<String, ? extends Object> byAndFields, List<String> orderBy, GenericValue value) throws GenericEntityException {
+    Relation relation = getRelationChecked(relationName, value);
+    Map<String, Object> fields = FastMap.newInstance();
+    if (byAndFields != null) {
+      fields.putAll(byAndFields);
+    }
+    for (EntityKeyMap keyMap : relation.getKeyMaps()) {
+      fields.put(keyMap.getRelFieldName(), value.get(keyMap.getFieldName()));
+    }
+    return findByAnd(relation.getRelEntityName(), fields, orderBy);
+  }
+
+  public List<GenericValue> getRelatedCache(String relationName, GenericValue value) throws GenericEntityException {
+    Relation relation = getRelationChecked(relationName, value);
+    Map<String, Object> fields = FastMap.newInstance();
+    for (EntityKeyMap keyMap : relation.getKeyMaps()) {
+      fields.put(keyMap.getRelFieldName(), value.get(keyMap.getFieldName()));
+    }
+    return findByAndCache(relation.getRelEntityName(), fields, null);
+  }
+
+  public GenericPK getRelatedDummyPK(String relationName, Map<String, ? extends Object> byAndFields, GenericValue value) throws GenericEntityException {
+    Relation relation = getRelationChecked(relationName, value);
+    Entity relatedEntity = getModelEntityChecked(relation.getRelEntityName());
+    // the key fields of the value override byAndFields, which may come from the user
+    Map<String, Object> fields = FastMap.newInstance();
+    if (byAndFields != null) {
+      fields.putAll(byAndFields);
+    }
+    for (EntityKeyMap keyMap : relation.getKeyMaps()) {
+      fields.put(keyMap.getRelFieldName(), value.get(keyMap.getFieldName()));
+    }
+    return GenericPK.create(this, relatedEntity, fields);
+  }
+
+  public GenericValue getRelatedOne(String relationName, GenericValue value) throws GenericEntityException {
+    return getRelatedOne(relationName, value, false);
+  }
+
+  public GenericValue getRelatedOneCache(String relationName, GenericValue value) throws GenericEntityException {
+    return getRelatedOne(relationName, value, true);
+  }
+
+  private GenericValue getRelatedOne(String relationName, GenericValue value, boolean useCache) throws GenericEntityException {
+    Relation relation = getRelationChecked(relationName, value);
+    if (!relation.isOne()) {
+      throw new GenericModelException("Relation [" + relationName + "] of entity " + value.getEntityName() + " is not a one relation");
+    }
+    Map<String, Object> fields = FastMap.newInstance();
+    for (EntityKeyMap keyMap : relation.getKeyMaps()) {
+      Object keyValue = value.get(keyMap.getFieldName());
+      if (keyValue == null) {
+        return null;
+      }
+      fields.put(keyMap.getRelFieldName(), keyValue);
+    }
+    return findOne(relation.getRelEntityName(), fields, useCache);
+  }
+
+  private Relation getRelationChecked(String relationName, GenericValue value) throws GenericModelException {
+    Relation relation = value.getModelEntity().getRelation(relationName);
+    if (relation == null) {
+      throw new GenericModelException("Could not find relation for relationName: " + relationName + " for value " + value);
+    }
+    return relation;
+  }
+
+  public List<GenericValue> getMultiRelation(GenericValue value, String relationNameOne, String relationNameTwo, List<String> orderBy) throws GenericEntityException {
+    flushUnitOfWork();
+    Relation relationOne = getRelationChecked(relationNameOne, value);
+    Entity modelEntityOne = getModelEntityChecked(relationOne.getRelEntityName());
+    Relation relationTwo = modelEntityOne.getRelation(relationNameTwo);
+    if (relationTwo == null) {
+      throw new GenericModelException("Could not find relation for relationName: " + relationNameTwo + " for entity " + modelEntityOne.getEntityName());
+    }
+    Entity modelEntityTwo = getModelEntityChecked(relationTwo.getRelEntityName());
+    return getEntityHelper(value.getEntityName()).findByMultiRelation(value, relationOne, modelEntityOne, relationTwo, modelEntityTwo, orderBy);
+  }
+
+  public int removeRelated(String relationName, GenericValue value) throws GenericEntityException {
+    return removeRelated(relationName, value, true);
+  }
+
+  public int removeRelated(String relationName, GenericValue value, boolean doCacheClear) throws GenericEntityException {
+    Relation relation = getRelationChecked(relationName, value);
+    Map<String, Object> fields = FastMap.newInstance();
+    for (EntityKeyMap keyMap : relation.getKeyMaps()) {
+      fields.put(keyMap.getRelFieldName(), value.get(keyMap.getFieldName()));
+    }
+    return removeByAnd(relation.getRelEntityName(), fields, doCacheClear);
+  }
+
+  // ======================================
+  // ======= Refresh methods ========
+  // ======================================
+
+  public void refresh(GenericValue value) throws GenericEntityException {
+    this.refresh(value, true);
+  }
+
+  public void refresh(GenericValue value, boolean doCacheClear) throws GenericEntityException {
+    if (doCacheClear) {
+      // only clear the primary key line, the value has not changed in the datasource
+      cache.remove(value.getPrimaryKey());
+    }
+    GenericPK pk = value.getPrimaryKey();
+    GenericValue newValue = findOne(pk.getEntityName(), pk, false);
+    if (newValue == null) {
+      throw new GenericEntityException("Could not refresh value, not found: " + pk);
+    }
+    value.refreshFromValue(newValue);
+  }
+
+  public void refreshFromCache(GenericValue value) throws GenericEntityException {
+    GenericPK pk = value.getPrimaryKey();
+    GenericValue newValue = findOne(pk.getEntityName(), pk, true);
+    if (newValue == null) {
+      throw new GenericEntityException("Could not refresh value, not found: " + pk);
+    }
+    value.refreshFromValue(newValue);
+  }
+
+  // ======================================
+  // ======= Cache Related Methods ========
+  // ======================================
+
+  public Cache getCache() {
+    return cache;
+  }
+
+  public void clearAllCaches() {
+    this.clearAllCaches(true);
+  }
+
+  public void clearAllCaches(boolean distribute) {
+    cache.clear();
+    if (distribute && this.distributedCacheClear != null) {
+      this.distributedCacheClear.clearAllCaches();
+    }
+  }
+
+  public void clearCacheLine(String entityName) {
+    cache.clear(entityName);
+  }
+
+  public void clearCacheLine(String entityName, Object... fields) {
+    clearCacheLine(entityName, UtilMisc.<String, Object> toMap(fields));
+  }
+
+  public void clearCacheLine(String entityName, Map<String, ? extends Object> fields) {
+    // if no fields passed, do the all cache quickly and return
+    if (fields == null) {
+      cache.clear(entityName);
+      return;
+    }
+    Entity entity = this.getModelEntity(entityName);
+    if (entity == null) {
+      throw new IllegalArgumentException("[GenericDelegator.clearCacheLine] could not find entity for entityName: " + entityName);
+    }
+    // if never cached, then don't bother clearing
+    if (entity.isNeverCache()) return;
+
+    GenericValue dummyValue = GenericValue.create(this, entity, fields);
+    this.clearCacheLineFlexible(dummyValue);
+  }
+
+  public void clearCacheLineFlexible(GenericEntity dummyPK) {
+    this.clearCacheLineFlexible(dummyPK, true);
+  }
+
+  public void clearCacheLineFlexible(GenericEntity dummyPK, boolean distribute) {
+    if (dummyPK == null) return;
+    // if never cached, then don't bother clearing
+    if (dummyPK.getModelEntity().isNeverCache()) return;
+
+    if (dummyPK.containsPrimaryKey(true)) {
+      cache.remove(dummyPK);
+    } else {
+      cache.remove(dummyPK.getEntityName(), EntityCondition.makeCondition(dummyPK.getAllFields()));
+    }
+    if (distribute && this.distributedCacheClear != null) {
+      this.distributedCacheClear.distributedClearCacheLineFlexible(dummyPK);
+    }
+  }
+
+  public void clearCacheLineByCondition(String entityName, EntityCondition condition) {
+    clearCacheLineByCondition(entityName, condition, true);
+  }
+
+  public void clearCacheLineByCondition(String entityName, EntityCondition condition, boolean distribute) {
+    if (entityName == null) return;
+    // if never cached, then don't bother clearing
+    Entity entity = getModelEntity(entityName);
+    if (entity != null && entity.isNeverCache()) return;
+
+    cache.remove(entityName, condition);
+    if (distribute && this.distributedCacheClear != null) {
+      this.distributedCacheClear.distributedClearCacheLineByCondition(entityName, condition);
+    }
+  }
+
+  public void clearCacheLine(GenericPK primaryKey) {
+    this.clearCacheLine(primaryKey, true);
+  }
+
+  public void clearCacheLine(GenericPK primaryKey, boolean distribute) {
+    if (primaryKey == null) return;
+    // if never cached, then don't bother clearing
+    if (primaryKey.getModelEntity().isNeverCache()) return;
+
+    cache.remove(primaryKey);
+    if (distribute && this.distributedCacheClear != null) {
+      this.distributedCacheClear.distributedClearCacheLine(primaryKey);
+    }
+  }
+
+  public void clearCacheLine(GenericValue value) {
+    this.clearCacheLine(value, true);
+  }
+
+  public void clearCacheLine(GenericValue value, boolean distribute) {
+    if (value == null) return;
+    // if never cached, then don't bother clearing
+    if (value.getModelEntity().isNeverCache()) return;
+
+    cache.remove(value);
+    if (distribute && this.distributedCacheClear != null) {
+      this.distributedCacheClear.distributedClearCacheLine(value);
+    }
+  }
+
+  /**
+   * Clears the lines an update of the value can affect. Without the original
+   * db values the condition lines the row matched before the update cannot be
+   * found, so all the condition lines of the entity are dropped.
+   */
+  protected void clearCacheLineForUpdate(GenericValue value) {
+    this.clearCacheLine(value);
+    if (!value.originalDbValuesAvailable() && !value.getModelEntity().isNeverCache()) {
+      cache.removeConditionLines(value.getEntityName());
+    }
+  }
+
+  public void clearAllCacheLinesByDummyPK(Collection<GenericPK> dummyPKs) {
+    if (dummyPKs == null) return;
+    for (GenericEntity entity : dummyPKs) {
+      this.clearCacheLineFlexible(entity);
+    }
+  }
+
+  public void clearAllCacheLinesByValue(Collection<GenericValue> values) {
+    if (values == null) return;
+    for (GenericValue value : values) {
+      this.clearCacheLine(value);
+    }
+  }
+
+  public GenericValue getFromPrimaryKeyCache(GenericPK primaryKey) {
+    if (primaryKey == null) return null;
+    GenericValue value = cache.get(primaryKey);
+    if (value == GenericValue.NULL_VALUE) {
+      return null;
+    }
+    return value;
+  }
+
+  public void putInPrimaryKeyCache(GenericPK primaryKey, GenericValue value) {
+    if (primaryKey == null) return;
+    if (primaryKey.getModelEntity().isNeverCache()) {
+      logger.warn("Tried to put a value of the " + value.getEntityName() + " entity in the BY PRIMARY KEY cache but this entity has never-cache set to true, not caching.");
+      return;
+    }
+    cache.put(primaryKey, value);
+  }
+
+  public void putAllInPrimaryKeyCache(List<GenericValue> values) {
+    if (values == null) return;
+    for (GenericValue value : values) {
+      this.putInPrimaryKeyCache(value.getPrimaryKey(), value);
+    }
+  }
+
+  public void setAsyncExecutor(ExecutorService asyncExecutor) {
+    this.asyncExecutor = asyncExecutor == null ? defaultAsyncExecutor : asyncExecutor;
+  }
+
+  public void setDistributedCacheClear(DistributedCacheClear distributedCacheClear) {
+    this.distributedCacheClear = distributedCacheClear;
+  }
+
+  public boolean useDistributedCacheClear() {
+    return this.distributedCacheClear != null;
+  }
+
+  /**
+   * Plugs in the distributed-cache-clear-class-name of the delegator
+   * configuration when distributed-cache-clear-enabled is set; a class that
+   * can't be loaded leaves the cache clear local to this server.
+   */
+  public void initDistributedCacheClear() {
+    if (!delegatorInfo.useDistributedCacheClear) {
+      return;
+    }
+    String className = delegatorInfo.distributedCacheClearClassName;
+    try {
+      Class<?> dccClass = Thread.currentThread().getContextClassLoader().loadClass(className);
+      DistributedCacheClear dcc = (DistributedCacheClear) dccClass.newInstance();
+      dcc.setDelegator(this, delegatorInfo.distributedCacheClearUserLoginId);
+      this.distributedCacheClear = dcc;
+    } catch (ClassNotFoundException e) {
+      logger.warn("DistributedCacheClear class " + className + " was not found, distributed cache clearing is disabled for delegator [" + delegatorFullName + "]", e);
+    } catch (InstantiationException e) {
+      logger.warn("DistributedCacheClear class " + className + " could not be instantiated, distributed cache clearing is disabled for delegator [" + delegatorFullName + "]", e);
+    } catch (IllegalAccessException e) {
+      logger.warn("DistributedCacheClear class " + className + " could not be accessed, distributed cache clearing is disabled for delegator [" + delegatorFullName + "]", e);
+    } catch (ClassCastException e) {
+      logger.warn("DistributedCacheClear class " + className + " does not implement DistributedCacheClear, distributed cache clearing is disabled for delegator [" + delegatorFullName + "]", e);
+    }
+  }
+
+  public void enableJMS(boolean enable) {
+    this.jmsEnabled = enable;
+  }
+
+  public boolean getEnabledJMS() {
+    return this.jmsEnabled;
+  }
+
+  // ======================================
+  // ======= Sequence methods ========
+  // ======================================
+
+  public String getNextSeqId(String seqName) {
+    return this.getNextSeqId(seqName, 1);
+  }
+
+  public String getNextSeqId(String seqName, long staggerMax) {
+    Long nextSeqLong = this.getNextSeqIdLong(seqName, staggerMax);
+    if (nextSeqLong == null) {
+      // NOTE: the getNextSeqIdLong method SHOULD throw a runtime exception when no sequence value is found, which means we should never see it get here
+      throw new IllegalArgumentException("Could not get next sequenced ID for sequence name: " + seqName);
+    }
+    return nextSeqLong.toString();
+  }
+
+  public Long getNextSeqIdLong(String seqName) {
+    return this.getNextSeqIdLong(seqName, 1);
+  }
+
+  public Long getNextSeqIdLong(String seqName, long staggerMax) {
+    try {
+      SequenceUtil sequencer = this.sequencer;
+      if (sequencer == null) {
+        synchronized (this) {
+          sequencer = this.sequencer;
+          if (sequencer == null) {
+            Entity seqEntity = getModelEntityChecked(SEQUENCE_ENTITY_NAME);
+            GenericHelperInfo helperInfo = getGroupHelperInfo(getEntityGroupName(SEQUENCE_ENTITY_NAME));
+            sequencer = new SequenceUtil(this, helperInfo, seqEntity, "seqName", "seqId");
+            this.sequencer = sequencer;
+          }
+        }
+      }
+      return sequencer.getNextSeqId(seqName, staggerMax, getModelEntity(seqName));
+    } catch (GenericEntityException e) {
+      String errMsg = "Failure in getNextSeqIdLong operation for seqName [" + seqName + "]: " + e.toString();
+      logger.error(errMsg, e);
+      throw new IllegalStateException(errMsg, e);
+    }
+  }
+
+  public void setSequencer(SequenceUtil sequencer) {
+    this.sequencer = sequencer;
+  }
+
+  public void refreshSequencer() {
+    this.sequencer = null;
+  }
+
+  public void setNextSubSeqId(GenericValue value, String seqFieldName, int numericPadding, int incrementBy) {
+    if (value == null || UtilValidate.isNotEmpty(value.getString(seqFieldName))) {
+      return;
+    }
+    Map<String, Object> lookupFields = FastMap.newInstance();
+    for (String pkName : value.getModelEntity().getPkFieldNames()) {
+      if (!pkName.equals(seqFieldName)) {
+        lookupFields.put(pkName, value.get(pkName));
+      }
+    }
+    int highestSeqVal = 0;
+    try {
+      List<String> orderBy = FastList.newInstance();
+      orderBy.add(seqFieldName + " DESC");
+      GenericValue last = EntityUtil.getFirst(this.findByAnd(value.getEntityName(), lookupFields, orderBy));
+      if (last != null && UtilValidate.isNotEmpty(last.getString(seqFieldName))) {
+        highestSeqVal = Integer.parseInt(last.getString(seqFieldName));
+      }
+    } catch (GenericEntityException e) {
+      logger.error("Error getting the highest " + seqFieldName + " of entity " + value.getEntityName() + ", starting from 1", e);
+    } catch (NumberFormatException e) {
+      logger.error("The highest " + seqFieldName + " of entity " + value.getEntityName() + " is not a number, starting from 1", e);
+    }
+    int nextSeqVal = highestSeqVal == 0 ? 1 : highestSeqVal + incrementBy;
+    StringBuilder nextSubSeqId = new StringBuilder(Integer.toString(nextSeqVal));
+    while (nextSubSeqId.length() < numericPadding) {
+      nextSubSeqId.insert(0, '0');
+    }
+    value.set(seqFieldName, nextSubSeqId.toString());
+  }
+
+  // ======================================
+  // ======= Crypto and ECA methods ========
+  // ======================================
+
+  public void setEntityCrypto(EntityCrypto crypto) {
+    this.crypto = crypto;
+  }
+
+  public void encryptFields(List<? extends GenericEntity> entities) throws GenericEntityException {
+    if (entities != null) {
+      for (GenericEntity entity : entities) {
+        this.encryptFields(entity);
+      }
+    }
+  }
+
+  /** Replaces the values of the encrypt fields of the entity with their encrypted form, a no-op without an EntityCrypto */
+  public void encryptFields(GenericEntity entity) throws GenericEntityException {
+    if (crypto == null || entity == null) {
+      return;
+    }
+    Entity model = entity.getModelEntity();
+    if (!model.hasEncryptedFields()) {
+      return;
+    }
+    Iterator<Field> fields = model.getFieldsIterator();
+    while (fields.hasNext()) {
+      Field field = fields.next();
+      if (field.getEncrypt()) {
+        Object obj = entity.get(field.getName());
+        if (obj == null || (obj instanceof String && UtilValidate.isEmpty((String) obj))) {
+          continue;
+        }
+        entity.dangerousSetNoCheckButFast(field, encryptFieldValue(model.getEntityName(), obj));
+      }
+    }
+  }
+
+  public Object encryptFieldValue(String entityName, Object fieldValue) throws EntityCryptoException {
+    if (fieldValue != null && crypto != null) {
+      return crypto.encrypt(entityName, fieldValue);
+    }
+    return fieldValue;
+  }
+
+  public void decryptFields(List<? extends GenericEntity> entities) throws GenericEntityException {
+    if (entities != null) {
+      for (GenericEntity entity : entities) {
+        this.decryptFields(entity);
+      }
+    }
+  }
+
+  /** Replaces the encrypted values of the encrypt fields of the entity with their plain form, a no-op without an EntityCrypto */
+  public void decryptFields(GenericEntity entity) throws GenericEntityException {
+    if (crypto == null || entity == null) {
+      return;
+    }
+    Entity model = entity.getModelEntity();
+    if (!model.hasEncryptedFields()) {
+      return;
+    }
+    Iterator<Field> fields = model.getFieldsIterator();
+    while (fields.hasNext()) {
+      Field field = fields.next();
+      if (field.getEncrypt()) {
+        Object obj = entity.get(field.getName());
+        if (obj instanceof String) {
+          try {
+            entity.dangerousSetNoCheckButFast(field, crypto.decrypt(model.getEntityName(), (String) obj));
+          } catch (EntityCryptoException e) {
+            logger.warn("Problem decrypting field [" + model.getEntityName() + "." + field.getName() + "]", e);
+          }
+        }
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> EntityEcaHandler<T> getEntityEcaHandler() {
+    return (EntityEcaHandler<T>) this.entityEcaHandler;
+  }
+
+  public <T> void setEntityEcaHandler(EntityEcaHandler<T> entityEcaHandler) {
+    this.entityEcaHandler = entityEcaHandler;
+  }
+
+  /**
+   * Plugs in the entity-eca-handler-class-name of the delegator configuration
+   * when entity-eca-enabled is set; a class that can't be loaded disables the
+   * entity ECA rules.
+   */
+  public void initEntityEcaHandler() {
+    if (!delegatorInfo.useEntityEca) {
+      if (logger.isDebugEnabled()) logger.debug("Entity ECA Handler disabled for delegator [" + delegatorFullName + "]");
+      return;
+    }
+    String className = delegatorInfo.entityEcaHandlerClassName;
+    try {
+      Class<?> handlerClass = Thread.currentThread().getContextClassLoader().loadClass(className);
+      EntityEcaHandler<?> handler = (EntityEcaHandler<?>) handlerClass.newInstance();
+      handler.setDelegator(this);
+      this.entityEcaHandler = handler;
+    } catch (ClassNotFoundException e) {
+      logger.warn("EntityEcaHandler class " + className + " was not found, Entity ECA Rules are disabled for delegator [" + delegatorFullName + "]", e);
+    } catch (InstantiationException e) {
+      logger.warn("EntityEcaHandler class " + className + " could not be instantiated, Entity ECA Rules are disabled for delegator [" + delegatorFullName + "]", e);
+    } catch (IllegalAccessException e) {
+      logger.warn("EntityEcaHandler class " + className + " could not be accessed, Entity ECA Rules are disabled for delegator [" + delegatorFullName + "]", e);
+    } catch (ClassCastException e) {
+      logger.warn("EntityEcaHandler class " + className + " does not implement EntityEcaHandler, Entity ECA Rules are disabled for delegator [" + delegatorFullName + "]", e);
+    }
+  }
+}
@@ -28,6 +28,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Observable;
+import java.util.Observer;
 import java.util.ResourceBundle;
 import java.util.TreeSet;
 
@@ -78,7 +79,8 @@ public class GenericEntity extends Observable implements Map<String, Object>, Lo
 
   protected transient Delegator     internalDelegator = null;
 
-  protected Map<String, Object>     fields            = FastMap.newInstance();
+  /** Allocated by init for the entity, see {@link #newFieldMap(Entity)} */
+  protected Map<String, Object>     fields            = null;
 
   protected String                  entityName        = null;
 
@@ -106,6 +108,12 @@ public class GenericEntity extends Observable implements Map<String, Object>, Lo
    */
   protected boolean                 isFromEntitySync  = false;
 
+  /** Set once an observer is added so that set can skip the notification otherwise */
+  private transient volatile boolean hasObservers     = false;
+
+  /** The Java types of the fields, resolved on the first set */
+  private transient EntityFieldTypes fieldTypes       = null;
+
   protected GenericEntity() {
   }
 
@@ -127,6 +135,7 @@ public class GenericEntity extends Observable implements Map<String, Object>, Lo
 
     this.entity = entity;
     this.entityName = entity.getEntityName();
+    this.fields = newFieldMap(entity);
 
     // check some things
     if (this.entityName == null) {
@@ -142,6 +151,7 @@ public class GenericEntity extends Observable implements Map<String, Object>, Lo
     this.entityName = entity.getEntityName();
     this.delegatorName = delegator.getDelegatorName();
     this.internalDelegator = delegator;
+    this.fields = newFieldMap(entity);
     setFields(fields);
 
     // check some things
@@ -162,6 +172,7 @@ public class GenericEntity extends Observable implements Map<String, Object>, Lo
     this.entityName = entity.getEntityName();
     this.delegatorName = delegator.getDelegatorName();
     this.internalDelegator = delegator;
+    this.fields = newFieldMap(entity);
     set(entity.getOnlyPk().getName(), singlePkValue);
 
     // check some things
@@ -182,16 +193,24 @@ public class GenericEntity extends Observable implements Map<String, Object>, Lo
     // to keep the object light if it isn't there
     this.entity = value.entity;
     if (value.fields != null)
-      this.fields.putAll(value.fields);
+      this.fields = FieldValueMap.copyOf(value.fields);
     this.delegatorName = value.delegatorName;
     this.internalDelegator = value.internalDelegator;
   }
 
+  /** The field storage for a value of the entity, see {@link Entity#isCompactStorage()} */
+  private static Map<String, Object> newFieldMap(Entity entity) {
+    if (entity.isCompactStorage()) {
+      return new FieldValueMap(entity);
+    }
+    return FastMap.newInstance();
+  }
+
   public void reset() {
     // from GenericEntity
     this.delegatorName = null;
     this.internalDelegator = null;
-    this.fields = FastMap.newInstance();
+    this.fields = null;
     this.entityName = null;
     this.entity = null;
     this.modified = false;
@@ -199,6 +218,7 @@ public class GenericEntity extends Observable implements Map<String, Object>, Lo
     this.cachedHashCode = 0;
     this.mutable = true;
     this.isFromEntitySync = false;
+    this.fieldTypes = null;
   }
 
   public void refreshFromValue(GenericEntity newValue) throws GenericEntityException {
@@ -260,7 +280,7 @@ public class GenericEntity extends Observable implements Map<String, Object>, Lo
   public Entity getModelEntity() {
     if (entity == null) {
       if (entityName != null)
-        entity = this.getDelegator().getEntity(entityName);
+        entity = this.getDelegator().getModelEntity(entityName);
       if (entity == null) {
         throw new IllegalStateException("[GenericEntity.getModelEntity] could not find modelEntity for entityName "
             + entityName);
@@ -298,6 +318,7 @@ public class GenericEntity extends Observable implements Map<String, Object>, Lo
       return;
     this.delegatorName = internalDelegator.getDelegatorName();
     this.internalDelegator = internalDelegator;
+    this.fieldTypes = null;
   }
 
   public Object get(String name) {
@@ -390,89 +411,138 @@ public class GenericEntity extends Observable implements Map<String, Object>, Lo
    * @param value The value to set
    * @param setIfNull Specifies whether or not to set the value if it is null
    */
-  public synchronized Object set(String name, Object value, boolean setIfNull) {
-    if (!this.mutable) {
-      // comment this out to disable the mutable check
-      throw new IllegalStateException("This object has been flagged as immutable (unchangeable), probably because it came from an Entity Engine cache. Cannot set a value in an immutable entity object.");
-    }
-
+  public Object set(String name, Object value, boolean setIfNull) {
     Field modelField = getModelEntity().getField(name);
     if (modelField == null) {
       throw new IllegalArgumentException("[GenericEntity.set] \"" + name + "\" is not a field of "
           + entityName + ", must be one of: " + getModelEntity().fieldNameString());
     }
+    return set(modelField, value, setIfNull);
+  }
+
+  /**
+   * Fast path of {@link #set(String, Object, boolean)} for callers that
+   * already hold the model field, such as the bulk setters. The Java type of
+   * the field comes from a table built once per entity and datasource helper,
+   * and observers are only notified when there are some.
+   */
+  protected Object set(Field modelField, Object value, boolean setIfNull) {
+    if (!this.mutable) {
+      // comment this out to disable the mutable check
+      throw new IllegalStateException("This object has been flagged as immutable (unchangeable), probably because it came from an Entity Engine cache. Cannot set a value in an immutable entity object.");
+    }
+
     if (value != null || setIfNull) {
-      FieldType type = null;
-      try {
-        type = getDelegator().getEntityFieldType(getModelEntity(), modelField.getType());
-      } catch (GenericEntityException e) {
-        logger.warn(e.getMessage(), e);
-      }
-      if (type == null) {
-        throw new IllegalArgumentException("Type "
-            + modelField.getType()
-            + " not found for entity ["
-            + this.getEntityName()
-            + "]; probably because there is no datasource (helper) setup for the entity group that this entity is in: ["
-            + this.getDelegator().getEntityGroupName(this.getEntityName()) + "]");
+      if (value != null && !(value instanceof NULL)) {
+        value = checkFieldType(modelField, value);
       }
-
-      if (value instanceof Boolean) {
-        // if this is a Boolean check to see if we should convert from an
-        // indicator or just leave as is
-        try {
-          int fieldType = SqlJdbcUtil.getType(type.getJavaType());
-          if (fieldType != 10) {
-            value = ((Boolean) value).booleanValue() ? "Y" : "N";
-          }
-        } catch (GenericNotImplementedException e) {
-          throw new IllegalArgumentException(e.getMessage());
-        }
-      } else if (value != null && !(value instanceof NULL)) {
-        // make sure the type matches the field Java type
-        if (value instanceof TimeDuration) {
-          try {
-            value = ObjectType.simpleTypeConvert(value, type.getJavaType(), null, null);
-          } catch (GeneralException e) {
-          }
-        }
-        if (!ObjectType.instanceOf(value, type.getJavaType())) {
-          if (!("java.sql.Blob".equals(type.getJavaType()) && (value instanceof byte[] || ObjectType.instanceOf(value,
-                                                                                                                ByteBuffer.class)))) {
-            String errMsg = "In entity field [" + this.getEntityName() + "." + name
-                + "] set the value passed in [" + value.getClass().getName()
-                + "] is not compatible with the Java type of the field [" + type.getJavaType()
-                + "]";
-            // eventually we should do this, but for now we'll do a "soft"
-            // failure: throw new IllegalArgumentException(errMsg);
-            logger.warn("=-=-=-=-=-=-=-=-= Database type warning GenericEntity.set =-=-=-=-=-=-=-=-= "
-                            + errMsg,
-                        new Exception("Location of database type warning"));
-          }
-        }
+      Object old;
+      if (fields instanceof FieldValueMap) {
+        old = ((FieldValueMap) fields).put(modelField, value);
+      } else {
+        old = fields.put(modelField.getName(), value);
       }
-      Object old = fields.put(name, value);
 
       generateHashCode = true;
       modified = true;
-      this.setChanged();
-      this.notifyObservers(name);
+      if (hasObservers) {
+        this.setChanged();
+        this.notifyObservers(modelField.getName());
+      }
       return old;
     } else {
-      return fields.get(name);
+      return dangerousGetNoCheckButFast(modelField);
+    }
+  }
+
+  /** Converts the value to the Java type of the field when needed and warns when the types do not match */
+  private Object checkFieldType(Field modelField, Object value) {
+    EntityFieldTypes types = this.fieldTypes;
+    if (types == null) {
+      types = EntityFieldTypes.getFieldTypes(getDelegator(), getModelEntity());
+      this.fieldTypes = types;
+    }
+    String javaTypeName = types.getJavaTypeName(modelField);
+    if (javaTypeName == null) {
+      throw new IllegalArgumentException("Type "
+          + modelField.getType()
+          + " not found for entity ["
+          + this.getEntityName()
+          + "]; probably because there is no datasource (helper) setup for the entity group that this entity is in: ["
+          + this.getDelegator().getEntityGroupName(this.getEntityName()) + "]");
+    }
+
+    if (value instanceof Boolean) {
+      // if this is a Boolean check to see if we should convert from an
+      // indicator or just leave as is
+      int fieldType = types.getJdbcType(modelField);
+      if (fieldType == EntityFieldTypes.UNSUPPORTED_TYPE) {
+        throw new IllegalArgumentException("Java type " + javaTypeName + " not currently supported. Sorry.");
+      }
+      if (fieldType != EntityFieldTypes.BOOLEAN_TYPE) {
+        value = ((Boolean) value).booleanValue() ? "Y" : "N";
+      }
+      return value;
+    }
+
+    // make sure the type matches the field Java type
+    if (value instanceof TimeDuration) {
+      try {
+        value = ObjectType.simpleTypeConvert(value, javaTypeName, null, null);
+      } catch (GeneralException e) {
+      }
     }
+    if (!types.isInstance(modelField, value)) {
+      if (!("java.sql.Blob".equals(javaTypeName) && (value instanceof byte[] || value instanceof ByteBuffer))) {
+        String errMsg = "In entity field [" + this.getEntityName() + "." + modelField.getName()
+            + "] set the value passed in [" + value.getClass().getName()
+            + "] is not compatible with the Java type of the field [" + javaTypeName
+            + "]";
+        // eventually we should do this, but for now we'll do a "soft"
+        // failure: throw new IllegalArgumentException(errMsg);
+        logger.warn("=-=-=-=-=-=-=-=-= Database type warning GenericEntity.set =-=-=-=-=-=-=-=-= "
+                        + errMsg,
+                    new Exception("Location of database type warning"));
+      }
+    }
+    return value;
+  }
+
+  @Override
+  public synchronized void addObserver(Observer observer) {
+    super.addObserver(observer);
+    hasObservers = true;
+  }
+
+  @Override
+  public synchronized void deleteObserver(Observer observer) {
+    super.deleteObserver(observer);
+    hasObservers = countObservers() > 0;
+  }
+
+  @Override
+  public synchronized void deleteObservers() {
+    super.deleteObservers();
+    hasObservers = false;
   }
 
   public void dangerousSetNoCheckButFast(Field modelField, Object value) {
     if (modelField == null)
       throw new IllegalArgumentException("Cannot set field with a null modelField");
     generateHashCode = true;
-    this.fields.put(modelField.getName(), value);
+    if (this.fields instanceof FieldValueMap) {
+      ((FieldValueMap) this.fields).put(modelField, value);
+    } else {
+      this.fields.put(modelField.getName(), value);
+    }
   }
 
   public Object dangerousGetNoCheckButFast(Field modelField) {
     if (modelField == null)
       throw new IllegalArgumentException("Cannot get field with a null modelField");
+    if (this.fields instanceof FieldValueMap) {
+      return ((FieldValueMap) this.fields).get(modelField);
+    }
     return this.fields.get(modelField.getName());
   }
 
@@ -1000,9 +1070,9 @@ public class GenericEntity extends Observable implements Map<String, Object>, Lo
         if (setIfEmpty) {
           // if empty string, set to null
           if (field != null && field instanceof String && ((String) field).length() == 0) {
-            this.set(curField.getName(), null);
+            this.set(curField, null, true);
           } else {
-            this.set(curField.getName(), field);
+            this.set(curField, field, true);
           }
         } else {
           // okay, only set if not empty...
@@ -1013,10 +1083,10 @@ public class GenericEntity extends Observable implements Map<String, Object>, Lo
               String fieldStr = (String) field;
 
               if (fieldStr.length() > 0) {
-                this.set(curField.getName(), fieldStr);
+                this.set(curField, fieldStr, true);
               }
             } else {
-              this.set(curField.getName(), field);
+              this.set(curField, field, true);
             }
           }
         }
@@ -1272,6 +1342,7 @@ public class GenericEntity extends Observable implements Map<String, Object>, Lo
 
   public static class NullGenericEntity extends GenericEntity implements NULL {
     protected NullGenericEntity() {
+      this.fields = Collections.emptyMap();
     }
 
     @Override
@@ -16,6 +16,7 @@
  */
 package org.etk.entity.engine.core;
 
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -148,13 +149,20 @@ public class GenericValue extends GenericEntity implements Reusable {
         return originalDbValues.get(name);
     }
 
+    /** The field values as they were last read from the database, or null if this
+     * value was never synchronized with the datasource
+     */
+    public Map<String, Object> getOriginalDbValues() {
+        if (originalDbValues == null) return null;
+        return Collections.unmodifiableMap(originalDbValues);
+    }
+
     /** This should only be called by the Entity Engine once a GenericValue has
      * been read from the database so that we have a copy of the original field
      * values from the Db.
      */
     public void copyOriginalDbValues() {
-        this.originalDbValues = FastMap.newInstance();
-        this.originalDbValues.putAll(this.fields);
+        this.originalDbValues = FieldValueMap.copyOf(this.fields);
     }
 
     /** Get the named Related Entity for the GenericValue from the persistent store
@@ -299,6 +307,11 @@ public class GenericValue extends GenericEntity implements Reusable {
         relatedCache.put(relationName, UtilMisc.toList(value));
     }
 
+    public void storeRelatedOneEmbeddedCache(String relationName, GenericValue value) {
+        if (relatedOneCache == null) relatedOneCache = FastMap.newInstance();
+        relatedOneCache.put(relationName, value);
+    }
+
     public void clearEmbeddedCache() {
         relatedCache.clear();
     }
@@ -494,6 +507,10 @@ public class GenericValue extends GenericEntity implements Reusable {
     }
 
     protected static class NullGenericValue extends GenericValue implements NULL {
+        protected NullGenericValue() {
+            this.fields = Collections.emptyMap();
+        }
+
         @Override
         public String getEntityName() {
             return "[null-entity-value]";
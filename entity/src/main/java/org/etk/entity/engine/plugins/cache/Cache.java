@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.cache;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.etk.common.logging.Logger;
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.core.GenericEntity;
+import org.etk.entity.engine.core.GenericPK;
+import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.condition.CompiledCondition;
+import org.etk.entity.engine.plugins.condition.EntityCondition;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+
+import javolution.util.FastList;
+
+/**
+ * The entity cache of a delegator.
+ * <p>
+ * Each entity gets two {@link EntityCacheRegion}s: one holding the values found
+ * by primary key and one holding the lists found by condition. Both are bounded
+ * by the cache-max-size and expire after the cache-expire-time of the entity.
+ * <p>
+ * When a value is stored or removed only the lines it can affect are dropped:
+ * the primary key line of the value and the condition lines whose condition
+ * matches either the new field values or the values originally read from the
+ * database.
+ */
+public class Cache {
+
+    private static final Logger logger = Logger.getLogger(Cache.class);
+
+    protected final String delegatorName;
+    protected final ConcurrentMap<String, EntityCacheRegion<GenericPK, GenericValue>> pkCaches = new ConcurrentHashMap<String, EntityCacheRegion<GenericPK, GenericValue>>();
+    protected final ConcurrentMap<String, EntityCacheRegion<ConditionKey, List<GenericValue>>> conditionCaches = new ConcurrentHashMap<String, EntityCacheRegion<ConditionKey, List<GenericValue>>>();
+
+    public Cache(String delegatorName) {
+        this.delegatorName = delegatorName;
+    }
+
+    public GenericValue get(GenericPK pk) {
+        if (pk == null) return null;
+        EntityCacheRegion<GenericPK, GenericValue> region = pkCaches.get(pk.getEntityName());
+        return region == null ? null : region.get(pk);
+    }
+
+    public List<GenericValue> get(String entityName, EntityCondition condition, List<String> orderBy) {
+        EntityCacheRegion<ConditionKey, List<GenericValue>> region = conditionCaches.get(entityName);
+        return region == null ? null : region.get(new ConditionKey(condition, orderBy));
+    }
+
+    public GenericValue put(GenericValue value) {
+        if (value == null) return null;
+        return put(value.getPrimaryKey(), value);
+    }
+
+    public GenericValue put(GenericPK pk, GenericValue value) {
+        Entity entity = pk.getModelEntity();
+        if (entity.isNeverCache()) {
+            logger.warn("Tried to put a value of the " + entity.getEntityName() + " entity in the cache but this entity has never-cache set to true, not caching.");
+            return null;
+        }
+        if (value == null) {
+            value = GenericValue.NULL_VALUE;
+        } else {
+            value.setImmutable();
+        }
+        return getPkRegion(entity).put(pk, value);
+    }
+
+    public List<GenericValue> put(String entityName, EntityCondition condition, List<String> orderBy, List<GenericValue> values, Entity entity) {
+        if (entity.isNeverCache()) {
+            logger.warn("Tried to put a list of the " + entityName + " entity in the cache but this entity has never-cache set to true, not caching.");
+            return null;
+        }
+        for (GenericValue value : values) {
+            value.setImmutable();
+        }
+        return getConditionRegion(entity).put(new ConditionKey(condition, orderBy), values);
+    }
+
+    /**
+     * Drops the primary key line of the entity and every condition line the
+     * entity may belong to. When only the primary key is known the cached value,
+     * if any, is used to match the conditions. When the values of the row before
+     * the change are not known, a value never read or read partially, all the
+     * condition lines of the entity are dropped.
+     */
+    public GenericValue remove(GenericEntity entity) {
+        if (logger.isDebugEnabled()) logger.debug("Cache remove GenericEntity: " + entity);
+        String entityName = entity.getEntityName();
+        EntityCacheRegion<GenericPK, GenericValue> pkRegion = pkCaches.get(entityName);
+        GenericValue removed = null;
+        if (pkRegion != null && entity.containsPrimaryKey(true)) {
+            removed = pkRegion.remove(entity.getPrimaryKey());
+        }
+
+        EntityCacheRegion<ConditionKey, List<GenericValue>> conditionRegion = conditionCaches.get(entityName);
+        if (conditionRegion == null) return removed;
+        if (entity instanceof GenericPK) {
+            if (removed == null || removed == GenericValue.NULL_VALUE) {
+                conditionRegion.clear();
+                return removed;
+            }
+            entity = removed;
+        }
+        Map<String, Object> originalDbValues = null;
+        if (entity instanceof GenericValue) {
+            originalDbValues = ((GenericValue) entity).getOriginalDbValues();
+        }
+        Entity modelEntity = entity.getModelEntity();
+        int fieldsSize = modelEntity.getFieldsSize();
+        if (originalDbValues == null || originalDbValues.size() < fieldsSize || entity.size() < fieldsSize) {
+            conditionRegion.clear();
+            return removed;
+        }
+        Delegator delegator = entity.getDelegator();
+        for (ConditionKey key : conditionRegion.getKeys()) {
+            if (key.condition == null) {
+                conditionRegion.remove(key);
+                continue;
+            }
+            CompiledCondition compiled = key.getCompiledCondition(modelEntity);
+            if (compiled.matches(entity) || compiled.matches(delegator, originalDbValues)) {
+                conditionRegion.remove(key);
+            }
+        }
+        return removed;
+    }
+
+    /** Drops all the condition lines of the entity, the primary key lines are kept */
+    public void removeConditionLines(String entityName) {
+        EntityCacheRegion<ConditionKey, List<GenericValue>> conditionRegion = conditionCaches.get(entityName);
+        if (conditionRegion != null) {
+            conditionRegion.clear();
+        }
+    }
+
+    /** Drops the primary key lines matching the condition and all the condition lines of the entity */
+    public void remove(String entityName, EntityCondition condition) {
+        removeConditionLines(entityName);
+        EntityCacheRegion<GenericPK, GenericValue> pkRegion = pkCaches.get(entityName);
+        if (pkRegion == null) return;
+        if (condition == null) {
+            pkRegion.clear();
+            return;
+        }
+        CompiledCondition compiled = null;
+        for (Map.Entry<GenericPK, GenericValue> entry : pkRegion.getEntries().entrySet()) {
+            GenericValue cached = entry.getValue();
+            if (cached == GenericValue.NULL_VALUE) {
+                pkRegion.remove(entry.getKey());
+                continue;
+            }
+            if (compiled == null) compiled = condition.compile(cached.getModelEntity());
+            if (compiled.matches(cached)) {
+                pkRegion.remove(entry.getKey());
+            }
+        }
+    }
+
+    public void clear(String entityName) {
+        remove(entityName, null);
+    }
+
+    public void clear() {
+        for (EntityCacheRegion<GenericPK, GenericValue> region : pkCaches.values()) {
+            region.clear();
+        }
+        for (EntityCacheRegion<ConditionKey, List<GenericValue>> region : conditionCaches.values()) {
+            region.clear();
+        }
+    }
+
+    /** The statistics of every region of the cache, primary key regions first */
+    public List<EntityCacheStats> getStats() {
+        List<EntityCacheStats> stats = FastList.newInstance();
+        for (Iterator<EntityCacheRegion<GenericPK, GenericValue>> iter = pkCaches.values().iterator(); iter.hasNext();) {
+            stats.add(iter.next().getStats());
+        }
+        for (Iterator<EntityCacheRegion<ConditionKey, List<GenericValue>>> iter = conditionCaches.values().iterator(); iter.hasNext();) {
+            stats.add(iter.next().getStats());
+        }
+        return stats;
+    }
+
+    public EntityCacheStats getPkStats(String entityName) {
+        EntityCacheRegion<GenericPK, GenericValue> region = pkCaches.get(entityName);
+        return region == null ? null : region.getStats();
+    }
+
+    public EntityCacheStats getConditionStats(String entityName) {
+        EntityCacheRegion<ConditionKey, List<GenericValue>> region = conditionCaches.get(entityName);
+        return region == null ? null : region.getStats();
+    }
+
+    protected EntityCacheRegion<GenericPK, GenericValue> getPkRegion(Entity entity) {
+        EntityCacheRegion<GenericPK, GenericValue> region = pkCaches.get(entity.getEntityName());
+        if (region == null) {
+            region = new EntityCacheRegion<GenericPK, GenericValue>(getRegionName("pk", entity), entity.getCacheMaxSize(), entity.getCacheExpireTime());
+            EntityCacheRegion<GenericPK, GenericValue> existing = pkCaches.putIfAbsent(entity.getEntityName(), region);
+            if (existing != null) region = existing;
+        }
+        return region;
+    }
+
+    protected EntityCacheRegion<ConditionKey, List<GenericValue>> getConditionRegion(Entity entity) {
+        EntityCacheRegion<ConditionKey, List<GenericValue>> region = conditionCaches.get(entity.getEntityName());
+        if (region == null) {
+            region = new EntityCacheRegion<ConditionKey, List<GenericValue>>(getRegionName("condition", entity), entity.getCacheMaxSize(), entity.getCacheExpireTime());
+            EntityCacheRegion<ConditionKey, List<GenericValue>> existing = conditionCaches.putIfAbsent(entity.getEntityName(), region);
+            if (existing != null) region = existing;
+        }
+        return region;
+    }
+
+    private String getRegionName(String type, Entity entity) {
+        return "entitycache.entity-" + type + "." + delegatorName + "." + entity.getEntityName();
+    }
+
+    /** Key of a condition line; the condition is frozen so later changes by the caller do not affect the key */
+    protected static final class ConditionKey {
+        private final EntityCondition condition;
+        private final List<String> orderBy;
+        private final int hashCode;
+        private volatile CompiledCondition compiled;
+
+        private ConditionKey(EntityCondition condition, List<String> orderBy) {
+            this.condition = condition == null ? null : condition.freeze();
+            this.orderBy = orderBy == null ? null : FastList.newInstance();
+            if (orderBy != null) this.orderBy.addAll(orderBy);
+            int h = this.condition == null ? 0 : this.condition.hashCode();
+            this.hashCode = 31 * h + (this.orderBy == null ? 0 : this.orderBy.hashCode());
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof ConditionKey)) return false;
+            ConditionKey that = (ConditionKey) obj;
+            if (hashCode != that.hashCode) return false;
+            if (condition == null ? that.condition != null : !condition.equals(that.condition)) return false;
+            return orderBy == null ? that.orderBy == null : orderBy.equals(that.orderBy);
+        }
+
+        /** The frozen condition compiled on first use, a race only compiles it twice */
+        private CompiledCondition getCompiledCondition(Entity modelEntity) {
+            CompiledCondition compiled = this.compiled;
+            if (compiled == null) {
+                compiled = condition.compile(modelEntity);
+                this.compiled = compiled;
+            }
+            return compiled;
+        }
+    }
+}
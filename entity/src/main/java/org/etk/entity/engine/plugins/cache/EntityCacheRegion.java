@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.cache;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+
+/**
+ * A size bounded, optionally expiring cache region.
+ * <p>
+ * The region is split in a power of two number of stripes (one per available
+ * processor by default), each one being an access ordered LRU map guarded by
+ * its own lock, so concurrent readers of different keys rarely contend. The
+ * maximum size is spread evenly over the stripes; when a stripe is full its
+ * least recently used entry is evicted.
+ */
+public class EntityCacheRegion<K, V> {
+
+    private final String name;
+    private final int maxSize;
+    private final long expireTimeNanos;
+    private final Stripe<K, V>[] stripes;
+    private final int stripeMask;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * @param name the name of the region, used for the statistics
+     * @param maxSize the maximum number of entries, 0 or less for no bound
+     * @param expireTimeMillis the time to live of an entry in milliseconds, 0 or less to never expire
+     */
+    public EntityCacheRegion(String name, int maxSize, long expireTimeMillis) {
+        this(name, maxSize, expireTimeMillis, ManagementFactory.getOperatingSystemMXBean().getAvailableProcessors());
+    }
+
+    @SuppressWarnings("unchecked")
+    public EntityCacheRegion(String name, int maxSize, long expireTimeMillis, int concurrencyLevel) {
+        this.name = name;
+        this.maxSize = maxSize > 0 ? maxSize : 0;
+        this.expireTimeNanos = expireTimeMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(expireTimeMillis) : 0;
+
+        int stripeCount = 1;
+        while (stripeCount < concurrencyLevel && (this.maxSize == 0 || stripeCount * 2 <= this.maxSize)) {
+            stripeCount <<= 1;
+        }
+        int stripeMaxSize = this.maxSize == 0 ? 0 : (this.maxSize + stripeCount - 1) / stripeCount;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new Stripe<K, V>(this, stripeMaxSize);
+        }
+        this.stripeMask = stripeCount - 1;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public V get(K key) {
+        Stripe<K, V> stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            CacheEntry<V> entry = stripe.get(key);
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            if (entry.isExpired(expireTimeNanos)) {
+                stripe.remove(key);
+                expirations.incrementAndGet();
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.value;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    public V put(K key, V value) {
+        Stripe<K, V> stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            CacheEntry<V> previous = stripe.put(key, new CacheEntry<V>(value));
+            return previous == null ? null : previous.value;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    public V remove(K key) {
+        Stripe<K, V> stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            CacheEntry<V> previous = stripe.remove(key);
+            return previous == null ? null : previous.value;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    public boolean containsKey(K key) {
+        Stripe<K, V> stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            return stripe.containsKey(key);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /** A snapshot of the keys currently in the region; stripes are locked one at a time */
+    public List<K> getKeys() {
+        List<K> keys = FastList.newInstance();
+        for (Stripe<K, V> stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                keys.addAll(stripe.keySet());
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * A snapshot of the entries currently in the region, expired entries are
+     * skipped; neither the counters nor the access order are updated
+     */
+    public Map<K, V> getEntries() {
+        Map<K, V> entries = FastMap.newInstance();
+        for (Stripe<K, V> stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                for (Map.Entry<K, CacheEntry<V>> entry : stripe.entrySet()) {
+                    if (!entry.getValue().isExpired(expireTimeNanos)) {
+                        entries.put(entry.getKey(), entry.getValue().value);
+                    }
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return entries;
+    }
+
+    /** A snapshot of the values currently in the region, expired entries are skipped */
+    public List<V> getValues() {
+        List<V> values = FastList.newInstance();
+        for (Stripe<K, V> stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                for (CacheEntry<V> entry : stripe.values()) {
+                    if (!entry.isExpired(expireTimeNanos)) {
+                        values.add(entry.value);
+                    }
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return values;
+    }
+
+    public void clear() {
+        for (Stripe<K, V> stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                stripe.clear();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe<K, V> stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    public EntityCacheStats getStats() {
+        return new EntityCacheStats(name, hits.get(), misses.get(), evictions.get(), expirations.get(), size(), maxSize);
+    }
+
+    private Stripe<K, V> stripeFor(Object key) {
+        // spread the hash so that keys with poor low bits still use all of the stripes
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return stripes[h & stripeMask];
+    }
+
+    private static final class CacheEntry<V> {
+        private final V value;
+        private final long loadTimeNanos = System.nanoTime();
+
+        private CacheEntry(V value) {
+            this.value = value;
+        }
+
+        private boolean isExpired(long expireTimeNanos) {
+            return expireTimeNanos > 0 && System.nanoTime() - loadTimeNanos > expireTimeNanos;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Stripe<K, V> extends LinkedHashMap<K, CacheEntry<V>> {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final EntityCacheRegion<K, V> region;
+        private final int maxSize;
+
+        private Stripe(EntityCacheRegion<K, V> region, int maxSize) {
+            super(16, 0.75f, true);
+            this.region = region;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+            if (maxSize > 0 && size() > maxSize) {
+                region.evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
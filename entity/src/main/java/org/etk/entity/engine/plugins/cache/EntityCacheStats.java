@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.cache;
+
+import java.io.Serializable;
+
+/**
+ * Point in time snapshot of the counters of an {@link EntityCacheRegion}.
+ */
+@SuppressWarnings("serial")
+public class EntityCacheStats implements Serializable {
+
+    private final String name;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long expirations;
+    private final int size;
+    private final int maxSize;
+
+    public EntityCacheStats(String name, long hits, long misses, long evictions, long expirations, int size, int maxSize) {
+        this.name = name;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.expirations = expirations;
+        this.size = size;
+        this.maxSize = maxSize;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /** Number of entries dropped because the region was full */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /** Number of entries dropped because they were older than the expire time of the entity */
+    public long getExpirations() {
+        return expirations;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /** The maximum number of entries, 0 means unbounded */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", expirations=" + expirations
+                + ", size=" + size + ", maxSize=" + maxSize + "]";
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.condition;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.etk.entity.base.utils.UtilGenerics;
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.core.GenericEntity;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+import org.etk.entity.engine.plugins.model.xml.Field;
+
+/**
+ * An EntityCondition tree turned into a reusable in-memory predicate.
+ * <br/>The model fields are resolved once, LIKE patterns are compiled once,
+ * IN collections are hashed once and the members of AND/OR lists are tested
+ * cheapest first. Nodes that cannot be compiled (functions, sub-selects, date
+ * filters...) are evaluated through {@link EntityCondition#mapMatches}.
+ * <br/>Instances are immutable and may be shared between threads.
+ *
+ */
+public abstract class CompiledCondition {
+
+    protected static final int COST_COMPARE = 1;
+    protected static final int COST_IN = 2;
+    protected static final int COST_LIKE = 4;
+    protected static final int COST_INTERPRETED = 16;
+
+    public static final CompiledCondition TRUE = new Constant(true);
+    public static final CompiledCondition FALSE = new Constant(false);
+
+    /** Compiles the condition against the model entity, the entity may be null in which case fields are looked up by name */
+    public static CompiledCondition compile(EntityCondition condition, Entity modelEntity) {
+        if (condition == null) {
+            return TRUE;
+        }
+        if (condition instanceof EntityConditionListBase<?>) {
+            EntityConditionListBase<?> list = (EntityConditionListBase<?>) condition;
+            return compile(list.conditionList, list.getOperator(), modelEntity);
+        }
+        if (condition instanceof EntityExpr) {
+            return compileExpr((EntityExpr) condition, modelEntity);
+        }
+        if (condition instanceof EntityConditionFunction.NOT) {
+            return new Not(compile(((EntityConditionFunction) condition).condition, modelEntity));
+        }
+        return new Interpreted(condition.freeze());
+    }
+
+    /** Compiles the conditions joined by the operator, an empty list matches like EntityJoinOperator.mapMatches does */
+    public static CompiledCondition compile(List<? extends EntityCondition> conditionList, EntityJoinOperator operator, Entity modelEntity) {
+        boolean shortCircuitValue = operator.shortCircuitValue;
+        if (conditionList == null || conditionList.isEmpty()) {
+            return shortCircuitValue ? FALSE : TRUE;
+        }
+        CompiledCondition[] members = new CompiledCondition[conditionList.size()];
+        int i = 0;
+        for (EntityCondition condition: conditionList) {
+            members[i++] = compile(condition, modelEntity);
+        }
+        if (members.length == 1) {
+            return members[0];
+        }
+        return new Join(members, shortCircuitValue);
+    }
+
+    public boolean matches(GenericEntity entity) {
+        return matches(entity.getDelegator(), entity);
+    }
+
+    public abstract boolean matches(Delegator delegator, Map<String, ? extends Object> map);
+
+    /** Rough relative evaluation cost used to order the members of a join */
+    protected abstract int cost();
+
+    private static CompiledCondition compileExpr(EntityExpr expr, Entity modelEntity) {
+        Object lhs = expr.getLhs();
+        Object rhs = expr.getRhs();
+        EntityOperator<?, ?, ?> operator = expr.getOperator();
+        if (operator instanceof EntityJoinOperator) {
+            CompiledCondition[] members = new CompiledCondition[] {
+                    compile((EntityCondition) lhs, modelEntity), compile((EntityCondition) rhs, modelEntity) };
+            return new Join(members, ((EntityJoinOperator) operator).shortCircuitValue);
+        }
+        if (!(lhs instanceof EntityFieldValue) || ((EntityFieldValue) lhs).modelViewEntity != null
+                || rhs instanceof EntityConditionValue || operator.getId() == EntityOperator.ID_NOT
+                || operator.getId() == EntityOperator.ID_BETWEEN) {
+            return new Interpreted(expr.freeze());
+        }
+        String fieldName = ((EntityFieldValue) lhs).getFieldName();
+        Field field = modelEntity == null ? null : modelEntity.getField(fieldName);
+        return new Compare(new FieldAccess(modelEntity, field, fieldName), UtilGenerics.<EntityComparisonOperator<Object, Object>>cast(operator), rhs);
+    }
+
+    /**
+     * Turns a SQL LIKE pattern into a regular expression: % matches any
+     * sequence, _ matches one character and everything else is literal.
+     */
+    public static Pattern makeLikePattern(String sqlLike) {
+        StringBuilder regex = new StringBuilder(sqlLike.length() + 16);
+        int literalStart = 0;
+        for (int i = 0; i < sqlLike.length(); i++) {
+            char c = sqlLike.charAt(i);
+            if (c == '%' || c == '_') {
+                if (i > literalStart) {
+                    regex.append(Pattern.quote(sqlLike.substring(literalStart, i)));
+                }
+                regex.append(c == '%' ? ".*" : ".");
+                literalStart = i + 1;
+            }
+        }
+        if (literalStart < sqlLike.length()) {
+            regex.append(Pattern.quote(sqlLike.substring(literalStart)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static final Comparator<CompiledCondition> costComparator = new Comparator<CompiledCondition>() {
+        public int compare(CompiledCondition c1, CompiledCondition c2) {
+            return c1.cost() - c2.cost();
+        }
+    };
+
+    /** Reads a field either straight from the value array of a GenericEntity of the compiled entity or from the map */
+    protected static final class FieldAccess {
+        private final Entity modelEntity;
+        private final Field field;
+        private final String fieldName;
+
+        protected FieldAccess(Entity modelEntity, Field field, String fieldName) {
+            this.modelEntity = modelEntity;
+            this.field = field;
+            this.fieldName = fieldName;
+        }
+
+        protected Object get(Map<String, ? extends Object> map) {
+            if (map == null || map instanceof GenericEntity.NULL) {
+                return null;
+            }
+            if (field != null && map instanceof GenericEntity && ((GenericEntity) map).getModelEntity() == modelEntity) {
+                return ((GenericEntity) map).dangerousGetNoCheckButFast(field);
+            }
+            return map.get(fieldName);
+        }
+    }
+
+    protected static final class Compare extends CompiledCondition {
+        private final FieldAccess lhs;
+        private final EntityComparisonOperator<Object, Object> operator;
+        private final int id;
+        private final Object rhs;
+        private final Set<Object> inSet;
+        private final Pattern likePattern;
+
+        protected Compare(FieldAccess lhs, EntityComparisonOperator<Object, Object> operator, Object rhs) {
+            this.lhs = lhs;
+            this.operator = operator;
+            this.id = operator.getId();
+            Set<Object> inSet = null;
+            Pattern likePattern = null;
+            if ((id == EntityOperator.ID_IN || id == EntityOperator.ID_NOT_IN) && rhs instanceof Collection<?>) {
+                inSet = new HashSet<Object>((Collection<?>) rhs);
+                rhs = inSet;
+            } else if ((id == EntityOperator.ID_LIKE || id == EntityOperator.ID_NOT_LIKE) && rhs instanceof String) {
+                likePattern = makeLikePattern((String) rhs);
+            }
+            this.rhs = rhs;
+            this.inSet = inSet;
+            this.likePattern = likePattern;
+        }
+
+        @Override
+        public boolean matches(Delegator delegator, Map<String, ? extends Object> map) {
+            if (rhs == EntityOperator.WILDCARD) return true;
+            Object value = lhs.get(map);
+            if (value == EntityOperator.WILDCARD) return true;
+            if (inSet != null) {
+                boolean in = value == null ? false : inSet.contains(value);
+                return id == EntityOperator.ID_IN ? in : !in;
+            }
+            if (likePattern != null) {
+                boolean like = value instanceof String ? likePattern.matcher((String) value).matches() : value != null;
+                return id == EntityOperator.ID_LIKE ? like : !like;
+            }
+            Comparable<Object> left = UtilGenerics.cast(value);
+            switch (id) {
+            case EntityOperator.ID_EQUALS:
+                return EntityComparisonOperator.compareEqual(left, rhs);
+            case EntityOperator.ID_NOT_EQUAL:
+                return EntityComparisonOperator.compareNotEqual(left, rhs);
+            case EntityOperator.ID_LESS_THAN:
+                return EntityComparisonOperator.compareLessThan(left, rhs);
+            case EntityOperator.ID_GREATER_THAN:
+                return EntityComparisonOperator.compareGreaterThan(left, rhs);
+            case EntityOperator.ID_LESS_THAN_EQUAL_TO:
+                return EntityComparisonOperator.compareLessThanEqualTo(left, rhs);
+            case EntityOperator.ID_GREATER_THAN_EQUAL_TO:
+                return EntityComparisonOperator.compareGreaterThanEqualTo(left, rhs);
+            default:
+                return operator.compare(value, rhs);
+            }
+        }
+
+        @Override
+        protected int cost() {
+            if (inSet != null) return COST_IN;
+            if (likePattern != null) return COST_LIKE;
+            return COST_COMPARE;
+        }
+    }
+
+    protected static final class Join extends CompiledCondition {
+        private final CompiledCondition[] members;
+        private final boolean shortCircuitValue;
+        private final int cost;
+
+        protected Join(CompiledCondition[] members, boolean shortCircuitValue) {
+            // conditions have no side effects, so the cheap ones can go first
+            Arrays.sort(members, costComparator);
+            this.members = members;
+            this.shortCircuitValue = shortCircuitValue;
+            int cost = 0;
+            for (CompiledCondition member: members) {
+                cost += member.cost();
+            }
+            this.cost = cost;
+        }
+
+        @Override
+        public boolean matches(GenericEntity entity) {
+            for (CompiledCondition member: members) {
+                if (member.matches(entity) == shortCircuitValue) return shortCircuitValue;
+            }
+            return !shortCircuitValue;
+        }
+
+        @Override
+        public boolean matches(Delegator delegator, Map<String, ? extends Object> map) {
+            for (CompiledCondition member: members) {
+                if (member.matches(delegator, map) == shortCircuitValue) return shortCircuitValue;
+            }
+            return !shortCircuitValue;
+        }
+
+        @Override
+        protected int cost() {
+            return cost;
+        }
+    }
+
+    protected static final class Not extends CompiledCondition {
+        private final CompiledCondition nested;
+
+        protected Not(CompiledCondition nested) {
+            this.nested = nested;
+        }
+
+        @Override
+        public boolean matches(GenericEntity entity) {
+            return !nested.matches(entity);
+        }
+
+        @Override
+        public boolean matches(Delegator delegator, Map<String, ? extends Object> map) {
+            return !nested.matches(delegator, map);
+        }
+
+        @Override
+        protected int cost() {
+            return nested.cost();
+        }
+    }
+
+    protected static final class Interpreted extends CompiledCondition {
+        private final EntityCondition condition;
+
+        protected Interpreted(EntityCondition condition) {
+            this.condition = condition;
+        }
+
+        @Override
+        public boolean matches(Delegator delegator, Map<String, ? extends Object> map) {
+            return condition.mapMatches(delegator, map);
+        }
+
+        @Override
+        protected int cost() {
+            return COST_INTERPRETED;
+        }
+    }
+
+    protected static final class Constant extends CompiledCondition {
+        private final boolean value;
+
+        protected Constant(boolean value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean matches(GenericEntity entity) {
+            return value;
+        }
+
+        @Override
+        public boolean matches(Delegator delegator, Map<String, ? extends Object> map) {
+            return value;
+        }
+
+        @Override
+        protected int cost() {
+            return 0;
+        }
+    }
+}
@@ -98,6 +98,7 @@ public abstract class EntityComparisonOperator<L, R> extends EntityOperator<L, R
       return;
     }
 
+    int lhsStart = sql.length();
     Field field;
     if (lhs instanceof EntityConditionValue) {
       EntityConditionValue ecv = (EntityConditionValue) lhs;
@@ -115,6 +116,16 @@ public abstract class EntityComparisonOperator<L, R> extends EntityOperator<L, R
       field = null;
     }
 
+    if ((this.idInt == EntityOperator.ID_IN || this.idInt == EntityOperator.ID_NOT_IN) && rhs instanceof Collection<?>
+        && entityConditionParams != null
+        && EntityInListStrategy.isApplicable(datasourceInfo, field, (Collection<?>) rhs)) {
+      String lhsSql = sql.substring(lhsStart);
+      sql.setLength(lhsStart);
+      EntityInListStrategy.appendInList(sql, lhsSql, field, (Collection<?>) rhs,
+          this.idInt == EntityOperator.ID_NOT_IN, entityConditionParams, datasourceInfo);
+      return;
+    }
+
     makeRHSWhereString(entity, entityConditionParams, sql, field, rhs, datasourceInfo);
   }
 
@@ -162,6 +162,11 @@ public abstract class EntityCondition extends EntityConditionBase implements IsE
 
     abstract public EntityCondition freeze();
 
+    /** Compiles this condition into a reusable predicate for the values of the given entity; see CompiledCondition */
+    public CompiledCondition compile(Entity modelEntity) {
+        return CompiledCondition.compile(this, modelEntity);
+    }
+
     abstract public void encryptConditionFields(Entity modelEntity, Delegator delegator);
 
     public void visit(EntityConditionVisitor visitor) {
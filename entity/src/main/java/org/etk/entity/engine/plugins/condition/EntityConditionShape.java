@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.condition;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.etk.entity.engine.core.GenericEntity;
+import org.etk.entity.engine.plugins.config.DatasourceInfo;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+
+/**
+ * Describes the structure of a condition tree apart from its bound values.
+ * <br/>Two conditions with equal shapes - same operators, same fields, same
+ * IN-list arities as written by {@link EntityInListStrategy} - produce the
+ * same WHERE text for a given entity and datasource, and their parameters come in the same order as the values
+ * collected here. This lets the SQL text be built once per shape.
+ * <br/>Only the conditions whose SQL is fully determined by the shape are
+ * supported: view aliases, functions, sub-selects, date filters, values that
+ * would be inlined into the SQL and custom operators are not.
+ *
+ */
+public final class EntityConditionShape {
+
+    private static final Object NULL_VALUE = "<null>";
+    private static final Object SINGLE_VALUE = "<value>";
+    private static final Object ARRAY_VALUE = "<array>";
+    private static final Object END = "<end>";
+
+    private static final Map<EntityOperator<?, ?, ?>, Boolean> comparisonOperators = new IdentityHashMap<EntityOperator<?, ?, ?>, Boolean>();
+    static {
+        EntityOperator<?, ?, ?>[] operators = new EntityOperator<?, ?, ?>[] { EntityOperator.EQUALS, EntityOperator.NOT_EQUAL,
+                EntityOperator.LESS_THAN, EntityOperator.GREATER_THAN, EntityOperator.LESS_THAN_EQUAL_TO,
+                EntityOperator.GREATER_THAN_EQUAL_TO, EntityOperator.IN, EntityOperator.NOT_IN, EntityOperator.BETWEEN,
+                EntityOperator.LIKE, EntityOperator.NOT_LIKE };
+        for (EntityOperator<?, ?, ?> operator: operators) {
+            comparisonOperators.put(operator, Boolean.TRUE);
+        }
+    }
+
+    private EntityConditionShape() {}
+
+    /**
+     * Appends the shape of the condition to <code>shape</code> and its bound
+     * values, in parameter order, to <code>values</code>.
+     *
+     * @return false when the SQL of the condition does not only depend on its shape
+     */
+    public static boolean collect(EntityCondition condition, Entity modelEntity, DatasourceInfo datasourceInfo, List<Object> shape, List<Object> values) {
+        if (modelEntity == null || condition == null) {
+            return false;
+        }
+        if (condition instanceof EntityConditionListBase<?>) {
+            EntityConditionListBase<?> list = (EntityConditionListBase<?>) condition;
+            return collectJoin(list.getOperator(), list.conditionList, modelEntity, datasourceInfo, shape, values);
+        }
+        if (condition instanceof EntityExpr) {
+            EntityExpr expr = (EntityExpr) condition;
+            EntityOperator<?, ?, ?> operator = expr.getOperator();
+            if (operator instanceof EntityJoinOperator) {
+                EntityCondition lhs = (EntityCondition) expr.getLhs();
+                EntityCondition rhs = (EntityCondition) expr.getRhs();
+                return collectJoin((EntityJoinOperator) operator, Arrays.asList(lhs, rhs), modelEntity, datasourceInfo, shape, values);
+            }
+            return collectExpr(expr, operator, modelEntity, datasourceInfo, shape, values);
+        }
+        if (condition instanceof EntityConditionFunction.NOT) {
+            shape.add(EntityConditionFunction.NOT.class);
+            return collect(((EntityConditionFunction) condition).condition, modelEntity, datasourceInfo, shape, values);
+        }
+        if (condition instanceof EntityWhereString) {
+            shape.add(EntityWhereString.class);
+            shape.add(((EntityWhereString) condition).sqlString);
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean collectJoin(EntityJoinOperator operator, List<? extends EntityCondition> conditionList, Entity modelEntity, DatasourceInfo datasourceInfo, List<Object> shape, List<Object> values) {
+        if (conditionList == null) {
+            return false;
+        }
+        shape.add(operator);
+        for (EntityCondition condition: conditionList) {
+            // empty members are left out of the SQL, see EntityJoinOperator.addSqlValue
+            if (condition.isEmpty()) {
+                continue;
+            }
+            if (!collect(condition, modelEntity, datasourceInfo, shape, values)) {
+                return false;
+            }
+        }
+        shape.add(END);
+        return true;
+    }
+
+    private static boolean collectExpr(EntityExpr expr, EntityOperator<?, ?, ?> operator, Entity modelEntity, DatasourceInfo datasourceInfo, List<Object> shape, List<Object> values) {
+        if (!comparisonOperators.containsKey(operator)) {
+            return false;
+        }
+        Object lhs = expr.getLhs();
+        if (!(lhs instanceof EntityFieldValue)) {
+            return false;
+        }
+        EntityFieldValue fieldValue = (EntityFieldValue) lhs;
+        // without a model field the values are written into the SQL text
+        if (fieldValue.modelViewEntity != null || modelEntity.getField(fieldValue.getFieldName()) == null) {
+            return false;
+        }
+        shape.add(operator);
+        shape.add(fieldValue.getFieldName());
+
+        Object rhs = expr.getRhs();
+        if (rhs instanceof EntityConditionValue) {
+            return false;
+        }
+        int id = operator.getId();
+        if ((id == EntityOperator.ID_IN || id == EntityOperator.ID_NOT_IN) && rhs instanceof Collection<?>
+                && EntityInListStrategy.isApplicable(datasourceInfo, modelEntity.getField(fieldValue.getFieldName()), (Collection<?>) rhs)) {
+            List<Object> bound = EntityInListStrategy.getBoundValues(datasourceInfo, (Collection<?>) rhs);
+            shape.add(EntityInListStrategy.isArray(datasourceInfo) ? ARRAY_VALUE : Integer.valueOf(bound.size()));
+            values.addAll(bound);
+            return true;
+        }
+        if (rhs == null || rhs == GenericEntity.NULL_FIELD) {
+            shape.add(NULL_VALUE);
+        } else if (rhs instanceof Collection<?>) {
+            Collection<?> collection = (Collection<?>) rhs;
+            for (Object value: collection) {
+                if (value instanceof Collection<?> || value instanceof EntityConditionValue) {
+                    return false;
+                }
+                values.add(value);
+            }
+            shape.add(Integer.valueOf(collection.size()));
+        } else if (operator == EntityOperator.BETWEEN) {
+            // nothing is bound, see EntityOperator.appendRHSBetweenList
+            return false;
+        } else {
+            shape.add(SINGLE_VALUE);
+            values.add(rhs);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.condition;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.etk.entity.engine.plugins.config.DatasourceInfo;
+import org.etk.entity.engine.plugins.model.xml.Field;
+
+/**
+ * Writes the IN and NOT IN predicates of bound collections the way the
+ * datasource is configured to, see {@link DatasourceInfo#inListStrategy} and
+ * {@link DatasourceInfo#inListMaxSize}:
+ * <ul>
+ *  <li>expand: one bind parameter per element, the default
+ *  <li>pad: like expand but the arity is padded to the next power of two by
+ *      repeating the last element, so lists of different sizes share a few
+ *      statements in the statement caches of the engine and of the database
+ *  <li>array: a single <code>= ANY(?)</code> or <code>&lt;&gt; ALL(?)</code>
+ *      predicate bound to a SQL array, for databases supporting it
+ * </ul>
+ * With expand and pad, lists longer than the max size are split into chunks
+ * OR-ed together (AND-ed for NOT IN) so no single list exceeds the limit of
+ * the database.
+ *
+ */
+public final class EntityInListStrategy {
+
+    public static final String EXPAND = "expand";
+    public static final String PAD = "pad";
+    public static final String ARRAY = "array";
+
+    private EntityInListStrategy() {}
+
+    /** Tells if the values are written by this class rather than the regular operator code */
+    public static boolean isApplicable(DatasourceInfo datasourceInfo, Field field, Collection<?> values) {
+        if (datasourceInfo == null || field == null || values.isEmpty()) {
+            return false;
+        }
+        String strategy = datasourceInfo.inListStrategy;
+        if ((strategy == null || EXPAND.equals(strategy)) && (datasourceInfo.inListMaxSize <= 0 || values.size() <= datasourceInfo.inListMaxSize)) {
+            return false;
+        }
+        for (Object value: values) {
+            if (value instanceof Collection<?> || value instanceof EntityConditionValue) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean isArray(DatasourceInfo datasourceInfo) {
+        return ARRAY.equals(datasourceInfo.inListStrategy);
+    }
+
+    /** The values bound for the collection, in order; for the array strategy a single {@link SqlArray} */
+    public static List<Object> getBoundValues(DatasourceInfo datasourceInfo, Collection<?> values) {
+        List<Object> bound = new ArrayList<Object>(values.size());
+        if (isArray(datasourceInfo)) {
+            bound.add(new SqlArray(values));
+            return bound;
+        }
+        bound.addAll(values);
+        if (PAD.equals(datasourceInfo.inListStrategy)) {
+            int maxSize = datasourceInfo.inListMaxSize;
+            int fullChunks = maxSize > 0 ? bound.size() / maxSize : 0;
+            int rest = bound.size() - fullChunks * maxSize;
+            if (rest > 0) {
+                int padded = Integer.highestOneBit(rest);
+                if (padded < rest) padded <<= 1;
+                if (maxSize > 0 && padded > maxSize) padded = maxSize;
+                Object last = bound.get(bound.size() - 1);
+                for (int i = rest; i < padded; i++) {
+                    bound.add(last);
+                }
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * Writes the predicate for the column SQL <code>lhsSql</code> and adds the
+     * bound values to <code>params</code>.
+     */
+    public static void appendInList(StringBuilder sql, String lhsSql, Field field, Collection<?> values, boolean notIn,
+            List<EntityConditionParam> params, DatasourceInfo datasourceInfo) {
+        List<Object> bound = getBoundValues(datasourceInfo, values);
+        if (isArray(datasourceInfo)) {
+            sql.append(lhsSql).append(notIn ? " <> ALL(?)" : " = ANY(?)");
+            if (params != null) params.add(new EntityConditionParam(field, bound.get(0)));
+            return;
+        }
+        int chunkSize = datasourceInfo.inListMaxSize > 0 ? datasourceInfo.inListMaxSize : bound.size();
+        boolean split = bound.size() > chunkSize;
+        if (split) sql.append('(');
+        for (int start = 0; start < bound.size(); start += chunkSize) {
+            if (start > 0) sql.append(notIn ? " AND " : " OR ");
+            sql.append(lhsSql).append(notIn ? " NOT IN (" : " IN (");
+            int end = Math.min(start + chunkSize, bound.size());
+            for (int i = start; i < end; i++) {
+                if (i > start) sql.append(", ");
+                sql.append('?');
+                if (params != null) params.add(new EntityConditionParam(field, bound.get(i)));
+            }
+            sql.append(')');
+        }
+        if (split) sql.append(')');
+    }
+
+    /**
+     * The elements of an IN list bound as one SQL array by the array strategy;
+     * SqlJdbcUtil.setValue converts them to the java type of the field.
+     */
+    public static final class SqlArray {
+
+        private final Collection<?> values;
+
+        private SqlArray(Collection<?> values) {
+            this.values = values;
+        }
+
+        public Collection<?> getValues() {
+            return values;
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(values);
+        }
+    }
+}
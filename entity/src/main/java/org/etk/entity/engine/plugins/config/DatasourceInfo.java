@@ -19,8 +19,7 @@ package org.etk.entity.engine.plugins.config;
 import java.util.List;
 
 import org.etk.common.logging.Logger;
-
-import com.ibm.icu.util.RangeValueIterator.Element;
+import org.w3c.dom.Element;
 
 /**
  * Misc. utility method for dealing with the entityengine.xml file
@@ -75,31 +74,66 @@ public class DatasourceInfo {
     public String characterSet = null;
     public String collate = null;
     public int maxWorkerPoolSize = 1;
+    public int batchSize = 500;
+    public int statementCacheSize = 50;
+    /** How IN lists are written: expand, pad or array; see EntityInListStrategy */
+    public String inListStrategy = "expand";
+    /** Largest IN list written as one predicate, longer lists are split into OR-ed predicates; 0 means no limit */
+    public int inListMaxSize = 0;
 
     public DatasourceInfo(Element element) {
-      logger.warn("datasource def not found with name " + this.name + ", using default for schema-name (none)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for use-schemas (true)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for check-on-start (true)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for add-missing-on-start (false)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for check-pks-on-start (true)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for use-foreign-keys (true)");
-      logger.warn("datasource def not found with name " + this.name + ", using default use-foreign-key-indices (true)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for check-fks-on-start (false)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for check-fk-indices-on-start (false)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for use-pk-constraint-names (true)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for constraint-name-clip-length (30)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for fk-style (name_constraint)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for use-fk-initially-deferred (true)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for use-indices (true)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for use-indices-unique (true)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for check-indices-on-start (false)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for join-style (ansi)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for always-use-constraint-keyword (false)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for drop-fk-use-foreign-key-keyword (false)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for use-binary-type-for-blob (false)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for table-type (none)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for character-set (none)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for collate (none)");
-      logger.warn("datasource def not found with name " + this.name + ", using default for max-worker-pool-size (1)");
+        this.datasourceElement = element;
+        if (element == null) {
+            logger.warn("datasource def not found with name " + this.name + ", using default for schema-name (none)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for use-schemas (true)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for check-on-start (true)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for add-missing-on-start (false)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for check-pks-on-start (true)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for use-foreign-keys (true)");
+            logger.warn("datasource def not found with name " + this.name + ", using default use-foreign-key-indices (true)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for check-fks-on-start (false)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for check-fk-indices-on-start (false)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for use-pk-constraint-names (true)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for constraint-name-clip-length (30)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for fk-style (name_constraint)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for use-fk-initially-deferred (true)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for use-indices (true)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for use-indices-unique (true)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for check-indices-on-start (false)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for join-style (ansi)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for always-use-constraint-keyword (false)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for drop-fk-use-foreign-key-keyword (false)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for use-binary-type-for-blob (false)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for table-type (none)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for character-set (none)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for collate (none)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for max-worker-pool-size (1)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for batch-size (500)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for statement-cache-size (50)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for in-list-strategy (expand)");
+            logger.warn("datasource def not found with name " + this.name + ", using default for in-list-max-size (0)");
+        } else {
+            this.name = element.getAttribute("name");
+            this.batchSize = getIntAttribute(element, "batch-size", batchSize);
+            this.statementCacheSize = getIntAttribute(element, "statement-cache-size", statementCacheSize);
+            if (element.getAttribute("in-list-strategy").length() > 0) {
+                this.inListStrategy = element.getAttribute("in-list-strategy");
+            }
+            this.inListMaxSize = getIntAttribute(element, "in-list-max-size", inListMaxSize);
+        }
+    }
+
+    /** Reads an int attribute of the datasource element, keeping the default when it is empty or not a number */
+    private int getIntAttribute(Element element, String attributeName, int defaultValue) {
+        String value = element.getAttribute(attributeName);
+        if (value.length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.error("Could not parse " + attributeName + " value [" + value + "] of datasource " + this.name + ", using the default (" + defaultValue + ")", e);
+            return defaultValue;
+        }
     }
 }
\ No newline at end of file
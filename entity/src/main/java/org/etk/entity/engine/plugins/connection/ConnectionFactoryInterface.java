@@ -21,6 +21,7 @@ import java.sql.SQLException;
 
 import org.etk.entity.engine.core.GenericEntityException;
 import org.etk.entity.engine.plugins.datasource.GenericHelperInfo;
+import org.w3c.dom.Element;
 
 
 /**
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.connection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.etk.common.logging.Logger;
+import org.etk.entity.base.concurrent.ExecutionPool;
+import org.etk.entity.engine.plugins.jdbc.ConnectionFactory;
+import org.etk.entity.engine.plugins.jdbc.SQLProcessor;
+import org.etk.entity.engine.plugins.jdbc.StatementCache;
+
+/**
+ * Pool of physical JDBC connections of one datasource.
+ * <p>
+ * Borrowing takes a permit from a semaphore, which bounds the connections in
+ * use, and polls a concurrent queue of idle connections; neither takes a lock
+ * unless the pool is exhausted and the caller has to wait. Idle connections
+ * above the minimum are closed after the idle timeout, connections kept out
+ * longer than the leak threshold are reported together with the stack of the
+ * code that borrowed them. Both happen on a background maintenance run.
+ */
+public class ConnectionPool {
+
+    private static final Logger logger = Logger.getLogger(ConnectionPool.class);
+
+    protected final String name;
+    protected final ConnectionPoolConfig config;
+
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<PhysicalConnection> idle = new ConcurrentLinkedQueue<PhysicalConnection>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger openCount = new AtomicInteger();
+    private final Set<PhysicalConnection> borrowed = Collections.newSetFromMap(new ConcurrentHashMap<PhysicalConnection, Boolean>());
+    private final ScheduledFuture<?> maintenance;
+    private volatile boolean closed = false;
+
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong createCount = new AtomicLong();
+    private final AtomicLong destroyCount = new AtomicLong();
+    private final AtomicLong validationFailureCount = new AtomicLong();
+    private final AtomicLong leakCount = new AtomicLong();
+
+    public ConnectionPool(String name, ConnectionPoolConfig config) {
+        this.name = name;
+        this.config = config;
+        this.permits = new Semaphore(config.maxSize);
+        this.maintenance = ExecutionPool.GLOBAL_EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    maintain();
+                } catch (Throwable t) {
+                    logger.error("Error during maintenance of connection pool " + ConnectionPool.this.name, t);
+                }
+            }
+        }, config.maintenanceIntervalMillis, config.maintenanceIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Borrows a connection; closing the returned connection hands it back to
+     * the pool.
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool " + name + " is closed");
+        }
+        acquirePermit();
+        try {
+            PhysicalConnection pc;
+            while ((pc = idle.poll()) != null) {
+                idleCount.decrementAndGet();
+                if (validate(pc)) {
+                    break;
+                }
+                destroy(pc);
+            }
+            if (pc == null) {
+                pc = create();
+            }
+            return checkOut(pc);
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void acquirePermit() throws SQLException {
+        if (permits.tryAcquire()) {
+            return;
+        }
+        waitCount.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(config.maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                timeoutCount.incrementAndGet();
+                throw new SQLException("Timed out after " + config.maxWaitMillis + "ms waiting for a connection of pool " + name + ": " + this);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection of pool " + name);
+        } finally {
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private Connection checkOut(PhysicalConnection pc) {
+        pc.borrowedAt = System.currentTimeMillis();
+        pc.leakReported = false;
+        pc.borrowStack = config.leakThresholdMillis > 0 ? new Exception("Connection borrowed from pool " + name) : null;
+        borrowed.add(pc);
+        borrowCount.incrementAndGet();
+        return PooledConnection.newPooledConnection(this, pc);
+    }
+
+    /** Called by {@link PooledConnection} when the borrowed connection is closed */
+    void returnConnection(PhysicalConnection pc) {
+        borrowed.remove(pc);
+        try {
+            boolean reusable = !closed;
+            if (reusable) {
+                try {
+                    // never hand uncommitted work to the next borrower
+                    if (!pc.connection.getAutoCommit()) {
+                        pc.connection.rollback();
+                    }
+                    pc.connection.clearWarnings();
+                } catch (SQLException e) {
+                    logger.warn("Could not reset connection returned to pool " + name + ", closing it: " + e.getMessage());
+                    reusable = false;
+                }
+            }
+            if (reusable && idleCount.get() < config.maxIdle) {
+                pc.lastUsed = System.currentTimeMillis();
+                pc.borrowStack = null;
+                idleCount.incrementAndGet();
+                idle.offer(pc);
+            } else {
+                destroy(pc);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private boolean validate(PhysicalConnection pc) {
+        if (!config.testOnBorrow || System.currentTimeMillis() - pc.lastValidated < config.validationIntervalMillis) {
+            return true;
+        }
+        if (SQLProcessor.testConnection(pc.connection, config.testStatement, config.validationTimeoutSeconds)) {
+            pc.lastValidated = System.currentTimeMillis();
+            return true;
+        }
+        validationFailureCount.incrementAndGet();
+        logger.warn("Discarding broken connection of pool " + name);
+        return false;
+    }
+
+    private PhysicalConnection create() throws SQLException {
+        Connection con = ConnectionFactory.getConnection(config.driverName, config.uri, config.properties, null, null);
+        if (con == null) {
+            throw new SQLException("Driver returned no connection for pool " + name);
+        }
+        openCount.incrementAndGet();
+        createCount.incrementAndGet();
+        if (logger.isDebugEnabled()) logger.debug("Opened connection for pool " + name + ", " + openCount.get() + " open");
+        return new PhysicalConnection(con, new StatementCache(config.statementCacheSize));
+    }
+
+    private void destroy(PhysicalConnection pc) {
+        openCount.decrementAndGet();
+        destroyCount.incrementAndGet();
+        pc.statementCache.close();
+        try {
+            pc.connection.close();
+        } catch (SQLException e) {
+            logger.warn("Error closing connection of pool " + name + ": " + e.getMessage());
+        }
+    }
+
+    /** Closes idle connections over the idle timeout, refills to the minimum and reports leaks */
+    protected void maintain() {
+        long now = System.currentTimeMillis();
+        Iterator<PhysicalConnection> it = idle.iterator();
+        while (it.hasNext() && idleCount.get() > config.minIdle) {
+            PhysicalConnection pc = it.next();
+            if (now - pc.lastUsed > config.idleTimeoutMillis && idle.remove(pc)) {
+                idleCount.decrementAndGet();
+                destroy(pc);
+            }
+        }
+
+        while (!closed && idleCount.get() < config.minIdle && openCount.get() < config.maxSize) {
+            try {
+                PhysicalConnection pc = create();
+                pc.lastUsed = now;
+                pc.lastValidated = now;
+                idleCount.incrementAndGet();
+                idle.offer(pc);
+            } catch (SQLException e) {
+                logger.warn("Could not open connection to keep pool " + name + " at its minimum size: " + e.getMessage());
+                break;
+            }
+        }
+
+        if (config.leakThresholdMillis > 0) {
+            for (PhysicalConnection pc : borrowed) {
+                if (!pc.leakReported && now - pc.borrowedAt > config.leakThresholdMillis) {
+                    pc.leakReported = true;
+                    leakCount.incrementAndGet();
+                    logger.warn("Connection of pool " + name + " borrowed " + (now - pc.borrowedAt) + "ms ago was not returned yet, possible leak", pc.borrowStack);
+                }
+            }
+        }
+    }
+
+    /** Closes the idle connections; borrowed connections are closed when they come back */
+    public void close() {
+        closed = true;
+        maintenance.cancel(false);
+        PhysicalConnection pc;
+        while ((pc = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            destroy(pc);
+        }
+    }
+
+    // ========== metrics ==========
+
+    public int getActiveCount() {
+        return borrowed.size();
+    }
+
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    public int getOpenCount() {
+        return openCount.get();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    /** Number of borrows that found the pool exhausted and had to wait */
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    public long getCreateCount() {
+        return createCount.get();
+    }
+
+    public long getDestroyCount() {
+        return destroyCount.get();
+    }
+
+    public long getValidationFailureCount() {
+        return validationFailureCount.get();
+    }
+
+    public long getLeakCount() {
+        return leakCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool[" + name + ": active=" + getActiveCount() + ", idle=" + getIdleCount() + ", open=" + getOpenCount()
+                + ", max=" + config.maxSize + ", borrows=" + getBorrowCount() + ", waits=" + getWaitCount() + ", timeouts=" + getTimeoutCount()
+                + ", leaks=" + getLeakCount() + "]";
+    }
+
+    /** A physical connection and its statement cache; the borrower sees a {@link PooledConnection} */
+    static final class PhysicalConnection {
+        final Connection connection;
+        final StatementCache statementCache;
+        volatile long lastUsed;
+        volatile long lastValidated;
+        volatile long borrowedAt;
+        volatile boolean leakReported;
+        volatile Exception borrowStack;
+
+        PhysicalConnection(Connection connection, StatementCache statementCache) {
+            this.connection = connection;
+            this.statementCache = statementCache;
+            this.lastUsed = System.currentTimeMillis();
+            this.lastValidated = this.lastUsed;
+        }
+    }
+}
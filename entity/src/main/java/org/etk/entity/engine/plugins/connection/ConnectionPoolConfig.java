@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.connection;
+
+import java.util.Properties;
+
+import org.etk.common.logging.Logger;
+import org.etk.entity.base.utils.UtilValidate;
+import org.etk.entity.engine.core.GenericEntityException;
+import org.w3c.dom.Element;
+
+/**
+ * Settings of a {@link ConnectionPool}, read from the inline-jdbc element of
+ * the datasource:
+ * <pre>
+ * &lt;inline-jdbc jdbc-driver="..." jdbc-uri="..." jdbc-username="..." jdbc-password="..."
+ *     pool-minsize="2" pool-maxsize="250" idle-maxsize="10"
+ *     pool-deadlock-maxwait="30000" pool-jdbc-test-stmt="SELECT 1" test-on-borrow="true"
+ *     pool-validation-interval="5000" pool-sleeptime="300000"
+ *     time-between-eviction-runs-millis="30000" pool-leak-threshold="0"/&gt;
+ * </pre>
+ */
+public class ConnectionPoolConfig {
+
+    private static final Logger logger = Logger.getLogger(ConnectionPoolConfig.class);
+
+    public final String driverName;
+    public final String uri;
+    public final Properties properties = new Properties();
+    /** Idle connections kept open even when unused */
+    public final int minIdle;
+    /** Idle connections kept open at most, the others are closed when returned */
+    public final int maxIdle;
+    /** Connections borrowed at the same time at most */
+    public final int maxSize;
+    /** Time to wait for a connection when all are borrowed */
+    public final long maxWaitMillis;
+    public final String testStatement;
+    public final boolean testOnBorrow;
+    /** A connection used or tested within this time is not tested again on borrow */
+    public final long validationIntervalMillis;
+    public final int validationTimeoutSeconds;
+    /** Idle time after which connections above the minimum are closed */
+    public final long idleTimeoutMillis;
+    public final long maintenanceIntervalMillis;
+    /** Time after which a borrowed connection is reported as leaked, 0 to disable */
+    public final long leakThresholdMillis;
+    public final int statementCacheSize;
+
+    public ConnectionPoolConfig(Element inlineJdbcElement, int statementCacheSize) throws GenericEntityException {
+        // without a driver class the DriverManager has to know the URL already
+        this.driverName = UtilValidate.isEmpty(inlineJdbcElement.getAttribute("jdbc-driver")) ? null : inlineJdbcElement.getAttribute("jdbc-driver");
+        this.uri = inlineJdbcElement.getAttribute("jdbc-uri");
+        if (UtilValidate.isEmpty(uri)) {
+            throw new GenericEntityException("No jdbc-uri set on the inline-jdbc element");
+        }
+        String userName = inlineJdbcElement.getAttribute("jdbc-username");
+        if (UtilValidate.isNotEmpty(userName)) {
+            properties.setProperty("user", userName);
+            properties.setProperty("password", inlineJdbcElement.getAttribute("jdbc-password"));
+        }
+
+        this.maxSize = getInt(inlineJdbcElement, "pool-maxsize", 250);
+        this.minIdle = Math.min(getInt(inlineJdbcElement, "pool-minsize", 2), maxSize);
+        this.maxIdle = Math.max(getInt(inlineJdbcElement, "idle-maxsize", 10), minIdle);
+        this.maxWaitMillis = getLong(inlineJdbcElement, "pool-deadlock-maxwait", 30000);
+        this.testStatement = UtilValidate.isEmpty(inlineJdbcElement.getAttribute("pool-jdbc-test-stmt")) ? null : inlineJdbcElement.getAttribute("pool-jdbc-test-stmt");
+        this.testOnBorrow = !"false".equals(inlineJdbcElement.getAttribute("test-on-borrow"));
+        this.validationIntervalMillis = getLong(inlineJdbcElement, "pool-validation-interval", 5000);
+        this.validationTimeoutSeconds = getInt(inlineJdbcElement, "pool-validation-timeout", 5);
+        this.idleTimeoutMillis = getLong(inlineJdbcElement, "pool-sleeptime", 300000);
+        this.maintenanceIntervalMillis = Math.max(getLong(inlineJdbcElement, "time-between-eviction-runs-millis", 30000), 1000);
+        this.leakThresholdMillis = getLong(inlineJdbcElement, "pool-leak-threshold", 0);
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    private static int getInt(Element element, String attribute, int defaultValue) {
+        return (int) getLong(element, attribute, defaultValue);
+    }
+
+    private static long getLong(Element element, String attribute, long defaultValue) {
+        String value = element.getAttribute(attribute);
+        if (UtilValidate.isEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid value [" + value + "] for inline-jdbc attribute " + attribute + ", using default (" + defaultValue + ")");
+            return defaultValue;
+        }
+    }
+}
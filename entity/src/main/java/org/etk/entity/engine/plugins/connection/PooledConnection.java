@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.connection;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.etk.entity.engine.plugins.connection.ConnectionPool.PhysicalConnection;
+import org.etk.entity.engine.plugins.jdbc.CachingConnection;
+
+/**
+ * The connection handed to a borrower of a {@link ConnectionPool}. Closing it
+ * returns the physical connection to the pool; any later use of this handle
+ * fails, even when the physical connection has been borrowed again since.
+ * The statement cache of the physical connection is shared by its handles.
+ */
+class PooledConnection extends CachingConnection {
+
+    static Connection newPooledConnection(ConnectionPool pool, PhysicalConnection pc) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+                new PooledConnection(pool, pc));
+    }
+
+    private final ConnectionPool pool;
+    private final PhysicalConnection physicalConnection;
+    private volatile boolean closed = false;
+
+    private PooledConnection(ConnectionPool pool, PhysicalConnection pc) {
+        super(pc.connection, pc.statementCache);
+        this.pool = pool;
+        this.physicalConnection = pc;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if ("close".equals(name)) {
+            if (!closed) {
+                closed = true;
+                pool.returnConnection(physicalConnection);
+            }
+            return null;
+        } else if ("isClosed".equals(name)) {
+            return Boolean.valueOf(closed || con.isClosed());
+        } else if (closed && !"toString".equals(name) && !"equals".equals(name) && !"hashCode".equals(name)) {
+            throw new SQLException("Connection of pool " + pool.getName() + " was already closed");
+        }
+        return super.invoke(proxy, method, args);
+    }
+}
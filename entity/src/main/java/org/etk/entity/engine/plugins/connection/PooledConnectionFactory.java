@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.connection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.etk.common.logging.Logger;
+import org.etk.entity.engine.core.GenericEntityException;
+import org.etk.entity.engine.plugins.config.DatasourceInfo;
+import org.etk.entity.engine.plugins.config.EntityConfigUtil;
+import org.etk.entity.engine.plugins.datasource.GenericHelperInfo;
+import org.w3c.dom.Element;
+
+/**
+ * ConnectionFactoryInterface backed by a {@link ConnectionPool} per helper,
+ * configured from the inline-jdbc element of the datasource. Select it as
+ * the connection factory class in the entity engine configuration.
+ */
+public class PooledConnectionFactory implements ConnectionFactoryInterface {
+
+    private static final Logger logger = Logger.getLogger(PooledConnectionFactory.class);
+
+    protected final ConcurrentHashMap<String, ConnectionPool> pools = new ConcurrentHashMap<String, ConnectionPool>();
+
+    public Connection getConnection(GenericHelperInfo helperInfo, Element inlineJdbcElement) throws SQLException, GenericEntityException {
+        String poolName = helperInfo.getHelperFullName();
+        ConnectionPool pool = pools.get(poolName);
+        if (pool == null) {
+            pool = createPool(helperInfo, inlineJdbcElement);
+            ConnectionPool existing = pools.putIfAbsent(poolName, pool);
+            if (existing != null) {
+                pool.close();
+                pool = existing;
+            } else {
+                logger.info("Created connection pool " + poolName);
+            }
+        }
+        return pool.getConnection();
+    }
+
+    protected ConnectionPool createPool(GenericHelperInfo helperInfo, Element inlineJdbcElement) throws GenericEntityException {
+        if (inlineJdbcElement == null) {
+            throw new GenericEntityException("No inline-jdbc element for datasource " + helperInfo.getHelperFullName());
+        }
+        DatasourceInfo datasourceInfo = EntityConfigUtil.getDatasourceInfo(helperInfo.getHelperBaseName());
+        int statementCacheSize = datasourceInfo != null ? datasourceInfo.statementCacheSize : 0;
+        return new ConnectionPool(helperInfo.getHelperFullName(), new ConnectionPoolConfig(inlineJdbcElement, statementCacheSize));
+    }
+
+    public ConnectionPool getPool(String helperFullName) {
+        return pools.get(helperFullName);
+    }
+
+    public Collection<ConnectionPool> getPools() {
+        return Collections.unmodifiableCollection(pools.values());
+    }
+
+    public void closeAll() {
+        for (ConnectionPool pool : pools.values()) {
+            pool.close();
+        }
+        pools.clear();
+    }
+}
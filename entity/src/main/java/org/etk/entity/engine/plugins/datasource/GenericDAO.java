@@ -0,0 +1,1013 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.datasource;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+
+import org.etk.common.logging.Logger;
+import org.etk.entity.base.concurrent.ExecutionPool;
+import org.etk.entity.base.utils.GeneralException;
+import org.etk.entity.base.utils.ObjectType;
+import org.etk.entity.base.utils.UtilValidate;
+import org.etk.entity.engine.core.EntityLockedException;
+import org.etk.entity.engine.core.GenericDataSourceException;
+import org.etk.entity.engine.core.GenericEntity;
+import org.etk.entity.engine.core.GenericEntityException;
+import org.etk.entity.engine.core.GenericModelException;
+import org.etk.entity.engine.core.GenericPK;
+import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.condition.EntityCondition;
+import org.etk.entity.engine.plugins.condition.EntityConditionParam;
+import org.etk.entity.engine.plugins.config.DatasourceInfo;
+import org.etk.entity.engine.plugins.config.EntityConfigUtil;
+import org.etk.entity.engine.plugins.jdbc.RowReader;
+import org.etk.entity.engine.plugins.jdbc.SQLProcessor;
+import org.etk.entity.engine.plugins.jdbc.SqlJdbcUtil;
+import org.etk.entity.engine.plugins.model.metadata.EntityKeyMap;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+import org.etk.entity.engine.plugins.model.xml.Field;
+import org.etk.entity.engine.plugins.model.xml.Relation;
+import org.etk.entity.engine.plugins.transaction.TransactionUtil;
+import org.etk.entity.engine.plugins.util.EntityFindOptions;
+import org.etk.entity.engine.plugins.util.EntityListIterator;
+
+/**
+ * Generic Entity Data Access Object - Handles persistence for any defined entity.
+ * <p>
+ * One instance exists per helper (datasource + tenant). The SQL text of the
+ * statements that only depend on the entity definition (insert, update,
+ * delete and select by primary key) is built once and kept per entity and
+ * operation, so the hot single-row paths do no string building at all.
+ */
+public class GenericDAO {
+
+    private static final Logger logger = Logger.getLogger(GenericDAO.class);
+
+    /** Maximum number of primary keys sent in a single IN-list query by {@link #selectByPrimaryKeys(List)} */
+    public static final int IN_LIST_CHUNK_SIZE = 500;
+
+    private static final ThreadGroup GENERIC_DAO_THREAD_GROUP = new ThreadGroup("GenericDAO");
+
+    private static final ConcurrentHashMap<String, GenericDAO> genericDAOs = new ConcurrentHashMap<String, GenericDAO>();
+
+    protected static final String OP_INSERT = "insert";
+    protected static final String OP_UPDATE = "update";
+    protected static final String OP_DELETE = "delete";
+    protected static final String OP_SELECT = "select";
+    protected static final String OP_SELECT_IN = "selectIn";
+
+    protected final GenericHelperInfo helperInfo;
+    protected final ModelFieldTypeReader modelFieldTypeReader;
+    protected final DatasourceInfo datasourceInfo;
+    protected final ExecutorService executor;
+
+    /** SQL text keyed by entity name and operation, see {@link #sqlKey(Entity, String)} */
+    private final ConcurrentHashMap<String, String> sqlCache = new ConcurrentHashMap<String, String>();
+
+    public static GenericDAO getGenericDAO(GenericHelperInfo helperInfo) {
+        String cacheKey = helperInfo.getHelperFullName();
+        GenericDAO newGenericDAO = genericDAOs.get(cacheKey);
+        if (newGenericDAO == null) {
+            genericDAOs.putIfAbsent(cacheKey, new GenericDAO(helperInfo));
+            newGenericDAO = genericDAOs.get(cacheKey);
+        }
+        return newGenericDAO;
+    }
+
+    public GenericDAO(GenericHelperInfo helperInfo) {
+        this.helperInfo = helperInfo;
+        this.modelFieldTypeReader = ModelFieldTypeReader.getModelFieldTypeReader(helperInfo.getHelperBaseName());
+        this.datasourceInfo = EntityConfigUtil.getDatasourceInfo(helperInfo.getHelperBaseName());
+        int poolSize = datasourceInfo != null ? datasourceInfo.maxWorkerPoolSize : 1;
+        this.executor = ExecutionPool.getExecutor(GENERIC_DAO_THREAD_GROUP, "entity-datasource(" + helperInfo.getHelperFullName() + ")", poolSize, false);
+    }
+
+    public GenericHelperInfo getHelperInfo() {
+        return helperInfo;
+    }
+
+    public DatasourceInfo getDatasourceInfo() {
+        return datasourceInfo;
+    }
+
+    public ModelFieldTypeReader getModelFieldTypeReader() {
+        return modelFieldTypeReader;
+    }
+
+    /**
+     * Runs the work on the bounded worker pool of this datasource; the pool
+     * size comes from the max-worker-pool-size attribute of the datasource.
+     */
+    public <T> Future<T> submitWork(Callable<T> callable) throws GenericEntityException {
+        return this.executor.submit(callable);
+    }
+
+    public int insert(GenericEntity entity) throws GenericEntityException {
+        Entity modelEntity = entity.getModelEntity();
+        if (modelEntity == null) {
+            throw new GenericModelException("Could not find Entity record for entityName: " + entity.getEntityName());
+        }
+
+        SQLProcessor sqlP = new SQLProcessor(helperInfo);
+        try {
+            sqlP.prepareStatement(getInsertSql(modelEntity));
+            SqlJdbcUtil.setValues(sqlP, getAllFields(modelEntity), entity, modelFieldTypeReader);
+            int retVal = sqlP.executeUpdate();
+            entity.synchronizedWithDatasource();
+            return retVal;
+        } catch (GenericEntityException e) {
+            sqlP.rollback();
+            throw e;
+        } finally {
+            sqlP.close();
+        }
+    }
+
+    /**
+     * Updates all non primary key fields of the row identified by the primary
+     * key of the entity. For entities with locking enabled a value that
+     * carries the lastUpdatedStamp it was read with only updates the row if
+     * the row still has that stamp; a value without a stamp is stored blind.
+     *
+     * @return the number of rows changed; 0 means the row does not exist
+     * @throws EntityLockedException if the row was changed since the value
+     *  was read
+     */
+    public int update(GenericEntity entity) throws GenericEntityException {
+        Entity modelEntity = entity.getModelEntity();
+        if (modelEntity == null) {
+            throw new GenericModelException("Could not find Entity record for entityName: " + entity.getEntityName());
+        }
+        checkPrimaryKey(entity);
+        if (modelEntity.getNopkg().isEmpty()) {
+            // nothing to update, only check the existence of the row
+            return selectCountByPrimaryKey(entity) > 0 ? 1 : 0;
+        }
+        if (modelEntity.lock() && modelEntity.isField(Entity.STAMP_FIELD)) {
+            if (entity.get(Entity.STAMP_FIELD) != null) {
+                return lockedUpdate(modelEntity, entity);
+            }
+            // not read from the database, nothing to check the row against
+            setNewStamps(modelEntity, entity);
+        }
+
+        SQLProcessor sqlP = new SQLProcessor(helperInfo);
+        try {
+            sqlP.prepareStatement(getUpdateSql(modelEntity));
+            SqlJdbcUtil.setValues(sqlP, modelEntity.getNopkg(), entity, modelFieldTypeReader);
+            SqlJdbcUtil.setPkValues(sqlP, modelEntity, entity, modelFieldTypeReader);
+            int retVal = sqlP.executeUpdate();
+            entity.synchronizedWithDatasource();
+            return retVal;
+        } catch (GenericEntityException e) {
+            sqlP.rollback();
+            throw e;
+        } finally {
+            sqlP.close();
+        }
+    }
+
+    /**
+     * Versioned update: sets a new lastUpdatedStamp and matches the row on
+     * the primary key and the stamp the value was read with. When no row
+     * matches but the primary key exists someone else updated the row first;
+     * the stamps of the value are then put back so it can be re-read or
+     * discarded.
+     */
+    private int lockedUpdate(Entity modelEntity, GenericEntity entity) throws GenericEntityException {
+        Object readStamp = entity.get(Entity.STAMP_FIELD);
+        Timestamp lockStamp = getLockStamp(entity, readStamp);
+        boolean hasTxStamp = modelEntity.isField(Entity.STAMP_TX_FIELD);
+        Object readTxStamp = hasTxStamp ? entity.get(Entity.STAMP_TX_FIELD) : null;
+        setNewStamps(modelEntity, entity);
+
+        boolean updated = false;
+        SQLProcessor sqlP = new SQLProcessor(helperInfo);
+        try {
+            sqlP.prepareStatement(getLockedUpdateSql(modelEntity));
+            SqlJdbcUtil.setValues(sqlP, modelEntity.getNopkg(), entity, modelFieldTypeReader);
+            SqlJdbcUtil.setPkValues(sqlP, modelEntity, entity, modelFieldTypeReader);
+            sqlP.setValue(lockStamp);
+            int retVal = sqlP.executeUpdate();
+            if (retVal == 0 && selectCountByPrimaryKey(entity) > 0) {
+                throw new EntityLockedException("Could not update [" + entity.getPrimaryKey() + "], it was changed since it was read at " + readStamp);
+            }
+            entity.synchronizedWithDatasource();
+            updated = true;
+            return retVal;
+        } catch (SQLException e) {
+            sqlP.rollback();
+            throw new GenericDataSourceException("Error setting the lock stamp of [" + entity.getPrimaryKey() + "]", e);
+        } catch (GenericEntityException e) {
+            // a lock conflict leaves the transaction usable, the caller decides
+            if (!(e instanceof EntityLockedException)) {
+                sqlP.rollback();
+            }
+            throw e;
+        } finally {
+            sqlP.close();
+            if (!updated) {
+                entity.set(Entity.STAMP_FIELD, readStamp);
+                if (hasTxStamp) {
+                    entity.set(Entity.STAMP_TX_FIELD, readTxStamp);
+                }
+            }
+        }
+    }
+
+    private static void setNewStamps(Entity modelEntity, GenericEntity entity) {
+        entity.set(Entity.STAMP_FIELD, TransactionUtil.getTransactionUniqueNowStamp());
+        if (modelEntity.isField(Entity.STAMP_TX_FIELD)) {
+            entity.set(Entity.STAMP_TX_FIELD, TransactionUtil.getTransactionStartStamp());
+        }
+    }
+
+    /** The stamp the value was read with as a Timestamp, it may have been set from a String or a Date */
+    static Timestamp getLockStamp(GenericEntity entity, Object readStamp) throws GenericEntityException {
+        if (readStamp == null || readStamp instanceof Timestamp) {
+            return (Timestamp) readStamp;
+        }
+        try {
+            return (Timestamp) ObjectType.simpleTypeConvert(readStamp, "java.sql.Timestamp", null, null);
+        } catch (GeneralException e) {
+            throw new GenericModelException("The " + Entity.STAMP_FIELD + " value [" + readStamp + "] of [" + entity.getPrimaryKey() + "] is not a timestamp", e);
+        }
+    }
+
+    public int delete(GenericEntity entity) throws GenericEntityException {
+        Entity modelEntity = entity.getModelEntity();
+        if (modelEntity == null) {
+            throw new GenericModelException("Could not find Entity record for entityName: " + entity.getEntityName());
+        }
+        checkPrimaryKey(entity);
+
+        SQLProcessor sqlP = new SQLProcessor(helperInfo);
+        try {
+            sqlP.prepareStatement(getDeleteSql(modelEntity));
+            SqlJdbcUtil.setPkValues(sqlP, modelEntity, entity, modelFieldTypeReader);
+            int retVal = sqlP.executeUpdate();
+            entity.removedFromDatasource();
+            return retVal;
+        } catch (GenericEntityException e) {
+            sqlP.rollback();
+            throw e;
+        } finally {
+            sqlP.close();
+        }
+    }
+
+    /**
+     * Inserts the values with JDBC batches of {@link #getBatchSize()} rows
+     * instead of one round trip per value. All values must be of the given
+     * entity.
+     *
+     * @return the update count of each value, in list order
+     */
+    public int[] insertAll(Entity modelEntity, List<? extends GenericEntity> entities) throws GenericEntityException {
+        return executeBatch(modelEntity, OP_INSERT, entities);
+    }
+
+    /**
+     * Batched version of {@link #update(GenericEntity)}. All values must be of
+     * the given entity.
+     *
+     * @return the update count of each value, in list order; 0 means the row
+     *  does not exist
+     */
+    public int[] updateAll(Entity modelEntity, List<? extends GenericEntity> entities) throws GenericEntityException {
+        if (modelEntity != null && (modelEntity.getNopkg().isEmpty() || (modelEntity.lock() && modelEntity.isField(Entity.STAMP_FIELD)))) {
+            // nothing to update, only check the existence of the rows; locked
+            // rows need their own update count to detect a conflict
+            int[] counts = new int[entities.size()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = update(entities.get(i));
+            }
+            return counts;
+        }
+        return executeBatch(modelEntity, OP_UPDATE, entities);
+    }
+
+    /**
+     * Batched version of {@link #delete(GenericEntity)}. All values must be of
+     * the given entity.
+     *
+     * @return the update count of each value, in list order
+     */
+    public int[] deleteAll(Entity modelEntity, List<? extends GenericEntity> entities) throws GenericEntityException {
+        return executeBatch(modelEntity, OP_DELETE, entities);
+    }
+
+    /** Number of rows sent in one JDBC batch, from the batch-size attribute of the datasource */
+    public int getBatchSize() {
+        return datasourceInfo != null ? datasourceInfo.batchSize : SQLProcessor.DEFAULT_BATCH_SIZE;
+    }
+
+    private int[] executeBatch(Entity modelEntity, String operation, List<? extends GenericEntity> entities) throws GenericEntityException {
+        if (modelEntity == null) {
+            throw new GenericModelException("Could not find Entity record for a batch " + operation);
+        }
+        if (UtilValidate.isEmpty(entities)) {
+            return new int[0];
+        }
+
+        String sql;
+        if (OP_INSERT.equals(operation)) {
+            sql = getInsertSql(modelEntity);
+        } else if (OP_UPDATE.equals(operation)) {
+            sql = getUpdateSql(modelEntity);
+        } else {
+            sql = getDeleteSql(modelEntity);
+        }
+
+        SQLProcessor sqlP = new SQLProcessor(helperInfo);
+        sqlP.setBatchSize(getBatchSize());
+        try {
+            sqlP.prepareStatement(sql);
+            for (GenericEntity entity : entities) {
+                if (!modelEntity.getEntityName().equals(entity.getEntityName())) {
+                    throw new GenericModelException("Cannot " + operation + " a value of entity [" + entity.getEntityName() + "] in a batch of entity [" + modelEntity.getEntityName() + "]");
+                }
+                if (OP_INSERT.equals(operation)) {
+                    SqlJdbcUtil.setValues(sqlP, getAllFields(modelEntity), entity, modelFieldTypeReader);
+                } else {
+                    checkPrimaryKey(entity);
+                    if (OP_UPDATE.equals(operation)) {
+                        SqlJdbcUtil.setValues(sqlP, modelEntity.getNopkg(), entity, modelFieldTypeReader);
+                    }
+                    SqlJdbcUtil.setPkValues(sqlP, modelEntity, entity, modelFieldTypeReader);
+                }
+                sqlP.addBatch();
+            }
+            int[] counts = sqlP.executeBatch();
+            for (GenericEntity entity : entities) {
+                if (OP_DELETE.equals(operation)) {
+                    entity.removedFromDatasource();
+                } else {
+                    entity.synchronizedWithDatasource();
+                }
+            }
+            return counts;
+        } catch (GenericEntityException e) {
+            sqlP.rollback();
+            throw e;
+        } finally {
+            sqlP.close();
+        }
+    }
+
+    /**
+     * Populates the non primary key fields of the entity from the row with the
+     * same primary key.
+     *
+     * @return false if there is no such row
+     */
+    public boolean select(GenericEntity entity) throws GenericEntityException {
+        Entity modelEntity = entity.getModelEntity();
+        if (modelEntity == null) {
+            throw new GenericModelException("Could not find Entity record for entityName: " + entity.getEntityName());
+        }
+        checkPrimaryKey(entity);
+
+        if (modelEntity.getNopkg().isEmpty()) {
+            return selectCountByPrimaryKey(entity) > 0;
+        }
+
+        SQLProcessor sqlP = new SQLProcessor(helperInfo);
+        try {
+            sqlP.prepareStatement(getSelectSql(modelEntity));
+            SqlJdbcUtil.setPkValues(sqlP, modelEntity, entity, modelFieldTypeReader);
+            sqlP.executeQuery();
+            if (!sqlP.next()) {
+                return false;
+            }
+            RowReader.getRowReader(modelEntity, modelEntity.getNopkg(), modelFieldTypeReader).read(sqlP.getResultSet(), entity);
+            entity.synchronizedWithDatasource();
+            return true;
+        } finally {
+            sqlP.close();
+        }
+    }
+
+    /**
+     * Like {@link #select(GenericEntity)} but only reads the given fields; the
+     * statement is not cached since the field set varies per call.
+     */
+    public boolean partialSelect(GenericEntity entity, Set<String> keys) throws GenericEntityException {
+        Entity modelEntity = entity.getModelEntity();
+        if (modelEntity == null) {
+            throw new GenericModelException("Could not find Entity record for entityName: " + entity.getEntityName());
+        }
+        checkPrimaryKey(entity);
+
+        List<Field> partialFields = FastList.newInstance();
+        for (Field curField : modelEntity.getNopkg()) {
+            if (keys.contains(curField.getName())) {
+                partialFields.add(curField);
+            }
+        }
+        if (partialFields.isEmpty()) {
+            return selectCountByPrimaryKey(entity) > 0;
+        }
+
+        StringBuilder sqlBuffer = new StringBuilder("SELECT ");
+        appendColNames(sqlBuffer, partialFields);
+        sqlBuffer.append(SqlJdbcUtil.makeFromClause(modelEntity, modelFieldTypeReader, datasourceInfo));
+        appendPkWhere(sqlBuffer, modelEntity);
+
+        SQLProcessor sqlP = new SQLProcessor(helperInfo);
+        try {
+            sqlP.prepareStatement(sqlBuffer.toString());
+            SqlJdbcUtil.setPkValues(sqlP, modelEntity, entity, modelFieldTypeReader);
+            sqlP.executeQuery();
+            if (!sqlP.next()) {
+                return false;
+            }
+            RowReader.getRowReader(modelEntity, partialFields, modelFieldTypeReader).read(sqlP.getResultSet(), entity);
+            entity.synchronizedWithDatasource();
+            return true;
+        } finally {
+            sqlP.close();
+        }
+    }
+
+    /**
+     * Finds the rows for all of the passed primary keys. The keys are grouped
+     * by entity and sent as IN-list queries of at most
+     * {@link #IN_LIST_CHUNK_SIZE} keys each (an OR of the key tuples for
+     * entities with a composite primary key) instead of one query per key.
+     * The result follows the order of the passed keys; keys without a row are
+     * skipped.
+     */
+    public List<GenericValue> selectByPrimaryKeys(List<GenericPK> primaryKeys) throws GenericEntityException {
+        List<GenericValue> results = FastList.newInstance();
+        if (UtilValidate.isEmpty(primaryKeys)) {
+            return results;
+        }
+
+        Map<GenericPK, GenericValue> found = FastMap.newInstance();
+        for (List<GenericPK> chunk : chunkByEntity(primaryKeys)) {
+            selectChunk(chunk, found);
+        }
+
+        for (GenericPK primaryKey : primaryKeys) {
+            GenericValue value = found.get(primaryKey);
+            if (value != null) {
+                results.add(value);
+            }
+        }
+        return results;
+    }
+
+    /** The keys grouped by entity and split in runs of at most {@link #IN_LIST_CHUNK_SIZE} keys */
+    static List<List<GenericPK>> chunkByEntity(List<GenericPK> primaryKeys) throws GenericEntityException {
+        Map<String, List<GenericPK>> pksByEntity = FastMap.newInstance();
+        for (GenericPK primaryKey : primaryKeys) {
+            checkPrimaryKey(primaryKey);
+            List<GenericPK> entityPks = pksByEntity.get(primaryKey.getEntityName());
+            if (entityPks == null) {
+                entityPks = FastList.newInstance();
+                pksByEntity.put(primaryKey.getEntityName(), entityPks);
+            }
+            entityPks.add(primaryKey);
+        }
+
+        List<List<GenericPK>> chunks = FastList.newInstance();
+        for (List<GenericPK> entityPks : pksByEntity.values()) {
+            for (int start = 0; start < entityPks.size(); start += IN_LIST_CHUNK_SIZE) {
+                int end = Math.min(start + IN_LIST_CHUNK_SIZE, entityPks.size());
+                chunks.add(entityPks.subList(start, end));
+            }
+        }
+        return chunks;
+    }
+
+    private void selectChunk(List<GenericPK> chunk, Map<GenericPK, GenericValue> found) throws GenericEntityException {
+        Entity modelEntity = chunk.get(0).getModelEntity();
+        List<Field> pks = modelEntity.getPkgs();
+        List<Field> selectFields = getAllFields(modelEntity);
+
+        SQLProcessor sqlP = new SQLProcessor(helperInfo);
+        try {
+            sqlP.prepareStatement(getSelectInSql(modelEntity, chunk.size()));
+            for (GenericPK primaryKey : chunk) {
+                for (Field pkField : pks) {
+                    SqlJdbcUtil.setValue(sqlP, pkField, primaryKey, modelFieldTypeReader);
+                }
+            }
+            sqlP.executeQuery();
+            RowReader rowReader = RowReader.getRowReader(modelEntity, selectFields, modelFieldTypeReader);
+            while (sqlP.next()) {
+                GenericValue value = GenericValue.create(modelEntity);
+                rowReader.read(sqlP.getResultSet(), value);
+                value.synchronizedWithDatasource();
+                found.put(value.getPrimaryKey(), value);
+            }
+        } finally {
+            sqlP.close();
+        }
+    }
+
+    /** Finds the values of modelEntityTwo related to the value through the association entity modelEntityOne:
+     * modelRelationOne goes from the entity of the value to modelEntityOne and modelRelationTwo from
+     * modelEntityOne to modelEntityTwo. The two tables are joined on the key maps of modelRelationTwo.
+     */
+    public List<GenericValue> selectByMultiRelation(GenericValue value, Relation modelRelationOne, Entity modelEntityOne,
+            Relation modelRelationTwo, Entity modelEntityTwo, List<String> orderBy) throws GenericEntityException {
+        if (modelRelationOne.getKeyMaps().isEmpty() || modelRelationTwo.getKeyMaps().isEmpty()) {
+            throw new GenericModelException("Relations [" + modelRelationOne.getRelEntityName() + "] and [" + modelRelationTwo.getRelEntityName()
+                    + "] must both have key maps to be joined");
+        }
+        String atable = modelEntityOne.getTableName(datasourceInfo);
+        String ttable = modelEntityTwo.getTableName(datasourceInfo);
+        List<Field> selectFields = getAllFields(modelEntityTwo);
+
+        StringBuilder sqlBuffer = new StringBuilder("SELECT ");
+        for (int i = 0; i < selectFields.size(); i++) {
+            if (i > 0) {
+                sqlBuffer.append(", ");
+            }
+            sqlBuffer.append(ttable).append('.').append(selectFields.get(i).getColName());
+        }
+        sqlBuffer.append(" FROM ").append(atable).append(", ").append(ttable).append(" WHERE ");
+
+        boolean first = true;
+        for (EntityKeyMap keyMap : modelRelationTwo.getKeyMaps()) {
+            if (!first) {
+                sqlBuffer.append(" AND ");
+            }
+            first = false;
+            sqlBuffer.append(atable).append('.').append(getRelationField(modelEntityOne, keyMap.getFieldName()).getColName());
+            sqlBuffer.append(" = ");
+            sqlBuffer.append(ttable).append('.').append(getRelationField(modelEntityTwo, keyMap.getRelFieldName()).getColName());
+        }
+        List<Field> whereFields = FastList.newInstance();
+        List<Object> whereValues = FastList.newInstance();
+        for (EntityKeyMap keyMap : modelRelationOne.getKeyMaps()) {
+            Field whereField = getRelationField(modelEntityOne, keyMap.getRelFieldName());
+            sqlBuffer.append(" AND ").append(atable).append('.').append(whereField.getColName()).append(" = ?");
+            whereFields.add(whereField);
+            whereValues.add(value.get(keyMap.getFieldName()));
+        }
+        sqlBuffer.append(SqlJdbcUtil.makeOrderByClause(modelEntityTwo, orderBy, true, datasourceInfo));
+
+        List<GenericValue> results = FastList.newInstance();
+        SQLProcessor sqlP = new SQLProcessor(helperInfo);
+        try {
+            sqlP.prepareStatement(sqlBuffer.toString());
+            for (int i = 0; i < whereFields.size(); i++) {
+                SqlJdbcUtil.setValue(sqlP, whereFields.get(i), modelEntityOne.getEntityName(), whereValues.get(i), modelFieldTypeReader);
+            }
+            sqlP.executeQuery();
+            RowReader rowReader = RowReader.getRowReader(modelEntityTwo, selectFields, modelFieldTypeReader);
+            while (sqlP.next()) {
+                GenericValue related = GenericValue.create(modelEntityTwo);
+                rowReader.read(sqlP.getResultSet(), related);
+                related.setDelegator(value.getDelegator());
+                related.synchronizedWithDatasource();
+                results.add(related);
+            }
+        } finally {
+            sqlP.close();
+        }
+        return results;
+    }
+
+    private static Field getRelationField(Entity modelEntity, String fieldName) throws GenericModelException {
+        Field field = modelEntity.getField(fieldName);
+        if (field == null) {
+            throw new GenericModelException("The relation key field [" + fieldName + "] is not a field of entity [" + modelEntity.getEntityName() + "]");
+        }
+        return field;
+    }
+
+    /** Finds GenericValues by the conditions specified in the EntityCondition object, see the EntityCondition javadoc for more details.
+     *@return EntityListIterator representing the result of the query: NOTE THAT THIS MUST BE CLOSED WHEN YOU ARE
+     *      DONE WITH IT, AND DON'T LEAVE IT OPEN TOO LONG BEACUSE IT WILL MAINTAIN A DATABASE CONNECTION.
+     */
+    public EntityListIterator selectListIteratorByCondition(Entity modelEntity, EntityCondition whereEntityCondition,
+            EntityCondition havingEntityCondition, Collection<String> fieldsToSelect, List<String> orderBy, EntityFindOptions findOptions)
+            throws GenericEntityException {
+        if (modelEntity == null) {
+            return null;
+        }
+        if (findOptions == null) {
+            findOptions = new EntityFindOptions();
+        }
+
+        List<Field> selectFields = FastList.newInstance();
+        if (UtilValidate.isNotEmpty(fieldsToSelect)) {
+            for (String fieldName : fieldsToSelect) {
+                Field curField = modelEntity.getField(fieldName);
+                if (curField == null) {
+                    throw new GenericModelException("The field [" + fieldName + "] is not a field of entity [" + modelEntity.getEntityName() + "]");
+                }
+                selectFields.add(curField);
+            }
+        } else {
+            selectFields.addAll(modelEntity.getFields());
+        }
+
+        StringBuilder sqlBuffer = new StringBuilder("SELECT ");
+        if (findOptions.getDistinct()) {
+            sqlBuffer.append("DISTINCT ");
+        }
+        appendColNames(sqlBuffer, selectFields);
+        sqlBuffer.append(SqlJdbcUtil.makeFromClause(modelEntity, modelFieldTypeReader, datasourceInfo));
+
+        List<EntityConditionParam> whereEntityConditionParams = FastList.newInstance();
+        appendWhereClause(sqlBuffer, modelEntity, whereEntityCondition, whereEntityConditionParams);
+
+        List<EntityConditionParam> havingEntityConditionParams = FastList.newInstance();
+        if (havingEntityCondition != null) {
+            String entityCondHavingString = SqlJdbcUtil.makeWhereString(havingEntityCondition, modelEntity, havingEntityConditionParams, datasourceInfo);
+            if (entityCondHavingString.length() > 0) {
+                sqlBuffer.append(" HAVING ");
+                sqlBuffer.append(entityCondHavingString);
+            }
+        }
+
+        sqlBuffer.append(SqlJdbcUtil.makeOrderByClause(modelEntity, orderBy, datasourceInfo));
+        String sql = sqlBuffer.toString();
+
+        SQLProcessor sqlP = new SQLProcessor(helperInfo);
+        try {
+            sqlP.prepareStatement(sql, findOptions.getSpecifyTypeAndConcur(), findOptions.getResultSetType(),
+                    findOptions.getResultSetConcurrency(), findOptions.getFetchSize(), findOptions.getMaxRows());
+            setConditionParams(sqlP, modelEntity, whereEntityConditionParams);
+            setConditionParams(sqlP, modelEntity, havingEntityConditionParams);
+            sqlP.executeQuery();
+        } catch (GenericEntityException e) {
+            sqlP.close();
+            throw e;
+        }
+
+        return new EntityListIterator(sqlP, modelEntity, selectFields, modelFieldTypeReader, this,
+                whereEntityCondition, havingEntityCondition, findOptions.getDistinct());
+    }
+
+    public long selectCountByCondition(Entity modelEntity, EntityCondition whereEntityCondition,
+            EntityCondition havingEntityCondition, List<Field> selectFields, EntityFindOptions findOptions) throws GenericEntityException {
+        if (modelEntity == null) {
+            return 0;
+        }
+
+        boolean isDistinct = findOptions != null && findOptions.getDistinct();
+        StringBuilder sqlBuffer = new StringBuilder("SELECT ");
+        if (isDistinct && UtilValidate.isNotEmpty(selectFields)) {
+            sqlBuffer.append("COUNT(DISTINCT ");
+            appendColNames(sqlBuffer, selectFields);
+            sqlBuffer.append(")");
+        } else {
+            sqlBuffer.append("COUNT(1)");
+        }
+        sqlBuffer.append(SqlJdbcUtil.makeFromClause(modelEntity, modelFieldTypeReader, datasourceInfo));
+
+        List<EntityConditionParam> whereEntityConditionParams = FastList.newInstance();
+        appendWhereClause(sqlBuffer, modelEntity, whereEntityCondition, whereEntityConditionParams);
+
+        List<EntityConditionParam> havingEntityConditionParams = FastList.newInstance();
+        if (havingEntityCondition != null) {
+            String entityCondHavingString = SqlJdbcUtil.makeWhereString(havingEntityCondition, modelEntity, havingEntityConditionParams, datasourceInfo);
+            if (entityCondHavingString.length() > 0) {
+                sqlBuffer.append(" HAVING ");
+                sqlBuffer.append(entityCondHavingString);
+            }
+        }
+
+        SQLProcessor sqlP = new SQLProcessor(helperInfo);
+        try {
+            sqlP.prepareStatement(sqlBuffer.toString());
+            setConditionParams(sqlP, modelEntity, whereEntityConditionParams);
+            setConditionParams(sqlP, modelEntity, havingEntityConditionParams);
+            sqlP.executeQuery();
+            if (sqlP.next()) {
+                return sqlP.getResultSet().getLong(1);
+            }
+            return 0;
+        } catch (SQLException e) {
+            throw new GenericDataSourceException("Error getting count value", e);
+        } finally {
+            sqlP.close();
+        }
+    }
+
+    public int deleteByCondition(Entity modelEntity, EntityCondition condition) throws GenericEntityException {
+        if (modelEntity == null || condition == null) {
+            return 0;
+        }
+
+        StringBuilder sqlBuffer = new StringBuilder("DELETE FROM ");
+        sqlBuffer.append(modelEntity.getTableName(datasourceInfo));
+        List<EntityConditionParam> params = FastList.newInstance();
+        appendWhereClause(sqlBuffer, modelEntity, condition, params);
+
+        SQLProcessor sqlP = new SQLProcessor(helperInfo);
+        try {
+            sqlP.prepareStatement(sqlBuffer.toString());
+            setConditionParams(sqlP, modelEntity, params);
+            return sqlP.executeUpdate();
+        } catch (GenericEntityException e) {
+            sqlP.rollback();
+            throw e;
+        } finally {
+            sqlP.close();
+        }
+    }
+
+    public int updateByCondition(Entity modelEntity, Map<String, ? extends Object> fieldsToSet, EntityCondition condition) throws GenericEntityException {
+        if (modelEntity == null || UtilValidate.isEmpty(fieldsToSet) || condition == null) {
+            return 0;
+        }
+
+        List<Field> setFields = FastList.newInstance();
+        for (String fieldName : fieldsToSet.keySet()) {
+            Field curField = modelEntity.getField(fieldName);
+            if (curField == null) {
+                throw new GenericModelException("The field [" + fieldName + "] is not a field of entity [" + modelEntity.getEntityName() + "]");
+            }
+            setFields.add(curField);
+        }
+
+        StringBuilder sqlBuffer = new StringBuilder("UPDATE ");
+        sqlBuffer.append(modelEntity.getTableName(datasourceInfo));
+        sqlBuffer.append(" SET ");
+        appendAssignments(sqlBuffer, setFields);
+        List<EntityConditionParam> params = FastList.newInstance();
+        appendWhereClause(sqlBuffer, modelEntity, condition, params);
+
+        SQLProcessor sqlP = new SQLProcessor(helperInfo);
+        try {
+            sqlP.prepareStatement(sqlBuffer.toString());
+            for (Field curField : setFields) {
+                SqlJdbcUtil.setValue(sqlP, curField, modelEntity.getEntityName(), fieldsToSet.get(curField.getName()), modelFieldTypeReader);
+            }
+            setConditionParams(sqlP, modelEntity, params);
+            return sqlP.executeUpdate();
+        } catch (GenericEntityException e) {
+            sqlP.rollback();
+            throw e;
+        } finally {
+            sqlP.close();
+        }
+    }
+
+    protected long selectCountByPrimaryKey(GenericEntity entity) throws GenericEntityException {
+        Entity modelEntity = entity.getModelEntity();
+        String key = sqlKey(modelEntity, "count");
+        String sql = sqlCache.get(key);
+        if (sql == null) {
+            StringBuilder sqlBuffer = new StringBuilder("SELECT COUNT(1)");
+            sqlBuffer.append(SqlJdbcUtil.makeFromClause(modelEntity, modelFieldTypeReader, datasourceInfo));
+            appendPkWhere(sqlBuffer, modelEntity);
+            sql = cacheSql(key, sqlBuffer.toString());
+        }
+
+        SQLProcessor sqlP = new SQLProcessor(helperInfo);
+        try {
+            sqlP.prepareStatement(sql);
+            SqlJdbcUtil.setPkValues(sqlP, modelEntity, entity, modelFieldTypeReader);
+            sqlP.executeQuery();
+            return sqlP.next() ? sqlP.getResultSet().getLong(1) : 0;
+        } catch (SQLException e) {
+            throw new GenericDataSourceException("Error getting count value", e);
+        } finally {
+            sqlP.close();
+        }
+    }
+
+    // ========== cached SQL ==========
+
+    protected String getInsertSql(Entity modelEntity) {
+        String key = sqlKey(modelEntity, OP_INSERT);
+        String sql = sqlCache.get(key);
+        if (sql == null) {
+            List<Field> fields = getAllFields(modelEntity);
+            StringBuilder sqlBuffer = new StringBuilder("INSERT INTO ");
+            sqlBuffer.append(modelEntity.getTableName(datasourceInfo));
+            sqlBuffer.append(" (");
+            appendColNames(sqlBuffer, fields);
+            sqlBuffer.append(") VALUES (");
+            appendPlaceholders(sqlBuffer, fields.size());
+            sqlBuffer.append(')');
+            sql = cacheSql(key, sqlBuffer.toString());
+        }
+        return sql;
+    }
+
+    protected String getUpdateSql(Entity modelEntity) {
+        String key = sqlKey(modelEntity, OP_UPDATE);
+        String sql = sqlCache.get(key);
+        if (sql == null) {
+            StringBuilder sqlBuffer = new StringBuilder("UPDATE ");
+            sqlBuffer.append(modelEntity.getTableName(datasourceInfo));
+            sqlBuffer.append(" SET ");
+            appendAssignments(sqlBuffer, modelEntity.getNopkg());
+            appendPkWhere(sqlBuffer, modelEntity);
+            sql = cacheSql(key, sqlBuffer.toString());
+        }
+        return sql;
+    }
+
+    /** UPDATE matching the primary key and the stamp the value was read with */
+    protected String getLockedUpdateSql(Entity modelEntity) {
+        String key = sqlKey(modelEntity, OP_UPDATE) + "#lock";
+        String sql = sqlCache.get(key);
+        if (sql == null) {
+            StringBuilder sqlBuffer = new StringBuilder("UPDATE ");
+            sqlBuffer.append(modelEntity.getTableName(datasourceInfo));
+            sqlBuffer.append(" SET ");
+            appendAssignments(sqlBuffer, modelEntity.getNopkg());
+            appendPkWhere(sqlBuffer, modelEntity);
+            sqlBuffer.append(" AND ");
+            sqlBuffer.append(modelEntity.getField(Entity.STAMP_FIELD).getColName());
+            sqlBuffer.append("=?");
+            sql = cacheSql(key, sqlBuffer.toString());
+        }
+        return sql;
+    }
+
+    protected String getDeleteSql(Entity modelEntity) {
+        String key = sqlKey(modelEntity, OP_DELETE);
+        String sql = sqlCache.get(key);
+        if (sql == null) {
+            StringBuilder sqlBuffer = new StringBuilder("DELETE FROM ");
+            sqlBuffer.append(modelEntity.getTableName(datasourceInfo));
+            appendPkWhere(sqlBuffer, modelEntity);
+            sql = cacheSql(key, sqlBuffer.toString());
+        }
+        return sql;
+    }
+
+    protected String getSelectSql(Entity modelEntity) throws GenericEntityException {
+        String key = sqlKey(modelEntity, OP_SELECT);
+        String sql = sqlCache.get(key);
+        if (sql == null) {
+            StringBuilder sqlBuffer = new StringBuilder("SELECT ");
+            appendColNames(sqlBuffer, modelEntity.getNopkg());
+            sqlBuffer.append(SqlJdbcUtil.makeFromClause(modelEntity, modelFieldTypeReader, datasourceInfo));
+            appendPkWhere(sqlBuffer, modelEntity);
+            sql = cacheSql(key, sqlBuffer.toString());
+        }
+        return sql;
+    }
+
+    /** SELECT of all fields for <code>arity</code> primary keys; one statement is kept per entity and arity */
+    protected String getSelectInSql(Entity modelEntity, int arity) throws GenericEntityException {
+        String key = sqlKey(modelEntity, OP_SELECT_IN) + arity;
+        String sql = sqlCache.get(key);
+        if (sql == null) {
+            List<Field> pks = modelEntity.getPkgs();
+            StringBuilder sqlBuffer = new StringBuilder("SELECT ");
+            appendColNames(sqlBuffer, getAllFields(modelEntity));
+            sqlBuffer.append(SqlJdbcUtil.makeFromClause(modelEntity, modelFieldTypeReader, datasourceInfo));
+            sqlBuffer.append(" WHERE ");
+            appendPkInConditions(sqlBuffer, pks, arity);
+            sql = cacheSql(key, sqlBuffer.toString());
+        }
+        return sql;
+    }
+
+    private String cacheSql(String key, String sql) {
+        String existing = sqlCache.putIfAbsent(key, sql);
+        if (existing != null) {
+            return existing;
+        }
+        if (logger.isDebugEnabled()) logger.debug("Cached SQL for [" + key + "]: " + sql);
+        return sql;
+    }
+
+    private static String sqlKey(Entity modelEntity, String operation) {
+        return modelEntity.getEntityName() + '#' + operation;
+    }
+
+    // ========== SQL building helpers ==========
+
+    /** The fields of the entity in column order: primary keys first, then the others */
+    protected static List<Field> getAllFields(Entity modelEntity) {
+        List<Field> fields = new ArrayList<Field>(modelEntity.getPksSize() + modelEntity.getNopkg().size());
+        fields.addAll(modelEntity.getPkgs());
+        fields.addAll(modelEntity.getNopkg());
+        return fields;
+    }
+
+    private static void appendColNames(StringBuilder sqlBuffer, List<Field> fields) {
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) {
+                sqlBuffer.append(", ");
+            }
+            sqlBuffer.append(fields.get(i).getColName());
+        }
+    }
+
+    private static void appendPlaceholders(StringBuilder sqlBuffer, int count) {
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sqlBuffer.append(", ");
+            }
+            sqlBuffer.append('?');
+        }
+    }
+
+    private static void appendAssignments(StringBuilder sqlBuffer, List<Field> fields) {
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) {
+                sqlBuffer.append(", ");
+            }
+            sqlBuffer.append(fields.get(i).getColName());
+            sqlBuffer.append("=?");
+        }
+    }
+
+    private static void appendPkConditions(StringBuilder sqlBuffer, List<Field> pks) {
+        for (int i = 0; i < pks.size(); i++) {
+            if (i > 0) {
+                sqlBuffer.append(" AND ");
+            }
+            sqlBuffer.append(pks.get(i).getColName());
+            sqlBuffer.append("=?");
+        }
+    }
+
+    /** An IN list for a single primary key field, an OR of the key tuples for a composite primary key */
+    static void appendPkInConditions(StringBuilder sqlBuffer, List<Field> pks, int arity) {
+        if (pks.size() == 1) {
+            sqlBuffer.append(pks.get(0).getColName());
+            sqlBuffer.append(" IN (");
+            appendPlaceholders(sqlBuffer, arity);
+            sqlBuffer.append(')');
+        } else {
+            for (int i = 0; i < arity; i++) {
+                if (i > 0) {
+                    sqlBuffer.append(" OR ");
+                }
+                sqlBuffer.append('(');
+                appendPkConditions(sqlBuffer, pks);
+                sqlBuffer.append(')');
+            }
+        }
+    }
+
+    private static void appendPkWhere(StringBuilder sqlBuffer, Entity modelEntity) {
+        sqlBuffer.append(" WHERE ");
+        appendPkConditions(sqlBuffer, modelEntity.getPkgs());
+    }
+
+    private void appendWhereClause(StringBuilder sqlBuffer, Entity modelEntity, EntityCondition whereEntityCondition,
+            List<EntityConditionParam> whereEntityConditionParams) throws GenericEntityException {
+        StringBuilder whereString = new StringBuilder();
+        if (whereEntityCondition != null) {
+            whereString.append(SqlJdbcUtil.makeWhereString(whereEntityCondition, modelEntity, whereEntityConditionParams, datasourceInfo));
+        }
+        String viewClause = SqlJdbcUtil.makeViewWhereClause(modelEntity, datasourceInfo.joinStyle);
+        if (viewClause.length() > 0) {
+            if (whereString.length() > 0) {
+                whereString.append(" AND ");
+            }
+            whereString.append(viewClause);
+        }
+        if (whereString.length() > 0) {
+            sqlBuffer.append(" WHERE ");
+            sqlBuffer.append(whereString);
+        }
+    }
+
+    private void setConditionParams(SQLProcessor sqlP, Entity modelEntity, List<EntityConditionParam> params) throws GenericEntityException {
+        for (EntityConditionParam param : params) {
+            SqlJdbcUtil.setValue(sqlP, param.getModelField(), modelEntity.getEntityName(), param.getFieldValue(), modelFieldTypeReader);
+        }
+    }
+
+    /** Every primary key field must have a value, otherwise the bind parameters would not line up with the cached SQL */
+    private static void checkPrimaryKey(GenericEntity entity) throws GenericEntityException {
+        if (!entity.containsPrimaryKey(true)) {
+            throw new GenericModelException("The primary key of entity [" + entity.getEntityName() + "] is not complete: " + entity);
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 
+import org.etk.entity.engine.core.GenericEntity;
 import org.etk.entity.engine.core.GenericEntityException;
 import org.etk.entity.engine.core.GenericPK;
 import org.etk.entity.engine.core.GenericValue;
@@ -50,6 +51,12 @@ public interface GenericHelper {
      */
     public GenericValue create(GenericValue value) throws GenericEntityException;
 
+    /** Creates a group of values of the same entity, sending them to the database in batches
+     *@param values List of GenericValue instances, all of the same entity
+     *@return int representing number of rows effected by this operation
+     */
+    public int createAll(List<GenericValue> values) throws GenericEntityException;
+
     /** Find a Generic Entity by its Primary Key
      *@param primaryKey The primary key to find by.
      *@return The GenericValue corresponding to the primaryKey
@@ -75,6 +82,12 @@ public interface GenericHelper {
      */
     public int removeByPrimaryKey(GenericPK primaryKey) throws GenericEntityException;
 
+    /** Removes a group of values of the same entity by their primary keys, sending them to the database in batches
+     *@param values List of GenericEntity instances with complete primary keys, all of the same entity
+     *@return int representing number of rows effected by this operation
+     */
+    public int removeAll(List<? extends GenericEntity> values) throws GenericEntityException;
+
     public List<GenericValue> findByMultiRelation(GenericValue value, Relation modelRelationOne, Entity modelEntityOne,
         Relation modelRelationTwo, Entity modelEntityTwo, List<String> orderBy) throws GenericEntityException;
 
@@ -117,6 +130,13 @@ public interface GenericHelper {
      */
     public int store(GenericValue value) throws GenericEntityException;
 
+    /** Stores a group of values of the same entity, sending them to the database in batches; the
+     * values whose row does not exist yet are inserted instead
+     *@param values List of GenericValue instances, all of the same entity
+     *@return int representing number of rows effected by this operation
+     */
+    public int storeAll(List<GenericValue> values) throws GenericEntityException;
+
     /** Check the datasource to make sure the entity definitions are correct, optionally adding missing entities or fields on the server
      *@param modelEntities Map of entityName names and ModelEntity values
      *@param messages List to put any result messages in
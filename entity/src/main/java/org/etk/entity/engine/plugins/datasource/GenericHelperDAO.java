@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.datasource;
+
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import javolution.util.FastList;
+import javolution.util.FastSet;
+
+import org.etk.common.logging.Logger;
+import org.etk.entity.base.utils.UtilValidate;
+import org.etk.entity.engine.core.GenericEntity;
+import org.etk.entity.engine.core.GenericEntityException;
+import org.etk.entity.engine.core.GenericPK;
+import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.condition.EntityCondition;
+import org.etk.entity.engine.plugins.jdbc.DatabaseUtil;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+import org.etk.entity.engine.plugins.model.xml.Relation;
+import org.etk.entity.engine.plugins.util.EntityFindOptions;
+import org.etk.entity.engine.plugins.util.EntityListIterator;
+
+/**
+ * Generic Entity Helper Class for JDBC datasources, all of the work is done
+ * by the {@link GenericDAO} of the helper.
+ */
+public class GenericHelperDAO implements GenericHelper {
+
+    private static final Logger logger = Logger.getLogger(GenericHelperDAO.class);
+
+    protected GenericDAO genericDAO;
+    protected GenericHelperInfo helperInfo;
+
+    public GenericHelperDAO(GenericHelperInfo helperInfo) {
+        this.helperInfo = helperInfo;
+        genericDAO = GenericDAO.getGenericDAO(helperInfo);
+    }
+
+    public String getHelperName() {
+        return this.helperInfo.getHelperFullName();
+    }
+
+    public <T> Future<T> submitWork(Callable<T> callable) throws GenericEntityException {
+        return genericDAO.submitWork(callable);
+    }
+
+    public GenericValue create(GenericValue value) throws GenericEntityException {
+        if (value == null) {
+            return null;
+        }
+        int retVal = genericDAO.insert(value);
+        if (logger.isDebugEnabled()) logger.debug("[GenericHelperDAO.create] Inserted " + retVal + " row(s) for " + value.getEntityName());
+        return value;
+    }
+
+    public int createAll(List<GenericValue> values) throws GenericEntityException {
+        if (UtilValidate.isEmpty(values)) {
+            return 0;
+        }
+        int retVal = countRows(genericDAO.insertAll(values.get(0).getModelEntity(), values));
+        if (logger.isDebugEnabled()) logger.debug("[GenericHelperDAO.createAll] Inserted " + retVal + " row(s) for " + values.get(0).getEntityName());
+        return retVal;
+    }
+
+    public GenericValue findByPrimaryKey(GenericPK primaryKey) throws GenericEntityException {
+        if (primaryKey == null) {
+            return null;
+        }
+        GenericValue genericValue = GenericValue.create(primaryKey);
+        if (!genericDAO.select(genericValue)) {
+            return null;
+        }
+        return genericValue;
+    }
+
+    public GenericValue findByPrimaryKeyPartial(GenericPK primaryKey, Set<String> keys) throws GenericEntityException {
+        if (primaryKey == null) {
+            return null;
+        }
+        GenericValue genericValue = GenericValue.create(primaryKey);
+        if (!genericDAO.partialSelect(genericValue, keys)) {
+            return null;
+        }
+        return genericValue;
+    }
+
+    /** Find a number of Generic Value objects by their Primary Keys, all at once; the keys
+     * are sent to the database in chunked IN-list queries rather than one query per key.
+     */
+    public List<GenericValue> findAllByPrimaryKeys(List<GenericPK> primaryKeys) throws GenericEntityException {
+        return genericDAO.selectByPrimaryKeys(primaryKeys);
+    }
+
+    public int removeByPrimaryKey(GenericPK primaryKey) throws GenericEntityException {
+        if (primaryKey == null) {
+            return 0;
+        }
+        if (logger.isDebugEnabled()) logger.debug("Removing GenericPK: " + primaryKey.toString());
+        return genericDAO.delete(primaryKey);
+    }
+
+    public int removeAll(List<? extends GenericEntity> values) throws GenericEntityException {
+        if (UtilValidate.isEmpty(values)) {
+            return 0;
+        }
+        return countRows(genericDAO.deleteAll(values.get(0).getModelEntity(), values));
+    }
+
+    public List<GenericValue> findByMultiRelation(GenericValue value, Relation modelRelationOne, Entity modelEntityOne,
+            Relation modelRelationTwo, Entity modelEntityTwo, List<String> orderBy) throws GenericEntityException {
+        return genericDAO.selectByMultiRelation(value, modelRelationOne, modelEntityOne, modelRelationTwo, modelEntityTwo, orderBy);
+    }
+
+    public EntityListIterator findListIteratorByCondition(Entity modelEntity, EntityCondition whereEntityCondition,
+            EntityCondition havingEntityCondition, Collection<String> fieldsToSelect, List<String> orderBy, EntityFindOptions findOptions)
+            throws GenericEntityException {
+        return genericDAO.selectListIteratorByCondition(modelEntity, whereEntityCondition, havingEntityCondition, fieldsToSelect, orderBy, findOptions);
+    }
+
+    public long findCountByCondition(Entity modelEntity, EntityCondition whereEntityCondition,
+            EntityCondition havingEntityCondition, EntityFindOptions findOptions) throws GenericEntityException {
+        return genericDAO.selectCountByCondition(modelEntity, whereEntityCondition, havingEntityCondition, null, findOptions);
+    }
+
+    public int removeByCondition(Entity modelEntity, EntityCondition condition) throws GenericEntityException {
+        if (modelEntity == null || condition == null) {
+            return 0;
+        }
+        return genericDAO.deleteByCondition(modelEntity, condition);
+    }
+
+    public int storeByCondition(Entity modelEntity, Map<String, ? extends Object> fieldsToSet, EntityCondition condition) throws GenericEntityException {
+        if (modelEntity == null || condition == null) {
+            return 0;
+        }
+        return genericDAO.updateByCondition(modelEntity, fieldsToSet, condition);
+    }
+
+    public int store(GenericValue value) throws GenericEntityException {
+        if (value == null) {
+            return 0;
+        }
+        return genericDAO.update(value);
+    }
+
+    /**
+     * Updates the values in batches, then inserts the ones whose update found
+     * no row, the same way createOrStore does for a single value. When the
+     * driver answers a batch with SUCCESS_NO_INFO instead of update counts the
+     * rows are looked up to tell which ones are missing.
+     */
+    public int storeAll(List<GenericValue> values) throws GenericEntityException {
+        if (UtilValidate.isEmpty(values)) {
+            return 0;
+        }
+        Entity modelEntity = values.get(0).getModelEntity();
+        int[] counts = genericDAO.updateAll(modelEntity, values);
+        Set<GenericPK> existing = null;
+        for (int count : counts) {
+            if (count == Statement.SUCCESS_NO_INFO) {
+                existing = findExisting(values);
+                break;
+            }
+        }
+        List<GenericValue> missing = FastList.newInstance();
+        int rowsChanged = collectMissing(values, counts, existing, missing);
+        if (!missing.isEmpty()) {
+            if (logger.isDebugEnabled()) logger.debug("[GenericHelperDAO.storeAll] " + missing.size() + " row(s) of " + modelEntity.getEntityName() + " not found, inserting them");
+            rowsChanged += countRows(genericDAO.insertAll(modelEntity, missing));
+        }
+        return rowsChanged;
+    }
+
+    /**
+     * Adds the values whose update found no row to missing and returns the
+     * rows updated. A count without info is resolved with existing, the
+     * primary keys that have a row.
+     */
+    static int collectMissing(List<GenericValue> values, int[] counts, Set<GenericPK> existing, List<GenericValue> missing) {
+        int rowsChanged = 0;
+        for (int i = 0; i < counts.length; i++) {
+            boolean found = counts[i] == Statement.SUCCESS_NO_INFO ? existing.contains(values.get(i).getPrimaryKey()) : counts[i] > 0;
+            if (!found) {
+                missing.add(values.get(i));
+            } else {
+                rowsChanged += counts[i] == Statement.SUCCESS_NO_INFO ? 1 : counts[i];
+            }
+        }
+        return rowsChanged;
+    }
+
+    /** The primary keys of the values that have a row, read with chunked IN-list queries */
+    private Set<GenericPK> findExisting(List<GenericValue> values) throws GenericEntityException {
+        List<GenericPK> primaryKeys = FastList.newInstance();
+        for (GenericValue value : values) {
+            primaryKeys.add(value.getPrimaryKey());
+        }
+        Set<GenericPK> existing = FastSet.newInstance();
+        for (GenericValue row : genericDAO.selectByPrimaryKeys(primaryKeys)) {
+            existing.add(row.getPrimaryKey());
+        }
+        return existing;
+    }
+
+    /** Sums the update counts of a batch; a statement without a count is taken as one row */
+    private static int countRows(int[] counts) {
+        int rows = 0;
+        for (int count : counts) {
+            rows += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+        }
+        return rows;
+    }
+
+    public void checkDataSource(Map<String, Entity> modelEntities, List<String> messages, boolean addMissing) throws GenericEntityException {
+        DatabaseUtil dbUtil = new DatabaseUtil(this.helperInfo);
+        dbUtil.checkDb(modelEntities, messages, addMissing);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+
+/**
+ * Connection wrapper that owns the {@link StatementCache} of a physical
+ * connection. The cache is used by SQLProcessor through
+ * {@link #getStatementCache(Connection)}; every other call goes straight to
+ * the wrapped connection, and closing the connection closes the cached
+ * statements first.
+ */
+public class CachingConnection implements InvocationHandler {
+
+    public static Connection newCachingConnection(Connection con, int maxStatements) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+                new CachingConnection(con, maxStatements));
+    }
+
+    /**
+     * @return the statement cache of the connection, or null if it is not a
+     *  caching connection
+     */
+    public static StatementCache getStatementCache(Connection con) {
+        if (con == null || !Proxy.isProxyClass(con.getClass())) {
+            return null;
+        }
+        InvocationHandler handler = Proxy.getInvocationHandler(con);
+        if (handler instanceof CachingConnection) {
+            return ((CachingConnection) handler).statementCache;
+        }
+        return null;
+    }
+
+    protected final Connection con;
+    protected final StatementCache statementCache;
+
+    protected CachingConnection(Connection con, int maxStatements) {
+        this(con, new StatementCache(maxStatements));
+    }
+
+    /** For wrappers that hand out the same physical connection, and so the same cache, more than once */
+    protected CachingConnection(Connection con, StatementCache statementCache) {
+        this.con = con;
+        this.statementCache = statementCache;
+    }
+
+    public Connection getDelegate() {
+        return con;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if ("close".equals(name)) {
+            statementCache.close();
+        } else if ("equals".equals(name)) {
+            return Boolean.valueOf(proxy == args[0]);
+        } else if ("hashCode".equals(name)) {
+            return Integer.valueOf(System.identityHashCode(proxy));
+        } else if ("toString".equals(name)) {
+            return getClass().getName() + "{" + con + ", " + statementCache + "}";
+        }
+        try {
+            return method.invoke(con, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
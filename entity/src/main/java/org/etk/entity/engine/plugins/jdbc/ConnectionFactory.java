@@ -20,6 +20,7 @@ import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.Enumeration;
 import java.util.Properties;
 
 import org.etk.common.logging.Logger;
@@ -29,6 +30,7 @@ import org.etk.entity.engine.plugins.config.EntityConfigUtil;
 import org.etk.entity.engine.plugins.connection.ConnectionFactoryInterface;
 import org.etk.entity.engine.plugins.datasource.GenericHelperInfo;
 import org.etk.entity.engine.plugins.transaction.TransactionFactory;
+import org.w3c.dom.Element;
 
 /**
  * ConnectionFactory - central source for JDBC connections
@@ -136,8 +138,9 @@ public class ConnectionFactory {
         getManagedConnectionFactory().closeAll();
     }
 
+    /** Registers the driver class with the DriverManager unless a driver of that class already is */
     public static void loadDriver(String driverName) throws SQLException {
-        if (DriverManager.getDriver(driverName) == null) {
+        if (!isDriverLoaded(driverName)) {
             try {
                 Driver driver = (Driver) Class.forName(driverName, true, Thread.currentThread().getContextClassLoader()).newInstance();
                 DriverManager.registerDriver(driver);
@@ -151,6 +154,17 @@ public class ConnectionFactory {
         }
     }
 
+    private static boolean isDriverLoaded(String driverName) {
+        // DriverManager.getDriver takes a URL, the drivers are matched by class name instead
+        Enumeration<Driver> drivers = DriverManager.getDrivers();
+        while (drivers.hasMoreElements()) {
+            if (drivers.nextElement().getClass().getName().equals(driverName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static void unloadDriver(String driverName) throws SQLException {
         Driver driver = DriverManager.getDriver(driverName);
         if (driver != null) {
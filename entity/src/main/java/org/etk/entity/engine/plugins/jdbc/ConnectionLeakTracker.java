@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.jdbc;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.etk.common.logging.Logger;
+
+/**
+ * Safety net for the connections of SQLProcessors that are never closed.
+ * <p>
+ * Each connection a SQLProcessor opens is tracked with a phantom reference to
+ * the SQLProcessor, which holds on to the connection but not to the processor.
+ * When the processor is garbage collected without being closed the connection
+ * is rolled back, closed and counted as leaked. The queue is drained whenever a
+ * new connection is tracked, so connections come back at the rate new ones are
+ * asked for, without a finalizer or a thread of its own.
+ * <p>
+ * With a sample rate of n, one tracked connection in n also records where it
+ * was opened, which is logged if it leaks.
+ */
+public final class ConnectionLeakTracker {
+
+    private static final Logger logger = Logger.getLogger(ConnectionLeakTracker.class);
+
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    /** Keeps the handles reachable until they are untracked or reaped */
+    private static final Set<Handle> handles = Collections.newSetFromMap(new ConcurrentHashMap<Handle, Boolean>());
+
+    private static final AtomicLong totalTracked = new AtomicLong();
+    private static final AtomicLong totalLeaked = new AtomicLong();
+
+    private static volatile int sampleRate = 0;
+
+    private ConnectionLeakTracker() {}
+
+    /** Records the allocation site of one tracked connection in sampleRate, 0 to never record it */
+    public static void setSampleRate(int sampleRate) {
+        ConnectionLeakTracker.sampleRate = sampleRate;
+    }
+
+    public static int getSampleRate() {
+        return sampleRate;
+    }
+
+    /** Tracks the connection opened by owner until the returned handle is untracked */
+    public static Handle track(Object owner, Connection connection, String description) {
+        reap();
+        long count = totalTracked.incrementAndGet();
+        int rate = sampleRate;
+        Exception allocationSite = rate > 0 && count % rate == 0 ? new Exception("Connection opened here") : null;
+        Handle handle = new Handle(owner, connection, description, allocationSite);
+        handles.add(handle);
+        return handle;
+    }
+
+    /** Closes the connections of the owners collected since the last call */
+    public static void reap() {
+        Reference<?> reference;
+        while ((reference = queue.poll()) != null) {
+            Handle handle = (Handle) reference;
+            if (handles.remove(handle)) {
+                handle.reclaim();
+            }
+        }
+    }
+
+    /** The number of connections tracked so far */
+    public static long getTotalTrackedCount() {
+        return totalTracked.get();
+    }
+
+    /** The number of connections reclaimed because their owner was never closed */
+    public static long getTotalLeakedCount() {
+        return totalLeaked.get();
+    }
+
+    /** The number of tracked connections not closed yet */
+    public static int getOpenCount() {
+        return handles.size();
+    }
+
+    public static final class Handle extends PhantomReference<Object> {
+        private final Connection connection;
+        private final Exception allocationSite;
+        private volatile String description;
+
+        private Handle(Object owner, Connection connection, String description, Exception allocationSite) {
+            super(owner, queue);
+            this.connection = connection;
+            this.description = description;
+            this.allocationSite = allocationSite;
+        }
+
+        public void setDescription(String description) {
+            this.description = description;
+        }
+
+        /** Called when the owner closes the connection itself */
+        public void untrack() {
+            handles.remove(this);
+            clear();
+        }
+
+        private void reclaim() {
+            totalLeaked.incrementAndGet();
+            String message = "Connection of " + (description == null ? "a SQLProcessor" : description) + " was not closed, closing it now";
+            if (allocationSite != null) {
+                logger.error(message, allocationSite);
+            } else {
+                logger.error(message + " (set a sample rate on ConnectionLeakTracker to see where it was opened)");
+            }
+            try {
+                // the work of an abandoned processor is not trusted, never commit it
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                }
+            } catch (SQLException e) {
+                logger.warn("Error rolling back a leaked connection", e);
+            }
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.warn("Error closing a leaked connection", e);
+            }
+        }
+    }
+}
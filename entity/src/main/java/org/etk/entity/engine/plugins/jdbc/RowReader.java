@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.jdbc;
+
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.etk.common.logging.Logger;
+import org.etk.entity.engine.core.GenericEntity;
+import org.etk.entity.engine.core.GenericEntityException;
+import org.etk.entity.engine.core.GenericNotImplementedException;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+import org.etk.entity.engine.plugins.model.xml.Field;
+import org.etk.entity.engine.plugins.model.xml.FieldType;
+
+/**
+ * Reads the rows of a result set into GenericEntity instances.
+ * <p>
+ * Everything {@link SqlJdbcUtil#getValue(ResultSet, int, Field, GenericEntity, ModelFieldTypeReader)}
+ * looks up per cell - the field type, its JdbcValueHandler and, for types
+ * without a handler, the java type code - is resolved once when the reader is
+ * built. Readers are kept per entity, selected fields and field type reader
+ * (that is, datasource), so a query only pays for a map lookup.
+ */
+public final class RowReader {
+
+    private static final Logger logger = Logger.getLogger(RowReader.class);
+
+    private static final int MAX_CACHED_READERS = 10000;
+
+    private static final ConcurrentHashMap<Key, RowReader> readers = new ConcurrentHashMap<Key, RowReader>();
+
+    /**
+     * Returns the reader for the given fields of the entity, read in list
+     * order starting at the first column.
+     */
+    public static RowReader getRowReader(Entity modelEntity, List<Field> fields, ModelFieldTypeReader modelFieldTypeReader) throws GenericEntityException {
+        Key key = new Key(modelEntity, fields, modelFieldTypeReader);
+        RowReader reader = readers.get(key);
+        if (reader == null) {
+            reader = new RowReader(modelEntity, fields, modelFieldTypeReader);
+            if (readers.size() >= MAX_CACHED_READERS) {
+                // entity definitions were reloaded or fields are selected in many different ways
+                logger.warn("More than " + MAX_CACHED_READERS + " row readers cached, clearing them");
+                readers.clear();
+            }
+            RowReader existing = readers.putIfAbsent(key, reader);
+            if (existing != null) {
+                reader = existing;
+            }
+        }
+        return reader;
+    }
+
+    private final Field[] fields;
+    private final JdbcValueHandler<?>[] handlers;
+    private final int[] typeValues;
+
+    private RowReader(Entity modelEntity, List<Field> fieldList, ModelFieldTypeReader modelFieldTypeReader) throws GenericEntityException {
+        FieldType[] fieldTypes = SqlJdbcUtil.getModelFieldTypes(modelEntity, fieldList, modelFieldTypeReader);
+        this.fields = fieldList.toArray(new Field[fieldList.size()]);
+        this.handlers = new JdbcValueHandler<?>[fields.length];
+        this.typeValues = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            handlers[i] = fieldTypes[i].getJdbcValueHandler();
+            if (handlers[i] == null) {
+                logger.warn("JdbcValueHandler not found for java-type " + fieldTypes[i].getJavaType() +
+                        ", falling back on switch statement. Entity = " + modelEntity.getEntityName() +
+                        ", field = " + fields[i].getName() + ".");
+            }
+            try {
+                typeValues[i] = SqlJdbcUtil.getType(fieldTypes[i].getJavaType());
+            } catch (GenericNotImplementedException e) {
+                if (handlers[i] == null) {
+                    throw e;
+                }
+                // only needed if the handler fails
+                typeValues[i] = -1;
+            }
+        }
+    }
+
+    public int getFieldCount() {
+        return fields.length;
+    }
+
+    /** Reads the current row of the result set into the entity */
+    public void read(ResultSet rs, GenericEntity entity) throws GenericEntityException {
+        for (int i = 0; i < fields.length; i++) {
+            JdbcValueHandler<?> handler = handlers[i];
+            if (handler != null) {
+                try {
+                    entity.dangerousSetNoCheckButFast(fields[i], handler.getValue(rs, i + 1));
+                    continue;
+                } catch (Exception e) {
+                    logger.error("Error reading field " + fields[i].getName() + " of entity " + entity.getEntityName() + " with its JdbcValueHandler", e);
+                    if (typeValues[i] < 0) {
+                        throw new GenericEntityException("Cannot read field " + fields[i].getName() + " of entity " + entity.getEntityName(), e);
+                    }
+                }
+            }
+            SqlJdbcUtil.getValue(rs, i + 1, fields[i], typeValues[i], entity);
+        }
+    }
+
+    private static final class Key {
+        private final Entity modelEntity;
+        private final Field[] fields;
+        private final ModelFieldTypeReader modelFieldTypeReader;
+        private final int hashCode;
+
+        Key(Entity modelEntity, List<Field> fields, ModelFieldTypeReader modelFieldTypeReader) {
+            this.modelEntity = modelEntity;
+            // copied, the caller may reuse its list
+            this.fields = fields.toArray(new Field[fields.size()]);
+            this.modelFieldTypeReader = modelFieldTypeReader;
+            int h = System.identityHashCode(modelEntity);
+            for (int i = 0; i < this.fields.length; i++) {
+                h = 31 * h + System.identityHashCode(this.fields[i]);
+            }
+            this.hashCode = 31 * h + System.identityHashCode(modelFieldTypeReader);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            if (hashCode != other.hashCode || modelEntity != other.modelEntity || modelFieldTypeReader != other.modelFieldTypeReader
+                    || fields.length != other.fields.length) {
+                return false;
+            }
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i] != other.fields[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
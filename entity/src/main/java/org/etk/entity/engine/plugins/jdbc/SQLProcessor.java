@@ -39,6 +39,8 @@ import org.etk.entity.engine.core.GenericEntityException;
 import org.etk.entity.engine.plugins.config.DatasourceInfo;
 import org.etk.entity.engine.plugins.config.EntityConfigUtil;
 import org.etk.entity.engine.plugins.datasource.GenericHelperInfo;
+import org.etk.entity.engine.plugins.jdbc.StatementCache.StatementKey;
+import org.etk.entity.engine.plugins.metrics.EntityMetricsFactory;
 import org.etk.entity.engine.plugins.transaction.GenericTransactionException;
 import org.etk.entity.engine.plugins.transaction.TransactionUtil;
 
@@ -56,6 +58,9 @@ public class SQLProcessor {
     public static int MAX_CONNECTIONS = 1000;
     public static boolean ENABLE_TEST = false;
 
+    /** Number of statements collected by {@link #addBatch()} before they are sent to the database, unless set otherwise */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
     /** The datasource helper (see entityengine.xml <datasource name="..">) */
     private GenericHelperInfo helperInfo;
 
@@ -68,6 +73,12 @@ public class SQLProcessor {
     // / The database resources to be used
     private ResultSet _rs = null;
 
+    // / The statement cache _ps was taken from, null if it is not cached
+    private StatementCache _statementCache = null;
+
+    // / The key _ps is kept under in _statementCache
+    private StatementKey _statementKey = null;
+
     private ResultSetMetaData _rsmd = null;
 
     // / The SQL String used. Use for debugging only
@@ -82,6 +93,21 @@ public class SQLProcessor {
     // / true in case the connection shall be closed.
     private boolean _bDeleteConnection = false;
 
+    // / Number of batched statements after which the batch is executed, 0 or less for no limit
+    private int _batchSize = DEFAULT_BATCH_SIZE;
+
+    // / Number of statements in the batch that has not been executed yet
+    private int _batchCount = 0;
+
+    // / Update counts of the parts of the batch already executed by addBatch()
+    private List<int[]> _batchResults = null;
+
+    // / Reclaims the connection if this SQLProcessor is dropped without being closed
+    private ConnectionLeakTracker.Handle _leakHandle = null;
+
+    // / What this SQLProcessor is used for, reported if its connection leaks
+    private String _leakDescription = null;
+
     /**
      * Construct an object based on the helper/datasource
      *
@@ -195,6 +221,8 @@ public class SQLProcessor {
         }
 
         _sql = null;
+        _batchCount = 0;
+        _batchResults = null;
 
         if (_rs != null) {
             try {
@@ -208,14 +236,7 @@ public class SQLProcessor {
         }
 
         if (_ps != null) {
-            try {
-                _ps.close();
-                if (logger.isDebugEnabled()) logger.debug("SQLProcessor:close() preparedStatement close : _manualTX=" + _manualTX);
-            } catch (SQLException sqle) {
-                logger.warn(sqle.getMessage());
-            }
-
-            _ps = null;
+            releaseStatement();
         }
 
         if ((_connection != null) && _bDeleteConnection) {
@@ -226,10 +247,22 @@ public class SQLProcessor {
               logger.warn(sqle.getMessage());
             }
 
+            if (_leakHandle != null) {
+                _leakHandle.untrack();
+                _leakHandle = null;
+            }
             _connection = null;
         }
     }
 
+    /** Describes the use of this SQLProcessor in the report of ConnectionLeakTracker if it is never closed */
+    public void setLeakDescription(String description) {
+        _leakDescription = description;
+        if (_leakHandle != null) {
+            _leakHandle.setDescription(description);
+        }
+    }
+
     /**
      * Get a connection from the ConnectionFactory
      *
@@ -245,7 +278,9 @@ public class SQLProcessor {
         _manualTX = true;
 
         try {
+            long startNanos = System.nanoTime();
             _connection = ConnectionFactory.getConnection(helperInfo);
+            EntityMetricsFactory.getMetrics().recordConnectionWait(System.nanoTime() - startNanos);
             if (logger.isDebugEnabled()) logger.debug("SQLProcessor:connection() : manualTx=" + _manualTX);
         } catch (SQLException sqle) {
             throw new GenericDataSourceException("Unable to esablish a connection with the database.", sqle);
@@ -309,6 +344,7 @@ public class SQLProcessor {
         if (logger.isDebugEnabled()) logger.debug("[SQLProcessor.getConnection] : con=" + _connection);
 
         _bDeleteConnection = true;
+        _leakHandle = ConnectionLeakTracker.track(this, _connection, _leakDescription);
         return _connection;
     }
 
@@ -354,10 +390,23 @@ public class SQLProcessor {
             getConnection();
         }
 
+        if (_ps != null && _statementCache != null) {
+            releaseStatement();
+        }
+
+        long startNanos = System.nanoTime();
         try {
             _sql = sql;
             _ind = 1;
-            if (specifyTypeAndConcur) {
+            _batchCount = 0;
+            _batchResults = null;
+            StatementCache statementCache = CachingConnection.getStatementCache(_connection);
+            if (statementCache != null) {
+                _statementKey = new StatementKey(sql, specifyTypeAndConcur, resultSetType, resultSetConcurrency, fetchSize);
+                _ps = statementCache.get(_connection, _statementKey);
+                _statementCache = statementCache;
+                if (logger.isDebugEnabled()) logger.debug("[SQLProcessor.prepareStatement] (cached) _ps=" + _ps);
+            } else if (specifyTypeAndConcur) {
                 _ps = _connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
                 if (logger.isDebugEnabled()) logger.debug("[SQLProcessor.prepareStatement] _ps=" + _ps);
             } else {
@@ -369,6 +418,7 @@ public class SQLProcessor {
                 if (logger.isDebugEnabled()) logger.debug("[SQLProcessor.prepareStatement] max rows set : " + maxRows);
             }
             this.setFetchSize(_ps, fetchSize);
+            EntityMetricsFactory.getMetrics().recordStatementPrepare(System.nanoTime() - startNanos);
         } catch (SQLException sqle) {
             throw new GenericDataSourceException("SQL Exception while executing the following:" + sql, sqle);
         }
@@ -449,6 +499,85 @@ public class SQLProcessor {
         }
     }
 
+    /**
+     * Sets the number of statements collected by {@link #addBatch()} before
+     * they are sent to the database.
+     *
+     * @param batchSize  The batch size, 0 or less to send all statements on {@link #executeBatch()}
+     */
+    public void setBatchSize(int batchSize) {
+        _batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return _batchSize;
+    }
+
+    /**
+     * Adds the values bound so far to the batch of the prepared statement and
+     * starts over with the first binding variable. Once the batch size is
+     * reached the batch is executed right away; its update counts are
+     * returned by {@link #executeBatch()}.
+     *
+     * @throws GenericDataSourceException
+     */
+    public void addBatch() throws GenericDataSourceException {
+        try {
+            _ps.addBatch();
+        } catch (SQLException sqle) {
+            throw new GenericDataSourceException("SQL Exception while adding a batch for the following:" + _sql, sqle);
+        }
+        _ind = 1;
+        _batchCount++;
+        if (_batchSize > 0 && _batchCount >= _batchSize) {
+            if (_batchResults == null) {
+                _batchResults = new ArrayList<int[]>();
+            }
+            _batchResults.add(flushBatch());
+        }
+    }
+
+    /**
+     * Executes the statements left in the batch.
+     *
+     * @return  The update counts of all the statements added since the statement
+     *          was prepared, in the order they were added; drivers that do not
+     *          report counts return {@link Statement#SUCCESS_NO_INFO}
+     * @throws GenericDataSourceException
+     */
+    public int[] executeBatch() throws GenericDataSourceException {
+        int[] counts = _batchCount > 0 ? flushBatch() : new int[0];
+        if (_batchResults == null) {
+            return counts;
+        }
+
+        _batchResults.add(counts);
+        int total = 0;
+        for (int[] part : _batchResults) {
+            total += part.length;
+        }
+        int[] allCounts = new int[total];
+        int pos = 0;
+        for (int[] part : _batchResults) {
+            System.arraycopy(part, 0, allCounts, pos, part.length);
+            pos += part.length;
+        }
+        _batchResults = null;
+        return allCounts;
+    }
+
+    private int[] flushBatch() throws GenericDataSourceException {
+        try {
+            int[] counts = _ps.executeBatch();
+            if (logger.isDebugEnabled()) logger.debug("[SQLProcessor.executeBatch] executed " + _batchCount + " statement(s) of: " + _sql);
+            _batchCount = 0;
+            return counts;
+        } catch (SQLException sqle) {
+            this.checkLockWaitInfo(sqle);
+            throw new GenericDataSourceException("SQL Exception while executing the batch of the following:" + _sql, sqle);
+        }
+    }
+
     /**
      * Test if there more records available
      *
@@ -752,6 +881,22 @@ public class SQLProcessor {
         _ind++;
     }
 
+    /**
+     * Set the next binding variable of the currently active prepared statement
+     *
+     * @param field
+     *
+     * @throws SQLException
+     */
+    public void setValue(java.sql.Array field) throws SQLException {
+        if (field != null) {
+            _ps.setArray(_ind, field);
+        } else {
+            _ps.setNull(_ind, Types.ARRAY);
+        }
+        _ind++;
+    }
+
     /**
      * Set the next binding variable of the currently active prepared statement
      *
@@ -826,14 +971,25 @@ public class SQLProcessor {
         _ind++;
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        try {
-            this.close();
-        } catch (Exception e) {
-            logger.error("Error closing the result, connection, etc in finalize SQLProcessor", e);
+    /**
+     * Closes the prepared statement, or hands it back to the statement cache of
+     * the connection it came from.
+     */
+    private void releaseStatement() {
+        if (_statementCache != null) {
+            _statementCache.release(_statementKey, _ps);
+            if (logger.isDebugEnabled()) logger.debug("SQLProcessor:close() preparedStatement released to cache : _manualTX=" + _manualTX);
+            _statementCache = null;
+            _statementKey = null;
+        } else {
+            try {
+                _ps.close();
+                if (logger.isDebugEnabled()) logger.debug("SQLProcessor:close() preparedStatement close : _manualTX=" + _manualTX);
+            } catch (SQLException sqle) {
+                logger.warn(sqle.getMessage());
+            }
         }
-        super.finalize();
+        _ps = null;
     }
 
     protected void testConnection(Connection con) throws GenericEntityException {
@@ -848,6 +1004,39 @@ public class SQLProcessor {
         }
     }
 
+    /**
+     * Checks that a connection can still be used: with the test statement when
+     * one is given, otherwise with {@link Connection#isValid(int)}.
+     *
+     * @param con  The connection to test
+     * @param testStatement  SQL to execute, may be null
+     * @param timeoutSeconds  Time to wait for the database, 0 for no limit
+     * @return true if the connection works
+     */
+    public static boolean testConnection(Connection con, String testStatement, int timeoutSeconds) {
+        try {
+            if (con.isClosed()) {
+                return false;
+            }
+            if (testStatement == null || testStatement.length() == 0) {
+                return con.isValid(timeoutSeconds);
+            }
+            Statement stmt = con.createStatement();
+            try {
+                if (timeoutSeconds > 0) {
+                    stmt.setQueryTimeout(timeoutSeconds);
+                }
+                stmt.execute(testStatement);
+                return true;
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException sqle) {
+            if (logger.isDebugEnabled()) logger.debug("[SQLProcessor.testConnection] connection test failed: " + sqle.getMessage());
+            return false;
+        }
+    }
+
     protected void setFetchSize(Statement stmt, int fetchSize) throws SQLException {
         // do not set fetch size when using the cursor connection
         if (_connection instanceof CursorConnection) return;
@@ -26,8 +26,8 @@ import java.nio.ByteBuffer;
 import java.sql.Blob;
 import java.sql.Clob;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -37,6 +37,8 @@ import java.util.TreeSet;
 
 import javolution.util.FastMap;
 
+import org.etk.entity.base.utils.GeneralException;
+import org.etk.entity.base.utils.ObjectType;
 import org.etk.entity.base.utils.UtilGenerics;
 import org.etk.entity.base.utils.UtilValidate;
 import org.etk.entity.engine.core.GenericDataSourceException;
@@ -47,6 +49,8 @@ import org.etk.entity.engine.core.GenericNotImplementedException;
 import org.etk.entity.engine.core.GenericValue;
 import org.etk.entity.engine.plugins.condition.EntityCondition;
 import org.etk.entity.engine.plugins.condition.EntityConditionParam;
+import org.etk.entity.engine.plugins.condition.EntityConditionShape;
+import org.etk.entity.engine.plugins.condition.EntityInListStrategy;
 import org.etk.entity.engine.plugins.condition.OrderByList;
 import org.etk.entity.engine.plugins.config.DatasourceInfo;
 import org.etk.entity.engine.plugins.model.xml.Entity;
@@ -63,8 +67,58 @@ public class SqlJdbcUtil {
 
     public static final int CHAR_BUFFER_SIZE = 4096;
 
-    /** Makes the FROM clause and when necessary the JOIN clause(s) as well */
+    private static final SqlTextCache fromClauses = new SqlTextCache("from-clauses");
+    private static final SqlTextCache orderByClauses = new SqlTextCache("order-by-clauses");
+    private static final SqlTextCache whereClauses = new SqlTextCache("where-clauses");
+    /** Marks the condition shapes whose SQL text cannot be reused */
+    private static final Object UNCACHEABLE = new Object();
+
+    /** Makes the FROM clause and when necessary the JOIN clause(s) as well; the result is cached per entity and datasource */
     public static String makeFromClause(Entity modelEntity, ModelFieldTypeReader modelFieldTypeReader, DatasourceInfo datasourceInfo) throws GenericEntityException {
+        String sql = (String) fromClauses.get(modelEntity, datasourceInfo, modelFieldTypeReader);
+        if (sql == null) {
+            sql = buildFromClause(modelEntity, modelFieldTypeReader, datasourceInfo);
+            fromClauses.put(modelEntity, datasourceInfo, modelFieldTypeReader, sql);
+        }
+        return sql;
+    }
+
+    /**
+     * Makes the WHERE text of the condition and adds its parameters to
+     * <code>entityConditionParams</code>. The text is cached per condition
+     * shape, see {@link EntityConditionShape}, so conditions differing only by
+     * their values share it and only their parameters are collected.
+     */
+    public static String makeWhereString(EntityCondition condition, Entity modelEntity, List<EntityConditionParam> entityConditionParams, DatasourceInfo datasourceInfo) {
+        List<Object> shape = new ArrayList<Object>();
+        List<Object> values = new ArrayList<Object>();
+        if (!EntityConditionShape.collect(condition, modelEntity, datasourceInfo, shape, values)) {
+            return condition.makeWhereString(modelEntity, entityConditionParams, datasourceInfo);
+        }
+        Object cached = whereClauses.get(modelEntity, datasourceInfo, shape);
+        if (cached instanceof SqlTextCache.WhereClause) {
+            SqlTextCache.WhereClause whereClause = (SqlTextCache.WhereClause) cached;
+            whereClause.addParams(entityConditionParams, values);
+            return whereClause.getSql();
+        }
+        if (cached == UNCACHEABLE) {
+            return condition.makeWhereString(modelEntity, entityConditionParams, datasourceInfo);
+        }
+
+        List<EntityConditionParam> params = new ArrayList<EntityConditionParam>(values.size());
+        String sql = condition.makeWhereString(modelEntity, params, datasourceInfo);
+        SqlTextCache.WhereClause whereClause = SqlTextCache.WhereClause.make(sql, params, values);
+        if (whereClause == null) {
+            Debug.logWarning("The parameters of condition [" + sql + "] do not follow its shape, its SQL will not be cached", module);
+            whereClauses.put(modelEntity, datasourceInfo, shape, UNCACHEABLE);
+        } else {
+            whereClauses.put(modelEntity, datasourceInfo, shape, whereClause);
+        }
+        if (entityConditionParams != null) entityConditionParams.addAll(params);
+        return sql;
+    }
+
+    private static String buildFromClause(Entity modelEntity, ModelFieldTypeReader modelFieldTypeReader, DatasourceInfo datasourceInfo) throws GenericEntityException {
         StringBuilder sql = new StringBuilder(" FROM ");
 
         if (modelEntity instanceof ViewEntity) {
@@ -378,6 +432,21 @@ public class SqlJdbcUtil {
     }
 
     public static String makeOrderByClause(Entity modelEntity, List<String> orderBy, boolean includeTablenamePrefix, DatasourceInfo datasourceInfo) throws GenericModelException {
+        if (UtilValidate.isEmpty(orderBy)) {
+            return "";
+        }
+        List<Object> detail = new ArrayList<Object>(orderBy.size() + 1);
+        detail.addAll(orderBy);
+        detail.add(Boolean.valueOf(includeTablenamePrefix));
+        String sql = (String) orderByClauses.get(modelEntity, datasourceInfo, detail);
+        if (sql == null) {
+            sql = buildOrderByClause(modelEntity, orderBy, includeTablenamePrefix, datasourceInfo);
+            orderByClauses.put(modelEntity, datasourceInfo, detail, sql);
+        }
+        return sql;
+    }
+
+    private static String buildOrderByClause(Entity modelEntity, List<String> orderBy, boolean includeTablenamePrefix, DatasourceInfo datasourceInfo) throws GenericModelException {
         StringBuilder sql = new StringBuilder("");
         //String fieldPrefix = includeTablenamePrefix ? (modelEntity.getTableName(datasourceInfo) + ".") : "";
 
@@ -496,6 +565,28 @@ public class SqlJdbcUtil {
                     entity.getEntityName() + "." + curField.getName() + ".");
         }
 
+        getValue(rs, ind, curField, mft, entity);
+    }
+
+    /**
+     * Resolves the field types of the fields once, so the rows of a query can
+     * be read with {@link #getValue(ResultSet, int, Field, FieldType, GenericEntity)}
+     * without a type lookup per cell.
+     */
+    public static FieldType[] getModelFieldTypes(Entity modelEntity, List<Field> fields, ModelFieldTypeReader modelFieldTypeReader) throws GenericEntityException {
+        FieldType[] fieldTypes = new FieldType[fields.size()];
+        for (int i = 0; i < fieldTypes.length; i++) {
+            Field curField = fields.get(i);
+            fieldTypes[i] = modelFieldTypeReader.getModelFieldType(curField.getType());
+            if (fieldTypes[i] == null) {
+                throw new GenericModelException("definition fieldType " + curField.getType() + " not found, cannot getValue for field " +
+                        modelEntity.getEntityName() + "." + curField.getName() + ".");
+            }
+        }
+        return fieldTypes;
+    }
+
+    public static void getValue(ResultSet rs, int ind, Field curField, FieldType mft, GenericEntity entity) throws GenericEntityException {
         // ----- Try out the new handler code -----
 
         JdbcValueHandler<?> handler = mft.getJdbcValueHandler();
@@ -515,18 +606,21 @@ public class SqlJdbcUtil {
 
         // ------------------------------------------
 
-        String fieldType = mft.getJavaType();
+        getValue(rs, ind, curField, getType(mft.getJavaType()), entity);
+    }
 
+    /**
+     * Reads a value without a JdbcValueHandler, switching on the java type.
+     *
+     * @param typeValue  the java type of the field as returned by {@link #getType(String)}
+     */
+    public static void getValue(ResultSet rs, int ind, Field curField, int typeValue, GenericEntity entity) throws GenericEntityException {
         try {
             // checking to see if the object is null is really only necessary for the numbers
-            int typeValue = getType(fieldType);
-            ResultSetMetaData rsmd = rs.getMetaData();
-            int colType = rsmd.getColumnType(ind);
-
             if (typeValue <= 4 || typeValue >= 11) {
                 switch (typeValue) {
                 case 1:
-                    if (java.sql.Types.CLOB == colType) {
+                    if (java.sql.Types.CLOB == rs.getMetaData().getColumnType(ind)) {
                         // Debug.logInfo("For field " + curField.getName() + " of entity " + entity.getEntityName() + " getString is a CLOB, trying getCharacterStream", module);
                         // if the String is empty, try to get a text input stream, this is required for some databases for larger fields, like CLOBs
 
@@ -732,6 +826,13 @@ public class SqlJdbcUtil {
         setValue(sqlP, modelField, entity.getEntityName(), fieldValue, modelFieldTypeReader);
     }
 
+    /** The SQL type of the field without its length or precision, as expected by Connection.createArrayOf */
+    private static String getArrayTypeName(FieldType mft) {
+        String sqlType = mft.getSqlType();
+        int paren = sqlType.indexOf('(');
+        return (paren < 0 ? sqlType : sqlType.substring(0, paren)).trim();
+    }
+
     public static <T> void setValue(SQLProcessor sqlP, Field modelField, String entityName, Object fieldValue, ModelFieldTypeReader modelFieldTypeReader) throws GenericEntityException {
         FieldType mft = modelFieldTypeReader.getModelFieldType(modelField.getType());
 
@@ -745,6 +846,27 @@ public class SqlJdbcUtil {
             fieldValue = null;
         }
 
+        // an IN list bound as one SQL array, see EntityInListStrategy
+        if (fieldValue instanceof EntityInListStrategy.SqlArray) {
+            Collection<?> values = ((EntityInListStrategy.SqlArray) fieldValue).getValues();
+            Object[] elements = new Object[values.size()];
+            int i = 0;
+            for (Object value : values) {
+                try {
+                    elements[i++] = ObjectType.simpleTypeConvert(value, mft.getJavaType(), null, null);
+                } catch (GeneralException e) {
+                    throw new GenericModelException("Could not convert the IN list value [" + value + "] of field " + entityName + "." + modelField.getName()
+                            + " to " + mft.getJavaType(), e);
+                }
+            }
+            try {
+                sqlP.setValue(sqlP.getConnection().createArrayOf(getArrayTypeName(mft), elements));
+                return;
+            } catch (SQLException e) {
+                throw new GenericDataSourceException("SQL Exception while setting array value on field [" + modelField.getName() + "] of entity " + entityName + ": ", e);
+            }
+        }
+
         // ----- Try out the new handler code -----
 
         JdbcValueHandler<T> handler = UtilGenerics.cast(mft.getJdbcValueHandler());
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.jdbc;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.etk.common.logging.Logger;
+import org.etk.entity.engine.plugins.condition.EntityConditionParam;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+import org.etk.entity.engine.plugins.model.xml.Field;
+
+/**
+ * Memoized SQL fragments, see {@link SqlJdbcUtil#makeFromClause},
+ * {@link SqlJdbcUtil#makeOrderByClause} and {@link SqlJdbcUtil#makeWhereString}.
+ * <p>
+ * Fragments are kept per entity and datasource plus a detail compared by
+ * value: the order by list or the shape of a condition. The entity and the
+ * datasource are compared by identity so reloaded definitions get new lines.
+ * When a cache is full it is cleared, like the {@link RowReader} cache.
+ */
+public final class SqlTextCache {
+
+    private static final Logger logger = Logger.getLogger(SqlTextCache.class);
+
+    public static final int MAX_CACHED_FRAGMENTS = 10000;
+
+    private final String name;
+    private final ConcurrentHashMap<Key, Object> fragments = new ConcurrentHashMap<Key, Object>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public SqlTextCache(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Object get(Entity modelEntity, Object datasource, Object detail) {
+        Object fragment = fragments.get(new Key(modelEntity, datasource, detail));
+        if (fragment == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return fragment;
+    }
+
+    public void put(Entity modelEntity, Object datasource, Object detail, Object fragment) {
+        if (fragments.size() >= MAX_CACHED_FRAGMENTS) {
+            logger.warn("More than " + MAX_CACHED_FRAGMENTS + " SQL fragments cached in " + name + ", clearing them");
+            fragments.clear();
+        }
+        fragments.put(new Key(modelEntity, datasource, detail), fragment);
+    }
+
+    public void clear() {
+        fragments.clear();
+    }
+
+    public int size() {
+        return fragments.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * The WHERE text built for one condition shape along with the model field
+     * of each parameter, the values come from the condition being executed.
+     */
+    public static final class WhereClause {
+        private final String sql;
+        private final Field[] fields;
+
+        /** Returns null when the parameters do not match the values collected from the condition shape */
+        static WhereClause make(String sql, List<EntityConditionParam> params, List<Object> values) {
+            if (params.size() != values.size()) {
+                return null;
+            }
+            Field[] fields = new Field[params.size()];
+            for (int i = 0; i < fields.length; i++) {
+                EntityConditionParam param = params.get(i);
+                if (param.getFieldValue() != values.get(i)) {
+                    return null;
+                }
+                fields[i] = param.getModelField();
+            }
+            return new WhereClause(sql, fields);
+        }
+
+        private WhereClause(String sql, Field[] fields) {
+            this.sql = sql;
+            this.fields = fields;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        void addParams(List<EntityConditionParam> params, List<Object> values) {
+            if (params == null) return;
+            for (int i = 0; i < fields.length; i++) {
+                params.add(new EntityConditionParam(fields[i], values.get(i)));
+            }
+        }
+    }
+
+    private static final class Key {
+        private final Entity modelEntity;
+        private final Object datasource;
+        private final Object detail;
+        private final int hashCode;
+
+        Key(Entity modelEntity, Object datasource, Object detail) {
+            this.modelEntity = modelEntity;
+            this.datasource = datasource;
+            this.detail = detail;
+            int h = System.identityHashCode(modelEntity);
+            h = 31 * h + System.identityHashCode(datasource);
+            this.hashCode = 31 * h + (detail == null ? 0 : detail.hashCode());
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            Key that = (Key) obj;
+            return hashCode == that.hashCode && modelEntity == that.modelEntity && datasource == that.datasource
+                    && (detail == null ? that.detail == null : detail.equals(that.detail));
+        }
+    }
+}
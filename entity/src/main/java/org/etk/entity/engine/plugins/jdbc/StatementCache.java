@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.etk.common.logging.Logger;
+
+/**
+ * LRU cache of the prepared statements of one physical connection.
+ * <p>
+ * A statement is checked out with {@link #get(Connection, StatementKey)} and
+ * handed back with {@link #release(StatementKey, PreparedStatement)} instead of
+ * being closed; while it is checked out nobody else can get it, so two open
+ * SQLProcessors on the same connection never share a statement. The cache is
+ * owned by a {@link CachingConnection} and closed together with it.
+ */
+public class StatementCache {
+
+    private static final Logger logger = Logger.getLogger(StatementCache.class);
+
+    private static final AtomicLong totalHits = new AtomicLong();
+    private static final AtomicLong totalMisses = new AtomicLong();
+    private static final AtomicLong totalEvictions = new AtomicLong();
+
+    private final int maxSize;
+    private final LinkedHashMap<StatementKey, PreparedStatement> statements;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private boolean closed = false;
+
+    public StatementCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.statements = new LinkedHashMap<StatementKey, PreparedStatement>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the cached statement for the key, or prepares a new one on the
+     * connection when there is none.
+     */
+    public PreparedStatement get(Connection connection, StatementKey key) throws SQLException {
+        PreparedStatement ps;
+        synchronized (this) {
+            ps = statements.remove(key);
+        }
+        if (ps != null) {
+            hits.incrementAndGet();
+            totalHits.incrementAndGet();
+            return ps;
+        }
+        misses.incrementAndGet();
+        totalMisses.incrementAndGet();
+        if (key.specifyTypeAndConcur) {
+            return connection.prepareStatement(key.sql, key.resultSetType, key.resultSetConcurrency);
+        }
+        return connection.prepareStatement(key.sql);
+    }
+
+    /**
+     * Hands a statement obtained from {@link #get(Connection, StatementKey)}
+     * back to the cache, resetting the state the next user could trip over.
+     * The statement is closed if it cannot be reused or the cache is full of
+     * more recently used statements.
+     */
+    public void release(StatementKey key, PreparedStatement ps) {
+        try {
+            ps.clearParameters();
+            ps.clearBatch();
+            if (ps.getMaxRows() != 0) {
+                ps.setMaxRows(0);
+            }
+        } catch (SQLException e) {
+            logger.warn("Could not reset cached statement, closing it: " + e.getMessage());
+            closeStatement(ps);
+            return;
+        }
+
+        List<PreparedStatement> toClose = null;
+        synchronized (this) {
+            if (closed || maxSize <= 0) {
+                toClose = new ArrayList<PreparedStatement>(1);
+                toClose.add(ps);
+            } else {
+                PreparedStatement previous = statements.put(key, ps);
+                if (previous != null && previous != ps) {
+                    // the same SQL was open twice on this connection, keep one of them
+                    toClose = new ArrayList<PreparedStatement>(1);
+                    toClose.add(previous);
+                }
+                Iterator<PreparedStatement> it = statements.values().iterator();
+                while (statements.size() > maxSize && it.hasNext()) {
+                    if (toClose == null) {
+                        toClose = new ArrayList<PreparedStatement>();
+                    }
+                    toClose.add(it.next());
+                    it.remove();
+                    evictions.incrementAndGet();
+                    totalEvictions.incrementAndGet();
+                }
+            }
+        }
+        if (toClose != null) {
+            for (PreparedStatement stmt : toClose) {
+                closeStatement(stmt);
+            }
+        }
+    }
+
+    /** Closes all cached statements; statements released afterwards are closed right away */
+    public void close() {
+        List<PreparedStatement> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<PreparedStatement>(statements.values());
+            statements.clear();
+        }
+        for (PreparedStatement ps : toClose) {
+            closeStatement(ps);
+        }
+    }
+
+    public synchronized int size() {
+        return statements.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public double getHitRate() {
+        return hitRate(hits.get(), misses.get());
+    }
+
+    /** Hits of all statement caches since startup */
+    public static long getTotalHitCount() {
+        return totalHits.get();
+    }
+
+    /** Misses of all statement caches since startup */
+    public static long getTotalMissCount() {
+        return totalMisses.get();
+    }
+
+    /** Evictions of all statement caches since startup */
+    public static long getTotalEvictionCount() {
+        return totalEvictions.get();
+    }
+
+    public static double getTotalHitRate() {
+        return hitRate(totalHits.get(), totalMisses.get());
+    }
+
+    @Override
+    public String toString() {
+        return "StatementCache[size=" + size() + "/" + maxSize + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+
+    private static double hitRate(long hitCount, long missCount) {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 0.0 : (double) hitCount / requests;
+    }
+
+    private static void closeStatement(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException e) {
+            logger.warn("Unable to close cached statement: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Identifies a prepared statement: the SQL and everything that is fixed
+     * when the statement is prepared or that SQLProcessor sets on it once.
+     */
+    public static final class StatementKey {
+        final String sql;
+        final boolean specifyTypeAndConcur;
+        final int resultSetType;
+        final int resultSetConcurrency;
+        final int fetchSize;
+        private final int hashCode;
+
+        public StatementKey(String sql, boolean specifyTypeAndConcur, int resultSetType, int resultSetConcurrency, int fetchSize) {
+            this.sql = sql;
+            this.specifyTypeAndConcur = specifyTypeAndConcur;
+            this.resultSetType = specifyTypeAndConcur ? resultSetType : 0;
+            this.resultSetConcurrency = specifyTypeAndConcur ? resultSetConcurrency : 0;
+            this.fetchSize = fetchSize;
+            int h = sql.hashCode();
+            h = 31 * h + (specifyTypeAndConcur ? 1 : 0);
+            h = 31 * h + this.resultSetType;
+            h = 31 * h + this.resultSetConcurrency;
+            h = 31 * h + fetchSize;
+            this.hashCode = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof StatementKey)) return false;
+            StatementKey other = (StatementKey) obj;
+            return hashCode == other.hashCode && specifyTypeAndConcur == other.specifyTypeAndConcur
+                    && resultSetType == other.resultSetType && resultSetConcurrency == other.resultSetConcurrency
+                    && fetchSize == other.fetchSize && sql.equals(other.sql);
+        }
+
+        @Override
+        public String toString() {
+            return sql;
+        }
+    }
+}
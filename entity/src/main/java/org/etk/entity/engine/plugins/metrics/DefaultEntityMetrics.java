@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.etk.common.logging.Logger;
+
+/**
+ * Default {@link EntityMetrics}: per entity and operation a latency histogram
+ * and a row count, per entity the cache hits and misses, and global histograms
+ * of the statement preparation and connection wait times. Recording takes no
+ * lock, the per operation statistics are created once with putIfAbsent and
+ * then only updated with striped counters.
+ */
+public class DefaultEntityMetrics implements EntityMetrics, DefaultEntityMetricsMBean {
+
+  private static final Logger logger = Logger.getLogger(DefaultEntityMetrics.class);
+
+  public static final String OBJECT_NAME = "org.etk.entity:type=EntityMetrics";
+
+  /** Keyed by entity name then operation, so recording builds no key string */
+  private final ConcurrentMap<String, ConcurrentMap<String, OperationStats>> operations = new ConcurrentHashMap<String, ConcurrentMap<String, OperationStats>>();
+
+  private final ConcurrentMap<String, CacheStats> caches = new ConcurrentHashMap<String, CacheStats>();
+
+  private final LatencyHistogram statementPrepare = new LatencyHistogram();
+
+  private final LatencyHistogram connectionWait = new LatencyHistogram();
+
+  public void recordOperation(String entityName, String operation, long nanos, long rows) {
+    OperationStats stats = getOperationStats(entityName, operation);
+    stats.latency.record(nanos);
+    stats.rows.add(rows);
+  }
+
+  public void recordCacheAccess(String entityName, boolean hit) {
+    CacheStats stats = caches.get(entityName);
+    if (stats == null) {
+      caches.putIfAbsent(entityName, new CacheStats());
+      stats = caches.get(entityName);
+    }
+    if (hit) {
+      stats.hits.increment();
+    } else {
+      stats.misses.increment();
+    }
+  }
+
+  public void recordStatementPrepare(long nanos) {
+    statementPrepare.record(nanos);
+  }
+
+  public void recordConnectionWait(long nanos) {
+    connectionWait.record(nanos);
+  }
+
+  private OperationStats getOperationStats(String entityName, String operation) {
+    ConcurrentMap<String, OperationStats> entityOperations = operations.get(entityName);
+    if (entityOperations == null) {
+      operations.putIfAbsent(entityName, new ConcurrentHashMap<String, OperationStats>());
+      entityOperations = operations.get(entityName);
+    }
+    OperationStats stats = entityOperations.get(operation);
+    if (stats == null) {
+      entityOperations.putIfAbsent(operation, new OperationStats());
+      stats = entityOperations.get(operation);
+    }
+    return stats;
+  }
+
+  /** The statistics of an operation name entityName.operation, null if nothing was recorded */
+  private OperationStats findOperationStats(String operationName) {
+    int dot = operationName.lastIndexOf('.');
+    if (dot < 0) {
+      return null;
+    }
+    Map<String, OperationStats> entityOperations = operations.get(operationName.substring(0, dot));
+    return entityOperations == null ? null : entityOperations.get(operationName.substring(dot + 1));
+  }
+
+  /** The statistics of all the operations by their entityName.operation names */
+  private Map<String, OperationStats> getAllOperationStats() {
+    Map<String, OperationStats> all = new HashMap<String, OperationStats>();
+    for (Map.Entry<String, ConcurrentMap<String, OperationStats>> entity : operations.entrySet()) {
+      for (Map.Entry<String, OperationStats> operation : entity.getValue().entrySet()) {
+        all.put(entity.getKey() + "." + operation.getKey(), operation.getValue());
+      }
+    }
+    return all;
+  }
+
+  /** Registers this instance with the platform MBean server under {@link #OBJECT_NAME} */
+  public void registerMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+    } catch (JMException e) {
+      logger.warn("Could not register the entity metrics MBean, they are only available through EntityMetricsFactory", e);
+    }
+  }
+
+  public String[] getOperationNames() {
+    List<String> names = new ArrayList<String>(getAllOperationStats().keySet());
+    Collections.sort(names);
+    return names.toArray(new String[names.size()]);
+  }
+
+  public String[] getSlowestOperations(int max) {
+    List<Map.Entry<String, OperationStats>> entries = new ArrayList<Map.Entry<String, OperationStats>>(getAllOperationStats().entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, OperationStats>>() {
+      public int compare(Map.Entry<String, OperationStats> e1, Map.Entry<String, OperationStats> e2) {
+        long t1 = e1.getValue().latency.getTotalNanos();
+        long t2 = e2.getValue().latency.getTotalNanos();
+        return t1 < t2 ? 1 : (t1 == t2 ? 0 : -1);
+      }
+    });
+    int size = Math.min(max, entries.size());
+    String[] result = new String[size];
+    for (int i = 0; i < size; i++) {
+      Map.Entry<String, OperationStats> entry = entries.get(i);
+      LatencyHistogram latency = entry.getValue().latency;
+      result[i] = entry.getKey() + ": count=" + latency.getCount() + ", rows=" + entry.getValue().rows.sum()
+          + ", totalMs=" + latency.getTotalNanos() / 1000000 + ", meanUs=" + latency.getMeanNanos() / 1000
+          + ", p99Us=" + latency.getPercentileNanos(99) / 1000;
+    }
+    return result;
+  }
+
+  public long getOperationCount(String operationName) {
+    OperationStats stats = findOperationStats(operationName);
+    return stats == null ? 0 : stats.latency.getCount();
+  }
+
+  public long getOperationRows(String operationName) {
+    OperationStats stats = findOperationStats(operationName);
+    return stats == null ? 0 : stats.rows.sum();
+  }
+
+  public long getOperationMeanMicros(String operationName) {
+    OperationStats stats = findOperationStats(operationName);
+    return stats == null ? 0 : stats.latency.getMeanNanos() / 1000;
+  }
+
+  public long getOperationPercentileMicros(String operationName, double percentile) {
+    OperationStats stats = findOperationStats(operationName);
+    return stats == null ? 0 : stats.latency.getPercentileNanos(percentile) / 1000;
+  }
+
+  public long getCacheHitCount(String entityName) {
+    CacheStats stats = caches.get(entityName);
+    return stats == null ? 0 : stats.hits.sum();
+  }
+
+  public long getCacheMissCount(String entityName) {
+    CacheStats stats = caches.get(entityName);
+    return stats == null ? 0 : stats.misses.sum();
+  }
+
+  public long getStatementPrepareCount() {
+    return statementPrepare.getCount();
+  }
+
+  public long getStatementPrepareMeanMicros() {
+    return statementPrepare.getMeanNanos() / 1000;
+  }
+
+  public long getConnectionWaitCount() {
+    return connectionWait.getCount();
+  }
+
+  public long getConnectionWaitMeanMicros() {
+    return connectionWait.getMeanNanos() / 1000;
+  }
+
+  public long getConnectionWaitPercentileMicros(double percentile) {
+    return connectionWait.getPercentileNanos(percentile) / 1000;
+  }
+
+  public void reset() {
+    operations.clear();
+    caches.clear();
+    statementPrepare.reset();
+    connectionWait.reset();
+  }
+
+  private static final class OperationStats {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final StripedCounter rows = new StripedCounter();
+  }
+
+  private static final class CacheStats {
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.metrics;
+
+/**
+ * JMX view of {@link DefaultEntityMetrics}. The operations are named
+ * "entityName.operation", like "Product.findList".
+ */
+public interface DefaultEntityMetricsMBean {
+
+  public String[] getOperationNames();
+
+  /** The operations with the highest total time first, one line each with count, rows, mean and p99 */
+  public String[] getSlowestOperations(int max);
+
+  public long getOperationCount(String operationName);
+
+  public long getOperationRows(String operationName);
+
+  public long getOperationMeanMicros(String operationName);
+
+  public long getOperationPercentileMicros(String operationName, double percentile);
+
+  public long getCacheHitCount(String entityName);
+
+  public long getCacheMissCount(String entityName);
+
+  public long getStatementPrepareCount();
+
+  public long getStatementPrepareMeanMicros();
+
+  public long getConnectionWaitCount();
+
+  public long getConnectionWaitMeanMicros();
+
+  public long getConnectionWaitPercentileMicros(double percentile);
+
+  public void reset();
+}
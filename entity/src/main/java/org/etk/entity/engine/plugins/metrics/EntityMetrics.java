@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.metrics;
+
+/**
+ * Instrumentation SPI of the entity engine.
+ * <p>
+ * The engine calls it on every operation, so implementations must be cheap
+ * and must never block or throw. The instance in use comes from
+ * {@link EntityMetricsFactory}.
+ */
+public interface EntityMetrics {
+
+  public static final String FIND       = "find";
+
+  public static final String FIND_LIST  = "findList";
+
+  public static final String CREATE     = "create";
+
+  public static final String STORE      = "store";
+
+  public static final String REMOVE     = "remove";
+
+  /** Fetching a bank of sequence ids, the entity name is the sequence name */
+  public static final String SEQUENCE   = "sequence";
+
+  /** Reading the rows of a result set into values */
+  public static final String HYDRATE    = "hydrate";
+
+  /**
+   * Records one operation on an entity.
+   *
+   * @param entityName the entity, or the sequence name for {@link #SEQUENCE}
+   * @param operation one of the operation constants
+   * @param nanos the time the operation took
+   * @param rows the number of rows read or written
+   */
+  public void recordOperation(String entityName, String operation, long nanos, long rows);
+
+  /** Records a lookup in the entity cache of the delegator */
+  public void recordCacheAccess(String entityName, boolean hit);
+
+  /** Records the time spent preparing a statement, or taking it from the statement cache */
+  public void recordStatementPrepare(long nanos);
+
+  /** Records the time spent waiting for a connection from the connection factory */
+  public void recordConnectionWait(long nanos);
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.metrics;
+
+import org.etk.common.logging.Logger;
+import org.etk.entity.base.utils.UtilValidate;
+
+/**
+ * Central source of the {@link EntityMetrics} in use.
+ * <p>
+ * The implementation class is read from the {@value #METRICS_CLASS_PROPERTY}
+ * system property; without it {@link DefaultEntityMetrics} is used and
+ * registered with the platform MBean server. {@link #setMetrics(EntityMetrics)}
+ * replaces it at runtime, {@link #NO_METRICS} turns instrumentation off.
+ */
+public class EntityMetricsFactory {
+
+  private static final Logger logger = Logger.getLogger(EntityMetricsFactory.class);
+
+  public static final String METRICS_CLASS_PROPERTY = "etk.entity.metrics.class";
+
+  /** Ignores everything, for when even the default implementation costs too much */
+  public static final EntityMetrics NO_METRICS = new EntityMetrics() {
+    public void recordOperation(String entityName, String operation, long nanos, long rows) {}
+    public void recordCacheAccess(String entityName, boolean hit) {}
+    public void recordStatementPrepare(long nanos) {}
+    public void recordConnectionWait(long nanos) {}
+  };
+
+  private static volatile EntityMetrics metrics = null;
+
+  public static EntityMetrics getMetrics() {
+    EntityMetrics result = metrics;
+    if (result == null) {
+      synchronized (EntityMetricsFactory.class) {
+        if (metrics == null) {
+          metrics = loadMetrics();
+        }
+        result = metrics;
+      }
+    }
+    return result;
+  }
+
+  public static void setMetrics(EntityMetrics metrics) {
+    EntityMetricsFactory.metrics = metrics == null ? NO_METRICS : metrics;
+  }
+
+  private static EntityMetrics loadMetrics() {
+    String className = System.getProperty(METRICS_CLASS_PROPERTY);
+    if (UtilValidate.isNotEmpty(className)) {
+      try {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return (EntityMetrics) loader.loadClass(className).newInstance();
+      } catch (Exception e) {
+        logger.error("Error loading EntityMetrics class \"" + className + "\", using the default one", e);
+      }
+    }
+    DefaultEntityMetrics defaultMetrics = new DefaultEntityMetrics();
+    defaultMetrics.registerMBean();
+    return defaultMetrics;
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations in nanoseconds, with log-linear buckets
+ * like an HDR histogram: each power of two is split in
+ * {@value #SUB_BUCKETS} buckets, so a percentile is off by at most
+ * 1/{@value #SUB_BUCKETS} of its value whatever its magnitude.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+
+  public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+
+  private final StripedCounter count = new StripedCounter();
+
+  private final StripedCounter total = new StripedCounter();
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    buckets.incrementAndGet(bucketIndex(nanos));
+    count.increment();
+    total.add(nanos);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getTotalNanos() {
+    return total.sum();
+  }
+
+  public long getMeanNanos() {
+    long n = count.sum();
+    return n == 0 ? 0 : total.sum() / n;
+  }
+
+  /**
+   * The upper bound of the bucket holding the given percentile.
+   *
+   * @param percentile between 0 and 100
+   */
+  public long getPercentileNanos(double percentile) {
+    long[] snapshot = new long[buckets.length()];
+    long n = 0;
+    for (int i = 0; i < snapshot.length; i++) {
+      snapshot[i] = buckets.get(i);
+      n += snapshot[i];
+    }
+    if (n == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(n * Math.min(100, Math.max(0, percentile)) / 100);
+    long seen = 0;
+    for (int i = 0; i < snapshot.length; i++) {
+      seen += snapshot[i];
+      if (seen >= rank && snapshot[i] > 0) {
+        return bucketUpperBound(i);
+      }
+    }
+    return bucketUpperBound(snapshot.length - 1);
+  }
+
+  public void reset() {
+    for (int i = 0; i < buckets.length(); i++) {
+      buckets.set(i, 0);
+    }
+    count.reset();
+    total.reset();
+  }
+
+  /** The values below SUB_BUCKETS have a bucket each, the others one per sub-range of their power of two */
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> magnitude) & (SUB_BUCKETS - 1);
+    return (magnitude + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int magnitude = index / SUB_BUCKETS - 1;
+    long subBucket = index % SUB_BUCKETS;
+    long upper = ((SUB_BUCKETS + subBucket + 1) << magnitude) - 1;
+    return upper < 0 ? Long.MAX_VALUE : upper;
+  }
+}
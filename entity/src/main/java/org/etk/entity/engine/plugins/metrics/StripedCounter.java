@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sum updated from many threads. Each thread adds to one of several cells
+ * chosen from its id, so concurrent updates rarely hit the same cache line;
+ * reading sums the cells.
+ */
+public final class StripedCounter {
+
+  /** Longs between two cells, a cache line is 64 bytes on common hardware */
+  private static final int PADDING = 8;
+
+  private static final int STRIPES;
+  static {
+    int stripes = 1;
+    while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+      stripes <<= 1;
+    }
+    STRIPES = stripes;
+  }
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  public void add(long delta) {
+    int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+    cells.addAndGet(stripe * PADDING, delta);
+  }
+
+  public void increment() {
+    add(1);
+  }
+
+  public long sum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  public void reset() {
+    for (int i = 0; i < STRIPES; i++) {
+      cells.set(i * PADDING, 0);
+    }
+  }
+}
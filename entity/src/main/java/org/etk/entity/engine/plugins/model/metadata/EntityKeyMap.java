@@ -23,4 +23,24 @@ package org.etk.entity.engine.plugins.model.metadata;
  */
 public class EntityKeyMap {
 
+  private String fieldName;
+
+  /** Null when the field has the same name in the related entity */
+  private String relFieldName;
+
+  public String getFieldName() {
+    return fieldName;
+  }
+
+  public void setFieldName(String fieldName) {
+    this.fieldName = fieldName;
+  }
+
+  public String getRelFieldName() {
+    return relFieldName == null ? fieldName : relFieldName;
+  }
+
+  public void setRelFieldName(String relFieldName) {
+    this.relFieldName = relFieldName;
+  }
 }
@@ -57,6 +57,9 @@ public class Entity implements Comparable<Entity> {
 
   private Map<String, Field> fieldMap              = FastMap.newInstance();
 
+  /** The fields indexed by {@link Field#getIndex()} */
+  private Field[]            fieldArray            = new Field[0];
+
   private List<Field>        pks                   = FastList.newInstance();
 
   private List<Field>        nopkg                 = FastList.newInstance();
@@ -98,6 +101,22 @@ public class Entity implements Comparable<Entity> {
 
   protected boolean          autoClearCache        = true;
 
+  /** Milliseconds a cached value of this entity stays valid, 0 means no expiration */
+  protected long             cacheExpireTime       = 0;
+
+  /**
+   * Whether the values of this entity keep their fields in an array indexed by
+   * field instead of a hash map, which takes much less memory per value; off
+   * unless the entity sets compact-storage
+   */
+  protected boolean          compactStorage        = false;
+
+  /** Maximum number of cached primary key lines for this entity, 0 means unbounded */
+  protected int              cacheMaxSize          = 0;
+
+  /** The number of ids reserved at once by the sequencer, null for the default */
+  protected Integer          sequenceBankSize      = null;
+
   protected Boolean          hasFieldWithAuditLog  = null;
 
   protected int              priority              = 0;
@@ -117,7 +136,19 @@ public class Entity implements Comparable<Entity> {
    */
   public void addField(Object object) {
     Field field = (Field) object;
-    fieldMap.put(field.getName(), field);
+    Field previous = fieldMap.put(field.getName(), field);
+    if (previous != null) {
+      field.setIndex(previous.getIndex());
+      fieldArray[previous.getIndex()] = field;
+      nopkg.remove(previous);
+    } else {
+      field.setIndex(fieldArray.length);
+      Field[] newFieldArray = new Field[fieldArray.length + 1];
+      System.arraycopy(fieldArray, 0, newFieldArray, 0, fieldArray.length);
+      newFieldArray[fieldArray.length] = field;
+      fieldArray = newFieldArray;
+    }
+    nopkg.add(field);
   }
 
   /**
@@ -127,7 +158,10 @@ public class Entity implements Comparable<Entity> {
    */
   public void addPKField(Object object) {
     PKField pkfield = (PKField) object;
-    pks.add(fieldMap.get(pkfield.getFieldName()));
+    Field field = fieldMap.get(pkfield.getFieldName());
+    pks.add(field);
+    // the fields are declared before the primary keys
+    nopkg.remove(field);
   }
 
   /**
@@ -154,6 +188,16 @@ public class Entity implements Comparable<Entity> {
     return fieldMap.values();
   }
 
+  /** The number of fields of the entity, the field indexes go from 0 to this size minus 1 */
+  public int getFieldsSize() {
+    return fieldArray.length;
+  }
+
+  /** Gets the field by its {@link Field#getIndex()} */
+  public Field getField(int index) {
+    return fieldArray[index];
+  }
+
   public List<Field> getPkgs() {
     return pks;
   }
@@ -266,6 +310,38 @@ public class Entity implements Comparable<Entity> {
     this.autoClearCache = autoClearCache;
   }
 
+  public boolean isCompactStorage() {
+    return compactStorage;
+  }
+
+  public void setCompactStorage(boolean compactStorage) {
+    this.compactStorage = compactStorage;
+  }
+
+  public long getCacheExpireTime() {
+    return cacheExpireTime;
+  }
+
+  public void setCacheExpireTime(long cacheExpireTime) {
+    this.cacheExpireTime = cacheExpireTime;
+  }
+
+  public int getCacheMaxSize() {
+    return cacheMaxSize;
+  }
+
+  public void setCacheMaxSize(int cacheMaxSize) {
+    this.cacheMaxSize = cacheMaxSize;
+  }
+
+  public Integer getSequenceBankSize() {
+    return sequenceBankSize;
+  }
+
+  public void setSequenceBankSize(Integer sequenceBankSize) {
+    this.sequenceBankSize = sequenceBankSize;
+  }
+
   public Boolean getHasFieldWithAuditLog() {
     return hasFieldWithAuditLog;
   }
@@ -274,8 +350,24 @@ public class Entity implements Comparable<Entity> {
     this.hasFieldWithAuditLog = hasFieldWithAuditLog;
   }
 
+  /** Whether a field of this entity is stored encrypted */
+  public boolean hasEncryptedFields() {
+    for (Field field : fieldArray) {
+      if (field.getEncrypt()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public void setFields(Map<String, Field> fields) {
     this.fieldMap = fields;
+    this.fieldArray = new Field[fields.size()];
+    int index = 0;
+    for (Field field : fields.values()) {
+      field.setIndex(index);
+      fieldArray[index++] = field;
+    }
   }
 
   public void setPkgs(List<Field> pkgs) {
@@ -298,6 +390,16 @@ public class Entity implements Comparable<Entity> {
     return relations.iterator();
   }
 
+  /** Gets the relation by its name, the title followed by the related entity name; null if there is none */
+  public Relation getRelation(String relationName) {
+    for (Relation relation : relations) {
+      if (relation.getRelationName().equals(relationName)) {
+        return relation;
+      }
+    }
+    return null;
+  }
+
   public void preGet(IMarshallingContext ictx) {
     ConfigurationMarshallerUtil.addURLToContent(documentURL, ictx);
   }
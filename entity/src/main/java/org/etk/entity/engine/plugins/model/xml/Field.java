@@ -27,6 +27,11 @@ public class Field {
   private String name;
   private String colName;
   private String type;
+  /** Whether the values of this field are stored encrypted, see Delegator.encryptFields */
+  private boolean encrypt;
+
+  /** The position of this field in its entity, assigned by {@link Entity#addField(Object)} */
+  private int index = -1;
   
   
   public String getName() {
@@ -47,6 +52,22 @@ public class Field {
   public void setType(String type) {
     this.type = type;
   }
+  public boolean getEncrypt() {
+    return encrypt;
+  }
+  public void setEncrypt(boolean encrypt) {
+    this.encrypt = encrypt;
+  }
+  /**
+   * The dense ordinal of this field in its entity, from 0 to the number of
+   * fields of the entity minus 1, or -1 while the field is not part of an entity.
+   */
+  public int getIndex() {
+    return index;
+  }
+  void setIndex(int index) {
+    this.index = index;
+  }
   public boolean getIsNotNull() {
     return true;
   }
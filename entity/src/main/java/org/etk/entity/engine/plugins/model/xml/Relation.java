@@ -16,6 +16,13 @@
  */
 package org.etk.entity.engine.plugins.model.xml;
 
+import java.util.Iterator;
+import java.util.List;
+
+import javolution.util.FastList;
+
+import org.etk.entity.engine.plugins.model.metadata.EntityKeyMap;
+
 /**
  * Created by The eXo Platform SAS
  * Author : eXoPlatform
@@ -24,4 +31,69 @@ package org.etk.entity.engine.plugins.model.xml;
  */
 public class Relation {
 
+  /** The type of the relation: "one", "one-nofk" or "many" */
+  private String             type;
+
+  /** The title, prepended to the related entity name to make the relation name */
+  private String             title        = "";
+
+  private String             relEntityName;
+
+  private String             fkName;
+
+  private List<EntityKeyMap> keyMaps      = FastList.newInstance();
+
+  public String getType() {
+    return type;
+  }
+
+  public void setType(String type) {
+    this.type = type;
+  }
+
+  /** True for the "one" and "one-nofk" relations, which have at most one related value */
+  public boolean isOne() {
+    return type != null && type.startsWith("one");
+  }
+
+  public String getTitle() {
+    return title;
+  }
+
+  public void setTitle(String title) {
+    this.title = title == null ? "" : title;
+  }
+
+  public String getRelEntityName() {
+    return relEntityName;
+  }
+
+  public void setRelEntityName(String relEntityName) {
+    this.relEntityName = relEntityName;
+  }
+
+  /** The name the relation is looked up by, the title followed by the related entity name */
+  public String getRelationName() {
+    return (title == null ? "" : title) + relEntityName;
+  }
+
+  public String getFkName() {
+    return fkName;
+  }
+
+  public void setFkName(String fkName) {
+    this.fkName = fkName;
+  }
+
+  public void addKeyMap(Object object) {
+    keyMaps.add((EntityKeyMap) object);
+  }
+
+  public List<EntityKeyMap> getKeyMaps() {
+    return keyMaps;
+  }
+
+  public Iterator<EntityKeyMap> getKeyMapsIterator() {
+    return keyMaps.iterator();
+  }
 }
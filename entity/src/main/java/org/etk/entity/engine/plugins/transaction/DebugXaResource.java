@@ -34,6 +34,11 @@ public class DebugXaResource extends GenericXaResource {
         this.ex = new Exception();
     }
 
+    /** Uses the given location, usually the transaction begin stack, instead of capturing one */
+    public DebugXaResource(Exception ex) {
+        this.ex = ex;
+    }
+
     @Override
     public void commit(Xid xid, boolean onePhase) throws XAException {
         TransactionUtil.debugResMap.remove(xid);
@@ -49,11 +54,15 @@ public class DebugXaResource extends GenericXaResource {
     @Override
     public void enlist() throws XAException {
         super.enlist();
-        TransactionUtil.debugResMap.put(xid, this);
+        if (xid != null) {
+            TransactionUtil.debugResMap.put(xid, this);
+        }
     }
 
     public void log() {
         logger.info("Xid : " + xid);
-        logger.info(ex.getMessage(), ex);
+        if (ex != null) {
+            logger.info(ex.getMessage(), ex);
+        }
     }
 }
\ No newline at end of file
@@ -26,12 +26,17 @@ import javax.transaction.xa.Xid;
 import javax.transaction.xa.XAException;
 
 import org.etk.common.logging.Logger;
+import org.etk.entity.base.concurrent.ExecutionPool;
 
 /**
  * GenericXaResource - Abstract XA Resource implementation supporting a single
  * transaction
+ * <p>
+ * The timeout is watched by a pulse on the shared ExecutionPool delay queue,
+ * not by a thread of its own; it is registered in start() and cancelled in
+ * end() or forget().
  */
-public abstract class GenericXaResource extends Thread implements XAResource {
+public abstract class GenericXaResource implements XAResource {
 
   private static final Logger logger  = Logger.getLogger(GenericXaResource.class);
 
@@ -48,6 +53,8 @@ public abstract class GenericXaResource extends Thread implements XAResource {
 
   protected Xid              xid     = null;
 
+  private TimeoutPulse       timeoutPulse = null;
+
   /**
    * Enlists this resource in the current transaction
    * 
@@ -103,11 +110,12 @@ public abstract class GenericXaResource extends Thread implements XAResource {
       throw new XAException(XAException.XAER_NOTA);
     }
 
-    this.setName("GenericXaResource-Thread");
-    this.setDaemon(true);
     this.active = true;
     this.xid = xid;
-    this.start();
+    if (timeout != null) {
+      timeoutPulse = new TimeoutPulse(this, timeout.longValue() * 1000000000L);
+      ExecutionPool.addPulse(timeoutPulse);
+    }
   }
 
   /**
@@ -123,6 +131,7 @@ public abstract class GenericXaResource extends Thread implements XAResource {
       throw new XAException(XAException.XAER_NOTA);
     }
     this.active = false;
+    cancelTimeout();
   }
 
   /**
@@ -133,6 +142,7 @@ public abstract class GenericXaResource extends Thread implements XAResource {
       throw new XAException(XAException.XAER_NOTA);
     }
     this.xid = null;
+    cancelTimeout();
     if (active) {
       // non-fatal
       logger.warn("forget() called without end()");
@@ -214,35 +224,64 @@ public abstract class GenericXaResource extends Thread implements XAResource {
   public void runOnTimeout() {
   }
 
-  // thread run method
-  @Override
-  public void run() {
-    try {
-      if (timeout != null) {
-        // sleep until the transaction times out
-        sleep(timeout.intValue() * 1000);
-
-        if (active) {
-          // get the current status
-          int status = Status.STATUS_UNKNOWN;
-          if (trans != null) {
-            try {
-              status = trans.getStatus();
-            } catch (SystemException e) {
-              logger.warn(e.getMessage(), e);
-            }
-          }
-
-          // log a warning message
-          String statusString = TransactionUtil.getTransactionStateString(status);
-          logger.warn("Transaction timeout [" + timeout + "] Status: " + statusString + " Xid: " + getXid());
-
-          // run the abstract method
-          runOnTimeout();
+  /**
+   * Cancels the timeout pulse. The pulse stays in the delay queue until it
+   * expires, removing it from there would cost a scan of the queue, but it no
+   * longer references this resource and does nothing when it fires.
+   */
+  private void cancelTimeout() {
+    TimeoutPulse pulse = timeoutPulse;
+    if (pulse != null) {
+      timeoutPulse = null;
+      pulse.cancel();
+    }
+  }
+
+  private void checkTimeout() {
+    if (active) {
+      // get the current status
+      int status = Status.STATUS_UNKNOWN;
+      if (trans != null) {
+        try {
+          status = trans.getStatus();
+        } catch (SystemException e) {
+          logger.warn(e.getMessage(), e);
+        }
+      }
+
+      // log a warning message
+      String statusString = TransactionUtil.getTransactionStateString(status);
+      logger.warn("Transaction timeout [" + timeout + "] Status: " + statusString + " Xid: " + getXid());
+
+      // run the abstract method
+      runOnTimeout();
+    }
+  }
+
+  private static final class TimeoutPulse extends ExecutionPool.Pulse {
+
+    private volatile GenericXaResource resource;
+
+    private TimeoutPulse(GenericXaResource resource, long delayNanos) {
+      super(delayNanos);
+      this.resource = resource;
+    }
+
+    private void cancel() {
+      resource = null;
+    }
+
+    public void run() {
+      GenericXaResource resource = this.resource;
+      if (resource != null) {
+        this.resource = null;
+        try {
+          resource.checkTimeout();
+        } catch (RuntimeException e) {
+          // never let a resource take down the shared pulse worker
+          logger.error(e.getMessage(), e);
         }
       }
-    } catch (InterruptedException e) {
-      logger.warn("InterruptedException thrown", e);
     }
   }
 }
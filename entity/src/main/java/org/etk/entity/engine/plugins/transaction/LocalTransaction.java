@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.transaction;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+
+import org.etk.common.logging.Logger;
+import org.etk.entity.engine.plugins.jdbc.CachingConnection;
+
+/**
+ * A transaction of {@link LocalTransactionManager}: the JDBC connections
+ * bound to it are committed or rolled back directly, one after the other,
+ * without two phase commit. Only atomic with a single datasource.
+ * <p>
+ * XA resources can still be enlisted, they are committed in one phase after
+ * the connections. The timeout is checked on commit instead of by a watchdog.
+ */
+public class LocalTransaction implements Transaction {
+
+  private static final Logger                 logger          = Logger.getLogger(LocalTransaction.class);
+
+  private static final AtomicLong             idSequence      = new AtomicLong();
+
+  private final Xid                           xid             = new LocalXid(idSequence.incrementAndGet());
+
+  /** The timeout deadline in System.nanoTime(), or 0 for none */
+  private final long                          deadlineNanos;
+
+  private volatile int                        status          = Status.STATUS_ACTIVE;
+
+  /** Keyed by helper name, in the order they were bound */
+  private final Map<String, Connection>       connections     = FastMap.newInstance();
+
+  private final List<Synchronization>         synchronizations = FastList.newInstance();
+
+  private final List<XAResource>              resources       = FastList.newInstance();
+
+  protected LocalTransaction(int timeoutSeconds) {
+    this.deadlineNanos = timeoutSeconds > 0 ? System.nanoTime() + timeoutSeconds * 1000000000L : 0;
+  }
+
+  public Xid getXid() {
+    return xid;
+  }
+
+  /**
+   * Returns the connection bound to this transaction for the helper, or null
+   * if none is bound yet. The returned connection ignores close(), it is
+   * closed when the transaction completes.
+   */
+  public Connection getConnection(String helperName) {
+    return connections.get(helperName);
+  }
+
+  /**
+   * Binds the physical connection to this transaction for the helper and
+   * returns the wrapper to hand out in its place.
+   */
+  public Connection bindConnection(String helperName, Connection con) throws SQLException {
+    if (!connections.isEmpty() && !connections.containsKey(helperName)) {
+      logger.warn("Local transaction " + xid + " now spans more than one datasource [" + helperName + "]; "
+          + "it is committed one datasource after the other and is not atomic");
+    }
+    if (con.getAutoCommit()) {
+      con.setAutoCommit(false);
+    }
+    Connection bound = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                                          new Class<?>[] { Connection.class },
+                                                          new BoundConnection(con));
+    connections.put(helperName, bound);
+    return bound;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public void setRollbackOnly() throws IllegalStateException, SystemException {
+    if (status != Status.STATUS_ACTIVE && status != Status.STATUS_MARKED_ROLLBACK) {
+      throw new IllegalStateException("Transaction is not active: " + TransactionUtil.getTransactionStateString(status));
+    }
+    status = Status.STATUS_MARKED_ROLLBACK;
+  }
+
+  public void registerSynchronization(Synchronization sync) throws RollbackException,
+                                                            IllegalStateException,
+                                                            SystemException {
+    if (status == Status.STATUS_MARKED_ROLLBACK) {
+      throw new RollbackException("Transaction is marked for rollback");
+    }
+    if (status != Status.STATUS_ACTIVE) {
+      throw new IllegalStateException("Transaction is not active: " + TransactionUtil.getTransactionStateString(status));
+    }
+    synchronizations.add(sync);
+  }
+
+  public boolean enlistResource(XAResource resource) throws RollbackException,
+                                                     IllegalStateException,
+                                                     SystemException {
+    if (status == Status.STATUS_MARKED_ROLLBACK) {
+      throw new RollbackException("Transaction is marked for rollback");
+    }
+    if (status != Status.STATUS_ACTIVE) {
+      throw new IllegalStateException("Transaction is not active: " + TransactionUtil.getTransactionStateString(status));
+    }
+    try {
+      resource.start(xid, XAResource.TMNOFLAGS);
+    } catch (XAException e) {
+      logger.error(e.getMessage(), e);
+      return false;
+    }
+    resources.add(resource);
+    return true;
+  }
+
+  public boolean delistResource(XAResource resource, int flag) throws IllegalStateException, SystemException {
+    if (!resources.remove(resource)) {
+      return false;
+    }
+    try {
+      resource.end(xid, flag);
+    } catch (XAException e) {
+      logger.error(e.getMessage(), e);
+      return false;
+    }
+    return true;
+  }
+
+  public void commit() throws RollbackException,
+                      HeuristicMixedException,
+                      SecurityException,
+                      IllegalStateException,
+                      SystemException {
+    if (status != Status.STATUS_ACTIVE && status != Status.STATUS_MARKED_ROLLBACK) {
+      throw new IllegalStateException("Transaction is not active: " + TransactionUtil.getTransactionStateString(status));
+    }
+    if (deadlineNanos != 0 && System.nanoTime() - deadlineNanos > 0) {
+      logger.warn("Transaction timeout, Xid: " + xid);
+      status = Status.STATUS_MARKED_ROLLBACK;
+    }
+
+    if (status == Status.STATUS_ACTIVE) {
+      try {
+        for (Synchronization sync : synchronizations) {
+          sync.beforeCompletion();
+        }
+      } catch (RuntimeException e) {
+        logger.error("Synchronization failed before completion, rolling back", e);
+        status = Status.STATUS_MARKED_ROLLBACK;
+      }
+    }
+    if (status == Status.STATUS_MARKED_ROLLBACK) {
+      completeRollback();
+      throw new RollbackException("Transaction was marked for rollback, rolled back instead of committed");
+    }
+
+    status = Status.STATUS_COMMITTING;
+    int committed = 0;
+    try {
+      for (Connection con : connections.values()) {
+        unwrap(con).commit();
+        committed++;
+      }
+      for (XAResource resource : resources) {
+        resource.end(xid, XAResource.TMSUCCESS);
+        resource.commit(xid, true);
+        committed++;
+      }
+    } catch (Exception e) {
+      logger.error("Error committing local transaction " + xid, e);
+      completeRollback();
+      if (committed > 0) {
+        HeuristicMixedException hme = new HeuristicMixedException("Local transaction " + xid + " was partially committed: " + e.getMessage());
+        hme.initCause(e);
+        throw hme;
+      }
+      RollbackException re = new RollbackException("Local transaction " + xid + " could not be committed: " + e.getMessage());
+      re.initCause(e);
+      throw re;
+    }
+    status = Status.STATUS_COMMITTED;
+    complete();
+  }
+
+  public void rollback() throws IllegalStateException, SystemException {
+    if (status != Status.STATUS_ACTIVE && status != Status.STATUS_MARKED_ROLLBACK) {
+      throw new IllegalStateException("Transaction is not active: " + TransactionUtil.getTransactionStateString(status));
+    }
+    completeRollback();
+  }
+
+  private void completeRollback() {
+    status = Status.STATUS_ROLLING_BACK;
+    for (Connection con : connections.values()) {
+      try {
+        unwrap(con).rollback();
+      } catch (SQLException e) {
+        logger.error("Error rolling back local transaction " + xid, e);
+      }
+    }
+    for (XAResource resource : resources) {
+      try {
+        resource.end(xid, XAResource.TMFAIL);
+        resource.rollback(xid);
+      } catch (XAException e) {
+        logger.error("Error rolling back resource of local transaction " + xid, e);
+      }
+    }
+    status = Status.STATUS_ROLLEDBACK;
+    complete();
+  }
+
+  /** Closes the connections and notifies the synchronizations */
+  private void complete() {
+    for (Connection con : connections.values()) {
+      try {
+        unwrap(con).close();
+      } catch (SQLException e) {
+        logger.warn(e.getMessage(), e);
+      }
+    }
+    connections.clear();
+    resources.clear();
+    for (Synchronization sync : synchronizations) {
+      try {
+        sync.afterCompletion(status);
+      } catch (RuntimeException e) {
+        logger.error("Synchronization failed after completion", e);
+      }
+    }
+    synchronizations.clear();
+  }
+
+  private static Connection unwrap(Connection bound) {
+    return ((BoundConnection) Proxy.getInvocationHandler(bound)).getDelegate();
+  }
+
+  @Override
+  public String toString() {
+    return "LocalTransaction[" + xid + ", " + TransactionUtil.getTransactionStateString(status) + "]";
+  }
+
+  /**
+   * Hands out the bound connection: close() does nothing since the
+   * connection lives until the transaction completes, and commit and
+   * rollback are left to the transaction. Keeps the statement cache of a
+   * caching connection visible to SQLProcessor.
+   */
+  private static final class BoundConnection extends CachingConnection {
+
+    private BoundConnection(Connection con) {
+      super(con, CachingConnection.getStatementCache(con));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if ("close".equals(name) || "commit".equals(name) || ("rollback".equals(name) && args == null)) {
+        return null;
+      } else if ("isClosed".equals(name)) {
+        return Boolean.FALSE;
+      } else if ("setAutoCommit".equals(name)) {
+        // stays in manual commit until the transaction completes
+        return null;
+      } else if ("equals".equals(name)) {
+        return Boolean.valueOf(proxy == args[0]);
+      } else if ("hashCode".equals(name)) {
+        return Integer.valueOf(System.identityHashCode(proxy));
+      } else if ("toString".equals(name)) {
+        return "BoundConnection{" + con + "}";
+      }
+      try {
+        return method.invoke(con, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  private static final class LocalXid implements Xid {
+
+    /** Not registered anywhere, just not 0 (OSI CCR) nor -1 (null Xid) */
+    private static final int FORMAT_ID = 0x4c4f43;
+
+    private final byte[]     globalTransactionId;
+
+    private LocalXid(long id) {
+      globalTransactionId = new byte[8];
+      for (int i = 7; i >= 0; i--) {
+        globalTransactionId[i] = (byte) id;
+        id >>>= 8;
+      }
+    }
+
+    public int getFormatId() {
+      return FORMAT_ID;
+    }
+
+    public byte[] getGlobalTransactionId() {
+      return globalTransactionId.clone();
+    }
+
+    public byte[] getBranchQualifier() {
+      return new byte[0];
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof LocalXid && Arrays.equals(globalTransactionId, ((LocalXid) obj).globalTransactionId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(globalTransactionId);
+    }
+
+    @Override
+    public String toString() {
+      long id = 0;
+      for (byte b : globalTransactionId) {
+        id = (id << 8) | (b & 0xff);
+      }
+      return "LocalXid[" + id + "]";
+    }
+  }
+}
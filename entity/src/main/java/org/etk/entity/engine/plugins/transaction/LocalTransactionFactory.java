@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.transaction;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.transaction.Status;
+import javax.transaction.TransactionManager;
+import javax.transaction.UserTransaction;
+
+import org.etk.common.logging.Logger;
+import org.etk.entity.engine.core.GenericEntityException;
+import org.etk.entity.engine.plugins.config.DatasourceInfo;
+import org.etk.entity.engine.plugins.config.EntityConfigUtil;
+import org.etk.entity.engine.plugins.datasource.GenericHelperInfo;
+import org.etk.entity.engine.plugins.jdbc.ConnectionFactory;
+
+/**
+ * Transaction factory for deployments with a single JDBC datasource, without
+ * a JTA transaction manager. Transactions are {@link LocalTransaction}s: the
+ * connection of a datasource is bound to the transaction on first use and
+ * committed or rolled back directly, no XA enlistment or two phase commit.
+ * Outside of a transaction every call gets its own connection, as with any
+ * other factory.
+ * <p>
+ * To use it, configure in entityengine.xml:
+ * 
+ * <pre>
+ * &lt;transaction-factory class="org.etk.entity.engine.plugins.transaction.LocalTransactionFactory"/&gt;
+ * </pre>
+ * 
+ * The datasources need an inline-jdbc element. TransactionUtil.debugResources
+ * can be turned off, the debug resource is only kept as an enlisted one
+ * phase resource.
+ */
+public class LocalTransactionFactory implements TransactionFactoryInterface {
+
+  private static final Logger logger = Logger.getLogger(LocalTransactionFactory.class);
+
+  public TransactionManager getTransactionManager() {
+    return LocalTransactionManager.getInstance();
+  }
+
+  public UserTransaction getUserTransaction() {
+    return LocalTransactionManager.getInstance();
+  }
+
+  public String getTxMgrName() {
+    return "local";
+  }
+
+  public Connection getConnection(GenericHelperInfo helperInfo) throws SQLException, GenericEntityException {
+    LocalTransaction tx = LocalTransactionManager.getInstance().getCurrentTransaction();
+    if (tx != null && tx.getStatus() != Status.STATUS_ACTIVE && tx.getStatus() != Status.STATUS_MARKED_ROLLBACK) {
+      tx = null;
+    }
+    if (tx != null) {
+      Connection bound = tx.getConnection(helperInfo.getHelperFullName());
+      if (bound != null) {
+        return bound;
+      }
+    }
+
+    Connection con = getPhysicalConnection(helperInfo);
+    if (con == null || tx == null) {
+      return con;
+    }
+    try {
+      return tx.bindConnection(helperInfo.getHelperFullName(), con);
+    } catch (SQLException e) {
+      con.close();
+      throw e;
+    }
+  }
+
+  private Connection getPhysicalConnection(GenericHelperInfo helperInfo) throws SQLException, GenericEntityException {
+    DatasourceInfo datasourceInfo = EntityConfigUtil.getDatasourceInfo(helperInfo.getHelperBaseName());
+    if (datasourceInfo != null && datasourceInfo.inlineJdbcElement != null) {
+      Connection con = ConnectionFactory.getManagedConnection(helperInfo, datasourceInfo.inlineJdbcElement);
+      return TransactionFactory.getCursorConnection(helperInfo, con);
+    } else {
+      logger.error("Local is the configured transaction manager but no inline-jdbc element was specified in the "
+          + helperInfo.getHelperBaseName() + " datasource. Please check your configuration");
+      return null;
+    }
+  }
+
+  public void shutdown() {
+    ConnectionFactory.closeAllManagedConnections();
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.transaction;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.UserTransaction;
+
+/**
+ * Transaction manager for {@link LocalTransactionFactory}: one
+ * {@link LocalTransaction} per thread, no nesting, suspend and resume only
+ * detach and attach it. TransactionUtil keeps the stack of suspended
+ * transactions, as it does with a JTA manager.
+ */
+public class LocalTransactionManager implements TransactionManager, UserTransaction {
+
+  private static final LocalTransactionManager  instance       = new LocalTransactionManager();
+
+  private final ThreadLocal<LocalTransaction>   currentTx      = new ThreadLocal<LocalTransaction>();
+
+  /** The timeout of the next transaction begun by the thread, 0 for none */
+  private final ThreadLocal<Integer>            nextTimeout    = new ThreadLocal<Integer>();
+
+  public static LocalTransactionManager getInstance() {
+    return instance;
+  }
+
+  protected LocalTransactionManager() {
+  }
+
+  /** Returns the transaction of the calling thread, or null if there is none */
+  public LocalTransaction getCurrentTransaction() {
+    return currentTx.get();
+  }
+
+  public void begin() throws NotSupportedException, SystemException {
+    if (currentTx.get() != null) {
+      throw new NotSupportedException("Nested transactions are not supported, a transaction is already associated to the thread");
+    }
+    Integer timeout = nextTimeout.get();
+    currentTx.set(new LocalTransaction(timeout == null ? 0 : timeout.intValue()));
+  }
+
+  public void commit() throws RollbackException,
+                      HeuristicMixedException,
+                      HeuristicRollbackException,
+                      SecurityException,
+                      IllegalStateException,
+                      SystemException {
+    LocalTransaction tx = getRequiredTransaction();
+    try {
+      tx.commit();
+    } finally {
+      currentTx.remove();
+    }
+  }
+
+  public void rollback() throws IllegalStateException, SecurityException, SystemException {
+    LocalTransaction tx = getRequiredTransaction();
+    try {
+      tx.rollback();
+    } finally {
+      currentTx.remove();
+    }
+  }
+
+  public void setRollbackOnly() throws IllegalStateException, SystemException {
+    getRequiredTransaction().setRollbackOnly();
+  }
+
+  public int getStatus() throws SystemException {
+    LocalTransaction tx = currentTx.get();
+    return tx == null ? Status.STATUS_NO_TRANSACTION : tx.getStatus();
+  }
+
+  public Transaction getTransaction() throws SystemException {
+    return currentTx.get();
+  }
+
+  public void setTransactionTimeout(int seconds) throws SystemException {
+    if (seconds < 0) {
+      throw new SystemException("Negative transaction timeout: " + seconds);
+    }
+    if (seconds == 0) {
+      nextTimeout.remove();
+    } else {
+      nextTimeout.set(Integer.valueOf(seconds));
+    }
+  }
+
+  public Transaction suspend() throws SystemException {
+    LocalTransaction tx = currentTx.get();
+    currentTx.remove();
+    return tx;
+  }
+
+  public void resume(Transaction tx) throws InvalidTransactionException, IllegalStateException, SystemException {
+    if (!(tx instanceof LocalTransaction)) {
+      throw new InvalidTransactionException("Not a local transaction: " + tx);
+    }
+    if (currentTx.get() != null) {
+      throw new IllegalStateException("A transaction is already associated to the thread");
+    }
+    int status = tx.getStatus();
+    if (status != Status.STATUS_ACTIVE && status != Status.STATUS_MARKED_ROLLBACK) {
+      throw new InvalidTransactionException("Transaction is completed: " + TransactionUtil.getTransactionStateString(status));
+    }
+    currentTx.set((LocalTransaction) tx);
+  }
+
+  private LocalTransaction getRequiredTransaction() {
+    LocalTransaction tx = currentTx.get();
+    if (tx == null) {
+      throw new IllegalStateException("No transaction associated to the thread");
+    }
+    return tx;
+  }
+}
@@ -19,12 +19,12 @@ package org.etk.entity.engine.plugins.transaction;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.sql.XAConnection;
 import javax.transaction.HeuristicMixedException;
@@ -46,7 +46,11 @@ import org.etk.common.logging.Logger;
 import org.etk.entity.base.utils.UtilDateTime;
 import org.etk.entity.base.utils.UtilGenerics;
 import org.etk.entity.base.utils.UtilValidate;
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.core.EntityLockedException;
 import org.etk.entity.engine.core.GenericEntityException;
+import org.etk.entity.engine.core.GenericPK;
+import org.etk.entity.engine.core.GenericValue;
 import org.apache.commons.collections.map.ListOrderedMap;
 
 import javolution.util.FastList;
@@ -63,29 +67,26 @@ public class TransactionUtil implements Status {
   // Debug module name
   private static final Logger                          logger                             = Logger.getLogger(TransactionUtil.class);
 
-  public static Map<Xid, DebugXaResource>             debugResMap                         = Collections.<Xid, DebugXaResource> synchronizedMap(new HashMap<Xid, DebugXaResource>());
+  public static Map<Xid, DebugXaResource>             debugResMap                         = new ConcurrentHashMap<Xid, DebugXaResource>();
 
   public static boolean                               debugResources                      = true;
 
-  private static ThreadLocal<List<Transaction>>       suspendedTxStack                    = new ThreadLocal<List<Transaction>>();
+  private static ThreadLocal<TransactionContext>      transactionContext                  = new ThreadLocal<TransactionContext>() {
+                                                                                            @Override
+                                                                                            protected TransactionContext initialValue() {
+                                                                                              return new TransactionContext();
+                                                                                            }
+                                                                                          };
 
-  private static ThreadLocal<List<Exception>>         suspendedTxLocationStack            = new ThreadLocal<List<Exception>>();
+  /** Only holds the stacks actually captured, see setStackSampleRate */
+  private static Map<Long, Exception>                 allThreadsTransactionBeginStack     = new ConcurrentHashMap<Long, Exception>();
 
-  private static ThreadLocal<Exception>               transactionBeginStack               = new ThreadLocal<Exception>();
+  private static Map<Long, List<Exception>>           allThreadsTransactionBeginStackSave = new ConcurrentHashMap<Long, List<Exception>>();
 
-  private static ThreadLocal<List<Exception>>         transactionBeginStackSave           = new ThreadLocal<List<Exception>>();
+  /** Stands in for the begin and suspend stacks that are not captured */
+  private static final Exception                      STACK_NOT_CAPTURED                  = makeStackNotCaptured();
 
-  private static Map<Long, Exception>                 allThreadsTransactionBeginStack     = Collections.<Long, Exception> synchronizedMap(FastMap.<Long, Exception> newInstance());
-
-  private static Map<Long, List<Exception>>           allThreadsTransactionBeginStackSave = Collections.<Long, List<Exception>> synchronizedMap(FastMap.<Long, List<Exception>> newInstance());
-
-  private static ThreadLocal<RollbackOnlyCause>       setRollbackOnlyCause                = new ThreadLocal<RollbackOnlyCause>();
-
-  private static ThreadLocal<List<RollbackOnlyCause>> setRollbackOnlyCauseSave            = new ThreadLocal<List<RollbackOnlyCause>>();
-
-  private static ThreadLocal<Timestamp>               transactionStartStamp               = new ThreadLocal<Timestamp>();
-
-  private static ThreadLocal<Timestamp>               transactionLastNowStamp             = new ThreadLocal<Timestamp>();
+  private static volatile int                         stackSampleRate                     = Integer.getInteger("etk.entity.transaction.stackSampleRate", 1).intValue();
 
   @Deprecated
   public static <V> V doNewTransaction(String ifErrorMessage, Callable<V> callable) throws GenericEntityException {
@@ -125,10 +126,100 @@ public class TransactionUtil implements Status {
     return inTransaction(callable, ifErrorMessage, timeout, printException).call();
   }
 
+  /**
+   * Runs the callable in a new transaction and runs it again, in another new
+   * transaction, when it fails on an optimistic lock conflict
+   * (EntityLockedException), at most maxAttempts times in all. Before each new
+   * attempt it waits backoffMillis, doubled on every conflict, plus a random
+   * jitter so that competing threads do not collide again. The callable must
+   * re-read what it changes, a retry runs it from the start.
+   */
+  public static <V> V doOptimisticTransaction(Callable<V> callable,
+                                              String ifErrorMessage,
+                                              int maxAttempts,
+                                              long backoffMillis) throws GenericEntityException {
+    long backoff = backoffMillis;
+    for (int attempt = 1;; attempt++) {
+      try {
+        return inTransaction(noTransaction(callable), ifErrorMessage, 0, false).call();
+      } catch (GenericEntityException e) {
+        if (attempt >= maxAttempts || !isLockConflict(e)) {
+          throw e;
+        }
+        if (logger.isDebugEnabled())
+          logger.debug("Lock conflict on attempt " + attempt + " of " + maxAttempts + ", retrying: " + e.getMessage());
+        if (backoff > 0) {
+          try {
+            Thread.sleep(backoff + (long) (Math.random() * backoff));
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw e;
+          }
+          backoff *= 2;
+        }
+      }
+    }
+  }
+
+  /** The change applied to a freshly read value by updateWithRetry */
+  public interface ValueMutation {
+    /** Changes the value in place; it is stored after this returns */
+    void apply(GenericValue value) throws GenericEntityException;
+  }
+
+  /**
+   * Read-modify-write of one row without SELECT ... FOR UPDATE: reads the
+   * value, applies the mutation and stores it in a new transaction. The entity
+   * should have locking enabled (enable-lock and a lastUpdatedStamp field);
+   * when the store finds the row changed by someone else the value is read
+   * again and the mutation applied again after backoffMillis, see
+   * doOptimisticTransaction.
+   *
+   * @return the stored value, or null if there is no row with that primary key
+   */
+  public static GenericValue updateWithRetry(final Delegator delegator,
+                                             final GenericPK primaryKey,
+                                             final ValueMutation mutation,
+                                             int maxAttempts,
+                                             long backoffMillis) throws GenericEntityException {
+    return doOptimisticTransaction(new Callable<GenericValue>() {
+      public GenericValue call() throws Exception {
+        GenericValue value = delegator.findOne(primaryKey.getEntityName(), primaryKey, false);
+        if (value == null) {
+          return null;
+        }
+        mutation.apply(value);
+        delegator.store(value);
+        return value;
+      }
+    }, "Error updating [" + primaryKey + "]", maxAttempts, backoffMillis);
+  }
+
+  private static boolean isLockConflict(Throwable t) {
+    while (t != null) {
+      if (t instanceof EntityLockedException) {
+        return true;
+      }
+      t = t.getCause();
+    }
+    return false;
+  }
+
   public static <V> Callable<V> noTransaction(Callable<V> callable) {
     return new NoTransaction<V>(callable);
   }
 
+  /**
+   * Runs the callable with the given transaction associated to the calling
+   * thread, for work handed to another thread. The transaction must not be
+   * associated to any other thread, so the thread that owns it suspends it
+   * first and resumes it when the work is done; calls sharing the same
+   * transaction run one at a time. A null transaction runs the callable as is.
+   */
+  public static <V> Callable<V> withTransaction(Transaction transaction, Callable<V> callable) {
+    return new WithTransaction<V>(transaction, callable);
+  }
+
   // This syntax is groovy compatible, with the primary(callable) as the first
   // arg.
   // You could do:
@@ -206,7 +297,7 @@ public class TransactionUtil implements Status {
 
         // initialize the debug resource
         if (debugResources) {
-          DebugXaResource dxa = new DebugXaResource();
+          DebugXaResource dxa = new DebugXaResource(transactionContext.get().transactionBeginStack);
           try {
             dxa.enlist();
           } catch (XAException e) {
@@ -232,8 +323,13 @@ public class TransactionUtil implements Status {
     }
   }
 
-  protected static synchronized void internalBegin(UserTransaction ut, int timeout) throws SystemException,
-                                                                                   NotSupportedException {
+  /**
+   * Not synchronized: the timeout set on the UserTransaction applies to the
+   * transactions begun by the calling thread only, so there is nothing to
+   * guard between threads.
+   */
+  protected static void internalBegin(UserTransaction ut, int timeout) throws SystemException,
+                                                                      NotSupportedException {
     // set the timeout for THIS transaction
     if (timeout > 0) {
       ut.setTransactionTimeout(timeout);
@@ -672,43 +768,33 @@ public class TransactionUtil implements Status {
   }
 
   public static boolean suspendedTransactionsHeld() {
-    List<Transaction> tl = suspendedTxStack.get();
+    List<Transaction> tl = transactionContext.get().suspendedTxStack;
     return UtilValidate.isNotEmpty(tl);
   }
 
   public static List<Transaction> getSuspendedTxStack() {
-    List<Transaction> tl = suspendedTxStack.get();
-    if (tl == null) {
-      tl = new LinkedList<Transaction>();
-      suspendedTxStack.set(tl);
-    }
-    return tl;
+    return transactionContext.get().suspendedTxStack;
   }
 
   public static List<Exception> getSuspendedTxLocationsStack() {
-    List<Exception> tl = suspendedTxLocationStack.get();
-    if (tl == null) {
-      tl = new LinkedList<Exception>();
-      suspendedTxLocationStack.set(tl);
-    }
-    return tl;
+    return transactionContext.get().suspendedTxLocationStack;
   }
 
   protected static void pushSuspendedTransaction(Transaction t) {
-    List<Transaction> tl = getSuspendedTxStack();
-    tl.add(0, t);
-    List<Exception> stls = getSuspendedTxLocationsStack();
-    stls.add(0, new Exception("TX Suspend Location"));
+    TransactionContext context = transactionContext.get();
+    context.suspendedTxStack.add(0, t);
+    context.suspendedTxLocationStack.add(0, captureStack(context, "TX Suspend Location"));
     // save the current transaction start stamp
     pushTransactionStartStamp(t);
   }
 
   protected static Transaction popSuspendedTransaction() {
-    List<Transaction> tl = suspendedTxStack.get();
+    TransactionContext context = transactionContext.get();
+    List<Transaction> tl = context.suspendedTxStack;
     if (UtilValidate.isNotEmpty(tl)) {
       // restore the transaction start stamp
       popTransactionStartStamp();
-      List<Exception> stls = suspendedTxLocationStack.get();
+      List<Exception> stls = context.suspendedTxLocationStack;
       if (UtilValidate.isNotEmpty(stls)) {
         stls.remove(0);
       }
@@ -719,10 +805,11 @@ public class TransactionUtil implements Status {
   }
 
   protected static void removeSuspendedTransaction(Transaction t) {
-    List<Transaction> tl = suspendedTxStack.get();
+    TransactionContext context = transactionContext.get();
+    List<Transaction> tl = context.suspendedTxStack;
     if (UtilValidate.isNotEmpty(tl)) {
       tl.remove(t);
-      List<Exception> stls = suspendedTxLocationStack.get();
+      List<Exception> stls = context.suspendedTxLocationStack;
       if (UtilValidate.isNotEmpty(stls)) {
         stls.remove(0);
       }
@@ -733,35 +820,47 @@ public class TransactionUtil implements Status {
   // =======================================
   // TRANSACTION BEGIN STACK
   // =======================================
-  private static void pushTransactionBeginStackSave(Exception e) {
-    // use the ThreadLocal one because it is more reliable than the all threads
-    // Map
-    List<Exception> el = transactionBeginStackSave.get();
-    if (el == null) {
-      el = FastList.newInstance();
-      transactionBeginStackSave.set(el);
-    }
-    el.add(0, e);
+  /**
+   * Sets how often the begin and suspend locations are captured: 0 never, 1
+   * for every transaction, N for one transaction in N of each thread. The
+   * transactions not captured get a placeholder without a stack trace. The
+   * default comes from the etk.entity.transaction.stackSampleRate system
+   * property and is 1.
+   */
+  public static void setStackSampleRate(int stackSampleRate) {
+    TransactionUtil.stackSampleRate = stackSampleRate;
+  }
+
+  public static int getStackSampleRate() {
+    return stackSampleRate;
+  }
 
-    Long curThreadId = Thread.currentThread().getId();
-    List<Exception> ctEl = allThreadsTransactionBeginStackSave.get(curThreadId);
-    if (ctEl == null) {
-      ctEl = FastList.newInstance();
-      allThreadsTransactionBeginStackSave.put(curThreadId, ctEl);
+  private static Exception captureStack(TransactionContext context, String message) {
+    int rate = stackSampleRate;
+    if (rate > 0 && ++context.stackCount % rate == 0) {
+      return new Exception(message);
     }
-    ctEl.add(0, e);
+    return STACK_NOT_CAPTURED;
   }
 
-  private static Exception popTransactionBeginStackSave() {
-    // do the unofficial all threads Map one first, and don't do a real return
-    Long curThreadId = Thread.currentThread().getId();
-    List<Exception> ctEl = allThreadsTransactionBeginStackSave.get(curThreadId);
-    if (UtilValidate.isNotEmpty(ctEl)) {
-      ctEl.remove(0);
+  private static Exception makeStackNotCaptured() {
+    Exception e = new Exception("Tx stack not captured, see TransactionUtil.setStackSampleRate");
+    e.setStackTrace(new StackTraceElement[0]);
+    return e;
+  }
+
+  private static void pushTransactionBeginStackSave(Exception e) {
+    TransactionContext context = transactionContext.get();
+    context.transactionBeginStackSave.add(0, e);
+    if (!context.beginStackSaveShared) {
+      // the all threads Map shares the list of the thread, a copy on write list so other threads can read it
+      allThreadsTransactionBeginStackSave.put(Thread.currentThread().getId(), context.transactionBeginStackSave);
+      context.beginStackSaveShared = true;
     }
+  }
 
-    // then do the more reliable ThreadLocal one
-    List<Exception> el = transactionBeginStackSave.get();
+  private static Exception popTransactionBeginStackSave() {
+    List<Exception> el = transactionContext.get().transactionBeginStackSave;
     if (UtilValidate.isNotEmpty(el)) {
       return el.remove(0);
     } else {
@@ -770,16 +869,11 @@ public class TransactionUtil implements Status {
   }
 
   public static int getTransactionBeginStackSaveSize() {
-    List<Exception> el = transactionBeginStackSave.get();
-    if (el != null) {
-      return el.size();
-    } else {
-      return 0;
-    }
+    return transactionContext.get().transactionBeginStackSave.size();
   }
 
   public static List<Exception> getTransactionBeginStackSave() {
-    List<Exception> el = transactionBeginStackSave.get();
+    List<Exception> el = transactionContext.get().transactionBeginStackSave;
     List<Exception> elClone = FastList.newInstance();
     elClone.addAll(el);
     return elClone;
@@ -820,41 +914,47 @@ public class TransactionUtil implements Status {
   }
 
   private static void setTransactionBeginStack() {
-    Exception e = new Exception("Tx Stack Placeholder");
-    setTransactionBeginStack(e);
+    TransactionContext context = transactionContext.get();
+    setTransactionBeginStack(captureStack(context, "Tx Stack Placeholder"));
   }
 
   private static void setTransactionBeginStack(Exception newExc) {
-    if (transactionBeginStack.get() != null) {
-      Exception e = transactionBeginStack.get();
+    TransactionContext context = transactionContext.get();
+    if (context.transactionBeginStack != null) {
+      Exception e = context.transactionBeginStack;
       logger.warn("WARNING: In setTransactionBeginStack a stack placeholder was already in place, here is where the transaction began: ", e
                        );
       Exception e2 = new Exception("Current Stack Trace");
       logger.warn("WARNING: In setTransactionBeginStack a stack placeholder was already in place, here is the current location: ",
                        e2);
+      if (e != STACK_NOT_CAPTURED) {
+        allThreadsTransactionBeginStack.remove(Thread.currentThread().getId());
+      }
+    }
+    context.transactionBeginStack = newExc;
+    if (newExc != null && newExc != STACK_NOT_CAPTURED) {
+      allThreadsTransactionBeginStack.put(Thread.currentThread().getId(), newExc);
     }
-    transactionBeginStack.set(newExc);
-    Long curThreadId = Thread.currentThread().getId();
-    allThreadsTransactionBeginStack.put(curThreadId, newExc);
   }
 
   private static Exception clearTransactionBeginStack() {
-    Long curThreadId = Thread.currentThread().getId();
-    allThreadsTransactionBeginStack.remove(curThreadId);
-
-    Exception e = transactionBeginStack.get();
+    TransactionContext context = transactionContext.get();
+    Exception e = context.transactionBeginStack;
     if (e == null) {
       Exception e2 = new Exception("Current Stack Trace");
       logger.warn("WARNING: In clearTransactionBeginStack no stack placeholder was in place, here is the current location: ", e2);
       return null;
     } else {
-      transactionBeginStack.set(null);
+      if (e != STACK_NOT_CAPTURED) {
+        allThreadsTransactionBeginStack.remove(Thread.currentThread().getId());
+      }
+      context.transactionBeginStack = null;
       return e;
     }
   }
 
   public static Exception getTransactionBeginStack() {
-    Exception e = transactionBeginStack.get();
+    Exception e = transactionContext.get().transactionBeginStack;
     if (e == null) {
       Exception e2 = new Exception("Current Stack Trace");
       logger.warn("WARNING: In getTransactionBeginStack no stack placeholder was in place, here is the current location: ", e2);
@@ -894,16 +994,11 @@ public class TransactionUtil implements Status {
   }
 
   private static void pushSetRollbackOnlyCauseSave(RollbackOnlyCause e) {
-    List<RollbackOnlyCause> el = setRollbackOnlyCauseSave.get();
-    if (el == null) {
-      el = new LinkedList<RollbackOnlyCause>();
-      setRollbackOnlyCauseSave.set(el);
-    }
-    el.add(0, e);
+    transactionContext.get().setRollbackOnlyCauseSave.add(0, e);
   }
 
   private static RollbackOnlyCause popSetRollbackOnlyCauseSave() {
-    List<RollbackOnlyCause> el = setRollbackOnlyCauseSave.get();
+    List<RollbackOnlyCause> el = transactionContext.get().setRollbackOnlyCauseSave;
     if (UtilValidate.isNotEmpty(el)) {
       return el.remove(0);
     } else {
@@ -917,17 +1012,19 @@ public class TransactionUtil implements Status {
   }
 
   private static void setSetRollbackOnlyCause(RollbackOnlyCause newRoc) {
-    if (setRollbackOnlyCause.get() != null) {
-      RollbackOnlyCause roc = setRollbackOnlyCause.get();
+    TransactionContext context = transactionContext.get();
+    if (context.setRollbackOnlyCause != null) {
+      RollbackOnlyCause roc = context.setRollbackOnlyCause;
       roc.logError("WARNING: In setSetRollbackOnlyCause a stack placeholder was already in place, here is the original rollbackOnly cause: ");
       Exception e2 = new Exception("Current Stack Trace");
       logger.warn("WARNING: In setSetRollbackOnlyCause a stack placeholder was already in place, here is the current location: ", e2);
     }
-    setRollbackOnlyCause.set(newRoc);
+    context.setRollbackOnlyCause = newRoc;
   }
 
   private static RollbackOnlyCause clearSetRollbackOnlyCause() {
-    RollbackOnlyCause roc = setRollbackOnlyCause.get();
+    TransactionContext context = transactionContext.get();
+    RollbackOnlyCause roc = context.setRollbackOnlyCause;
     if (roc == null) {
       /*
        * this is an obnoxious message, leaving out for now; could be added
@@ -940,43 +1037,34 @@ public class TransactionUtil implements Status {
        */
       return null;
     } else {
-      setRollbackOnlyCause.set(null);
+      context.setRollbackOnlyCause = null;
       return roc;
     }
   }
 
   public static RollbackOnlyCause getSetRollbackOnlyCause() {
-    if (setRollbackOnlyCause.get() == null) {
+    RollbackOnlyCause roc = transactionContext.get().setRollbackOnlyCause;
+    if (roc == null) {
       Exception e = new Exception("Current Stack Trace");
       logger.warn("WARNING: In getSetRollbackOnlyCause no stack placeholder was in place, here is the current location: ", e);
     }
-    return setRollbackOnlyCause.get();
+    return roc;
   }
 
   // =======================================
   // SUSPENDED TRANSACTIONS START TIMESTAMPS
   // =======================================
 
-  /**
-   * Maintain the suspended transactions together with their timestamps
-   */
-  private static ThreadLocal<Map<Transaction, Timestamp>> suspendedTxStartStamps = new ThreadLocal<Map<Transaction, Timestamp>>() {
-                                                                                   @Override
-                                                                                   public Map<Transaction, Timestamp> initialValue() {
-                                                                                     return UtilGenerics.checkMap(new ListOrderedMap());
-                                                                                   }
-                                                                                 };
-
   /**
    * Put the stamp to remember later
    * 
    * @param t transaction just suspended
    */
   private static void pushTransactionStartStamp(Transaction t) {
-    Map<Transaction, Timestamp> map = suspendedTxStartStamps.get();
-    Timestamp stamp = transactionStartStamp.get();
+    TransactionContext context = transactionContext.get();
+    Timestamp stamp = context.transactionStartStamp;
     if (stamp != null) {
-      map.put(t, stamp);
+      context.suspendedTxStartStamps.put(t, stamp);
     } else {
       logger.debug("Error in transaction handling - no start stamp to push.");
     }
@@ -987,7 +1075,7 @@ public class TransactionUtil implements Status {
    * {@link #cleanSuspendedTransactions()}.
    */
   private static void clearTransactionStartStampStack() {
-    suspendedTxStartStamps.get().clear();
+    transactionContext.get().suspendedTxStartStamps.clear();
   }
 
   /**
@@ -997,14 +1085,15 @@ public class TransactionUtil implements Status {
    * @param t transaction just resumed
    */
   private static void popTransactionStartStamp(Transaction t) {
-    Map<Transaction, Timestamp> map = suspendedTxStartStamps.get();
+    TransactionContext context = transactionContext.get();
+    Map<Transaction, Timestamp> map = context.suspendedTxStartStamps;
     if (map.size() > 0) {
       Timestamp stamp = map.remove(t);
       if (stamp != null) {
-        transactionStartStamp.set(stamp);
+        context.transactionStartStamp = stamp;
       } else {
         logger.debug("Error in transaction handling - no saved start stamp found - using NOW.");
-        transactionStartStamp.set(UtilDateTime.nowTimestamp());
+        context.transactionStartStamp = UtilDateTime.nowTimestamp();
       }
     }
   }
@@ -1013,20 +1102,22 @@ public class TransactionUtil implements Status {
    * Remove the stamp from stack (when resuming)
    */
   private static void popTransactionStartStamp() {
-    ListOrderedMap map = (ListOrderedMap) suspendedTxStartStamps.get();
+    TransactionContext context = transactionContext.get();
+    ListOrderedMap map = (ListOrderedMap) context.suspendedTxStartStamps;
     if (map.size() > 0) {
-      transactionStartStamp.set((Timestamp) map.remove(map.lastKey()));
+      context.transactionStartStamp = (Timestamp) map.remove(map.lastKey());
     } else {
       logger.debug("Error in transaction handling - no saved start stamp found - using NOW.");
-      transactionStartStamp.set(UtilDateTime.nowTimestamp());
+      context.transactionStartStamp = UtilDateTime.nowTimestamp();
     }
   }
 
   public static Timestamp getTransactionStartStamp() {
-    Timestamp curStamp = transactionStartStamp.get();
+    TransactionContext context = transactionContext.get();
+    Timestamp curStamp = context.transactionStartStamp;
     if (curStamp == null) {
       curStamp = UtilDateTime.nowTimestamp();
-      transactionStartStamp.set(curStamp);
+      context.transactionStartStamp = curStamp;
 
       // we know this is the first time set for this transaction, so make sure
       // the StampClearSync is registered
@@ -1041,7 +1132,8 @@ public class TransactionUtil implements Status {
   }
 
   public static Timestamp getTransactionUniqueNowStamp() {
-    Timestamp lastNowStamp = transactionLastNowStamp.get();
+    TransactionContext context = transactionContext.get();
+    Timestamp lastNowStamp = context.transactionLastNowStamp;
     Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
 
     // check for an overlap with the lastNowStamp, or if the lastNowStamp is in
@@ -1051,13 +1143,50 @@ public class TransactionUtil implements Status {
       nowTimestamp = new Timestamp(lastNowStamp.getTime() + 1);
     }
 
-    transactionLastNowStamp.set(nowTimestamp);
+    context.transactionLastNowStamp = nowTimestamp;
     return nowTimestamp;
   }
 
   protected static void clearTransactionStamps() {
-    transactionStartStamp.set(null);
-    transactionLastNowStamp.set(null);
+    TransactionContext context = transactionContext.get();
+    context.transactionStartStamp = null;
+    context.transactionLastNowStamp = null;
+  }
+
+  // =======================================
+  // PER THREAD STATE
+  // =======================================
+
+  /**
+   * The transaction state of one thread: the suspended transactions, the
+   * begin locations, the rollback only causes and the stamps, all behind a
+   * single ThreadLocal lookup.
+   */
+  private static final class TransactionContext {
+    private final List<Transaction>                 suspendedTxStack          = new LinkedList<Transaction>();
+
+    private final List<Exception>                   suspendedTxLocationStack  = new LinkedList<Exception>();
+
+    private Exception                               transactionBeginStack     = null;
+
+    /** Also read by other threads through allThreadsTransactionBeginStackSave */
+    private final List<Exception>                   transactionBeginStackSave = new CopyOnWriteArrayList<Exception>();
+
+    private boolean                                 beginStackSaveShared      = false;
+
+    private RollbackOnlyCause                       setRollbackOnlyCause      = null;
+
+    private final List<RollbackOnlyCause>           setRollbackOnlyCauseSave  = new LinkedList<RollbackOnlyCause>();
+
+    private Timestamp                               transactionStartStamp     = null;
+
+    private Timestamp                               transactionLastNowStamp   = null;
+
+    /** Maintain the suspended transactions together with their timestamps */
+    private final Map<Transaction, Timestamp>       suspendedTxStartStamps    = UtilGenerics.checkMap(new ListOrderedMap());
+
+    /** Counts the captures asked for, for the stack sampling */
+    private long                                    stackCount                = 0;
   }
 
   public static class StampClearSync implements Synchronization {
@@ -1086,6 +1215,45 @@ public class TransactionUtil implements Status {
     }
   }
 
+  public static final class WithTransaction<V> implements Callable<V> {
+    private final Transaction transaction;
+
+    private final Callable<V> callable;
+
+    protected WithTransaction(Transaction transaction, Callable<V> callable) {
+      this.transaction = transaction;
+      this.callable = callable;
+    }
+
+    public V call() throws Exception {
+      if (transaction == null) {
+        return callable.call();
+      }
+      TransactionManager txMgr = TransactionFactory.getTransactionManager();
+      if (txMgr == null) {
+        throw new GenericTransactionException("No transaction manager, could not associate transaction to the thread");
+      }
+      synchronized (transaction) {
+        try {
+          txMgr.resume(transaction);
+        } catch (InvalidTransactionException e) {
+          throw new GenericTransactionException("System error, could not resume transaction", e);
+        } catch (SystemException e) {
+          throw new GenericTransactionException("System error, could not resume transaction", e);
+        }
+        try {
+          return callable.call();
+        } finally {
+          try {
+            txMgr.suspend();
+          } catch (SystemException e) {
+            logger.error("System error, could not suspend transaction", e);
+          }
+        }
+      }
+    }
+  }
+
   public static final class InTransaction<V> implements Callable<V> {
     private final Callable<V> callable;
 
@@ -45,6 +45,7 @@ public class EntityFindOptions implements java.io.Serializable {
     protected int fetchSize = -1;
     protected int maxRows = -1;
     protected boolean distinct = false;
+    protected int parallelChunks = 0;
 
     /** Default constructor. Defaults are as follows:
      *      specifyTypeAndConcur = true
@@ -68,6 +69,12 @@ public class EntityFindOptions implements java.io.Serializable {
         this(specifyTypeAndConcur, resultSetType, resultSetConcurrency, -1, -1, distinct);
     }
 
+    /** Copy constructor, for work that outlives the call it was handed to */
+    public EntityFindOptions(EntityFindOptions findOptions) {
+        this(findOptions.specifyTypeAndConcur, findOptions.resultSetType, findOptions.resultSetConcurrency, findOptions.fetchSize, findOptions.maxRows, findOptions.distinct);
+        this.parallelChunks = findOptions.parallelChunks;
+    }
+
     /** If true the following two parameters (resultSetType and resultSetConcurrency) will be used to specify
      *      how the results will be used; if false the default values for the JDBC driver will be used
      */
@@ -143,4 +150,17 @@ public class EntityFindOptions implements java.io.Serializable {
     public void setDistinct(boolean distinct) {
         this.distinct = distinct;
     }
+
+    /** Specifies in how many primary key ranges findList splits the query, 0 or 1 runs a single query. */
+    public int getParallelChunks() {
+        return parallelChunks;
+    }
+
+    /** Specifies in how many primary key ranges findList splits the query, 0 or 1 runs a single query.
+     *      The ranges are read concurrently on the worker pool of the datasource, each with its own
+     *      connection and outside of any transaction, so this is meant for large read-only scans.
+     */
+    public void setParallelChunks(int parallelChunks) {
+        this.parallelChunks = parallelChunks;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.util;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import javolution.util.FastList;
+
+import org.etk.entity.base.utils.GeneralException;
+import org.etk.entity.base.utils.ObjectType;
+import org.etk.entity.base.utils.StringUtil;
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.core.GenericEntityException;
+import org.etk.entity.engine.core.GenericModelException;
+import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.condition.EntityComparisonOperator;
+import org.etk.entity.engine.plugins.condition.EntityCondition;
+import org.etk.entity.engine.plugins.condition.EntityExpr;
+import org.etk.entity.engine.plugins.condition.EntityFieldValue;
+import org.etk.entity.engine.plugins.condition.EntityOperator;
+import org.etk.entity.engine.plugins.condition.OrderByItem;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+import org.etk.entity.engine.plugins.model.xml.Field;
+import org.etk.entity.engine.plugins.model.xml.FieldType;
+
+/**
+ * One page of a keyset (seek) paged find, see
+ * {@link Delegator#findPage(String, EntityCondition, java.util.Set, List, int, String)}.
+ * <p>
+ * Instead of skipping the rows of the previous pages like
+ * {@link EntityListIterator#getPartialList(int, int)} does, the next page is
+ * found with a condition on the order by fields of the last row returned,
+ * <code>k1 &gt; ? OR (k1 = ? AND k2 &gt; ?) ...</code>, so every page costs the
+ * same whatever its depth. The primary key fields are added to the order by
+ * list to make the order total. The order by fields must be plain fields that
+ * are never null.
+ */
+public class EntityKeysetPage {
+
+  private final List<GenericValue> values;
+  private final String nextToken;
+
+  public EntityKeysetPage(List<GenericValue> values, String nextToken) {
+    this.values = values;
+    this.nextToken = nextToken;
+  }
+
+  /** The rows of this page */
+  public List<GenericValue> getValues() {
+    return values;
+  }
+
+  /** The opaque token to pass to get the next page, null on the last page */
+  public String getNextToken() {
+    return nextToken;
+  }
+
+  public boolean hasNext() {
+    return nextToken != null;
+  }
+
+  /** Parses the order by list and completes it with the primary key fields */
+  public static List<OrderByItem> getKeysetOrder(Entity modelEntity, List<String> orderBy) throws GenericModelException {
+    List<OrderByItem> order = FastList.newInstance();
+    List<String> fieldNames = FastList.newInstance();
+    if (orderBy != null) {
+      for (String text : orderBy) {
+        OrderByItem item = OrderByItem.parse(text);
+        if (!(item.getValue() instanceof EntityFieldValue) || item.getNullsFirst() != null) {
+          throw new GenericModelException("Keyset paging only supports plain fields in the order by list, not [" + text + "]");
+        }
+        item.checkOrderBy(modelEntity);
+        String fieldName = ((EntityFieldValue) item.getValue()).getFieldName();
+        if (!fieldNames.contains(fieldName)) {
+          fieldNames.add(fieldName);
+          order.add(item);
+        }
+      }
+    }
+    for (String pkName : modelEntity.getPkFieldNames()) {
+      if (!fieldNames.contains(pkName)) {
+        fieldNames.add(pkName);
+        order.add(new OrderByItem(EntityFieldValue.makeFieldValue(pkName), false));
+      }
+    }
+    return order;
+  }
+
+  /** The order by list to pass to the find, the fields of the keyset order */
+  public static List<String> getOrderBy(List<OrderByItem> order) {
+    List<String> orderBy = FastList.newInstance();
+    for (OrderByItem item : order) {
+      orderBy.add(getFieldName(item) + (item.getDescending() ? " DESC" : " ASC"));
+    }
+    return orderBy;
+  }
+
+  public static List<String> getFieldNames(List<OrderByItem> order) {
+    List<String> fieldNames = FastList.newInstance();
+    for (OrderByItem item : order) {
+      fieldNames.add(getFieldName(item));
+    }
+    return fieldNames;
+  }
+
+  /** The condition selecting the rows after the given key in the keyset order */
+  public static EntityCondition makeSeekCondition(List<OrderByItem> order, Object[] key) {
+    List<EntityCondition> alternatives = FastList.newInstance();
+    for (int i = 0; i < order.size(); i++) {
+      List<EntityExpr> exprs = FastList.newInstance();
+      for (int j = 0; j < i; j++) {
+        exprs.add(EntityCondition.makeCondition(getFieldName(order.get(j)), EntityOperator.EQUALS, key[j]));
+      }
+      OrderByItem item = order.get(i);
+      EntityComparisonOperator<?, ?> operator = item.getDescending() ? EntityOperator.LESS_THAN : EntityOperator.GREATER_THAN;
+      exprs.add(EntityCondition.makeCondition(getFieldName(item), operator, key[i]));
+      alternatives.add(exprs.size() == 1 ? exprs.get(0) : EntityCondition.makeCondition(exprs, EntityOperator.AND));
+    }
+    return alternatives.size() == 1 ? alternatives.get(0) : EntityCondition.makeCondition(alternatives, EntityOperator.OR);
+  }
+
+  /** Encodes the key of the row, the last one of a page */
+  public static String makeToken(List<OrderByItem> order, GenericValue last) throws GenericEntityException {
+    StringBuilder token = new StringBuilder(getOrderHash(order));
+    for (OrderByItem item : order) {
+      String fieldName = getFieldName(item);
+      Object value = last.get(fieldName);
+      if (value == null) {
+        throw new GenericEntityException("Keyset paging cannot continue after a null value of field [" + fieldName
+            + "] of entity [" + last.getEntityName() + "]");
+      }
+      token.append('.');
+      try {
+        token.append(StringUtil.toHexString(value.toString().getBytes("UTF-8")));
+      } catch (UnsupportedEncodingException e) {
+        throw new GenericEntityException(e);
+      }
+    }
+    return token.toString();
+  }
+
+  /** Decodes a token made by makeToken for the same entity and order */
+  public static Object[] parseToken(Delegator delegator, Entity modelEntity, List<OrderByItem> order, String token) throws GenericEntityException {
+    String[] parts = token.split("\\.");
+    if (parts.length != order.size() + 1 || !parts[0].equals(getOrderHash(order))) {
+      throw new GenericEntityException("The continuation token [" + token + "] does not belong to this order by list");
+    }
+    Object[] key = new Object[order.size()];
+    for (int i = 0; i < key.length; i++) {
+      Field field = modelEntity.getField(getFieldName(order.get(i)));
+      FieldType fieldType = delegator.getEntityFieldType(modelEntity, field.getType());
+      try {
+        String text = new String(StringUtil.fromHexString(parts[i + 1]), "UTF-8");
+        key[i] = ObjectType.simpleTypeConvert(text, fieldType.getJavaType(), null, null);
+      } catch (UnsupportedEncodingException e) {
+        throw new GenericEntityException(e);
+      } catch (GeneralException e) {
+        throw new GenericEntityException("Invalid continuation token [" + token + "]", e);
+      } catch (RuntimeException e) {
+        throw new GenericEntityException("Invalid continuation token [" + token + "]", e);
+      }
+    }
+    return key;
+  }
+
+  /** Ties a token to the fields and the directions of the order it was made for */
+  private static String getOrderHash(List<OrderByItem> order) {
+    return Integer.toHexString(getOrderBy(order).hashCode());
+  }
+
+  private static String getFieldName(OrderByItem item) {
+    return ((EntityFieldValue) item.getValue()).getFieldName();
+  }
+}
@@ -27,6 +27,10 @@ import org.etk.entity.engine.api.Delegator;
 import org.etk.entity.engine.core.GenericEntityException;
 import org.etk.entity.engine.core.GenericValue;
 import org.etk.entity.engine.plugins.condition.EntityCondition;
+import org.etk.entity.engine.plugins.datasource.GenericDAO;
+import org.etk.entity.engine.plugins.jdbc.RowReader;
+import org.etk.entity.engine.plugins.metrics.EntityMetrics;
+import org.etk.entity.engine.plugins.metrics.EntityMetricsFactory;
 import org.etk.entity.engine.plugins.model.xml.Entity;
 import org.etk.entity.engine.plugins.model.xml.Field;
 
@@ -74,6 +78,9 @@ public class EntityListIterator implements ListIterator<GenericValue> {
 
   private Integer                resultSize             = null;
 
+  /** Reader for selectFields, looked up on the first row */
+  private RowReader              rowReader              = null;
+
   public EntityListIterator(SQLProcessor sqlp,
                             Entity modelEntity,
                             List<Field> selectFields,
@@ -92,6 +99,8 @@ public class EntityListIterator implements ListIterator<GenericValue> {
     this.sqlp = sqlp;
     this.resultSet = sqlp.getResultSet();
     this.modelEntity = modelEntity;
+    // an iterator that is never closed is reported through the connection of its SQLProcessor
+    sqlp.setLeakDescription("EntityListIterator for entity [" + (modelEntity == null ? "" : modelEntity.getEntityName()) + "]");
     this.selectFields = selectFields;
     this.modelFieldTypeReader = modelFieldTypeReader;
     this.genericDAO = genericDAO;
@@ -222,20 +231,72 @@ public class EntityListIterator implements ListIterator<GenericValue> {
       throw new GenericResultSetClosedException("This EntityListIterator has been closed, this operation cannot be performed");
 
     GenericValue value = GenericValue.create(modelEntity);
+    readRow(value);
+    value.synchronizedWithDatasource();
+    return value;
+  }
 
-    for (int j = 0; j < selectFields.size(); j++) {
-      Field curField = selectFields.get(j);
-
-      SqlJdbcUtil.getValue(resultSet, j + 1, curField, value, modelFieldTypeReader);
+  private void readRow(GenericValue value) throws GenericEntityException {
+    if (rowReader == null) {
+      rowReader = RowReader.getRowReader(modelEntity, selectFields, modelFieldTypeReader);
     }
+    rowReader.read(resultSet, value);
 
     value.setDelegator(this.delegator);
-    value.synchronizedWithDatasource();
     this.haveMadeValue = true;
     if (delegator != null) {
       delegator.decryptFields(value);
     }
-    return value;
+  }
+
+  /**
+   * Streams the remaining rows to the handler, reusing a single GenericValue
+   * for all of them; see {@link #forEachRow(EntityRowHandler, boolean)}.
+   */
+  public int forEachRow(EntityRowHandler handler) throws GenericEntityException {
+    return forEachRow(handler, true);
+  }
+
+  /**
+   * Streams the remaining rows to the handler without building a list.
+   * <p>
+   * With <code>reuseRow</code> the same GenericValue is filled with every row,
+   * so walking a large result allocates next to nothing; that row only holds
+   * the values until the handler returns and does not keep its original db
+   * values, so it cannot be stored. The iterator is not closed.
+   *
+   * @return the number of rows passed to the handler
+   */
+  public int forEachRow(EntityRowHandler handler, boolean reuseRow) throws GenericEntityException {
+    if (closed)
+      throw new GenericResultSetClosedException("This EntityListIterator has been closed, this operation cannot be performed");
+
+    GenericValue row = reuseRow ? GenericValue.create(modelEntity) : null;
+    int rows = 0;
+    try {
+      while (resultSet.next()) {
+        GenericValue value;
+        if (reuseRow) {
+          readRow(row);
+          value = row;
+        } else {
+          value = currentGenericValue();
+        }
+        rows++;
+        if (!handler.processRow(value)) {
+          break;
+        }
+      }
+      return rows;
+    } catch (SQLException e) {
+      if (!closed) {
+        this.close();
+        Debug.logWarning("Warning: auto-closed EntityListIterator because of exception: "
+                             + e.toString(),
+                         module);
+      }
+      throw new GenericEntityException("Error getting the next result", e);
+    }
   }
 
   public int currentIndex() throws GenericEntityException {
@@ -551,12 +612,16 @@ public class EntityListIterator implements ListIterator<GenericValue> {
         // do a quick check to see if the ResultSet is empty
         resultSet.beforeFirst();
       }
+      long startNanos = System.nanoTime();
       List<GenericValue> list = FastList.newInstance();
       GenericValue nextValue = null;
 
       while ((nextValue = this.next()) != null) {
         list.add(nextValue);
       }
+      if (modelEntity != null) {
+        EntityMetricsFactory.getMetrics().recordOperation(modelEntity.getEntityName(), EntityMetrics.HYDRATE, System.nanoTime() - startNanos, list.size());
+      }
       return list;
     } catch (SQLException e) {
       if (!closed) {
@@ -580,6 +645,8 @@ public class EntityListIterator implements ListIterator<GenericValue> {
   /**
    * Gets a partial list of results starting at start and containing at most
    * number elements. Start is a one based value, ie 1 is the first element.
+   * The rows before start are still read by the database, for deep pages use
+   * Delegator.findPage which seeks on the order by fields instead.
    */
   public List<GenericValue> getPartialList(int start, int number) throws GenericEntityException {
     try {
@@ -676,20 +743,4 @@ public class EntityListIterator implements ListIterator<GenericValue> {
   public void set(GenericValue obj) {
     throw new GeneralRuntimeException("CursorListIterator currently only supports read-only access");
   }
-
-  @Override
-  protected void finalize() throws Throwable {
-    try {
-      if (!closed) {
-        this.close();
-        Debug.logError("\n====================================================================\n EntityListIterator Not Closed for Entity ["
-                           + (modelEntity == null ? "" : modelEntity.getEntityName())
-                           + "], caught in Finalize\n ====================================================================\n",
-                       module);
-      }
-    } catch (Exception e) {
-      Debug.logError(e, "Error closing the SQLProcessor in finalize EntityListIterator", module);
-    }
-    super.finalize();
-  }
 }
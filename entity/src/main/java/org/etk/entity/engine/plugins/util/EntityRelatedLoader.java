@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.core.GenericEntityException;
+import org.etk.entity.engine.core.GenericModelException;
+import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.condition.EntityCondition;
+import org.etk.entity.engine.plugins.condition.EntityOperator;
+import org.etk.entity.engine.plugins.model.metadata.EntityKeyMap;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+import org.etk.entity.engine.plugins.model.xml.Relation;
+
+/**
+ * Loads a relation for many values with one query per chunk of keys instead of
+ * one query per value. The related values are grouped by the key of the
+ * relation and stored in the embedded caches of each value, where
+ * {@link GenericValue#getRelatedEmbeddedCache(String)} and
+ * {@link GenericValue#getRelatedOneEmbeddedCache(String)} find them.
+ * <p>
+ * An instance is meant for one unit of work, like a request: values passed to
+ * {@link #defer(GenericValue, String)} are not loaded until one of them is asked
+ * for, then all the deferred values of that relation are loaded together. It is
+ * not thread safe.
+ */
+public class EntityRelatedLoader {
+
+  /** The most keys in one query, below the 1000 IN list items some databases allow */
+  public static final int CHUNK_SIZE = 500;
+
+  /** Values not loaded yet, by relation name */
+  private final Map<String, List<GenericValue>> pending = FastMap.newInstance();
+
+  public void defer(GenericValue value, String relationName) {
+    if (isLoaded(value, relationName)) {
+      return;
+    }
+    List<GenericValue> values = pending.get(relationName);
+    if (values == null) {
+      values = FastList.newInstance();
+      pending.put(relationName, values);
+    }
+    values.add(value);
+  }
+
+  public void defer(List<GenericValue> values, String relationName) {
+    for (GenericValue value : values) {
+      defer(value, relationName);
+    }
+  }
+
+  /** Gets the related values, loading them with all the values deferred for the relation if needed */
+  public List<GenericValue> getRelated(GenericValue value, String relationName) throws GenericEntityException {
+    if (!isLoaded(value, relationName)) {
+      defer(value, relationName);
+      flush(relationName);
+    }
+    return value.getRelatedEmbeddedCache(relationName);
+  }
+
+  /** Gets the related value of a one relation, loading it with all the values deferred for the relation if needed */
+  public GenericValue getRelatedOne(GenericValue value, String relationName) throws GenericEntityException {
+    List<GenericValue> related = getRelated(value, relationName);
+    return related.isEmpty() ? null : related.get(0);
+  }
+
+  /** Loads the values deferred for the relation */
+  public void flush(String relationName) throws GenericEntityException {
+    List<GenericValue> values = pending.remove(relationName);
+    if (values != null) {
+      loadRelated(values, relationName);
+    }
+  }
+
+  /** Loads all the deferred values */
+  public void flush() throws GenericEntityException {
+    while (!pending.isEmpty()) {
+      flush(pending.keySet().iterator().next());
+    }
+  }
+
+  private static boolean isLoaded(GenericValue value, String relationName) {
+    return value.relatedCache != null && value.relatedCache.containsKey(relationName);
+  }
+
+  /**
+   * Loads the named relation of all the values and stores the related values
+   * in their embedded caches. The values may be of different entities, as long
+   * as each of them has the relation.
+   */
+  public static void loadRelated(List<GenericValue> values, String relationName) throws GenericEntityException {
+    Map<Entity, List<GenericValue>> valuesByEntity = new IdentityHashMap<Entity, List<GenericValue>>();
+    for (GenericValue value : values) {
+      List<GenericValue> entityValues = valuesByEntity.get(value.getModelEntity());
+      if (entityValues == null) {
+        entityValues = FastList.newInstance();
+        valuesByEntity.put(value.getModelEntity(), entityValues);
+      }
+      entityValues.add(value);
+    }
+    for (Map.Entry<Entity, List<GenericValue>> entry : valuesByEntity.entrySet()) {
+      Relation relation = entry.getKey().getRelation(relationName);
+      if (relation == null) {
+        throw new GenericModelException("Could not find relation for relationName: " + relationName + " for entity " + entry.getKey().getEntityName());
+      }
+      loadRelated(entry.getValue(), relation);
+    }
+  }
+
+  private static void loadRelated(List<GenericValue> values, Relation relation) throws GenericEntityException {
+    String relationName = relation.getRelationName();
+    List<EntityKeyMap> keyMaps = relation.getKeyMaps();
+    Map<List<Object>, List<GenericValue>> valuesByKey = FastMap.newInstance();
+    for (GenericValue value : values) {
+      List<Object> key = new ArrayList<Object>(keyMaps.size());
+      for (EntityKeyMap keyMap : keyMaps) {
+        key.add(value.get(keyMap.getFieldName()));
+      }
+      if (key.contains(null)) {
+        // a null key never matches, like the single value getRelated
+        value.storeRelatedEmbeddedCache(relationName, Collections.<GenericValue>emptyList());
+        continue;
+      }
+      List<GenericValue> keyValues = valuesByKey.get(key);
+      if (keyValues == null) {
+        keyValues = FastList.newInstance();
+        valuesByKey.put(key, keyValues);
+      }
+      keyValues.add(value);
+    }
+    if (valuesByKey.isEmpty()) {
+      return;
+    }
+
+    Delegator delegator = values.get(0).getDelegator();
+    Map<List<Object>, List<GenericValue>> relatedByKey = FastMap.newInstance();
+    List<List<Object>> keys = new ArrayList<List<Object>>(valuesByKey.keySet());
+    for (int start = 0; start < keys.size(); start += CHUNK_SIZE) {
+      List<List<Object>> chunk = keys.subList(start, Math.min(start + CHUNK_SIZE, keys.size()));
+      List<GenericValue> related = delegator.findList(relation.getRelEntityName(), makeKeyCondition(keyMaps, chunk), null, null, null, false);
+      for (GenericValue relatedValue : related) {
+        List<Object> key = new ArrayList<Object>(keyMaps.size());
+        for (EntityKeyMap keyMap : keyMaps) {
+          key.add(relatedValue.get(keyMap.getRelFieldName()));
+        }
+        List<GenericValue> keyRelated = relatedByKey.get(key);
+        if (keyRelated == null) {
+          keyRelated = FastList.newInstance();
+          relatedByKey.put(key, keyRelated);
+        }
+        keyRelated.add(relatedValue);
+      }
+    }
+
+    for (Map.Entry<List<Object>, List<GenericValue>> entry : valuesByKey.entrySet()) {
+      List<GenericValue> related = relatedByKey.get(entry.getKey());
+      related = related == null ? Collections.<GenericValue>emptyList() : Collections.unmodifiableList(related);
+      for (GenericValue value : entry.getValue()) {
+        value.storeRelatedEmbeddedCache(relationName, related);
+        if (relation.isOne() && !related.isEmpty()) {
+          value.storeRelatedOneEmbeddedCache(relationName, related.get(0));
+        }
+      }
+    }
+  }
+
+  /** field IN (...) for a single field key, otherwise an OR of the keys */
+  private static EntityCondition makeKeyCondition(List<EntityKeyMap> keyMaps, List<List<Object>> keys) {
+    if (keyMaps.size() == 1) {
+      List<Object> keyValues = FastList.newInstance();
+      for (List<Object> key : keys) {
+        keyValues.add(key.get(0));
+      }
+      return EntityCondition.makeCondition(keyMaps.get(0).getRelFieldName(), EntityOperator.IN, keyValues);
+    }
+    List<EntityCondition> keyConditions = FastList.newInstance();
+    for (List<Object> key : keys) {
+      Map<String, Object> fields = FastMap.newInstance();
+      for (int i = 0; i < keyMaps.size(); i++) {
+        fields.put(keyMaps.get(i).getRelFieldName(), key.get(i));
+      }
+      keyConditions.add(EntityCondition.makeCondition(fields));
+    }
+    return EntityCondition.makeCondition(keyConditions, EntityOperator.OR);
+  }
+}
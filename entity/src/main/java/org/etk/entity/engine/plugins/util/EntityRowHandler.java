@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.util;
+
+import org.etk.entity.engine.core.GenericEntityException;
+import org.etk.entity.engine.core.GenericValue;
+
+/**
+ * Callback for {@link EntityListIterator#forEachRow(EntityRowHandler)}.
+ */
+public interface EntityRowHandler {
+
+  /**
+   * Called for each row of the result.
+   *
+   * @param row the current row; when rows are reused it is only valid until
+   *          this method returns, use GenericValue.create(row) to keep a copy
+   * @return false to stop the iteration
+   */
+  public boolean processRow(GenericValue row) throws GenericEntityException;
+}
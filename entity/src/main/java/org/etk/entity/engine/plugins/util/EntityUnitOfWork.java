@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.util;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.core.GenericEntity;
+import org.etk.entity.engine.core.GenericEntityException;
+import org.etk.entity.engine.core.GenericPK;
+import org.etk.entity.engine.core.GenericValue;
+
+/**
+ * Write-behind unit of work of one transaction, see
+ * {@link Delegator#beginUnitOfWork()}. The values created, stored and removed
+ * through the delegator are kept here by primary key instead of being written
+ * right away; repeated writes of the same row are coalesced into one, and
+ * {@link #flush()} writes what is left with one JDBC batch per entity and
+ * operation.
+ * <p>
+ * Writes are coalesced the way the database would apply them one after the
+ * other: a store replaces the whole row, a create then a remove writes
+ * nothing, a remove then a create becomes a store. Since nothing reaches the
+ * database before the flush, the counts returned are the expected ones, and
+ * a store of a row that does not exist inserts it, as storeAll does.
+ * <p>
+ * Flushed entities are ordered by the first write of each entity in the unit
+ * of work: creates, then stores, in that order, then removes in the reverse
+ * order, so that rows referenced by foreign keys are inserted first and
+ * removed last. A failed flush leaves the transaction marked for rollback
+ * only. Like the transaction, an instance is not meant to be used by two
+ * threads at the same time.
+ */
+public class EntityUnitOfWork {
+
+  private static final int CREATE = 1;
+
+  private static final int STORE = 2;
+
+  private static final int REMOVE = 3;
+
+  private final Delegator delegator;
+
+  /** The pending writes by primary key, in the order of their first write */
+  private Map<GenericPK, Pending> pending = FastMap.newInstance();
+
+  private long writeCount = 0;
+
+  private long flushedCount = 0;
+
+  private boolean flushing = false;
+
+  public EntityUnitOfWork(Delegator delegator) {
+    this.delegator = delegator;
+  }
+
+  /** Tells whether the row has a pending write, in which case {@link #get(GenericPK)} has its state */
+  public boolean contains(GenericPK primaryKey) {
+    return pending.containsKey(primaryKey);
+  }
+
+  /**
+   * Returns a copy of the row as the pending writes leave it, or null if it
+   * is removed or has no pending write.
+   */
+  public GenericValue get(GenericPK primaryKey) {
+    Pending write = pending.get(primaryKey);
+    if (write == null || write.operation == REMOVE) {
+      return null;
+    }
+    return GenericValue.create(delegator, write.value.getModelEntity(), write.value.getAllFields());
+  }
+
+  public GenericValue create(GenericValue value) throws GenericEntityException {
+    GenericPK primaryKey = value.getPrimaryKey();
+    Pending write = pending.get(primaryKey);
+    writeCount++;
+    if (write == null) {
+      pending.put(primaryKey, new Pending(CREATE, snapshot(value)));
+    } else if (write.operation == REMOVE) {
+      // the row is still in the database until the flush
+      write.operation = STORE;
+      write.value = snapshot(value);
+    } else {
+      throw new GenericEntityException("Cannot create " + primaryKey + ", it was already written in this unit of work");
+    }
+    value.setDelegator(delegator);
+    return value;
+  }
+
+  public int store(GenericValue value) {
+    GenericPK primaryKey = value.getPrimaryKey();
+    Pending write = pending.get(primaryKey);
+    writeCount++;
+    if (write == null) {
+      pending.put(primaryKey, new Pending(STORE, snapshot(value)));
+    } else if (write.operation == REMOVE) {
+      // updating a removed row changes nothing
+      return 0;
+    } else {
+      // a create stays a create, with the new field values
+      write.value = snapshot(value);
+    }
+    return 1;
+  }
+
+  public int remove(GenericEntity value) {
+    GenericPK primaryKey = value.getPrimaryKey();
+    Pending write = pending.get(primaryKey);
+    writeCount++;
+    if (write == null) {
+      pending.put(primaryKey, new Pending(REMOVE, primaryKey));
+    } else if (write.operation == CREATE) {
+      // never written, nothing to remove
+      pending.remove(primaryKey);
+    } else if (write.operation == STORE) {
+      write.operation = REMOVE;
+      write.value = primaryKey;
+    } else {
+      return 0;
+    }
+    return 1;
+  }
+
+  /** Tells whether {@link #flush()} is writing; the delegator then writes to the database directly */
+  public boolean isFlushing() {
+    return flushing;
+  }
+
+  /** The number of rows with a pending write */
+  public int size() {
+    return pending.size();
+  }
+
+  /** The number of writes asked for so far */
+  public long getWriteCount() {
+    return writeCount;
+  }
+
+  /** The number of rows written by the flushes so far, at most {@link #getWriteCount()} */
+  public long getFlushedCount() {
+    return flushedCount;
+  }
+
+  /**
+   * Writes the pending writes to the database, in the current transaction.
+   * The delegator flushes before any query other than a find by primary key,
+   * and before the transaction commits.
+   *
+   * @return the number of rows changed
+   */
+  public int flush() throws GenericEntityException {
+    if (pending.isEmpty()) {
+      return 0;
+    }
+    // detach first, the delegator calls below flush again before writing
+    Map<GenericPK, Pending> flushed = pending;
+    pending = FastMap.newInstance();
+
+    Map<String, List<Pending>> byEntity = FastMap.newInstance();
+    for (Map.Entry<GenericPK, Pending> entry : flushed.entrySet()) {
+      String entityName = entry.getKey().getEntityName();
+      List<Pending> writes = byEntity.get(entityName);
+      if (writes == null) {
+        writes = FastList.newInstance();
+        byEntity.put(entityName, writes);
+      }
+      writes.add(entry.getValue());
+    }
+    List<List<Pending>> entityOrder = FastList.newInstance();
+    entityOrder.addAll(byEntity.values());
+
+    List<GenericValue> creates = FastList.newInstance();
+    List<GenericValue> stores = FastList.newInstance();
+    for (List<Pending> writes : entityOrder) {
+      for (Pending write : writes) {
+        if (write.operation == CREATE) {
+          creates.add((GenericValue) write.value);
+        }
+      }
+    }
+    for (List<Pending> writes : entityOrder) {
+      for (Pending write : writes) {
+        if (write.operation == STORE) {
+          stores.add((GenericValue) write.value);
+        }
+      }
+    }
+    List<GenericEntity> removes = FastList.newInstance();
+    Collections.reverse(entityOrder);
+    for (List<Pending> writes : entityOrder) {
+      for (Pending write : writes) {
+        if (write.operation == REMOVE) {
+          removes.add(write.value);
+        }
+      }
+    }
+
+    int rows = 0;
+    this.flushing = true;
+    try {
+      if (!creates.isEmpty()) {
+        rows += delegator.createAll(creates);
+      }
+      if (!stores.isEmpty()) {
+        rows += delegator.storeAll(stores);
+      }
+      if (!removes.isEmpty()) {
+        rows += delegator.removeAll(removes);
+      }
+    } finally {
+      this.flushing = false;
+    }
+    flushedCount += flushed.size();
+    return rows;
+  }
+
+  private GenericValue snapshot(GenericValue value) {
+    GenericValue copy = GenericValue.create(value);
+    copy.setDelegator(delegator);
+    return copy;
+  }
+
+  private static final class Pending {
+    private int operation;
+
+    /** The row to write, or the primary key of the row to remove */
+    private GenericEntity value;
+
+    private Pending(int operation, GenericEntity value) {
+      this.operation = operation;
+      this.value = value;
+    }
+  }
+}
@@ -23,6 +23,7 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 import javolution.util.FastList;
@@ -37,9 +38,12 @@ import org.etk.entity.engine.api.Delegator;
 import org.etk.entity.engine.core.GenericEntity;
 import org.etk.entity.engine.core.GenericEntityException;
 import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.condition.CompiledCondition;
 import org.etk.entity.engine.plugins.condition.EntityCondition;
 import org.etk.entity.engine.plugins.condition.EntityDateFilterCondition;
+import org.etk.entity.engine.plugins.condition.EntityOperator;
 import org.etk.entity.engine.plugins.condition.OrderByList;
+import org.etk.entity.engine.plugins.model.xml.Entity;
 import org.etk.entity.engine.plugins.model.xml.Field;
 
 /**
@@ -268,15 +272,10 @@ public class EntityUtil {
             return values;
         }
 
+        CompiledCondition compiled = CompiledCondition.compile(exprs, EntityOperator.AND, getModelEntity(values));
         List<T> result = FastList.newInstance();
         for (T value: values) {
-            boolean include = true;
-
-            for (EntityCondition condition: exprs) {
-                include = condition.entityMatches(value);
-                if (!include) break;
-            }
-            if (include) {
+            if (compiled.matches(value)) {
                 result.add(value);
             }
         }
@@ -296,15 +295,10 @@ public class EntityUtil {
             return values;
         }
 
+        CompiledCondition compiled = CompiledCondition.compile(exprs, EntityOperator.OR, getModelEntity(values));
         List<T> result = FastList.newInstance();
         for (T value: values) {
-            boolean include = false;
-
-            for (EntityCondition condition: exprs) {
-                include = condition.entityMatches(value);
-                if (include) break;
-            }
-            if (include) {
+            if (compiled.matches(value)) {
                 result.add(value);
             }
         }
@@ -335,12 +329,84 @@ public class EntityUtil {
         return result;
     }
 
+    /**
+     *returns the values of the lists, each already in the order specified, merged in that order
+     *
+     *@param sortedLists Lists of GenericValues each sorted by orderBy
+     *@param orderBy The fields of the named entity the lists are ordered by
+     *@return List of GenericValue's in the proper order
+     */
+    public static <T extends GenericEntity> List<T> mergeOrdered(List<List<T>> sortedLists, List<String> orderBy) {
+        List<T> result = FastList.newInstance();
+        if (sortedLists == null) return result;
+        if (UtilValidate.isEmpty(orderBy)) {
+            for (List<T> list: sortedLists) {
+                if (list != null) result.addAll(list);
+            }
+            return result;
+        }
+
+        OrderByList orderByList = new OrderByList(orderBy);
+        PriorityQueue<MergeCursor<T>> heads = new PriorityQueue<MergeCursor<T>>(Math.max(1, sortedLists.size()));
+        int listIndex = 0;
+        for (List<T> list: sortedLists) {
+            if (UtilValidate.isNotEmpty(list)) {
+                heads.add(new MergeCursor<T>(orderByList, list, listIndex));
+            }
+            listIndex++;
+        }
+        while (!heads.isEmpty()) {
+            MergeCursor<T> head = heads.poll();
+            result.add(head.current());
+            if (head.advance()) {
+                heads.add(head);
+            }
+        }
+        return result;
+    }
+
+    /** Position in one of the lists of mergeOrdered, ties go to the earlier list to keep the merge stable */
+    private static final class MergeCursor<T extends GenericEntity> implements Comparable<MergeCursor<T>> {
+        private final OrderByList orderByList;
+        // lists may be linked, so they are walked rather than indexed
+        private final Iterator<T> iterator;
+        private final int listIndex;
+        private T current;
+
+        private MergeCursor(OrderByList orderByList, List<T> list, int listIndex) {
+            this.orderByList = orderByList;
+            this.iterator = list.iterator();
+            this.listIndex = listIndex;
+            this.current = iterator.next();
+        }
+
+        private T current() {
+            return current;
+        }
+
+        private boolean advance() {
+            if (!iterator.hasNext()) return false;
+            current = iterator.next();
+            return true;
+        }
+
+        public int compareTo(MergeCursor<T> other) {
+            int result = orderByList.compare(current, other.current);
+            return result != 0 ? result : listIndex - other.listIndex;
+        }
+    }
+
+    /**
+     * Gets the related values of all the values, with one query per chunk of
+     * keys; the related values are also left in the embedded cache of each value.
+     */
     public static List<GenericValue> getRelated(String relationName, List<GenericValue> values) throws GenericEntityException {
         if (values == null) return null;
 
+        EntityRelatedLoader.loadRelated(values, relationName);
         List<GenericValue> result = FastList.newInstance();
         for (GenericValue value: values) {
-            result.addAll(value.getRelated(relationName));
+            result.addAll(value.getRelatedEmbeddedCache(relationName));
         }
         return result;
     }
@@ -378,9 +444,10 @@ public class EntityUtil {
     public static <T extends GenericEntity> List<T> filterByCondition(List<T> values, EntityCondition condition) {
         if (values == null) return null;
 
+        CompiledCondition compiled = CompiledCondition.compile(condition, getModelEntity(values));
         List<T> result = FastList.newInstance();
         for (T value: values) {
-            if (condition.entityMatches(value)) {
+            if (compiled.matches(value)) {
                 result.add(value);
             }
         }
@@ -390,15 +457,23 @@ public class EntityUtil {
     public static <T extends GenericEntity> List<T> filterOutByCondition(List<T> values, EntityCondition condition) {
         if (values == null) return null;
 
+        CompiledCondition compiled = CompiledCondition.compile(condition, getModelEntity(values));
         List<T> result = FastList.newInstance();
         for (T value: values) {
-            if (!condition.entityMatches(value)) {
+            if (!compiled.matches(value)) {
                 result.add(value);
             }
         }
         return result;
     }
 
+    /** The model entity of the first value, the filters compile their conditions against it */
+    private static Entity getModelEntity(List<? extends GenericEntity> values) {
+        if (values.isEmpty()) return null;
+        GenericEntity first = values.get(0);
+        return first == null ? null : first.getModelEntity();
+    }
+
     public static List<GenericValue> findDatedInclusionEntity(Delegator delegator, String entityName, Map<String, ? extends Object> search) throws GenericEntityException {
         return findDatedInclusionEntity(delegator, entityName, search, UtilDateTime.nowTimestamp());
     }
@@ -20,43 +20,75 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.transaction.Transaction;
 
+import org.etk.common.logging.Logger;
+import org.etk.entity.base.concurrent.ExecutionPool;
 import org.etk.entity.base.utils.UtilProperties;
+import org.etk.entity.engine.core.GenericDelegator;
 import org.etk.entity.engine.core.GenericEntityException;
+import org.etk.entity.engine.plugins.config.EntityConfigUtil;
 import org.etk.entity.engine.plugins.datasource.GenericHelperInfo;
 import org.etk.entity.engine.plugins.jdbc.ConnectionFactory;
+import org.etk.entity.engine.plugins.metrics.EntityMetrics;
+import org.etk.entity.engine.plugins.metrics.EntityMetricsFactory;
 import org.etk.entity.engine.plugins.model.xml.Entity;
 import org.etk.entity.engine.plugins.model.xml.Field;
 import org.etk.entity.engine.plugins.transaction.GenericTransactionException;
 import org.etk.entity.engine.plugins.transaction.TransactionUtil;
 
-import com.sun.org.apache.xalan.internal.xsltc.runtime.Hashtable;
-
 /**
  * Sequence Utility to get unique sequences from named sequence banks Uses a
  * collision detection approach to safely get unique sequenced ids in banks from
  * the database
+ * <p>
+ * Ids are handed out from the current bank with an atomic counter, so callers
+ * only wait when a bank is exhausted and no new bank is ready. Once a bank is
+ * {@link #PREFETCH_PERCENT} percent used the next one is fetched in the
+ * background. The size of the banks doubles while they are consumed faster than
+ * {@link #FAST_REFILL_MILLIS}, up to {@link SequenceBank#maxBankSize}, and
+ * shrinks back when the sequence gets quiet.
  */
 public class SequenceUtil {
 
-  public static final String              module    = SequenceUtil.class.getName();
+  private static final Logger                    logger                = Logger.getLogger(SequenceUtil.class);
+
+  public static final String                     module                = SequenceUtil.class.getName();
+
+  /** The percentage of a bank used before the next one is prefetched */
+  public static final int                        PREFETCH_PERCENT      = 75;
+
+  /** A bank consumed faster than this gets a bigger successor */
+  public static final long                       FAST_REFILL_MILLIS    = 1000;
+
+  /** A bank living longer than this gets a smaller successor */
+  public static final long                       SLOW_REFILL_MILLIS    = 60000;
+
+  private static final ThreadGroup               SEQUENCE_THREAD_GROUP = new ThreadGroup("SequenceUtil");
+
+  private static final ExecutorService           prefetchExecutor      = ExecutionPool.getExecutor(SEQUENCE_THREAD_GROUP, "entity-sequence-prefetch", 1, false);
 
-  private final Map<String, SequenceBank> sequences = new Hashtable<String, SequenceBank>();
+  private final ConcurrentMap<String, SequenceBank> sequences          = new ConcurrentHashMap<String, SequenceBank>();
 
-  private final GenericHelperInfo         helperInfo;
+  private final GenericHelperInfo                helperInfo;
 
-  private final long                      bankSize;
+  private final long                             bankSize;
 
-  private final String                    tableName;
+  private final String                           tableName;
 
-  private final String                    nameColName;
+  private final String                           nameColName;
 
-  private final String                    idColName;
+  private final String                           idColName;
 
-  private final boolean                   clustered;
+  private final boolean                          clustered;
 
   public SequenceUtil(GenericDelegator delegator,
                       GenericHelperInfo helperInfo,
@@ -67,7 +99,7 @@ public class SequenceUtil {
     if (seqEntity == null) {
       throw new IllegalArgumentException("The sequence model entity was null but is required.");
     }
-    this.tableName = seqEntity.getTableName(helperInfo.getHelperBaseName());
+    this.tableName = seqEntity.getTableName(EntityConfigUtil.getDatasourceInfo(helperInfo.getHelperBaseName()));
 
     Field nameField = seqEntity.getField(nameFieldName);
 
@@ -112,45 +144,110 @@ public class SequenceUtil {
     SequenceBank bank = sequences.get(seqName);
 
     if (bank == null) {
-      synchronized (this) {
-        bank = sequences.get(seqName);
-        if (bank == null) {
-          bank = new SequenceBank(seqName);
-          sequences.put(seqName, bank);
-        }
+      bank = new SequenceBank(seqName);
+      SequenceBank existing = sequences.putIfAbsent(seqName, bank);
+      if (existing != null) {
+        bank = existing;
       }
     }
 
     return bank;
   }
 
+  /** A range of ids read from the database, ids in [next, maxSeqId) can be handed out */
+  static final class Block {
+    private final long       maxSeqId;
+
+    private final long       prefetchSeqId;
+
+    private final AtomicLong next;
+
+    Block(long startSeqId, long maxSeqId) {
+      this.maxSeqId = maxSeqId;
+      this.prefetchSeqId = startSeqId + (maxSeqId - startSeqId) * PREFETCH_PERCENT / 100;
+      this.next = new AtomicLong(startSeqId);
+    }
+
+    /** Hands out the next id and skips stagger ids, -1 when the block has fewer ids left */
+    long take(long stagger) {
+      long seqId = next.getAndAdd(stagger);
+      return seqId + stagger <= maxSeqId ? seqId : -1;
+    }
+
+    /** Whether handing out the id used {@link #PREFETCH_PERCENT} of the block */
+    boolean isPrefetchDue(long seqId) {
+      return seqId >= prefetchSeqId;
+    }
+  }
+
+  /**
+   * Doubles the bank size while banks go fast and halves it when they go slow,
+   * between the configured size and the maximum. Not thread safe, the banks
+   * only use it while holding their fill lock.
+   */
+  static final class AdaptiveBankSize {
+    private final long minSize;
+
+    private final long maxSize;
+
+    private long       size;
+
+    private long       lastFillNanos;
+
+    AdaptiveBankSize(long minSize, long maxSize) {
+      this.minSize = minSize;
+      this.maxSize = maxSize;
+      this.size = minSize;
+    }
+
+    /** The size of the bank filled at nowNanos */
+    long next(long nowNanos) {
+      if (lastFillNanos != 0) {
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(nowNanos - lastFillNanos);
+        if (elapsedMillis < FAST_REFILL_MILLIS) {
+          size = Math.min(size * 2, maxSize);
+        } else if (elapsedMillis > SLOW_REFILL_MILLIS) {
+          size = Math.max(size / 2, minSize);
+        }
+      }
+      lastFillNanos = nowNanos;
+      return size;
+    }
+  }
+
   private class SequenceBank {
-    public static final long defaultBankSize = 10;
+    public static final long             defaultBankSize = 10;
+
+    public static final long             maxBankSize     = 5000;
 
-    public static final long maxBankSize     = 5000;
+    public static final long             startSeqId      = 10000;
 
-    public static final long startSeqId      = 10000;
+    public static final long             minWaitMillis   = 5;
 
-    public static final long minWaitMillis   = 5;
+    public static final long             maxWaitMillis   = 50;
 
-    public static final long maxWaitMillis   = 50;
+    public static final int              maxTries        = 5;
 
-    public static final int  maxTries        = 5;
+    private final String                 seqName;
 
-    private long             curSeqId;
+    private final AtomicReference<Block> current         = new AtomicReference<Block>(new Block(0, 0));
 
-    private long             maxSeqId;
+    private final AtomicReference<Block> prefetched      = new AtomicReference<Block>();
 
-    private final String     seqName;
+    private final AtomicBoolean          prefetching     = new AtomicBoolean();
+
+    /** Guards the database round trips, the hand-out path never takes it */
+    private final Object                 fillLock        = new Object();
+
+    /** The size of the next bank, only used while holding the fill lock */
+    private final AdaptiveBankSize       bankSizes;
 
     private SequenceBank(String seqName) {
       this.seqName = seqName;
-      curSeqId = 0;
-      maxSeqId = 0;
-      fillBank(1);
+      this.bankSizes = new AdaptiveBankSize(SequenceUtil.this.bankSize, maxBankSize);
     }
 
-    private synchronized Long getNextSeqId(long staggerMax) {
+    private Long getNextSeqId(long staggerMax) {
       long stagger = 1;
       if (staggerMax > 1) {
         stagger = Math.round(Math.random() * staggerMax);
@@ -158,39 +255,90 @@ public class SequenceUtil {
           stagger = 1;
       }
 
-      if ((curSeqId + stagger) <= maxSeqId) {
-        Long retSeqId = Long.valueOf(curSeqId);
-        curSeqId += stagger;
-        return retSeqId;
-      } else {
-        fillBank(stagger);
-        if ((curSeqId + stagger) <= maxSeqId) {
-          Long retSeqId = Long.valueOf(curSeqId);
-          curSeqId += stagger;
-          return retSeqId;
-        } else {
-          Debug.logError("[SequenceUtil.SequenceBank.getNextSeqId] Fill bank failed, returning null",
-                         module);
+      Block block = current.get();
+      while (true) {
+        long seqId = block.take(stagger);
+        if (seqId >= 0) {
+          if (block.isPrefetchDue(seqId) && !prefetching.get()) {
+            prefetch();
+          }
+          return Long.valueOf(seqId);
+        }
+        block = nextBlock(block, stagger);
+        if (block == null) {
+          logger.error("[SequenceUtil.SequenceBank.getNextSeqId] Fill bank failed for [" + seqName + "], returning null");
           return null;
         }
       }
     }
 
-    private void refresh(long staggerMax) {
-      this.curSeqId = this.maxSeqId;
-      this.fillBank(staggerMax);
+    /** Swaps the exhausted block for the prefetched one, or for a freshly filled one */
+    private Block nextBlock(Block exhausted, long stagger) {
+      synchronized (fillLock) {
+        Block block = current.get();
+        if (block != exhausted) {
+          // another thread already swapped it
+          return block;
+        }
+        block = prefetched.getAndSet(null);
+        if (block != null) {
+          prefetching.set(false);
+        } else {
+          block = fillBank(stagger);
+          if (block == null) {
+            return null;
+          }
+        }
+        current.set(block);
+        return block;
+      }
     }
 
-    private synchronized void fillBank(long stagger) {
-      // Debug.logWarning("[SequenceUtil.SequenceBank.fillBank] Starting fillBank Thread Name is: "
-      // + Thread.currentThread().getName() + ":" +
-      // Thread.currentThread().toString(), module);
-
-      // no need to get a new bank, SeqIds available
-      if ((curSeqId + stagger) <= maxSeqId)
+    private void prefetch() {
+      if (!prefetching.compareAndSet(false, true)) {
         return;
+      }
+      try {
+        prefetchExecutor.execute(new Runnable() {
+          public void run() {
+            synchronized (fillLock) {
+              if (prefetched.get() == null) {
+                prefetched.set(fillBank(1));
+              }
+              if (prefetched.get() == null) {
+                // failed, the next hand-out past the mark can try again
+                prefetching.set(false);
+              }
+            }
+          }
+        });
+      } catch (RuntimeException e) {
+        prefetching.set(false);
+        logger.warn("Could not schedule the prefetch of the sequence bank for [" + seqName + "]", e);
+      }
+    }
+
+    private void refresh(long staggerMax) {
+      synchronized (fillLock) {
+        prefetched.set(null);
+        prefetching.set(false);
+        Block block = this.fillBank(staggerMax);
+        if (block != null) {
+          current.set(block);
+        }
+      }
+    }
 
-      long bankSize = SequenceUtil.this.bankSize;
+    /** Reserves a new bank in the database, must be called while holding the fill lock */
+    private Block fillBank(long stagger) {
+      long startNanos = System.nanoTime();
+      Block block = reserveBank(stagger);
+      EntityMetricsFactory.getMetrics().recordOperation(seqName, EntityMetrics.SEQUENCE, System.nanoTime() - startNanos, block == null ? 0 : 1);
+      return block;
+    }
+
+    private Block reserveBank(long stagger) {
+      long bankSize = bankSizes.next(System.nanoTime());
       if (stagger > 1) {
         // NOTE: could use staggerMax for this, but if that is done it would be
         // easier to guess a valid next id without a brute force attack
@@ -209,191 +357,148 @@ public class SequenceUtil {
       int numTries = 0;
 
       while (val1 + bankSize != val2) {
-        if (Debug.verboseOn())
-          Debug.logVerbose("[SequenceUtil.SequenceBank.fillBank] Trying to get a bank of sequenced ids for "
-                               + this.seqName
-                               + "; start of loop val1="
-                               + val1
-                               + ", val2="
-                               + val2
-                               + ", bankSize=" + bankSize,
-                           module);
-
-        // not sure if this synchronized block is totally necessary, the method
-        // is synchronized but it does do a wait/sleep
-        // outside of this block, and this is the really sensitive block, so
-        // making sure it is isolated; there is some overhead
-        // to this, but very bad things can happen if we try to do too many of
-        // these at once for a single sequencer
-        synchronized (this) {
-          Transaction suspendedTransaction = null;
-          try {
-            // if we can suspend the transaction, we'll try to do this in a
-            // local manual transaction
-            suspendedTransaction = TransactionUtil.suspend();
+        if (logger.isDebugEnabled())
+          logger.debug("[SequenceUtil.SequenceBank.fillBank] Trying to get a bank of sequenced ids for "
+              + this.seqName + "; start of loop val1=" + val1 + ", val2=" + val2 + ", bankSize=" + bankSize);
 
-            boolean beganTransaction = false;
-            try {
-              beganTransaction = TransactionUtil.begin();
+        Transaction suspendedTransaction = null;
+        try {
+          // if we can suspend the transaction, we'll try to do this in a
+          // local manual transaction
+          suspendedTransaction = TransactionUtil.suspend();
 
-              Connection connection = null;
-              Statement stmt = null;
-              ResultSet rs = null;
+          boolean beganTransaction = false;
+          try {
+            beganTransaction = TransactionUtil.begin();
 
-              try {
-                connection = ConnectionFactory.getConnection(SequenceUtil.this.helperInfo);
-              } catch (SQLException sqle) {
-                Debug.logWarning("[SequenceUtil.SequenceBank.fillBank]: Unable to esablish a connection with the database... Error was:"
-                                     + sqle.toString(),
-                                 module);
-                throw sqle;
-              } catch (GenericEntityException e) {
-                Debug.logWarning("[SequenceUtil.SequenceBank.fillBank]: Unable to esablish a connection with the database... Error was: "
-                                     + e.toString(),
-                                 module);
-                throw e;
-              }
+            Connection connection = null;
+            Statement stmt = null;
+            ResultSet rs = null;
 
-              if (connection == null) {
-                throw new GenericEntityException("[SequenceUtil.SequenceBank.fillBank]: Unable to esablish a connection with the database, connection was null...");
-              }
+            try {
+              connection = ConnectionFactory.getConnection(SequenceUtil.this.helperInfo);
+            } catch (SQLException sqle) {
+              logger.warn("[SequenceUtil.SequenceBank.fillBank]: Unable to esablish a connection with the database... Error was:"
+                  + sqle.toString());
+              throw sqle;
+            } catch (GenericEntityException e) {
+              logger.warn("[SequenceUtil.SequenceBank.fillBank]: Unable to esablish a connection with the database... Error was: "
+                  + e.toString());
+              throw e;
+            }
 
-              String sql = null;
+            if (connection == null) {
+              throw new GenericEntityException("[SequenceUtil.SequenceBank.fillBank]: Unable to esablish a connection with the database, connection was null...");
+            }
 
-              try {
-                // we shouldn't need this, and some TX managers complain about
-                // it, so not including it: connection.setAutoCommit(false);
-
-                stmt = connection.createStatement();
-                if (clustered) {
-                  sql = "SELECT " + SequenceUtil.this.idColName + " FROM "
-                      + SequenceUtil.this.tableName + " WHERE " + SequenceUtil.this.nameColName
-                      + "='" + this.seqName + "'" + " FOR UPDATE";
-                } else {
-                  sql = "SELECT " + SequenceUtil.this.idColName + " FROM "
-                      + SequenceUtil.this.tableName + " WHERE " + SequenceUtil.this.nameColName
-                      + "='" + this.seqName + "'";
-                }
-                rs = stmt.executeQuery(sql);
-                boolean gotVal1 = false;
-                if (rs.next()) {
-                  val1 = rs.getLong(SequenceUtil.this.idColName);
-                  gotVal1 = true;
-                }
-                rs.close();
-
-                if (!gotVal1) {
-                  Debug.logWarning("[SequenceUtil.SequenceBank.fillBank] first select failed: will try to add new row, result set was empty for sequence ["
-                                       + seqName
-                                       + "] \nUsed SQL: "
-                                       + sql
-                                       + " \n Thread Name is: "
-                                       + Thread.currentThread().getName()
-                                       + ":"
-                                       + Thread.currentThread().toString(),
-                                   module);
-                  sql = "INSERT INTO " + SequenceUtil.this.tableName + " ("
-                      + SequenceUtil.this.nameColName + ", " + SequenceUtil.this.idColName
-                      + ") VALUES ('" + this.seqName + "', " + startSeqId + ")";
-                  if (stmt.executeUpdate(sql) <= 0) {
-                    throw new GenericEntityException("No rows changed when trying insert new sequence row with this SQL: "
-                        + sql);
-                  }
-                  continue;
-                }
+            String sql = null;
 
-                sql = "UPDATE " + SequenceUtil.this.tableName + " SET "
-                    + SequenceUtil.this.idColName + "=" + SequenceUtil.this.idColName + "+"
-                    + bankSize + " WHERE " + SequenceUtil.this.nameColName + "='" + this.seqName
-                    + "'";
+            try {
+              // we shouldn't need this, and some TX managers complain about
+              // it, so not including it: connection.setAutoCommit(false);
+
+              stmt = connection.createStatement();
+              sql = makeSelectSql();
+              rs = stmt.executeQuery(sql);
+              boolean gotVal1 = false;
+              if (rs.next()) {
+                val1 = rs.getLong(SequenceUtil.this.idColName);
+                gotVal1 = true;
+              }
+              rs.close();
+
+              if (!gotVal1) {
+                logger.warn("[SequenceUtil.SequenceBank.fillBank] first select failed: will try to add new row, result set was empty for sequence ["
+                    + seqName + "] \nUsed SQL: " + sql + " \n Thread Name is: "
+                    + Thread.currentThread().getName() + ":" + Thread.currentThread().toString());
+                sql = "INSERT INTO " + SequenceUtil.this.tableName + " ("
+                    + SequenceUtil.this.nameColName + ", " + SequenceUtil.this.idColName
+                    + ") VALUES ('" + this.seqName + "', " + startSeqId + ")";
                 if (stmt.executeUpdate(sql) <= 0) {
-                  throw new GenericEntityException("[SequenceUtil.SequenceBank.fillBank] update failed, no rows changes for seqName: "
-                      + seqName);
-                }
-                if (clustered) {
-                  sql = "SELECT " + SequenceUtil.this.idColName + " FROM "
-                      + SequenceUtil.this.tableName + " WHERE " + SequenceUtil.this.nameColName
-                      + "='" + this.seqName + "'" + " FOR UPDATE";
-
-                } else {
-                  sql = "SELECT " + SequenceUtil.this.idColName + " FROM "
-                      + SequenceUtil.this.tableName + " WHERE " + SequenceUtil.this.nameColName
-                      + "='" + this.seqName + "'";
-                }
-                rs = stmt.executeQuery(sql);
-                boolean gotVal2 = false;
-                if (rs.next()) {
-                  val2 = rs.getLong(SequenceUtil.this.idColName);
-                  gotVal2 = true;
+                  throw new GenericEntityException("No rows changed when trying insert new sequence row with this SQL: "
+                      + sql);
                 }
+                continue;
+              }
 
-                rs.close();
+              sql = "UPDATE " + SequenceUtil.this.tableName + " SET "
+                  + SequenceUtil.this.idColName + "=" + SequenceUtil.this.idColName + "+"
+                  + bankSize + " WHERE " + SequenceUtil.this.nameColName + "='" + this.seqName
+                  + "'";
+              if (stmt.executeUpdate(sql) <= 0) {
+                throw new GenericEntityException("[SequenceUtil.SequenceBank.fillBank] update failed, no rows changes for seqName: "
+                    + seqName);
+              }
+              sql = makeSelectSql();
+              rs = stmt.executeQuery(sql);
+              boolean gotVal2 = false;
+              if (rs.next()) {
+                val2 = rs.getLong(SequenceUtil.this.idColName);
+                gotVal2 = true;
+              }
 
-                if (!gotVal2) {
-                  throw new GenericEntityException("[SequenceUtil.SequenceBank.fillBank] second select failed: aborting, result set was empty for sequence: "
-                      + seqName);
-                }
+              rs.close();
 
-                // got val1 and val2 at this point, if we don't have the right
-                // difference between them, force a rollback (with
-                // setRollbackOnly and NOT with an exception because we don't
-                // want to break from the loop, just err out and
-                // continue), then flow out to allow the wait and loop thing to
-                // happen
-                if (val1 + bankSize != val2) {
-                  TransactionUtil.setRollbackOnly("Forcing transaction rollback in sequence increment because we didn't get a clean update, ie a conflict was found, so not saving the results",
-                                                  null);
-                }
-              } catch (SQLException sqle) {
-                Debug.logWarning(sqle,
-                                 "[SequenceUtil.SequenceBank.fillBank] SQL Exception while executing the following:\n"
-                                     + sql + "\nError was:" + sqle.getMessage(),
-                                 module);
-                throw sqle;
-              } finally {
-                try {
-                  if (stmt != null)
-                    stmt.close();
-                } catch (SQLException sqle) {
-                  Debug.logWarning(sqle, "Error closing statement in sequence util", module);
-                }
-                try {
-                  if (connection != null)
-                    connection.close();
-                } catch (SQLException sqle) {
-                  Debug.logWarning(sqle, "Error closing connection in sequence util", module);
-                }
-              }
-            } catch (Exception e) {
-              String errMsg = "General error in getting a sequenced ID";
-              Debug.logError(e, errMsg, module);
-              try {
-                TransactionUtil.rollback(beganTransaction, errMsg, e);
-              } catch (GenericTransactionException gte2) {
-                Debug.logError(gte2, "Unable to rollback transaction", module);
+              if (!gotVal2) {
+                throw new GenericEntityException("[SequenceUtil.SequenceBank.fillBank] second select failed: aborting, result set was empty for sequence: "
+                    + seqName);
               }
 
-              // error, break out of the loop to not try to continue forever
-              break;
+              // got val1 and val2 at this point, if we don't have the right
+              // difference between them, force a rollback (with
+              // setRollbackOnly and NOT with an exception because we don't
+              // want to break from the loop, just err out and
+              // continue), then flow out to allow the wait and loop thing to
+              // happen
+              if (val1 + bankSize != val2) {
+                TransactionUtil.setRollbackOnly("Forcing transaction rollback in sequence increment because we didn't get a clean update, ie a conflict was found, so not saving the results",
+                                                null);
+              }
+            } catch (SQLException sqle) {
+              logger.warn("[SequenceUtil.SequenceBank.fillBank] SQL Exception while executing the following:\n"
+                  + sql + "\nError was:" + sqle.getMessage(), sqle);
+              throw sqle;
             } finally {
               try {
-                TransactionUtil.commit(beganTransaction);
-              } catch (GenericTransactionException gte) {
-                Debug.logError(gte,
-                               "Unable to commit sequence increment transaction, continuing anyway though",
-                               module);
+                if (stmt != null)
+                  stmt.close();
+              } catch (SQLException sqle) {
+                logger.warn("Error closing statement in sequence util", sqle);
               }
-            }
-          } catch (GenericTransactionException e) {
-            Debug.logError(e, "System Error suspending transaction in sequence util", module);
-          } finally {
-            if (suspendedTransaction != null) {
               try {
-                TransactionUtil.resume(suspendedTransaction);
-              } catch (GenericTransactionException e) {
-                Debug.logError(e, "Error resuming suspended transaction in sequence util", module);
+                if (connection != null)
+                  connection.close();
+              } catch (SQLException sqle) {
+                logger.warn("Error closing connection in sequence util", sqle);
               }
             }
+          } catch (Exception e) {
+            String errMsg = "General error in getting a sequenced ID";
+            logger.error(errMsg, e);
+            try {
+              TransactionUtil.rollback(beganTransaction, errMsg, e);
+            } catch (GenericTransactionException gte2) {
+              logger.error("Unable to rollback transaction", gte2);
+            }
+
+            // error, break out of the loop to not try to continue forever
+            return null;
+          } finally {
+            try {
+              TransactionUtil.commit(beganTransaction);
+            } catch (GenericTransactionException gte) {
+              logger.error("Unable to commit sequence increment transaction, continuing anyway though", gte);
+            }
+          }
+        } catch (GenericTransactionException e) {
+          logger.error("System Error suspending transaction in sequence util", e);
+        } finally {
+          if (suspendedTransaction != null) {
+            try {
+              TransactionUtil.resume(suspendedTransaction);
+            } catch (GenericTransactionException e) {
+              logger.error("Error resuming suspended transaction in sequence util", e);
+            }
           }
         }
 
@@ -401,39 +506,44 @@ public class SequenceUtil {
           if (numTries >= maxTries) {
             String errMsg = "[SequenceUtil.SequenceBank.fillBank] maxTries (" + maxTries
                 + ") reached for seqName [" + this.seqName + "], giving up.";
-            Debug.logError(errMsg, module);
-            return;
+            logger.error(errMsg);
+            return null;
           }
 
           // collision happened, wait a bounded random amount of time then
           // continue
           long waitTime = (long) (Math.random() * (maxWaitMillis - minWaitMillis) + minWaitMillis);
 
-          Debug.logWarning("[SequenceUtil.SequenceBank.fillBank] Collision found for seqName ["
+          logger.warn("[SequenceUtil.SequenceBank.fillBank] Collision found for seqName ["
               + seqName + "], val1=" + val1 + ", val2=" + val2 + ", val1+bankSize="
-              + (val1 + bankSize) + ", bankSize=" + bankSize + ", waitTime=" + waitTime, module);
+              + (val1 + bankSize) + ", bankSize=" + bankSize + ", waitTime=" + waitTime);
 
           try {
             // using the Thread.sleep to more reliably lock this thread:
             // this.wait(waitTime);
             java.lang.Thread.sleep(waitTime);
           } catch (Exception e) {
-            Debug.logWarning(e, "Error waiting in sequence util", module);
-            return;
+            logger.warn("Error waiting in sequence util", e);
+            return null;
           }
         }
 
         numTries++;
       }
 
-      curSeqId = val1;
-      maxSeqId = val2;
-      if (Debug.infoOn())
-        Debug.logInfo("Got bank of sequenced IDs for [" + this.seqName + "]; curSeqId=" + curSeqId
-            + ", maxSeqId=" + maxSeqId + ", bankSize=" + bankSize, module);
-      // Debug.logWarning("[SequenceUtil.SequenceBank.fillBank] Ending fillBank Thread Name is: "
-      // + Thread.currentThread().getName() + ":" +
-      // Thread.currentThread().toString(), module);
+      if (logger.isDebugEnabled())
+        logger.debug("Got bank of sequenced IDs for [" + this.seqName + "]; curSeqId=" + val1
+            + ", maxSeqId=" + val2 + ", bankSize=" + bankSize);
+      return new Block(val1, val2);
+    }
+
+    private String makeSelectSql() {
+      String sql = "SELECT " + SequenceUtil.this.idColName + " FROM " + SequenceUtil.this.tableName
+          + " WHERE " + SequenceUtil.this.nameColName + "='" + this.seqName + "'";
+      if (clustered) {
+        sql += " FOR UPDATE";
+      }
+      return sql;
     }
   }
 }
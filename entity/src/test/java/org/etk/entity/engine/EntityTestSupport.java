@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+import org.etk.entity.engine.plugins.model.xml.Field;
+import org.etk.entity.engine.plugins.model.xml.PKField;
+
+/**
+ * The sample entities of entityconf/entitymodel.xml, built in memory so the
+ * tests run without the binding and without a datasource.
+ */
+public final class EntityTestSupport {
+
+  private EntityTestSupport() {
+  }
+
+  /** SampleEntity: primaryKeyFieldOne, primaryKeyFieldTwo, fieldOne, fieldTwo, foreignKeyOne */
+  public static Entity makeSampleEntity() {
+    Entity entity = makeEntity("SampleEntity", "SAMPLE_ENTITY");
+    addField(entity, "fieldTwo", "long-varchar");
+    addField(entity, "foreignKeyOne", "id");
+    return entity;
+  }
+
+  /** SampleEntity1: the fields of SampleEntity without fieldTwo */
+  public static Entity makeSampleEntity1() {
+    Entity entity = makeEntity("SampleEntity1", "SAMPLE_ENTITY1");
+    addField(entity, "foreignKeyOne", "id");
+    return entity;
+  }
+
+  /** Adds a field named like its column, FIELD_NAME for fieldName */
+  public static Field addField(Entity entity, String name, String type) {
+    Field field = new Field();
+    field.setName(name);
+    field.setColName(name.replaceAll("([A-Z])", "_$1").toUpperCase());
+    field.setType(type);
+    entity.addField(field);
+    return field;
+  }
+
+  /** A value of a sample entity, both SampleEntity and SampleEntity1 have these fields */
+  public static GenericValue makeValue(Delegator delegator, Entity entity, String keyOne, String keyTwo, String fieldOne) {
+    Map<String, Object> fields = new HashMap<String, Object>();
+    fields.put("primaryKeyFieldOne", keyOne);
+    fields.put("primaryKeyFieldTwo", keyTwo);
+    if (fieldOne != null) {
+      fields.put("fieldOne", fieldOne);
+    }
+    return GenericValue.create(delegator, entity, fields);
+  }
+
+  private static Entity makeEntity(String entityName, String tableName) {
+    Entity entity = new Entity();
+    entity.setPackageName("org.etk.entity.engine.sample");
+    entity.setEntityName(entityName);
+    entity.setTableName(tableName);
+    addField(entity, "primaryKeyFieldOne", "id-ne");
+    addField(entity, "primaryKeyFieldTwo", "id-ne");
+    addField(entity, "fieldOne", "long-varchar");
+    for (String pkName : new String[] { "primaryKeyFieldOne", "primaryKeyFieldTwo" }) {
+      PKField pk = new PKField();
+      pk.setFieldName(pkName);
+      entity.addPKField(pk);
+    }
+    return entity;
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.plugins.model.xml.FieldType;
+
+/**
+ * A {@link Delegator} without a datasource for the tests: every field type is
+ * a String, the batch writes only record their arguments and return the
+ * number of values, everything else returns null, 0 or false.
+ */
+public class RecordingDelegator implements InvocationHandler {
+
+  public static final String   DELEGATOR_NAME = "test";
+
+  private static final FieldType STRING_TYPE  = new FieldType() {
+    {
+      type = "string";
+      javaType = "java.lang.String";
+      sqlType = "VARCHAR(255)";
+    }
+  };
+
+  private final List<String>   methodNames    = new ArrayList<String>();
+
+  private final List<Object[]> arguments      = new ArrayList<Object[]>();
+
+  private final Delegator      delegator;
+
+  public RecordingDelegator() {
+    this.delegator = (Delegator) Proxy.newProxyInstance(Delegator.class.getClassLoader(), new Class<?>[] { Delegator.class }, this);
+  }
+
+  public Delegator getDelegator() {
+    return delegator;
+  }
+
+  /** The method names called so far, in order, without the model lookups */
+  public List<String> getMethodNames() {
+    return methodNames;
+  }
+
+  /** The arguments of the calls of the method, in order */
+  public List<Object[]> getCalls(String methodName) {
+    List<Object[]> calls = new ArrayList<Object[]>();
+    for (int i = 0; i < methodNames.size(); i++) {
+      if (methodNames.get(i).equals(methodName)) {
+        calls.add(arguments.get(i));
+      }
+    }
+    return calls;
+  }
+
+  /** Called for every recorded call before it returns */
+  protected void called(String methodName, Object[] args) {
+  }
+
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    String name = method.getName();
+    if ("equals".equals(name)) {
+      return Boolean.valueOf(proxy == args[0]);
+    } else if ("hashCode".equals(name)) {
+      return Integer.valueOf(System.identityHashCode(proxy));
+    } else if ("toString".equals(name)) {
+      return "RecordingDelegator";
+    } else if ("getDelegatorName".equals(name) || "getEntityHelperName".equals(name)) {
+      return DELEGATOR_NAME;
+    } else if ("getEntityFieldType".equals(name)) {
+      return STRING_TYPE;
+    }
+
+    methodNames.add(name);
+    arguments.add(args == null ? new Object[0] : args);
+    called(name, args);
+
+    Class<?> returnType = method.getReturnType();
+    if (returnType == Integer.TYPE) {
+      if (args != null && args.length > 0 && args[0] instanceof List<?>) {
+        return Integer.valueOf(((List<?>) args[0]).size());
+      }
+      return Integer.valueOf(0);
+    } else if (returnType == Long.TYPE) {
+      return Long.valueOf(0);
+    } else if (returnType == Boolean.TYPE) {
+      return Boolean.FALSE;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.core;
+
+import org.etk.entity.engine.EntityTestSupport;
+import org.etk.entity.engine.RecordingDelegator;
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+import org.etk.entity.engine.plugins.model.xml.Field;
+
+import junit.framework.TestCase;
+
+/**
+ * The field type tables shared by the values of an entity.
+ */
+public class EntityFieldTypesTest extends TestCase {
+
+  private Delegator delegator;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    delegator = new RecordingDelegator().getDelegator();
+  }
+
+  public void testTableIsResolvedOnce() throws Exception {
+    Entity sample = EntityTestSupport.makeSampleEntity();
+    EntityFieldTypes types = EntityFieldTypes.getFieldTypes(delegator, sample);
+    assertSame(types, EntityFieldTypes.getFieldTypes(delegator, sample));
+
+    Field fieldOne = sample.getField("fieldOne");
+    assertEquals("java.lang.String", types.getJavaTypeName(fieldOne));
+    assertTrue(types.isInstance(fieldOne, "x"));
+    assertFalse(types.isInstance(fieldOne, Long.valueOf(1)));
+  }
+
+  public void testReloadedEntityGetsItsOwnTable() throws Exception {
+    EntityFieldTypes types = EntityFieldTypes.getFieldTypes(delegator, EntityTestSupport.makeSampleEntity());
+    assertNotSame(types, EntityFieldTypes.getFieldTypes(delegator, EntityTestSupport.makeSampleEntity()));
+  }
+
+  public void testAddedFieldIsInTheTable() throws Exception {
+    Entity sample = EntityTestSupport.makeSampleEntity1();
+    EntityFieldTypes.getFieldTypes(delegator, sample);
+    Field fieldTwo = EntityTestSupport.addField(sample, "fieldTwo", "long-varchar");
+    assertEquals("java.lang.String", EntityFieldTypes.getFieldTypes(delegator, sample).getJavaTypeName(fieldTwo));
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.etk.entity.engine.EntityTestSupport;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+
+import junit.framework.TestCase;
+
+/**
+ * The compact field storage behaves like the map it replaces.
+ */
+public class FieldValueMapTest extends TestCase {
+
+  private Entity        sample;
+
+  private FieldValueMap map;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    sample = EntityTestSupport.makeSampleEntity();
+    map = new FieldValueMap(sample);
+  }
+
+  public void testNullFieldIsPresent() throws Exception {
+    assertFalse(map.containsKey("fieldOne"));
+    map.put("fieldOne", null);
+    assertTrue(map.containsKey("fieldOne"));
+    assertNull(map.get("fieldOne"));
+    assertEquals(1, map.size());
+
+    assertNull(map.remove("fieldOne"));
+    assertFalse(map.containsKey("fieldOne"));
+    assertEquals(0, map.size());
+  }
+
+  public void testPutReturnsThePreviousValue() throws Exception {
+    assertNull(map.put("fieldOne", "a"));
+    assertEquals("a", map.put("fieldOne", "b"));
+    assertEquals("b", map.get(sample.getField("fieldOne")));
+    assertEquals(1, map.size());
+  }
+
+  public void testUnknownNameGoesToTheOverflow() throws Exception {
+    map.put("fieldOne", "a");
+    map.put("notAField", "b");
+    assertEquals(2, map.size());
+    assertTrue(map.containsKey("notAField"));
+    assertEquals("b", map.get("notAField"));
+    assertFalse(map.containsKey(Integer.valueOf(1)));
+
+    assertEquals("b", map.remove("notAField"));
+    assertEquals(1, map.size());
+  }
+
+  public void testFieldOfAnotherEntityIsLookedUpByName() throws Exception {
+    Entity other = EntityTestSupport.makeSampleEntity1();
+    map.put(other.getField("foreignKeyOne"), "a");
+    assertEquals("a", map.get("foreignKeyOne"));
+    assertEquals("a", map.get(other.getField("foreignKeyOne")));
+  }
+
+  public void testEqualsAPlainMap() throws Exception {
+    Map<String, Object> plain = new HashMap<String, Object>();
+    plain.put("fieldOne", "a");
+    plain.put("fieldTwo", null);
+    plain.put("notAField", "c");
+    map.putAll(plain);
+
+    assertEquals(plain, map);
+    assertEquals(map, plain);
+    assertEquals(plain.hashCode(), map.hashCode());
+  }
+
+  public void testIteratorRemovesFieldsAndOverflow() throws Exception {
+    map.put("primaryKeyFieldOne", "A");
+    map.put("fieldOne", "a");
+    map.put("notAField", "b");
+    for (Iterator<Map.Entry<String, Object>> iter = map.entrySet().iterator(); iter.hasNext();) {
+      Map.Entry<String, Object> entry = iter.next();
+      if (!"primaryKeyFieldOne".equals(entry.getKey())) {
+        iter.remove();
+      }
+    }
+    assertEquals(1, map.size());
+    assertEquals("A", map.get("primaryKeyFieldOne"));
+    assertFalse(map.containsKey("notAField"));
+  }
+
+  public void testMoreThanSixtyFourFields() throws Exception {
+    Entity wide = EntityTestSupport.makeSampleEntity();
+    for (int i = 0; i < 100; i++) {
+      EntityTestSupport.addField(wide, "extra" + i, "long-varchar");
+    }
+    FieldValueMap wideMap = new FieldValueMap(wide);
+    for (int i = 0; i < 100; i += 3) {
+      wideMap.put("extra" + i, Integer.valueOf(i));
+    }
+    assertEquals(34, wideMap.size());
+    assertTrue(wideMap.containsKey("extra99"));
+    assertFalse(wideMap.containsKey("extra98"));
+    assertEquals(Integer.valueOf(63), wideMap.get("extra63"));
+    int count = 0;
+    for (Map.Entry<String, Object> entry : wideMap.entrySet()) {
+      assertEquals("extra" + entry.getValue(), entry.getKey());
+      count++;
+    }
+    assertEquals(34, count);
+  }
+
+  public void testCopyIsIndependent() throws Exception {
+    map.put("fieldOne", "a");
+    map.put("notAField", "b");
+    Map<String, Object> copy = FieldValueMap.copyOf(map);
+    assertTrue(copy instanceof FieldValueMap);
+    assertEquals(map, copy);
+
+    copy.put("fieldOne", "c");
+    copy.put("notAField", "d");
+    assertEquals("a", map.get("fieldOne"));
+    assertEquals("b", map.get("notAField"));
+  }
+
+  public void testSerializedAsAPlainMap() throws Exception {
+    map.put("fieldOne", "a");
+    map.put("fieldTwo", null);
+    map.put("notAField", "b");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(map);
+    out.close();
+    Object read = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+    assertFalse(read instanceof FieldValueMap);
+    assertEquals(map, read);
+    assertTrue(((Map<?, ?>) read).containsKey("fieldTwo"));
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.etk.entity.engine.EntityTestSupport;
+import org.etk.entity.engine.RecordingDelegator;
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.condition.EntityCondition;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+
+import junit.framework.TestCase;
+
+/**
+ * The regions of the entity cache and which lines a change drops.
+ */
+public class CacheTest extends TestCase {
+
+  private Delegator delegator;
+
+  private Entity    sample;
+
+  private Cache     cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    delegator = new RecordingDelegator().getDelegator();
+    sample = EntityTestSupport.makeSampleEntity();
+    sample.setCacheMaxSize(100);
+    cache = new Cache(RecordingDelegator.DELEGATOR_NAME);
+  }
+
+  public void testEachEntityHasItsOwnRegions() throws Exception {
+    GenericValue value = readValue("1", "x");
+    cache.put(value);
+    cache.put(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "x"), null, list(value), sample);
+
+    assertSame(value, cache.get(value.getPrimaryKey()));
+    assertEquals(1, cache.getPkStats(sample.getEntityName()).getSize());
+    assertEquals(1, cache.getConditionStats(sample.getEntityName()).getSize());
+    assertEquals(100, cache.getPkStats(sample.getEntityName()).getMaxSize());
+    assertEquals("entitycache.entity-pk.test.SampleEntity", cache.getPkStats(sample.getEntityName()).getName());
+    assertNull(cache.getPkStats("SampleEntity1"));
+    assertEquals(2, cache.getStats().size());
+  }
+
+  public void testNeverCacheEntityIsNotCached() throws Exception {
+    sample.setNeverCache(true);
+    GenericValue value = readValue("1", "x");
+    assertNull(cache.put(value));
+    assertNull(cache.get(value.getPrimaryKey()));
+  }
+
+  public void testCachedValueIsImmutable() throws Exception {
+    GenericValue value = readValue("1", "x");
+    cache.put(value);
+    try {
+      value.set("fieldOne", "y");
+      fail("A cached value cannot be changed");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  public void testOnlyTheMatchingConditionLinesAreDropped() throws Exception {
+    GenericValue value = readValue("1", "x");
+    cache.put(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "x"), null, list(value), sample);
+    cache.put(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "y"), null, new ArrayList<GenericValue>(), sample);
+    cache.put(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "z"), null, new ArrayList<GenericValue>(), sample);
+
+    GenericValue changed = readValue("1", "x");
+    changed.set("fieldOne", "y");
+    cache.remove(changed);
+
+    assertNull(cache.get(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "x"), null));
+    assertNull(cache.get(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "y"), null));
+    assertNotNull(cache.get(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "z"), null));
+  }
+
+  public void testUnknownOriginalRowDropsAllConditionLines() throws Exception {
+    cache.put(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "z"), null, new ArrayList<GenericValue>(), sample);
+
+    cache.remove(EntityTestSupport.makeValue(delegator, sample, "A", "1", "x"));
+    assertNull(cache.get(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "z"), null));
+  }
+
+  public void testRemoveByPrimaryKeyUsesTheCachedValue() throws Exception {
+    GenericValue value = readValue("1", "x");
+    cache.put(value);
+    cache.put(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "x"), null, list(value), sample);
+    cache.put(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "z"), null, new ArrayList<GenericValue>(), sample);
+
+    assertSame(value, cache.remove(value.getPrimaryKey()));
+    assertNull(cache.get(value.getPrimaryKey()));
+    assertNull(cache.get(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "x"), null));
+    assertNotNull(cache.get(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "z"), null));
+  }
+
+  public void testRemoveByConditionKeepsOtherValues() throws Exception {
+    GenericValue x = readValue("1", "x");
+    GenericValue z = readValue("2", "z");
+    cache.put(x);
+    cache.put(z);
+
+    cache.remove(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "x"));
+    assertNull(cache.get(x.getPrimaryKey()));
+    assertSame(z, cache.get(z.getPrimaryKey()));
+  }
+
+  public void testOrderIsPartOfTheConditionKey() throws Exception {
+    List<String> orderBy = new ArrayList<String>();
+    orderBy.add("fieldOne");
+    cache.put(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "x"), orderBy, new ArrayList<GenericValue>(), sample);
+
+    assertNull(cache.get(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "x"), null));
+    assertNotNull(cache.get(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "x"), orderBy));
+    orderBy.add("fieldTwo");
+    assertNull(cache.get(sample.getEntityName(), EntityCondition.makeCondition("fieldOne", "x"), orderBy));
+  }
+
+  /** A value with every field set, as read from the database */
+  private GenericValue readValue(String keyTwo, String fieldOne) {
+    GenericValue value = EntityTestSupport.makeValue(delegator, sample, "A", keyTwo, fieldOne);
+    value.set("fieldTwo", "two");
+    value.set("foreignKeyOne", "fk");
+    value.synchronizedWithDatasource();
+    return value;
+  }
+
+  private static List<GenericValue> list(GenericValue value) {
+    List<GenericValue> values = new ArrayList<GenericValue>();
+    values.add(value);
+    return values;
+  }
+}
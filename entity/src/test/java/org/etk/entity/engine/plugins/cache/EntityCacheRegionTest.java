@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.cache;
+
+import junit.framework.TestCase;
+
+/**
+ * The bound, the LRU order and the expiration of a cache region.
+ */
+public class EntityCacheRegionTest extends TestCase {
+
+  public void testLeastRecentlyUsedIsEvicted() throws Exception {
+    EntityCacheRegion<String, String> region = new EntityCacheRegion<String, String>("test", 2, 0, 1);
+    region.put("a", "A");
+    region.put("b", "B");
+    assertEquals("A", region.get("a"));
+    region.put("c", "C");
+
+    assertEquals(2, region.size());
+    assertNull(region.get("b"));
+    assertEquals("A", region.get("a"));
+    assertEquals("C", region.get("c"));
+    assertEquals(1, region.getStats().getEvictions());
+  }
+
+  public void testBoundIsSpreadOverTheStripes() throws Exception {
+    EntityCacheRegion<Integer, Integer> region = new EntityCacheRegion<Integer, Integer>("test", 64, 0, 8);
+    for (int i = 0; i < 1000; i++) {
+      region.put(i, i);
+    }
+    assertTrue(region.size() <= 64);
+    assertEquals(1000 - region.size(), region.getStats().getEvictions());
+  }
+
+  public void testUnboundedRegionKeepsEverything() throws Exception {
+    EntityCacheRegion<Integer, Integer> region = new EntityCacheRegion<Integer, Integer>("test", 0, 0, 4);
+    for (int i = 0; i < 1000; i++) {
+      region.put(i, i);
+    }
+    assertEquals(1000, region.size());
+    assertEquals(0, region.getStats().getEvictions());
+  }
+
+  public void testEntryExpires() throws Exception {
+    EntityCacheRegion<String, String> region = new EntityCacheRegion<String, String>("test", 0, 1, 1);
+    region.put("a", "A");
+    Thread.sleep(20);
+
+    assertTrue(region.getEntries().isEmpty());
+    assertNull(region.get("a"));
+    assertFalse(region.containsKey("a"));
+    EntityCacheStats stats = region.getStats();
+    assertEquals(1, stats.getExpirations());
+    assertEquals(1, stats.getMisses());
+  }
+
+  public void testHitsAndMissesAreCounted() throws Exception {
+    EntityCacheRegion<String, String> region = new EntityCacheRegion<String, String>("test", 10, 0, 1);
+    region.put("a", "A");
+    region.get("a");
+    region.get("a");
+    region.get("b");
+
+    EntityCacheStats stats = region.getStats();
+    assertEquals(2, stats.getHits());
+    assertEquals(1, stats.getMisses());
+    assertEquals(1, stats.getSize());
+    assertEquals(10, stats.getMaxSize());
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.condition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.etk.entity.engine.EntityTestSupport;
+import org.etk.entity.engine.RecordingDelegator;
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+
+import junit.framework.TestCase;
+
+/**
+ * A compiled condition matches exactly the values its condition matches. LIKE
+ * is checked against the expected rows, the interpreted LIKE goes through ORO.
+ */
+public class CompiledConditionTest extends TestCase {
+
+  private Delegator          delegator;
+
+  private Entity             sample;
+
+  private List<GenericValue> values;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    delegator = new RecordingDelegator().getDelegator();
+    sample = EntityTestSupport.makeSampleEntity();
+    values = new ArrayList<GenericValue>();
+    String[] fieldOnes = { "apple", "apricot", "banana", "cherry", "a_b", "a%b", null };
+    for (int i = 0; i < fieldOnes.length; i++) {
+      values.add(EntityTestSupport.makeValue(delegator, sample, "A", String.valueOf(i), fieldOnes[i]));
+    }
+  }
+
+  public void testComparisons() throws Exception {
+    assertSameMatches(EntityCondition.makeCondition("fieldOne", "banana"));
+    assertSameMatches(EntityCondition.makeCondition("fieldOne", EntityOperator.NOT_EQUAL, "banana"));
+    assertSameMatches(EntityCondition.makeCondition("fieldOne", EntityOperator.LESS_THAN, "banana"));
+    assertSameMatches(EntityCondition.makeCondition("fieldOne", EntityOperator.GREATER_THAN_EQUAL_TO, "banana"));
+    assertSameMatches(EntityCondition.makeCondition("fieldOne", null));
+    assertSameMatches(EntityCondition.makeCondition("fieldOne", EntityOperator.NOT_EQUAL, null));
+  }
+
+  public void testInLists() throws Exception {
+    assertSameMatches(EntityCondition.makeCondition("fieldOne", EntityOperator.IN, Arrays.asList("apple", "cherry", "kiwi")));
+    assertSameMatches(EntityCondition.makeCondition("fieldOne", EntityOperator.NOT_IN, Arrays.asList("apple", "cherry")));
+  }
+
+  public void testLikePatterns() throws Exception {
+    assertMatches(EntityCondition.makeCondition("fieldOne", EntityOperator.LIKE, "ap%"), "0", "1");
+    assertMatches(EntityCondition.makeCondition("fieldOne", EntityOperator.LIKE, "a_b"), "4", "5");
+    assertMatches(EntityCondition.makeCondition("fieldOne", EntityOperator.NOT_LIKE, "%an%"), "0", "1", "3", "4", "5", "6");
+    assertMatches(EntityCondition.makeCondition("fieldOne", EntityOperator.LIKE, "a.b"));
+  }
+
+  public void testLikePatternQuotesTheLiterals() throws Exception {
+    assertTrue(CompiledCondition.makeLikePattern("a.b%").matcher("a.bc").matches());
+    assertFalse(CompiledCondition.makeLikePattern("a.b%").matcher("axbc").matches());
+    assertTrue(CompiledCondition.makeLikePattern("_(x)").matcher("z(x)").matches());
+    assertFalse(CompiledCondition.makeLikePattern("_(x)").matcher("(x)").matches());
+  }
+
+  public void testJoins() throws Exception {
+    EntityCondition appleOrCherry = EntityCondition.makeCondition(EntityOperator.OR,
+        EntityCondition.makeCondition("fieldOne", "apple"), EntityCondition.makeCondition("fieldOne", "cherry"));
+    assertSameMatches(appleOrCherry);
+    assertMatches(EntityCondition.makeCondition(EntityOperator.AND,
+        EntityCondition.makeCondition("fieldOne", EntityOperator.LIKE, "a%"),
+        EntityCondition.makeCondition("primaryKeyFieldTwo", EntityOperator.IN, Arrays.asList("1", "2", "4"))), "1", "4");
+    assertSameMatches(EntityCondition.makeCondition(appleOrCherry, EntityOperator.AND,
+        EntityCondition.makeCondition("primaryKeyFieldOne", "A")));
+  }
+
+  public void testFieldMap() throws Exception {
+    Map<String, Object> fields = new HashMap<String, Object>();
+    fields.put("primaryKeyFieldOne", "A");
+    fields.put("fieldOne", "cherry");
+    assertSameMatches(EntityCondition.makeCondition(fields));
+  }
+
+  public void testEmptyListsMatchLikeTheirOperator() throws Exception {
+    List<EntityCondition> none = new ArrayList<EntityCondition>();
+    assertSame(CompiledCondition.TRUE, CompiledCondition.compile(none, EntityOperator.AND, sample));
+    assertSame(CompiledCondition.FALSE, CompiledCondition.compile(none, EntityOperator.OR, sample));
+    assertSame(CompiledCondition.TRUE, CompiledCondition.compile((EntityCondition) null, sample));
+  }
+
+  public void testPlainMapIsMatchedByName() throws Exception {
+    CompiledCondition compiled = EntityCondition.makeCondition("fieldOne", "apple").compile(sample);
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("fieldOne", "apple");
+    assertTrue(compiled.matches(delegator, map));
+    map.put("fieldOne", "pear");
+    assertFalse(compiled.matches(delegator, map));
+  }
+
+  public void testValueOfAnotherEntityIsMatchedByName() throws Exception {
+    CompiledCondition compiled = EntityCondition.makeCondition("fieldOne", "apple").compile(sample);
+    GenericValue other = EntityTestSupport.makeValue(delegator, EntityTestSupport.makeSampleEntity1(), "A", "1", "apple");
+    assertTrue(compiled.matches(other));
+  }
+
+  /** The condition matches the values with these primaryKeyFieldTwo, compiled or not */
+  private void assertMatches(EntityCondition condition, String... keyTwos) {
+    List<String> expected = Arrays.asList(keyTwos);
+    CompiledCondition compiled = condition.compile(sample);
+    CompiledCondition byName = condition.compile(null);
+    for (GenericValue value : values) {
+      boolean match = expected.contains(value.getString("primaryKeyFieldTwo"));
+      assertEquals(condition + " on " + value, match, compiled.matches(value));
+      assertEquals(condition + " on " + value, match, byName.matches(delegator, value));
+    }
+  }
+
+  private void assertSameMatches(EntityCondition condition) {
+    CompiledCondition compiled = condition.compile(sample);
+    CompiledCondition byName = condition.compile(null);
+    for (GenericValue value : values) {
+      boolean expected = condition.mapMatches(delegator, value);
+      assertEquals(condition + " on " + value, expected, compiled.matches(value));
+      assertEquals(condition + " on " + value, expected, byName.matches(delegator, value));
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.condition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.etk.entity.engine.EntityTestSupport;
+import org.etk.entity.engine.plugins.config.DatasourceInfo;
+import org.etk.entity.engine.plugins.model.xml.Field;
+
+import junit.framework.TestCase;
+
+/**
+ * How the IN lists are written for each in-list-strategy of a datasource.
+ */
+public class EntityInListStrategyTest extends TestCase {
+
+  private DatasourceInfo datasourceInfo;
+
+  private Field          field;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    datasourceInfo = new DatasourceInfo(null);
+    field = EntityTestSupport.makeSampleEntity().getField("fieldOne");
+  }
+
+  public void testExpandWithoutLimitIsLeftToTheOperator() throws Exception {
+    assertFalse(EntityInListStrategy.isApplicable(datasourceInfo, field, Arrays.asList("a", "b", "c")));
+    datasourceInfo.inListMaxSize = 3;
+    assertFalse(EntityInListStrategy.isApplicable(datasourceInfo, field, Arrays.asList("a", "b", "c")));
+    assertTrue(EntityInListStrategy.isApplicable(datasourceInfo, field, Arrays.asList("a", "b", "c", "d")));
+  }
+
+  public void testNestedValuesAreLeftToTheOperator() throws Exception {
+    datasourceInfo.inListStrategy = EntityInListStrategy.PAD;
+    assertFalse(EntityInListStrategy.isApplicable(datasourceInfo, field, Arrays.asList("a", Arrays.asList("b"))));
+    assertFalse(EntityInListStrategy.isApplicable(datasourceInfo, field, new ArrayList<Object>()));
+    assertFalse(EntityInListStrategy.isApplicable(datasourceInfo, null, Arrays.asList("a")));
+  }
+
+  public void testExpandSplitsLongLists() throws Exception {
+    datasourceInfo.inListMaxSize = 2;
+    List<EntityConditionParam> params = new ArrayList<EntityConditionParam>();
+    StringBuilder sql = new StringBuilder();
+    EntityInListStrategy.appendInList(sql, "FIELD_ONE", field, Arrays.asList("a", "b", "c"), false, params, datasourceInfo);
+    assertEquals("(FIELD_ONE IN (?, ?) OR FIELD_ONE IN (?))", sql.toString());
+    assertEquals(Arrays.asList("a", "b", "c"), paramValues(params));
+  }
+
+  public void testNotInChunksAreAnded() throws Exception {
+    datasourceInfo.inListMaxSize = 2;
+    StringBuilder sql = new StringBuilder();
+    EntityInListStrategy.appendInList(sql, "FIELD_ONE", field, Arrays.asList("a", "b", "c"), true, null, datasourceInfo);
+    assertEquals("(FIELD_ONE NOT IN (?, ?) AND FIELD_ONE NOT IN (?))", sql.toString());
+  }
+
+  public void testPadRepeatsTheLastValueUpToAPowerOfTwo() throws Exception {
+    datasourceInfo.inListStrategy = EntityInListStrategy.PAD;
+    assertEquals(Arrays.asList("a", "b", "c", "c"), EntityInListStrategy.getBoundValues(datasourceInfo, Arrays.asList("a", "b", "c")));
+    assertEquals(Arrays.asList("a", "b", "c", "d"), EntityInListStrategy.getBoundValues(datasourceInfo, Arrays.asList("a", "b", "c", "d")));
+    assertEquals(8, EntityInListStrategy.getBoundValues(datasourceInfo, Arrays.asList("a", "b", "c", "d", "e")).size());
+    assertEquals(Arrays.asList("a"), EntityInListStrategy.getBoundValues(datasourceInfo, Arrays.asList("a")));
+  }
+
+  public void testPadOnlyPadsTheLastChunk() throws Exception {
+    datasourceInfo.inListStrategy = EntityInListStrategy.PAD;
+    datasourceInfo.inListMaxSize = 4;
+    List<Object> bound = EntityInListStrategy.getBoundValues(datasourceInfo, Arrays.asList("a", "b", "c", "d", "e", "f", "g"));
+    assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f", "g", "g"), bound);
+
+    StringBuilder sql = new StringBuilder();
+    EntityInListStrategy.appendInList(sql, "FIELD_ONE", field, Arrays.asList("a", "b", "c", "d", "e"), false, null, datasourceInfo);
+    assertEquals("(FIELD_ONE IN (?, ?, ?, ?) OR FIELD_ONE IN (?))", sql.toString());
+  }
+
+  public void testPaddedListsShareTheirShape() throws Exception {
+    datasourceInfo.inListStrategy = EntityInListStrategy.PAD;
+    assertEquals(shape(Arrays.asList("a", "b", "c")), shape(Arrays.asList("a", "b", "c", "d")));
+    assertFalse(shape(Arrays.asList("a", "b")).equals(shape(Arrays.asList("a", "b", "c"))));
+  }
+
+  public void testArrayBindsOneParameter() throws Exception {
+    datasourceInfo.inListStrategy = EntityInListStrategy.ARRAY;
+    assertTrue(EntityInListStrategy.isApplicable(datasourceInfo, field, Arrays.asList("a")));
+    List<EntityConditionParam> params = new ArrayList<EntityConditionParam>();
+    StringBuilder sql = new StringBuilder();
+    EntityInListStrategy.appendInList(sql, "FIELD_ONE", field, Arrays.asList("a", "b", "c"), false, params, datasourceInfo);
+    assertEquals("FIELD_ONE = ANY(?)", sql.toString());
+    assertEquals(1, params.size());
+    assertEquals(Arrays.asList("a", "b", "c"), ((EntityInListStrategy.SqlArray) params.get(0).getFieldValue()).getValues());
+
+    sql.setLength(0);
+    EntityInListStrategy.appendInList(sql, "FIELD_ONE", field, Arrays.asList("a"), true, null, datasourceInfo);
+    assertEquals("FIELD_ONE <> ALL(?)", sql.toString());
+  }
+
+  public void testArrayListsShareTheirShape() throws Exception {
+    datasourceInfo.inListStrategy = EntityInListStrategy.ARRAY;
+    assertEquals(shape(Arrays.asList("a")), shape(Arrays.asList("a", "b", "c")));
+  }
+
+  private List<Object> shape(List<String> values) {
+    List<Object> shape = new ArrayList<Object>();
+    assertTrue(EntityConditionShape.collect(EntityCondition.makeCondition("fieldOne", EntityOperator.IN, values),
+        EntityTestSupport.makeSampleEntity(), datasourceInfo, shape, new ArrayList<Object>()));
+    return shape;
+  }
+
+  private static List<Object> paramValues(List<EntityConditionParam> params) {
+    List<Object> values = new ArrayList<Object>();
+    for (EntityConditionParam param : params) {
+      values.add(param.getFieldValue());
+    }
+    return values;
+  }
+}
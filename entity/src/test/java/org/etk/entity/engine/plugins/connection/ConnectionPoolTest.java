@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.connection;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+
+import junit.framework.TestCase;
+
+/**
+ * Borrowing and returning the connections of a {@link ConnectionPool}, with a
+ * JDBC driver whose connections only record what is done with them.
+ */
+public class ConnectionPoolTest extends TestCase {
+
+  private ConnectionPool pool;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    TestDriver.reset();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (pool != null) {
+      pool.close();
+    }
+    super.tearDown();
+  }
+
+  public void testReturnedConnectionIsReused() throws Exception {
+    pool = newPool("2", "1000");
+    pool.getConnection().close();
+    Connection con = pool.getConnection();
+    assertEquals(1, pool.getActiveCount());
+    assertEquals(0, pool.getIdleCount());
+    con.close();
+
+    assertEquals(1, pool.getCreateCount());
+    assertEquals(2, pool.getBorrowCount());
+    assertEquals(1, pool.getIdleCount());
+    assertEquals(0, pool.getActiveCount());
+    assertEquals(1, TestDriver.opened.size());
+    assertFalse(TestDriver.opened.get(0).closed);
+  }
+
+  public void testExhaustedPoolTimesOut() throws Exception {
+    pool = newPool("1", "50");
+    Connection con = pool.getConnection();
+    try {
+      pool.getConnection();
+      fail("The only connection of the pool is borrowed");
+    } catch (SQLException e) {
+      // expected
+    }
+    assertEquals(1, pool.getTimeoutCount());
+
+    // the failed borrow took no permit
+    con.close();
+    pool.getConnection().close();
+    assertEquals(1, pool.getCreateCount());
+  }
+
+  public void testUncommittedWorkIsRolledBackOnReturn() throws Exception {
+    pool = newPool("2", "1000");
+    Connection con = pool.getConnection();
+    TestDriver.opened.get(0).autoCommit = false;
+    con.close();
+
+    assertTrue(TestDriver.opened.get(0).calls.contains("rollback"));
+    assertTrue(TestDriver.opened.get(0).calls.contains("clearWarnings"));
+  }
+
+  public void testClosedHandleCannotBeUsed() throws Exception {
+    pool = newPool("2", "1000");
+    Connection con = pool.getConnection();
+    con.close();
+    Connection other = pool.getConnection();
+    try {
+      con.getAutoCommit();
+      fail("A closed handle must not reach the connection borrowed again");
+    } catch (SQLException e) {
+      // expected
+    }
+    assertTrue(con.isClosed());
+    assertFalse(other.isClosed());
+    other.close();
+  }
+
+  public void testCloseDestroysIdleConnections() throws Exception {
+    pool = newPool("2", "1000");
+    Connection first = pool.getConnection();
+    Connection second = pool.getConnection();
+    first.close();
+    pool.close();
+    assertTrue(TestDriver.opened.get(0).closed);
+    assertFalse(TestDriver.opened.get(1).closed);
+
+    // borrowed connections are closed when they come back
+    second.close();
+    assertTrue(TestDriver.opened.get(1).closed);
+    assertEquals(2, pool.getDestroyCount());
+    assertEquals(0, pool.getOpenCount());
+    try {
+      pool.getConnection();
+      fail("A closed pool lends no connection");
+    } catch (SQLException e) {
+      // expected
+    }
+  }
+
+  private ConnectionPool newPool(String maxSize, String maxWaitMillis) throws Exception {
+    Element inlineJdbc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument().createElement("inline-jdbc");
+    inlineJdbc.setAttribute("jdbc-driver", TestDriver.class.getName());
+    inlineJdbc.setAttribute("jdbc-uri", TestDriver.URL_PREFIX + getName());
+    inlineJdbc.setAttribute("pool-maxsize", maxSize);
+    inlineJdbc.setAttribute("pool-minsize", "0");
+    inlineJdbc.setAttribute("pool-deadlock-maxwait", maxWaitMillis);
+    inlineJdbc.setAttribute("test-on-borrow", "false");
+    // keep the maintenance run out of the way of the test
+    inlineJdbc.setAttribute("time-between-eviction-runs-millis", "3600000");
+    return new ConnectionPool(getName(), new ConnectionPoolConfig(inlineJdbc, 10));
+  }
+
+  /** Opens connections that record the calls made on them */
+  public static class TestDriver implements Driver {
+
+    static final String               URL_PREFIX = "jdbc:etktest:";
+
+    static final List<TestConnection> opened     = new ArrayList<TestConnection>();
+
+    static synchronized void reset() {
+      opened.clear();
+    }
+
+    public Connection connect(String url, Properties info) throws SQLException {
+      if (!acceptsURL(url)) {
+        return null;
+      }
+      TestConnection con = new TestConnection();
+      synchronized (TestDriver.class) {
+        opened.add(con);
+      }
+      return con.proxy;
+    }
+
+    public boolean acceptsURL(String url) {
+      return url != null && url.startsWith(URL_PREFIX);
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+      return new DriverPropertyInfo[0];
+    }
+
+    public int getMajorVersion() {
+      return 1;
+    }
+
+    public int getMinorVersion() {
+      return 0;
+    }
+
+    public boolean jdbcCompliant() {
+      return false;
+    }
+
+    public Logger getParentLogger() {
+      return Logger.getLogger(TestDriver.class.getName());
+    }
+  }
+
+  static final class TestConnection implements InvocationHandler {
+
+    final List<String> calls      = new ArrayList<String>();
+
+    final Connection   proxy;
+
+    volatile boolean   autoCommit = true;
+
+    volatile boolean   closed;
+
+    TestConnection() {
+      this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, this);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+      synchronized (calls) {
+        calls.add(name);
+      }
+      if ("close".equals(name)) {
+        closed = true;
+      } else if ("isClosed".equals(name)) {
+        return Boolean.valueOf(closed);
+      } else if ("getAutoCommit".equals(name)) {
+        return Boolean.valueOf(autoCommit);
+      } else if ("setAutoCommit".equals(name)) {
+        autoCommit = ((Boolean) args[0]).booleanValue();
+      } else if ("equals".equals(name)) {
+        return Boolean.valueOf(proxy == args[0]);
+      } else if ("hashCode".equals(name)) {
+        return Integer.valueOf(System.identityHashCode(proxy));
+      } else if ("toString".equals(name)) {
+        return "TestConnection";
+      }
+      return null;
+    }
+  }
+}
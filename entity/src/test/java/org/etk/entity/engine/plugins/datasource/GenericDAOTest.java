@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.datasource;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.etk.entity.engine.EntityTestSupport;
+import org.etk.entity.engine.RecordingDelegator;
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.core.GenericModelException;
+import org.etk.entity.engine.core.GenericPK;
+import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+import org.etk.entity.engine.plugins.model.xml.Field;
+import org.etk.entity.engine.plugins.model.xml.PKField;
+
+import junit.framework.TestCase;
+
+/**
+ * The parts of the SQL of GenericDAO that don't need a datasource: the stamp
+ * an optimistic lock compares the row with, and how the keys of
+ * selectByPrimaryKeys are split in IN-list queries.
+ */
+public class GenericDAOTest extends TestCase {
+
+  private Delegator    delegator;
+
+  private Entity       sample;
+
+  private GenericValue value;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    delegator = new RecordingDelegator().getDelegator();
+    sample = EntityTestSupport.makeSampleEntity();
+    value = EntityTestSupport.makeValue(delegator, sample, "A", "1", "x");
+  }
+
+  public void testTimestampIsUsedAsIs() throws Exception {
+    Timestamp stamp = new Timestamp(1318845600000L);
+    assertSame(stamp, GenericDAO.getLockStamp(value, stamp));
+    assertNull(GenericDAO.getLockStamp(value, null));
+  }
+
+  public void testDateIsConverted() throws Exception {
+    Date read = new Date(1318845600000L);
+    assertEquals(new Timestamp(1318845600000L), GenericDAO.getLockStamp(value, read));
+  }
+
+  public void testOtherValueIsRejected() throws Exception {
+    try {
+      GenericDAO.getLockStamp(value, Boolean.TRUE);
+      fail("A lock cannot be checked against a stamp that is not a timestamp");
+    } catch (GenericModelException e) {
+      // expected
+    }
+  }
+
+  public void testKeysAreChunkedAtTheInListLimit() throws Exception {
+    List<GenericPK> pks = new ArrayList<GenericPK>();
+    for (int i = 0; i < GenericDAO.IN_LIST_CHUNK_SIZE * 2 + 1; i++) {
+      pks.add(EntityTestSupport.makeValue(delegator, sample, "A", String.valueOf(i), null).getPrimaryKey());
+    }
+    List<List<GenericPK>> chunks = GenericDAO.chunkByEntity(pks);
+    assertEquals(3, chunks.size());
+    assertEquals(GenericDAO.IN_LIST_CHUNK_SIZE, chunks.get(0).size());
+    assertEquals(GenericDAO.IN_LIST_CHUNK_SIZE, chunks.get(1).size());
+    assertEquals(1, chunks.get(2).size());
+    assertEquals(pks.get(GenericDAO.IN_LIST_CHUNK_SIZE), chunks.get(1).get(0));
+    assertEquals(pks.get(pks.size() - 1), chunks.get(2).get(0));
+  }
+
+  public void testExactlyTheLimitIsOneChunk() throws Exception {
+    List<GenericPK> pks = new ArrayList<GenericPK>();
+    for (int i = 0; i < GenericDAO.IN_LIST_CHUNK_SIZE; i++) {
+      pks.add(EntityTestSupport.makeValue(delegator, sample, "A", String.valueOf(i), null).getPrimaryKey());
+    }
+    assertEquals(1, GenericDAO.chunkByEntity(pks).size());
+  }
+
+  public void testChunksDoNotMixEntities() throws Exception {
+    List<GenericPK> pks = new ArrayList<GenericPK>();
+    pks.add(EntityTestSupport.makeValue(delegator, sample, "A", "1", null).getPrimaryKey());
+    pks.add(EntityTestSupport.makeValue(delegator, EntityTestSupport.makeSampleEntity1(), "A", "1", null).getPrimaryKey());
+    pks.add(EntityTestSupport.makeValue(delegator, sample, "A", "2", null).getPrimaryKey());
+    List<List<GenericPK>> chunks = GenericDAO.chunkByEntity(pks);
+    assertEquals(2, chunks.size());
+    for (List<GenericPK> chunk : chunks) {
+      for (GenericPK pk : chunk) {
+        assertEquals(chunk.get(0).getEntityName(), pk.getEntityName());
+      }
+    }
+  }
+
+  public void testIncompleteKeyIsRejected() throws Exception {
+    List<GenericPK> pks = new ArrayList<GenericPK>();
+    pks.add(EntityTestSupport.makeValue(delegator, sample, "A", null, null).getPrimaryKey());
+    try {
+      GenericDAO.chunkByEntity(pks);
+      fail("A key without all of its fields cannot be selected");
+    } catch (GenericModelException e) {
+      // expected
+    }
+  }
+
+  public void testSingleKeyIsAnInList() throws Exception {
+    Entity entity = new Entity();
+    entity.setEntityName("SingleKeyEntity");
+    entity.setTableName("SINGLE_KEY_ENTITY");
+    EntityTestSupport.addField(entity, "singleKeyId", "id-ne");
+    PKField pk = new PKField();
+    pk.setFieldName("singleKeyId");
+    entity.addPKField(pk);
+
+    StringBuilder sql = new StringBuilder();
+    GenericDAO.appendPkInConditions(sql, entity.getPkgs(), 3);
+    assertEquals("SINGLE_KEY_ID IN (?, ?, ?)", sql.toString());
+  }
+
+  public void testCompositeKeyIsAnOrOfTuples() throws Exception {
+    List<Field> pks = sample.getPkgs();
+    StringBuilder sql = new StringBuilder();
+    GenericDAO.appendPkInConditions(sql, pks, 2);
+    assertEquals("(PRIMARY_KEY_FIELD_ONE=? AND PRIMARY_KEY_FIELD_TWO=?) OR (PRIMARY_KEY_FIELD_ONE=? AND PRIMARY_KEY_FIELD_TWO=?)", sql.toString());
+  }
+}
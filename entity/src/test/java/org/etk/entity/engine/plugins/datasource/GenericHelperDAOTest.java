@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.datasource;
+
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.etk.entity.engine.EntityTestSupport;
+import org.etk.entity.engine.RecordingDelegator;
+import org.etk.entity.engine.api.Delegator;
+import org.etk.entity.engine.core.GenericPK;
+import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+
+import junit.framework.TestCase;
+
+/**
+ * Which values of a batch store are inserted because their update found no
+ * row.
+ */
+public class GenericHelperDAOTest extends TestCase {
+
+  private Entity    sample;
+
+  private Delegator delegator;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    sample = EntityTestSupport.makeSampleEntity();
+    delegator = new RecordingDelegator().getDelegator();
+  }
+
+  public void testRowsWithoutUpdateAreMissing() throws Exception {
+    List<GenericValue> values = new ArrayList<GenericValue>();
+    for (int i = 0; i < 4; i++) {
+      values.add(EntityTestSupport.makeValue(delegator, sample, "A", String.valueOf(i), "x"));
+    }
+    int[] counts = { 1, 0, Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO };
+    Set<GenericPK> existing = new HashSet<GenericPK>();
+    existing.add(values.get(2).getPrimaryKey());
+
+    List<GenericValue> missing = new ArrayList<GenericValue>();
+    assertEquals(2, GenericHelperDAO.collectMissing(values, counts, existing, missing));
+    assertEquals(Arrays.asList(values.get(1), values.get(3)), missing);
+  }
+
+  public void testNothingMissingWhenEveryRowIsUpdated() throws Exception {
+    List<GenericValue> values = Arrays.asList(EntityTestSupport.makeValue(delegator, sample, "A", "1", "x"),
+        EntityTestSupport.makeValue(delegator, sample, "A", "2", "x"));
+    List<GenericValue> missing = new ArrayList<GenericValue>();
+    assertEquals(2, GenericHelperDAO.collectMissing(values, new int[] { 1, 1 }, new HashSet<GenericPK>(), missing));
+    assertTrue(missing.isEmpty());
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.jdbc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.etk.entity.engine.EntityTestSupport;
+import org.etk.entity.engine.plugins.condition.EntityCondition;
+import org.etk.entity.engine.plugins.condition.EntityConditionParam;
+import org.etk.entity.engine.plugins.condition.EntityConditionShape;
+import org.etk.entity.engine.plugins.condition.EntityOperator;
+import org.etk.entity.engine.plugins.config.DatasourceInfo;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+
+import junit.framework.TestCase;
+
+/**
+ * The WHERE text is kept per condition shape, the parameters come from the
+ * condition being executed.
+ */
+public class SqlTextCacheTest extends TestCase {
+
+  private Entity         sample;
+
+  private DatasourceInfo datasourceInfo;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    sample = EntityTestSupport.makeSampleEntity();
+    datasourceInfo = new DatasourceInfo(null);
+  }
+
+  public void testWhereClauseRebindsTheValuesOfTheShape() throws Exception {
+    List<Object> firstValues = new ArrayList<Object>();
+    assertTrue(EntityConditionShape.collect(makeCondition("a", "b"), sample, datasourceInfo, new ArrayList<Object>(), firstValues));
+    assertEquals(Arrays.asList("a", "b"), firstValues);
+    List<EntityConditionParam> built = new ArrayList<EntityConditionParam>();
+    built.add(new EntityConditionParam(sample.getField("fieldOne"), firstValues.get(0)));
+    built.add(new EntityConditionParam(sample.getField("primaryKeyFieldOne"), firstValues.get(1)));
+    SqlTextCache.WhereClause whereClause = SqlTextCache.WhereClause.make("FIELD_ONE = ? AND PRIMARY_KEY_FIELD_ONE <> ?", built, firstValues);
+    assertNotNull(whereClause);
+
+    List<Object> secondValues = new ArrayList<Object>();
+    assertTrue(EntityConditionShape.collect(makeCondition("c", "d"), sample, datasourceInfo, new ArrayList<Object>(), secondValues));
+    List<EntityConditionParam> params = new ArrayList<EntityConditionParam>();
+    whereClause.addParams(params, secondValues);
+    assertEquals(Arrays.asList("c", "d"), paramValues(params));
+    assertSame(sample.getField("fieldOne"), params.get(0).getModelField());
+    assertSame(sample.getField("primaryKeyFieldOne"), params.get(1).getModelField());
+  }
+
+  public void testParamsOutOfShapeAreNotCached() throws Exception {
+    List<Object> values = Arrays.<Object> asList("a", "b");
+    List<EntityConditionParam> swapped = new ArrayList<EntityConditionParam>();
+    swapped.add(new EntityConditionParam(sample.getField("primaryKeyFieldOne"), values.get(1)));
+    swapped.add(new EntityConditionParam(sample.getField("fieldOne"), values.get(0)));
+    assertNull(SqlTextCache.WhereClause.make("sql", swapped, values));
+    assertNull(SqlTextCache.WhereClause.make("sql", swapped.subList(0, 1), values));
+  }
+
+  public void testShapeFollowsOperatorsFieldsAndArity() throws Exception {
+    assertEquals(shape(EntityCondition.makeCondition("fieldOne", "a")), shape(EntityCondition.makeCondition("fieldOne", "b")));
+    assertFalse(shape(EntityCondition.makeCondition("fieldOne", "a")).equals(shape(EntityCondition.makeCondition("fieldTwo", "a"))));
+    assertFalse(shape(EntityCondition.makeCondition("fieldOne", "a")).equals(shape(EntityCondition.makeCondition("fieldOne", EntityOperator.NOT_EQUAL, "a"))));
+    assertFalse(shape(EntityCondition.makeCondition("fieldOne", "a")).equals(shape(EntityCondition.makeCondition("fieldOne", null))));
+    assertEquals(shape(EntityCondition.makeCondition("fieldOne", EntityOperator.IN, Arrays.asList("a", "b"))),
+        shape(EntityCondition.makeCondition("fieldOne", EntityOperator.IN, Arrays.asList("c", "d"))));
+    assertFalse(shape(EntityCondition.makeCondition("fieldOne", EntityOperator.IN, Arrays.asList("a", "b"))).equals(
+        shape(EntityCondition.makeCondition("fieldOne", EntityOperator.IN, Arrays.asList("a", "b", "c")))));
+  }
+
+  public void testUnknownFieldHasNoShape() throws Exception {
+    List<Object> shape = new ArrayList<Object>();
+    assertFalse(EntityConditionShape.collect(EntityCondition.makeCondition("notAField", "a"), sample, datasourceInfo, shape,
+        new ArrayList<Object>()));
+  }
+
+  public void testLinesAreKeptPerEntityInstance() throws Exception {
+    SqlTextCache cache = new SqlTextCache("test");
+    cache.put(sample, datasourceInfo, "detail", "sql");
+
+    assertEquals("sql", cache.get(sample, datasourceInfo, new String("detail")));
+    assertNull(cache.get(EntityTestSupport.makeSampleEntity(), datasourceInfo, "detail"));
+    assertNull(cache.get(sample, new DatasourceInfo(null), "detail"));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  public void testFullCacheIsCleared() throws Exception {
+    SqlTextCache cache = new SqlTextCache("test");
+    for (int i = 0; i < SqlTextCache.MAX_CACHED_FRAGMENTS; i++) {
+      cache.put(sample, datasourceInfo, Integer.valueOf(i), "sql");
+    }
+    assertEquals(SqlTextCache.MAX_CACHED_FRAGMENTS, cache.size());
+    cache.put(sample, datasourceInfo, "one more", "sql");
+    assertEquals(1, cache.size());
+  }
+
+  private static EntityCondition makeCondition(String fieldOne, String keyOne) {
+    return EntityCondition.makeCondition(EntityOperator.AND, EntityCondition.makeCondition("fieldOne", fieldOne),
+        EntityCondition.makeCondition("primaryKeyFieldOne", EntityOperator.NOT_EQUAL, keyOne));
+  }
+
+  private List<Object> shape(EntityCondition condition) {
+    List<Object> shape = new ArrayList<Object>();
+    assertTrue(EntityConditionShape.collect(condition, sample, datasourceInfo, shape, new ArrayList<Object>()));
+    return shape;
+  }
+
+  private static List<Object> paramValues(List<EntityConditionParam> params) {
+    List<Object> values = new ArrayList<Object>();
+    for (EntityConditionParam param : params) {
+      values.add(param.getFieldValue());
+    }
+    return values;
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.etk.entity.engine.plugins.jdbc.StatementCache.StatementKey;
+
+import junit.framework.TestCase;
+
+/**
+ * Check out, release and eviction of the statements of a {@link StatementCache},
+ * with statements and connections that only record what is done with them.
+ */
+public class StatementCacheTest extends TestCase {
+
+  private StatementCache      cache;
+
+  private Connection          connection;
+
+  private List<FakeStatement> prepared;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    cache = new StatementCache(2);
+    prepared = new ArrayList<FakeStatement>();
+    connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("prepareStatement".equals(method.getName())) {
+              FakeStatement statement = new FakeStatement((String) args[0]);
+              prepared.add(statement);
+              return statement.proxy;
+            }
+            return null;
+          }
+        });
+  }
+
+  public void testReleasedStatementIsReused() throws Exception {
+    StatementKey key = key("SELECT 1");
+    PreparedStatement first = cache.get(connection, key);
+    cache.release(key, first);
+    PreparedStatement second = cache.get(connection, key);
+
+    assertSame(first, second);
+    assertEquals(1, prepared.size());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertTrue(prepared.get(0).calls.contains("clearParameters"));
+    assertFalse(prepared.get(0).closed);
+  }
+
+  public void testCheckedOutStatementIsNotShared() throws Exception {
+    StatementKey key = key("SELECT 1");
+    PreparedStatement first = cache.get(connection, key);
+    PreparedStatement second = cache.get(connection, key);
+    assertNotSame(first, second);
+
+    // the second release of the same SQL keeps one statement and closes the other
+    cache.release(key, first);
+    cache.release(key, second);
+    assertEquals(1, cache.size());
+    assertTrue(prepared.get(0).closed);
+    assertFalse(prepared.get(1).closed);
+  }
+
+  public void testLeastRecentlyUsedStatementIsEvicted() throws Exception {
+    StatementKey one = key("SELECT 1");
+    StatementKey two = key("SELECT 2");
+    StatementKey three = key("SELECT 3");
+    cache.release(one, cache.get(connection, one));
+    cache.release(two, cache.get(connection, two));
+    cache.release(one, cache.get(connection, one));
+    cache.release(three, cache.get(connection, three));
+
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+    assertFalse(prepared.get(0).closed);
+    assertTrue(prepared.get(1).closed);
+    assertFalse(prepared.get(2).closed);
+  }
+
+  public void testKeyIncludesTheStatementOptions() throws Exception {
+    assertEquals(key("SELECT 1"), key("SELECT 1"));
+    assertFalse(key("SELECT 1").equals(new StatementKey("SELECT 1", false, 0, 0, 100)));
+    assertFalse(key("SELECT 1").equals(new StatementKey("SELECT 1", true, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY, -1)));
+    // the type and concurrency only count when they are specified
+    assertEquals(key("SELECT 1"), new StatementKey("SELECT 1", false, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY, -1));
+  }
+
+  public void testCloseClosesCachedAndLaterReleasedStatements() throws Exception {
+    StatementKey one = key("SELECT 1");
+    StatementKey two = key("SELECT 2");
+    cache.release(one, cache.get(connection, one));
+    PreparedStatement checkedOut = cache.get(connection, two);
+
+    cache.close();
+    assertTrue(prepared.get(0).closed);
+    assertFalse(prepared.get(1).closed);
+    cache.release(two, checkedOut);
+    assertTrue(prepared.get(1).closed);
+    assertEquals(0, cache.size());
+  }
+
+  public void testDisabledCacheClosesReleasedStatements() throws Exception {
+    cache = new StatementCache(0);
+    StatementKey key = key("SELECT 1");
+    cache.release(key, cache.get(connection, key));
+    assertEquals(0, cache.size());
+    assertTrue(prepared.get(0).closed);
+  }
+
+  private static StatementKey key(String sql) {
+    return new StatementKey(sql, false, 0, 0, -1);
+  }
+
+  private static final class FakeStatement implements InvocationHandler {
+    private final String            sql;
+
+    private final List<String>      calls = new ArrayList<String>();
+
+    private final PreparedStatement proxy;
+
+    private boolean                 closed;
+
+    private FakeStatement(String sql) {
+      this.sql = sql;
+      this.proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+          new Class<?>[] { PreparedStatement.class }, this);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+      calls.add(name);
+      if ("close".equals(name)) {
+        closed = true;
+      } else if ("getMaxRows".equals(name)) {
+        return Integer.valueOf(0);
+      } else if ("equals".equals(name)) {
+        return Boolean.valueOf(proxy == args[0]);
+      } else if ("hashCode".equals(name)) {
+        return Integer.valueOf(System.identityHashCode(proxy));
+      } else if ("toString".equals(name)) {
+        return sql;
+      }
+      return null;
+    }
+  }
+}
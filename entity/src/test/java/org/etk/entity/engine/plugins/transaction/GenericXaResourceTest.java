@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.transaction;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.Xid;
+
+import junit.framework.TestCase;
+
+/**
+ * The timeout of a resource is watched from the shared pulse queue between
+ * start() and end().
+ */
+public class GenericXaResourceTest extends TestCase {
+
+  public void testTimeoutRunsWhenStillActive() throws Exception {
+    TestResource resource = new TestResource();
+    resource.setTransactionTimeout(1);
+    resource.start(new TestXid(1), 0);
+
+    assertTrue(resource.timedOut.await(10, TimeUnit.SECONDS));
+  }
+
+  public void testEndCancelsTheTimeout() throws Exception {
+    TestResource resource = new TestResource();
+    resource.setTransactionTimeout(1);
+    Xid xid = new TestXid(2);
+    resource.start(xid, 0);
+    resource.end(xid, 0);
+
+    assertFalse(resource.timedOut.await(2500, TimeUnit.MILLISECONDS));
+  }
+
+  public void testWithoutTimeoutNothingIsWatched() throws Exception {
+    TestResource resource = new TestResource();
+    resource.setTransactionTimeout(0);
+    assertEquals(0, resource.getTransactionTimeout());
+    resource.start(new TestXid(3), 0);
+
+    assertFalse(resource.timedOut.await(1500, TimeUnit.MILLISECONDS));
+  }
+
+  public void testProtocolErrors() throws Exception {
+    TestResource resource = new TestResource();
+    Xid xid = new TestXid(4);
+    try {
+      resource.end(xid, 0);
+      fail("end() without start()");
+    } catch (XAException e) {
+      assertEquals(XAException.XAER_PROTO, e.errorCode);
+    }
+    resource.start(xid, 0);
+    try {
+      resource.start(xid, 0);
+      fail("start() twice for the same xid");
+    } catch (XAException e) {
+      assertEquals(XAException.XAER_DUPID, e.errorCode);
+    }
+    try {
+      resource.end(new TestXid(5), 0);
+      fail("end() for another xid");
+    } catch (XAException e) {
+      assertEquals(XAException.XAER_NOTA, e.errorCode);
+    }
+    resource.end(xid, 0);
+    assertSame(xid, resource.recover(0)[0]);
+    resource.forget(xid);
+    assertEquals(0, resource.recover(0).length);
+  }
+
+  private static final class TestResource extends GenericXaResource {
+
+    private final CountDownLatch timedOut = new CountDownLatch(1);
+
+    @Override
+    public void commit(Xid xid, boolean onePhase) throws XAException {
+    }
+
+    @Override
+    public void rollback(Xid xid) throws XAException {
+    }
+
+    @Override
+    public void runOnTimeout() {
+      timedOut.countDown();
+    }
+  }
+
+  private static final class TestXid implements Xid {
+
+    private final byte[] id;
+
+    private TestXid(int id) {
+      this.id = new byte[] { (byte) id };
+    }
+
+    public int getFormatId() {
+      return 0;
+    }
+
+    public byte[] getGlobalTransactionId() {
+      return id;
+    }
+
+    public byte[] getBranchQualifier() {
+      return id;
+    }
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.transaction;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+
+import junit.framework.TestCase;
+
+/**
+ * The connections bound to a local transaction are committed or rolled back
+ * with it, and the transaction follows its thread.
+ */
+public class LocalTransactionTest extends TestCase {
+
+  private LocalTransactionManager manager;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    manager = new LocalTransactionManager();
+  }
+
+  public void testBoundConnectionIsCommittedAndClosedWithTheTransaction() throws Exception {
+    RecordingConnection physical = new RecordingConnection();
+    LocalTransaction tx = new LocalTransaction(0);
+    Connection bound = tx.bindConnection("helper", physical.getConnection());
+    assertSame(bound, tx.getConnection("helper"));
+
+    bound.setAutoCommit(true);
+    bound.commit();
+    bound.close();
+    assertFalse(bound.isClosed());
+    assertEquals(Arrays.asList("getAutoCommit", "setAutoCommit"), physical.calls);
+
+    tx.commit();
+    assertEquals(Status.STATUS_COMMITTED, tx.getStatus());
+    assertEquals(Arrays.asList("getAutoCommit", "setAutoCommit", "commit", "close"), physical.calls);
+    assertNull(tx.getConnection("helper"));
+  }
+
+  public void testRollbackOnlyIsRolledBackOnCommit() throws Exception {
+    RecordingConnection physical = new RecordingConnection();
+    LocalTransaction tx = new LocalTransaction(0);
+    tx.bindConnection("helper", physical.getConnection());
+    tx.setRollbackOnly();
+    try {
+      tx.commit();
+      fail("A transaction marked for rollback cannot be committed");
+    } catch (RollbackException e) {
+      // expected
+    }
+    assertEquals(Status.STATUS_ROLLEDBACK, tx.getStatus());
+    assertTrue(physical.calls.contains("rollback"));
+    assertFalse(physical.calls.contains("commit"));
+    assertTrue(physical.calls.contains("close"));
+  }
+
+  public void testTimedOutTransactionIsRolledBack() throws Exception {
+    RecordingConnection physical = new RecordingConnection();
+    LocalTransaction tx = new LocalTransaction(1);
+    tx.bindConnection("helper", physical.getConnection());
+    Thread.sleep(1100);
+    try {
+      tx.commit();
+      fail("A timed out transaction cannot be committed");
+    } catch (RollbackException e) {
+      // expected
+    }
+    assertTrue(physical.calls.contains("rollback"));
+  }
+
+  public void testSynchronizationsAreNotified() throws Exception {
+    final List<String> events = new ArrayList<String>();
+    LocalTransaction tx = new LocalTransaction(0);
+    tx.registerSynchronization(new Synchronization() {
+      public void beforeCompletion() {
+        events.add("before");
+      }
+
+      public void afterCompletion(int status) {
+        events.add("after " + status);
+      }
+    });
+    tx.commit();
+    assertEquals(Arrays.asList("before", "after " + Status.STATUS_COMMITTED), events);
+  }
+
+  public void testFailingSynchronizationRollsBack() throws Exception {
+    RecordingConnection physical = new RecordingConnection();
+    LocalTransaction tx = new LocalTransaction(0);
+    tx.bindConnection("helper", physical.getConnection());
+    tx.registerSynchronization(new Synchronization() {
+      public void beforeCompletion() {
+        throw new IllegalStateException("refused");
+      }
+
+      public void afterCompletion(int status) {
+      }
+    });
+    try {
+      tx.commit();
+      fail("A synchronization failing before completion rolls the transaction back");
+    } catch (RollbackException e) {
+      // expected
+    }
+    assertTrue(physical.calls.contains("rollback"));
+  }
+
+  public void testCompletedTransactionCannotBeCompletedAgain() throws Exception {
+    LocalTransaction tx = new LocalTransaction(0);
+    tx.rollback();
+    try {
+      tx.commit();
+      fail("A rolled back transaction cannot be committed");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  public void testManagerKeepsOneTransactionPerThread() throws Exception {
+    manager.begin();
+    try {
+      manager.begin();
+      fail("Local transactions do not nest");
+    } catch (NotSupportedException e) {
+      // expected
+    }
+    final Transaction[] other = new Transaction[1];
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          other[0] = manager.getTransaction();
+        } catch (Exception e) {
+          // left null
+        }
+      }
+    };
+    thread.start();
+    thread.join();
+    assertNull(other[0]);
+    manager.commit();
+    assertEquals(Status.STATUS_NO_TRANSACTION, manager.getStatus());
+  }
+
+  public void testSuspendAndResume() throws Exception {
+    manager.begin();
+    Transaction tx = manager.suspend();
+    assertEquals(Status.STATUS_NO_TRANSACTION, manager.getStatus());
+    manager.resume(tx);
+    assertSame(tx, manager.getTransaction());
+    manager.rollback();
+    try {
+      manager.resume(tx);
+      fail("A completed transaction cannot be resumed");
+    } catch (InvalidTransactionException e) {
+      // expected
+    }
+  }
+
+  public void testTimeoutAppliesToTheNextTransactionOnly() throws Exception {
+    manager.setTransactionTimeout(1);
+    manager.begin();
+    LocalTransaction timed = manager.getCurrentTransaction();
+    manager.suspend();
+    manager.setTransactionTimeout(0);
+    manager.begin();
+    Thread.sleep(1100);
+    manager.commit();
+
+    manager.resume(timed);
+    try {
+      manager.commit();
+      fail("The first transaction timed out");
+    } catch (RollbackException e) {
+      // expected
+    }
+  }
+
+  /** A connection that only records the names of the methods called on it */
+  private static final class RecordingConnection implements InvocationHandler {
+
+    private final List<String> calls      = new ArrayList<String>();
+
+    private boolean            autoCommit = true;
+
+    private Connection getConnection() {
+      return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, this);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if ("equals".equals(name)) {
+        return Boolean.valueOf(proxy == args[0]);
+      } else if ("hashCode".equals(name)) {
+        return Integer.valueOf(System.identityHashCode(proxy));
+      } else if ("toString".equals(name)) {
+        return "RecordingConnection";
+      }
+      calls.add(name);
+      if ("getAutoCommit".equals(name)) {
+        return Boolean.valueOf(autoCommit);
+      } else if ("setAutoCommit".equals(name)) {
+        autoCommit = ((Boolean) args[0]).booleanValue();
+      } else if ("isClosed".equals(name)) {
+        return Boolean.FALSE;
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.transaction;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+
+import junit.framework.TestCase;
+
+/**
+ * The per-thread transaction state of TransactionUtil and the sampling of
+ * the begin stacks, run on the local transaction manager.
+ */
+public class TransactionUtilTest extends TestCase {
+
+  private TransactionFactoryInterface previousFactory;
+
+  private boolean                     previousDebugResources;
+
+  private int                         previousStackSampleRate;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    previousFactory = TransactionFactory.transactionFactory;
+    previousDebugResources = TransactionUtil.debugResources;
+    previousStackSampleRate = TransactionUtil.getStackSampleRate();
+    TransactionFactory.transactionFactory = new LocalTransactionFactory();
+    TransactionUtil.debugResources = false;
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    TransactionFactory.transactionFactory = previousFactory;
+    TransactionUtil.debugResources = previousDebugResources;
+    TransactionUtil.setStackSampleRate(previousStackSampleRate);
+    super.tearDown();
+  }
+
+  public void testBeginOnlyWithoutATransactionInPlace() throws Exception {
+    assertTrue(TransactionUtil.begin());
+    assertEquals(Status.STATUS_ACTIVE, TransactionUtil.getStatus());
+    assertFalse(TransactionUtil.begin());
+    TransactionUtil.commit(true);
+    assertEquals(Status.STATUS_NO_TRANSACTION, TransactionUtil.getStatus());
+  }
+
+  public void testBeginStackIsCapturedAtTheSampleRate() throws Exception {
+    TransactionUtil.setStackSampleRate(1);
+    assertTrue(beginStackIsCaptured());
+
+    TransactionUtil.setStackSampleRate(0);
+    assertFalse(beginStackIsCaptured());
+    assertFalse(beginStackIsCaptured());
+
+    TransactionUtil.setStackSampleRate(3);
+    int captured = 0;
+    for (int i = 0; i < 9; i++) {
+      if (beginStackIsCaptured()) {
+        captured++;
+      }
+    }
+    assertEquals(3, captured);
+  }
+
+  public void testSuspendedTransactionIsResumed() throws Exception {
+    TransactionUtil.begin();
+    Transaction parent = TransactionUtil.suspend();
+    assertNotNull(parent);
+    assertEquals(Status.STATUS_NO_TRANSACTION, TransactionUtil.getStatus());
+    assertTrue(TransactionUtil.suspendedTransactionsHeld());
+
+    assertTrue(TransactionUtil.begin());
+    TransactionUtil.commit(true);
+
+    TransactionUtil.resume(parent);
+    assertFalse(TransactionUtil.suspendedTransactionsHeld());
+    assertEquals(Status.STATUS_ACTIVE, TransactionUtil.getStatus());
+    TransactionUtil.commit(true);
+  }
+
+  public void testThreadsBeginIndependently() throws Exception {
+    TransactionUtil.setStackSampleRate(0);
+    int threads = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicInteger failures = new AtomicInteger();
+    for (int t = 0; t < threads; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < 200; i++) {
+              if (!TransactionUtil.begin() || TransactionUtil.getStatus() != Status.STATUS_ACTIVE) {
+                failures.incrementAndGet();
+              }
+              TransactionUtil.commit(true);
+              if (TransactionUtil.getStatus() != Status.STATUS_NO_TRANSACTION) {
+                failures.incrementAndGet();
+              }
+            }
+          } catch (Exception e) {
+            failures.incrementAndGet();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    start.countDown();
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertEquals(0, failures.get());
+  }
+
+  /** Begins and commits a transaction, telling whether its begin stack had a stack trace */
+  private static boolean beginStackIsCaptured() throws Exception {
+    assertTrue(TransactionUtil.begin());
+    try {
+      Exception stack = TransactionUtil.getTransactionBeginStack();
+      assertNotNull(stack);
+      return stack.getStackTrace().length > 0;
+    } finally {
+      TransactionUtil.commit(true);
+    }
+  }
+}
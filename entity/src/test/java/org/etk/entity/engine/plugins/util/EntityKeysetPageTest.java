@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.etk.entity.engine.EntityTestSupport;
+import org.etk.entity.engine.RecordingDelegator;
+import org.etk.entity.engine.core.GenericEntityException;
+import org.etk.entity.engine.core.GenericModelException;
+import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.condition.EntityCondition;
+import org.etk.entity.engine.plugins.condition.EntityExpr;
+import org.etk.entity.engine.plugins.condition.EntityOperator;
+import org.etk.entity.engine.plugins.condition.OrderByItem;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+
+import junit.framework.TestCase;
+
+/**
+ * The keyset order, the seek condition and the continuation token of
+ * {@link EntityKeysetPage}.
+ */
+public class EntityKeysetPageTest extends TestCase {
+
+  private Entity             sample;
+
+  private RecordingDelegator recorder;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    sample = EntityTestSupport.makeSampleEntity();
+    recorder = new RecordingDelegator();
+  }
+
+  public void testKeysetOrderEndsWithThePrimaryKey() throws Exception {
+    List<OrderByItem> order = EntityKeysetPage.getKeysetOrder(sample, Arrays.asList("fieldOne DESC", "primaryKeyFieldTwo"));
+    assertEquals(Arrays.asList("fieldOne DESC", "primaryKeyFieldTwo ASC", "primaryKeyFieldOne ASC"), EntityKeysetPage.getOrderBy(order));
+    assertEquals(Arrays.asList("fieldOne", "primaryKeyFieldTwo", "primaryKeyFieldOne"), EntityKeysetPage.getFieldNames(order));
+  }
+
+  public void testKeysetOrderRejectsNullsOrdering() throws Exception {
+    try {
+      EntityKeysetPage.getKeysetOrder(sample, Arrays.asList("fieldOne NULLS FIRST"));
+      fail("Keyset paging cannot seek past nulls");
+    } catch (GenericModelException e) {
+      // expected
+    }
+  }
+
+  public void testSeekConditionFollowsTheDirections() throws Exception {
+    List<OrderByItem> order = EntityKeysetPage.getKeysetOrder(sample, Arrays.asList("fieldOne DESC"));
+    EntityCondition seek = EntityKeysetPage.makeSeekCondition(order, new Object[] { "f", "A", "1" });
+
+    EntityExpr fieldOneEquals = EntityCondition.makeCondition("fieldOne", EntityOperator.EQUALS, "f");
+    EntityExpr keyOneEquals = EntityCondition.makeCondition("primaryKeyFieldOne", EntityOperator.EQUALS, "A");
+    EntityCondition expected = EntityCondition.makeCondition(Arrays.<EntityCondition> asList(
+        EntityCondition.makeCondition("fieldOne", EntityOperator.LESS_THAN, "f"),
+        EntityCondition.makeCondition(Arrays.asList(fieldOneEquals,
+            EntityCondition.makeCondition("primaryKeyFieldOne", EntityOperator.GREATER_THAN, "A")), EntityOperator.AND),
+        EntityCondition.makeCondition(Arrays.asList(fieldOneEquals, keyOneEquals,
+            EntityCondition.makeCondition("primaryKeyFieldTwo", EntityOperator.GREATER_THAN, "1")), EntityOperator.AND)),
+        EntityOperator.OR);
+    assertEquals(expected, seek);
+  }
+
+  public void testTokenRoundTrip() throws Exception {
+    List<OrderByItem> order = EntityKeysetPage.getKeysetOrder(sample, Arrays.asList("fieldOne DESC"));
+    GenericValue last = EntityTestSupport.makeValue(recorder.getDelegator(), sample, "A.1", "2", "f\u00e9");
+    String token = EntityKeysetPage.makeToken(order, last);
+
+    Object[] key = EntityKeysetPage.parseToken(recorder.getDelegator(), sample, order, token);
+    assertEquals(Arrays.asList("f\u00e9", "A.1", "2"), Arrays.asList(key));
+  }
+
+  public void testTokenOfAnotherDirectionIsRejected() throws Exception {
+    List<OrderByItem> descending = EntityKeysetPage.getKeysetOrder(sample, Arrays.asList("fieldOne DESC"));
+    List<OrderByItem> ascending = EntityKeysetPage.getKeysetOrder(sample, Arrays.asList("fieldOne ASC"));
+    GenericValue last = EntityTestSupport.makeValue(recorder.getDelegator(), sample, "A", "1", "f");
+    String token = EntityKeysetPage.makeToken(descending, last);
+    try {
+      EntityKeysetPage.parseToken(recorder.getDelegator(), sample, ascending, token);
+      fail("A token is only valid for the order it was made for");
+    } catch (GenericEntityException e) {
+      // expected
+    }
+  }
+
+  public void testTokenNeedsNonNullKey() throws Exception {
+    List<OrderByItem> order = EntityKeysetPage.getKeysetOrder(sample, Arrays.asList("fieldOne"));
+    GenericValue last = EntityTestSupport.makeValue(recorder.getDelegator(), sample, "A", "1", null);
+    try {
+      EntityKeysetPage.makeToken(order, last);
+      fail("Keyset paging cannot continue after a null value");
+    } catch (GenericEntityException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.util;
+
+import java.util.List;
+
+import org.etk.entity.engine.EntityTestSupport;
+import org.etk.entity.engine.RecordingDelegator;
+import org.etk.entity.engine.core.GenericEntity;
+import org.etk.entity.engine.core.GenericEntityException;
+import org.etk.entity.engine.core.GenericValue;
+import org.etk.entity.engine.plugins.model.xml.Entity;
+
+import junit.framework.TestCase;
+
+/**
+ * Coalescing and flush order of {@link EntityUnitOfWork}, against a delegator
+ * that only records the batch writes of the flush.
+ */
+public class EntityUnitOfWorkTest extends TestCase {
+
+  private Entity             sample;
+
+  private Entity             sample1;
+
+  private RecordingDelegator recorder;
+
+  private EntityUnitOfWork   unitOfWork;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    sample = EntityTestSupport.makeSampleEntity();
+    sample1 = EntityTestSupport.makeSampleEntity1();
+    recorder = new RecordingDelegator();
+    unitOfWork = new EntityUnitOfWork(recorder.getDelegator());
+  }
+
+  public void testRepeatedStoresAreCoalesced() throws Exception {
+    unitOfWork.store(value(sample, "A", "1", "x"));
+    unitOfWork.store(value(sample, "A", "1", "y"));
+    assertEquals(1, unitOfWork.size());
+    assertEquals(2, unitOfWork.getWriteCount());
+
+    assertEquals(1, unitOfWork.flush());
+    List<GenericValue> stored = getValues("storeAll");
+    assertEquals(1, stored.size());
+    assertEquals("y", stored.get(0).get("fieldOne"));
+    assertEquals(1, unitOfWork.getFlushedCount());
+    assertEquals(0, unitOfWork.size());
+  }
+
+  public void testCreateThenStoreStaysCreate() throws Exception {
+    unitOfWork.create(value(sample, "A", "1", "x"));
+    unitOfWork.store(value(sample, "A", "1", "y"));
+    unitOfWork.flush();
+
+    List<GenericValue> created = getValues("createAll");
+    assertEquals(1, created.size());
+    assertEquals("y", created.get(0).get("fieldOne"));
+    assertTrue(recorder.getCalls("storeAll").isEmpty());
+  }
+
+  public void testCreateThenRemoveWritesNothing() throws Exception {
+    GenericValue value = value(sample, "A", "1", "x");
+    unitOfWork.create(value);
+    assertEquals(1, unitOfWork.remove(value));
+    assertEquals(0, unitOfWork.size());
+
+    assertEquals(0, unitOfWork.flush());
+    assertTrue(recorder.getCalls("createAll").isEmpty());
+    assertTrue(recorder.getCalls("removeAll").isEmpty());
+  }
+
+  public void testRemoveThenCreateBecomesStore() throws Exception {
+    unitOfWork.remove(value(sample, "A", "1", null));
+    unitOfWork.create(value(sample, "A", "1", "x"));
+    unitOfWork.flush();
+
+    assertTrue(recorder.getCalls("createAll").isEmpty());
+    assertTrue(recorder.getCalls("removeAll").isEmpty());
+    List<GenericValue> stored = getValues("storeAll");
+    assertEquals(1, stored.size());
+    assertEquals("x", stored.get(0).get("fieldOne"));
+  }
+
+  public void testStoreOfRemovedRowChangesNothing() throws Exception {
+    unitOfWork.remove(value(sample, "A", "1", null));
+    assertEquals(0, unitOfWork.store(value(sample, "A", "1", "x")));
+    unitOfWork.flush();
+
+    assertTrue(recorder.getCalls("storeAll").isEmpty());
+    assertEquals(1, recorder.getCalls("removeAll").size());
+  }
+
+  public void testCreateOfWrittenRowFails() throws Exception {
+    unitOfWork.store(value(sample, "A", "1", "x"));
+    try {
+      unitOfWork.create(value(sample, "A", "1", "y"));
+      fail("A row stored in the unit of work cannot be created");
+    } catch (GenericEntityException e) {
+      // expected
+    }
+  }
+
+  public void testGetReturnsCopyOfPendingRow() throws Exception {
+    GenericValue value = value(sample, "A", "1", "x");
+    unitOfWork.store(value);
+    assertTrue(unitOfWork.contains(value.getPrimaryKey()));
+
+    GenericValue pending = unitOfWork.get(value.getPrimaryKey());
+    assertEquals("x", pending.get("fieldOne"));
+    pending.set("fieldOne", "changed");
+    value.set("fieldOne", "changed");
+    assertEquals("x", unitOfWork.get(value.getPrimaryKey()).get("fieldOne"));
+
+    unitOfWork.remove(value);
+    assertTrue(unitOfWork.contains(value.getPrimaryKey()));
+    assertNull(unitOfWork.get(value.getPrimaryKey()));
+  }
+
+  public void testFlushWritesCreatesStoresThenRemovesInReverseEntityOrder() throws Exception {
+    unitOfWork.create(value(sample, "A", "1", "x"));
+    unitOfWork.store(value(sample1, "B", "1", "x"));
+    unitOfWork.remove(value(sample, "C", "1", null));
+    unitOfWork.remove(value(sample1, "D", "1", null));
+    assertEquals(4, unitOfWork.flush());
+
+    List<String> writes = recorder.getMethodNames();
+    assertEquals("createAll", writes.get(writes.size() - 3));
+    assertEquals("storeAll", writes.get(writes.size() - 2));
+    assertEquals("removeAll", writes.get(writes.size() - 1));
+
+    List<GenericEntity> removed = getEntities("removeAll");
+    assertEquals(2, removed.size());
+    assertEquals(sample1.getEntityName(), removed.get(0).getEntityName());
+    assertEquals(sample.getEntityName(), removed.get(1).getEntityName());
+  }
+
+  public void testDelegatorWritesDirectlyDuringFlush() throws Exception {
+    final boolean[] flushing = new boolean[1];
+    recorder = new RecordingDelegator() {
+      @Override
+      protected void called(String methodName, Object[] args) {
+        if ("storeAll".equals(methodName)) {
+          flushing[0] = unitOfWork.isFlushing();
+        }
+      }
+    };
+    unitOfWork = new EntityUnitOfWork(recorder.getDelegator());
+    unitOfWork.store(value(sample, "A", "1", "x"));
+    unitOfWork.flush();
+
+    assertTrue(flushing[0]);
+    assertFalse(unitOfWork.isFlushing());
+  }
+
+  private GenericValue value(Entity entity, String keyOne, String keyTwo, String fieldOne) {
+    return EntityTestSupport.makeValue(recorder.getDelegator(), entity, keyOne, keyTwo, fieldOne);
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<GenericValue> getValues(String methodName) {
+    List<Object[]> calls = recorder.getCalls(methodName);
+    assertEquals(1, calls.size());
+    return (List<GenericValue>) calls.get(0)[0];
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<GenericEntity> getEntities(String methodName) {
+    List<Object[]> calls = recorder.getCalls(methodName);
+    assertEquals(1, calls.size());
+    return (List<GenericEntity>) calls.get(0)[0];
+  }
+}
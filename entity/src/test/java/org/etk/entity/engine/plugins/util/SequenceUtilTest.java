@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2003-2011 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.etk.entity.engine.plugins.util;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * How the ids of a bank are handed out, when the next bank is prefetched and
+ * how big it gets.
+ */
+public class SequenceUtilTest extends TestCase {
+
+  public void testBlockHandsOutItsRange() throws Exception {
+    SequenceUtil.Block block = new SequenceUtil.Block(10000, 10003);
+    assertEquals(10000, block.take(1));
+    assertEquals(10001, block.take(1));
+    assertEquals(10002, block.take(1));
+    assertEquals(-1, block.take(1));
+    assertEquals(-1, block.take(1));
+  }
+
+  public void testStaggerSkipsIds() throws Exception {
+    SequenceUtil.Block block = new SequenceUtil.Block(10000, 10010);
+    assertEquals(10000, block.take(4));
+    assertEquals(10004, block.take(4));
+    // only two ids left, not enough for a stagger of four
+    assertEquals(-1, block.take(4));
+  }
+
+  public void testEmptyBlockHandsOutNothing() throws Exception {
+    assertEquals(-1, new SequenceUtil.Block(0, 0).take(1));
+  }
+
+  public void testPrefetchIsDueAtThreeQuarters() throws Exception {
+    SequenceUtil.Block block = new SequenceUtil.Block(10000, 10100);
+    assertFalse(block.isPrefetchDue(10000));
+    assertFalse(block.isPrefetchDue(10000 + SequenceUtil.PREFETCH_PERCENT - 1));
+    assertTrue(block.isPrefetchDue(10000 + SequenceUtil.PREFETCH_PERCENT));
+    assertTrue(block.isPrefetchDue(10099));
+  }
+
+  public void testConcurrentHandOutIsUnique() throws Exception {
+    final SequenceUtil.Block block = new SequenceUtil.Block(10000, 30000);
+    final Set<Long> ids = Collections.synchronizedSet(new HashSet<Long>());
+    final AtomicInteger duplicates = new AtomicInteger();
+    final AtomicInteger exhausted = new AtomicInteger();
+    int threads = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < 3000; i++) {
+              long id = block.take(1);
+              if (id < 0) {
+                exhausted.incrementAndGet();
+              } else if (!ids.add(id)) {
+                duplicates.incrementAndGet();
+              }
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    start.countDown();
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertEquals(0, duplicates.get());
+    assertEquals(20000, ids.size());
+    assertEquals(24000 - 20000, exhausted.get());
+  }
+
+  public void testFastBanksGrowUpToTheMaximum() throws Exception {
+    SequenceUtil.AdaptiveBankSize sizes = new SequenceUtil.AdaptiveBankSize(10, 50);
+    long now = TimeUnit.SECONDS.toNanos(1);
+    assertEquals(10, sizes.next(now));
+    now += TimeUnit.MILLISECONDS.toNanos(10);
+    assertEquals(20, sizes.next(now));
+    now += TimeUnit.MILLISECONDS.toNanos(10);
+    assertEquals(40, sizes.next(now));
+    now += TimeUnit.MILLISECONDS.toNanos(10);
+    assertEquals(50, sizes.next(now));
+  }
+
+  public void testSlowBanksShrinkDownToTheConfiguredSize() throws Exception {
+    SequenceUtil.AdaptiveBankSize sizes = new SequenceUtil.AdaptiveBankSize(10, 5000);
+    long now = TimeUnit.SECONDS.toNanos(1);
+    sizes.next(now);
+    for (int i = 0; i < 4; i++) {
+      now += TimeUnit.MILLISECONDS.toNanos(10);
+      sizes.next(now);
+    }
+    now += TimeUnit.MILLISECONDS.toNanos(SequenceUtil.SLOW_REFILL_MILLIS + 1);
+    assertEquals(80, sizes.next(now));
+    now += TimeUnit.MILLISECONDS.toNanos(SequenceUtil.SLOW_REFILL_MILLIS + 1);
+    assertEquals(40, sizes.next(now));
+    for (int i = 0; i < 4; i++) {
+      now += TimeUnit.MILLISECONDS.toNanos(SequenceUtil.SLOW_REFILL_MILLIS + 1);
+      sizes.next(now);
+    }
+    assertEquals(10, sizes.next(now + TimeUnit.MILLISECONDS.toNanos(SequenceUtil.SLOW_REFILL_MILLIS + 1)));
+  }
+
+  public void testSteadyBanksKeepTheirSize() throws Exception {
+    SequenceUtil.AdaptiveBankSize sizes = new SequenceUtil.AdaptiveBankSize(10, 5000);
+    long now = TimeUnit.SECONDS.toNanos(1);
+    sizes.next(now);
+    now += TimeUnit.MILLISECONDS.toNanos(SequenceUtil.FAST_REFILL_MILLIS + 1);
+    assertEquals(10, sizes.next(now));
+  }
+}